@@ -0,0 +1,138 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Keeps a bounded number of read-only {@link FileChannel}s to content blocks open so
+ * that paging through a file does not cost an open/close per page. Channels are handed
+ * out with {@link #acquire(HashCode)} and must be given back with {@link #release(HashCode)}.
+ * Only channels nobody holds are eligible for eviction, least recently used first.
+ */
+public class BlockChannelCache implements BlockReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockChannelCache.class);
+
+    private static class Entry {
+        final FileChannel channel;
+        int refCount;
+
+        Entry(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final MondoFileStore mStore;
+    private final int mMaxOpen;
+    private final LinkedHashMap<HashCode, Entry> mEntries = new LinkedHashMap<HashCode, Entry>(16, 0.75f, true);
+    private boolean mClosed;
+
+    public BlockChannelCache(MondoFileStore store, int maxOpen) {
+        checkArgument(maxOpen > 0);
+        mStore = store;
+        mMaxOpen = maxOpen;
+    }
+
+    public FileChannel acquire(HashCode hash) throws IOException {
+        synchronized (this) {
+            checkState(!mClosed, "cache is closed");
+            Entry entry = mEntries.get(hash);
+            if(entry != null) {
+                entry.refCount++;
+                return entry.channel;
+            }
+        }
+
+        //open outside the lock so a slow open does not stall readers of other blocks
+        File blockFile = mStore.getFileBlock(hash);
+        FileChannel channel = FileChannel.open(blockFile.toPath(), StandardOpenOption.READ);
+
+        FileChannel duplicate = null;
+        try {
+            synchronized (this) {
+                Entry entry = mEntries.get(hash);
+                if(entry != null) {
+                    duplicate = channel;
+                } else {
+                    entry = new Entry(channel);
+                    mEntries.put(hash, entry);
+                }
+                entry.refCount++;
+                trim();
+                return entry.channel;
+            }
+        } finally {
+            if(duplicate != null) {
+                duplicate.close();
+            }
+        }
+    }
+
+    public synchronized void release(HashCode hash) {
+        Entry entry = mEntries.get(hash);
+        if(entry == null || entry.refCount <= 0) {
+            LOGGER.warn("release of unreferenced block channel: {}", hash);
+            return;
+        }
+        entry.refCount--;
+        trim();
+    }
+
+    @Override
+    public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+        FileChannel channel = acquire(hash);
+        try {
+            int bytesRead;
+            while(dst.hasRemaining() && (bytesRead = channel.read(dst, offset)) >= 0) {
+                offset += bytesRead;
+            }
+        } finally {
+            release(hash);
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while(mEntries.size() > mMaxOpen && it.hasNext()) {
+            Entry entry = it.next();
+            if(entry.refCount == 0) {
+                it.remove();
+                closeQuietly(entry.channel);
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        for(Entry entry : mEntries.values()) {
+            closeQuietly(entry.channel);
+        }
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,235 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mark and sweep collection of content blocks that no BlockGroup refers to anymore, left
+ * behind by deleted and rewritten files.
+ *
+ * <p>The mark phase walks {@link MondoFileStore#mBlockGroups} and puts every referenced
+ * block into a bloom filter, which keeps memory small no matter how many blocks there are.
+ * A false positive only means a dead block survives until a later collection. Parity shards
+ * are marked along with the BlockGroup they protect; parity of an older version of a file
+ * is dropped, so its shards are collected like any other dead block. The sweep
+ * phase walks {@link BlockStore#ids()} and deletes every block the filter has never seen.
+ * Both phases take a permit of the rate limiter per block, so a collection is spread out
+ * over time instead of competing with foreground I/O.</p>
+ *
+ * <p>Blocks that were stored by a {@link BlockWriter} but whose BlockGroup is not committed
+ * yet are invisible to the mark phase. Writers {@link #hold(HashCode)} every block before
+ * storing it and {@link #release(Iterable)} them once the flush is over. Releases that
+ * happen during a collection are deferred until it ends: the mark phase may already have
+ * passed the BlockGroup that was committed.</p>
+ *
+ * <p>The invariant is that every block a BlockGroup may still be built from is either
+ * reachable from {@link MondoFileStore#mBlockGroups} or held. Writers reuse blocks of the
+ * BlockGroup their channel was opened on, which another channel may have replaced since,
+ * so every open {@link MondoFileChannel} holds the blocks of that BlockGroup until it is
+ * closed and flushed, see {@link MondoFileStore#holdBlockGroup(long)}. A writer's own hold
+ * of a reused block then never comes too late.</p>
+ */
+class BlockCollector implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockCollector.class);
+
+    private static final int MIN_EXPECTED_BLOCKS = 10000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /** deletes are committed in batches so an interrupted sweep does not lose much */
+    private static final int COMMIT_EVERY = 1000;
+
+    static class Result {
+        long blocksScanned;
+        long blocksRemoved;
+        long bytesReclaimed;
+        long millis;
+    }
+
+    private final MondoFileStore mFileStore;
+    private final RateLimiter mRateLimiter;
+
+    //guarded by mHeld
+    private final Multiset<HashCode> mHeld = HashMultiset.create();
+    private List<HashCode> mDeferredReleases;
+
+    private int mExpectedBlocks = MIN_EXPECTED_BLOCKS;
+    private volatile Result mLastResult;
+
+    BlockCollector(MondoFileStore fileStore, double blocksPerSecond) {
+        mFileStore = fileStore;
+        mRateLimiter = RateLimiter.create(blocksPerSecond);
+    }
+
+    /**
+     * keep {@code id} alive until it is released
+     */
+    void hold(HashCode id) {
+        synchronized (mHeld) {
+            mHeld.add(id);
+        }
+    }
+
+    void hold(Iterable<HashCode> ids) {
+        synchronized (mHeld) {
+            for(HashCode id : ids) {
+                mHeld.add(id);
+            }
+        }
+    }
+
+    boolean isHeld(HashCode id) {
+        synchronized (mHeld) {
+            return mHeld.contains(id);
+        }
+    }
+
+    void release(Iterable<HashCode> ids) {
+        synchronized (mHeld) {
+            for(HashCode id : ids) {
+                if(mDeferredReleases != null) {
+                    mDeferredReleases.add(id);
+                } else {
+                    mHeld.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the outcome of the last finished collection, or null
+     */
+    Result getLastResult() {
+        return mLastResult;
+    }
+
+    @Override
+    public void run() {
+        try {
+            collect();
+        } catch (Exception e) {
+            LOGGER.error("block collection failed", e);
+        }
+    }
+
+    synchronized Result collect() throws IOException {
+        final long start = System.nanoTime();
+        final Result result = new Result();
+
+        synchronized (mHeld) {
+            mDeferredReleases = new ArrayList<HashCode>();
+        }
+        try {
+            final BloomFilter<byte[]> live = mark();
+            if(live == null) {
+                return null;
+            }
+
+            for(HashCode id : mFileStore.mBlockStore.ids()) {
+                if(Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                mRateLimiter.acquire();
+                result.blocksScanned++;
+                if(live.mightContain(id.asBytes())) {
+                    continue;
+                }
+
+                final long length = deleteIfNotHeld(id);
+                if(length >= 0) {
+                    result.blocksRemoved++;
+                    result.bytesReclaimed += length;
+                    if(result.blocksRemoved % COMMIT_EVERY == 0) {
+                        mFileStore.mCommitter.mutated();
+                    }
+                }
+            }
+            if(result.blocksRemoved > 0) {
+                mFileStore.mCommitter.mutated();
+            }
+        } finally {
+            synchronized (mHeld) {
+                for(HashCode id : mDeferredReleases) {
+                    mHeld.remove(id);
+                }
+                mDeferredReleases = null;
+            }
+        }
+
+        result.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        mLastResult = result;
+        LOGGER.info("block collection scanned {} blocks, removed {} ({} bytes) in {} ms",
+                result.blocksScanned, result.blocksRemoved, result.bytesReclaimed, result.millis);
+        return result;
+    }
+
+    /**
+     * @return a filter containing every referenced block, or null if interrupted
+     */
+    private BloomFilter<byte[]> mark() {
+        final BloomFilter<byte[]> live = BloomFilter.create(Funnels.byteArrayFunnel(), mExpectedBlocks, FALSE_POSITIVE_RATE);
+        int marked = 0;
+        for(Long blockId : mFileStore.mBlockGroups.navigableKeySet()) {
+            if(Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            final BlockGroup bg = mFileStore.mBlockGroups.get(blockId);
+            if(bg == null) {
+                continue;
+            }
+            mRateLimiter.acquire(Math.max(1, bg.blocks.size()));
+            for(HashCode id : bg.blocks) {
+                live.put(id.asBytes());
+                marked++;
+            }
+        }
+
+        for(Long blockId : mFileStore.mParity.navigableKeySet()) {
+            if(Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            final BlockGroupParity parity = mFileStore.getParity(blockId);
+            if(parity == null) {
+                continue;
+            }
+            for(BlockGroupParity.Stripe stripe : parity.stripes) {
+                mRateLimiter.acquire(Math.max(1, stripe.parity.size()));
+                for(HashCode id : stripe.parity) {
+                    live.put(id.asBytes());
+                    marked++;
+                }
+            }
+        }
+
+        //a filter that overflows gets less precise, not wrong; size the next one to fit
+        mExpectedBlocks = Math.max(MIN_EXPECTED_BLOCKS, 2 * marked);
+        return live;
+    }
+
+    /**
+     * @return the length of the deleted block, or -1 if it was kept
+     */
+    private long deleteIfNotHeld(HashCode id) throws IOException {
+        //a writer that holds the block after this check stores it again; blocks it reuses are held by its channel
+        synchronized (mHeld) {
+            if(mHeld.contains(id)) {
+                return -1;
+            }
+            final long length = mFileStore.mBlockStore.getLength(id);
+            mFileStore.mBlockStore.delete(id);
+            return length;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.devsmart.mondo;
 
 
+import com.devsmart.mondo.data.ContentHash;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
+import com.google.common.hash.Hasher;
 import org.jetbrains.annotations.NotNull;
 import org.mapdb.DataInput2;
 import org.mapdb.DataOutput2;
@@ -12,59 +12,206 @@ import org.mapdb.serializer.GroupSerializer;
 import org.mapdb.serializer.GroupSerializerObjectArray;
 
 import java.io.IOException;
+import java.util.List;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 public class BlockGroup {
 
-    public static final HashFunction HASH_FUNCTION = Hashing.sha1();
+    /*
+        Serialized format
+
+        Version 0 (legacy, unversioned):
+        packInt offset (always 0)
+        20 bytes checksum
+        packInt numBlocks
+        {20 bytes hash}[numBlocks]
+        Still written for records without block lengths until they are migrated.
+
+        Version 1:
+        packInt version (1)
+        packInt offset
+        20 bytes checksum
+        packInt numBlocks
+        {20 bytes hash, packLong length}[numBlocks]
+
+        Version 2:
+        packInt version (2)
+        packInt offset
+        byte content hash tag
+        checksum id
+        packInt numBlocks
+        {block id, packLong length}[numBlocks]
+        ids are ContentHash.idLength() bytes
+
+        A block whose digest is all zeros is a hole, see holeId()
+     */
+    private static final int FORMAT_VERSION = 2;
 
     public final int offset;
+
+    /**
+     * identifies the content of the whole group. Computed with {@link #computeChecksum(ContentHash, List, long[])}
+     * so it does not require reading the data again; records written by older versions hold
+     * the hash of the file contents instead.
+     */
     public final HashCode checksum;
     public final ImmutableList<HashCode> blocks;
 
-    public BlockGroup(int offset, HashCode checksum, ImmutableList<HashCode> blocks) {
+    /**
+     * file offset at which each block starts, plus the total size as the last element.
+     * null for records written before block lengths were stored.
+     */
+    private final long[] mBlockOffsets;
+
+    /**
+     * @param blockLengths length of each block in {@code blocks}, or null if unknown
+     */
+    public BlockGroup(int offset, HashCode checksum, ImmutableList<HashCode> blocks, long[] blockLengths) {
         this.offset = offset;
         this.checksum = checksum;
         this.blocks = blocks;
+
+        if(blockLengths != null) {
+            checkArgument(blockLengths.length == blocks.size());
+            mBlockOffsets = new long[blockLengths.length + 1];
+            for(int i=0;i<blockLengths.length;i++) {
+                mBlockOffsets[i + 1] = mBlockOffsets[i] + blockLengths[i];
+            }
+        } else {
+            mBlockOffsets = null;
+        }
+    }
+
+    public static HashCode computeChecksum(ContentHash contentHash, List<HashCode> blocks, long[] blockLengths) {
+        checkArgument(blocks.size() == blockLengths.length);
+        Hasher hasher = contentHash.hashFunction().newHasher();
+        for(int i=0;i<blockLengths.length;i++) {
+            hasher.putBytes(blocks.get(i).asBytes());
+            hasher.putLong(blockLengths[i]);
+        }
+        return contentHash.toId(hasher.hash());
+    }
+
+    /**
+     * Id of a block of zeros that is not stored anywhere. Sparse parts of a file are
+     * recorded as a hole of any length instead of being chunked and stored.
+     */
+    public static HashCode holeId(ContentHash contentHash) {
+        return contentHash.toId(HashCode.fromBytes(new byte[contentHash.hashFunction().bits() / 8]));
+    }
+
+    public static boolean isHole(HashCode id) {
+        final byte[] bytes = id.asBytes();
+        //skip the tag byte of anything but a SHA-1 id
+        for(int i=bytes.length == ContentHash.SHA1.idLength() ? 0 : 1;i<bytes.length;i++) {
+            if(bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the hash algorithm of the checksum and of every block in the group
+     */
+    public ContentHash getContentHash() {
+        return ContentHash.of(checksum);
+    }
+
+    public boolean hasBlockLengths() {
+        return mBlockOffsets != null;
+    }
+
+    /**
+     * Returns the offset table: entry i is the file offset where block i starts and the
+     * last entry is the total size. The caller must not modify the returned array.
+     */
+    public long[] getBlockOffsets() {
+        checkState(mBlockOffsets != null, "block lengths unknown");
+        return mBlockOffsets;
+    }
+
+    public long getBlockLength(int i) {
+        return getBlockOffsets()[i + 1] - mBlockOffsets[i];
     }
 
     public static final GroupSerializer<BlockGroup> SERIALIZER = new GroupSerializerObjectArray<BlockGroup>() {
         @Override
         public void serialize(@NotNull DataOutput2 out, @NotNull BlockGroup value) throws IOException {
+            if(!value.hasBlockLengths()) {
+                //BTreeMap writes back whole nodes, so records not migrated yet are written
+                //again along with any change next to them
+                serializeLegacy(out, value);
+                return;
+            }
+            final ContentHash contentHash = value.getContentHash();
+            out.packInt(FORMAT_VERSION);
             out.packInt(value.offset);
+            out.writeByte(contentHash.tag);
 
-            byte[] checksumData = value.checksum.asBytes();
-            checkState(checksumData.length == 20);
-            out.write(checksumData);
+            out.write(value.checksum.asBytes());
 
             int numBlocks = value.blocks.size();
             out.packInt(numBlocks);
-            for(HashCode hashCode : value.blocks) {
-                byte[] data = hashCode.asBytes();
-                checkState(data.length == 20);
+            for(int i=0;i<numBlocks;i++) {
+                byte[] data = value.blocks.get(i).asBytes();
+                checkState(data.length == contentHash.idLength());
                 out.write(data);
+                out.packLong(value.getBlockLength(i));
             }
 
         }
 
+        private void serializeLegacy(DataOutput2 out, BlockGroup value) throws IOException {
+            checkState(value.offset == 0 && value.getContentHash() == ContentHash.SHA1,
+                    "only SHA-1 records with offset 0 can be written without block lengths");
+            out.packInt(0);
+            out.write(value.checksum.asBytes());
+            out.packInt(value.blocks.size());
+            for(HashCode block : value.blocks) {
+                out.write(block.asBytes());
+            }
+        }
+
         @Override
         public BlockGroup deserialize(@NotNull DataInput2 input, int available) throws IOException {
-            byte[] data = new byte[20];
-            final int offset = input.unpackInt();
+            final int version;
+            final int offset;
+            final int first = input.unpackInt();
+            if(first == 0) {
+                //legacy records start with the offset field, which was always 0
+                version = 0;
+                offset = first;
+            } else {
+                version = first;
+                offset = input.unpackInt();
+            }
+
+            if(version > FORMAT_VERSION) {
+                throw new IOException("unknown BlockGroup format version: " + version);
+            }
+
+            final ContentHash contentHash = version >= 2 ? ContentHash.forTag(input.readUnsignedByte()) : ContentHash.SHA1;
 
+            byte[] data = new byte[contentHash.idLength()];
             input.readFully(data);
             HashCode checksum = HashCode.fromBytes(data);
 
             int numBlocks = input.unpackInt();
             ImmutableList.Builder<HashCode> builder = ImmutableList.builder();
+            long[] lengths = version >= 1 ? new long[numBlocks] : null;
 
             for(int i=0;i<numBlocks;i++) {
                 input.readFully(data);
                 builder.add(HashCode.fromBytes(data));
+                if(lengths != null) {
+                    lengths[i] = input.unpackLong();
+                }
             }
 
-            return new BlockGroup(offset, checksum, builder.build());
+            return new BlockGroup(offset, checksum, builder.build(), lengths);
         }
 
         @Override
@@ -0,0 +1,160 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.data.ContentHash;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.serializer.GroupSerializer;
+import org.mapdb.serializer.GroupSerializerObjectArray;
+
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Parity shards that protect the blocks of one {@link BlockGroup}. The blocks are taken in
+ * stripes of up to {@code dataShards} blocks, holes left out, and each stripe gets the same
+ * number of parity shards, stored as ordinary blocks. Blocks shorter than the longest one
+ * of their stripe are padded with zeros, and so are stripes with fewer blocks.
+ */
+class BlockGroupParity {
+
+    /*
+        Serialized format
+
+        packInt version (1)
+        byte content hash tag
+        checksum id of the BlockGroup
+        packInt dataShards
+        packInt numStripes
+        {
+            packInt numBlocks
+            {packInt block index}[numBlocks]
+            packInt shardLength
+            packInt numParity
+            {parity id}[numParity]
+        }[numStripes]
+        ids are ContentHash.idLength() bytes
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    static class Stripe {
+
+        /** indices into the blocks of the BlockGroup */
+        final int[] blocks;
+        final int shardLength;
+        final ImmutableList<HashCode> parity;
+
+        Stripe(int[] blocks, int shardLength, ImmutableList<HashCode> parity) {
+            this.blocks = blocks;
+            this.shardLength = shardLength;
+            this.parity = parity;
+        }
+
+        /**
+         * @return shard number of block {@code blockIndex} in this stripe, or -1
+         */
+        int indexOf(int blockIndex) {
+            for(int i=0;i<blocks.length;i++) {
+                if(blocks[i] == blockIndex) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** checksum of the BlockGroup the parity was computed for */
+    final HashCode checksum;
+    final int dataShards;
+    final ImmutableList<Stripe> stripes;
+
+    BlockGroupParity(HashCode checksum, int dataShards, ImmutableList<Stripe> stripes) {
+        this.checksum = checksum;
+        this.dataShards = dataShards;
+        this.stripes = stripes;
+    }
+
+    /**
+     * whether this is the parity of {@code blockGroup} rather than of an older version of the file
+     */
+    boolean protects(BlockGroup blockGroup) {
+        return blockGroup != null && blockGroup.checksum.equals(checksum);
+    }
+
+    Stripe getStripe(int blockIndex) {
+        for(Stripe stripe : stripes) {
+            if(stripe.indexOf(blockIndex) >= 0) {
+                return stripe;
+            }
+        }
+        return null;
+    }
+
+    static final GroupSerializer<BlockGroupParity> SERIALIZER = new GroupSerializerObjectArray<BlockGroupParity>() {
+        @Override
+        public void serialize(@NotNull DataOutput2 out, @NotNull BlockGroupParity value) throws IOException {
+            final ContentHash contentHash = ContentHash.of(value.checksum);
+            out.packInt(FORMAT_VERSION);
+            out.writeByte(contentHash.tag);
+            out.write(value.checksum.asBytes());
+            out.packInt(value.dataShards);
+            out.packInt(value.stripes.size());
+            for(Stripe stripe : value.stripes) {
+                out.packInt(stripe.blocks.length);
+                for(int block : stripe.blocks) {
+                    out.packInt(block);
+                }
+                out.packInt(stripe.shardLength);
+                out.packInt(stripe.parity.size());
+                for(HashCode id : stripe.parity) {
+                    byte[] data = id.asBytes();
+                    checkState(data.length == contentHash.idLength());
+                    out.write(data);
+                }
+            }
+        }
+
+        @Override
+        public BlockGroupParity deserialize(@NotNull DataInput2 input, int available) throws IOException {
+            final int version = input.unpackInt();
+            if(version > FORMAT_VERSION) {
+                throw new IOException("unknown BlockGroupParity format version: " + version);
+            }
+            final ContentHash contentHash = ContentHash.forTag(input.readUnsignedByte());
+
+            byte[] data = new byte[contentHash.idLength()];
+            input.readFully(data);
+            final HashCode checksum = HashCode.fromBytes(data);
+            final int dataShards = input.unpackInt();
+
+            final int numStripes = input.unpackInt();
+            ImmutableList.Builder<Stripe> stripes = ImmutableList.builder();
+            for(int s=0;s<numStripes;s++) {
+                int[] blocks = new int[input.unpackInt()];
+                for(int i=0;i<blocks.length;i++) {
+                    blocks[i] = input.unpackInt();
+                }
+                final int shardLength = input.unpackInt();
+                final int numParity = input.unpackInt();
+                ImmutableList.Builder<HashCode> parity = ImmutableList.builder();
+                for(int i=0;i<numParity;i++) {
+                    data = new byte[contentHash.idLength()];
+                    input.readFully(data);
+                    parity.add(HashCode.fromBytes(data));
+                }
+                stripes.add(new Stripe(blocks, shardLength, parity.build()));
+            }
+
+            return new BlockGroupParity(checksum, dataShards, stripes.build());
+        }
+
+        @Override
+        public int compare(BlockGroupParity a, BlockGroupParity b) {
+            return 0;
+        }
+    };
+}
@@ -0,0 +1,303 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Answers "is this block stored?" from memory. A bloom filter of every block id sits in
+ * front of a {@link BlockStore}, whose own index stays the persistent record: the pack
+ * index, or the block files of a loose store. Most lookups for new blocks are answered by
+ * the filter alone and never reach the disk; only ids the filter has seen, and its false
+ * positives, are checked with the store.
+ *
+ * <p>The filter is built from {@link BlockStore#ids()} in the background when the store
+ * opens; lookups go straight to the store until it is ready. Ids are added before the block
+ * is stored, so the filter never misses a stored block. Deleted blocks stay in the filter
+ * and cost a lookup in the store, so it is rebuilt once many blocks were deleted, or once
+ * it holds more ids than it was sized for.</p>
+ */
+class BlockIndex implements BlockStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockIndex.class);
+
+    static class Stats {
+        long puts;
+        long duplicates;
+        long lookups;
+        long filtered;
+        long falsePositives;
+
+        /**
+         * fraction of stored blocks that were already in the store
+         */
+        double dedupRatio() {
+            return puts == 0 ? 0 : (double) duplicates / puts;
+        }
+
+        /**
+         * fraction of lookups of missing blocks that the filter could not answer
+         */
+        double falsePositiveRate() {
+            final long missing = filtered + falsePositives;
+            return missing == 0 ? 0 : (double) falsePositives / missing;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("puts: %d dedup ratio: %.3f lookups: %d filtered: %d false positive rate: %.4f",
+                    puts, dedupRatio(), lookups, filtered, falsePositiveRate());
+        }
+    }
+
+    private final BlockStore mStore;
+    private final Executor mExecutor;
+    private final long mMinExpectedBlocks;
+    private final double mFalsePositiveRate;
+
+    //guarded by this. Guava's BloomFilter is not thread safe
+    private BloomFilter<byte[]> mFilter;
+    private long mExpectedBlocks;
+    private long mNumBlocks;
+    private long mNumDeleted;
+    private BloomFilter<byte[]> mNextFilter;
+    private long mNextNumBlocks;
+    /** ids being stored right now, which a walk of the store may not see yet */
+    private final Multiset<HashCode> mStoring = HashMultiset.create();
+    private boolean mRebuildScheduled;
+    private final Stats mStats = new Stats();
+
+    /**
+     * @param executor runs the rebuilds of the filter
+     * @param expectedBlocks the filter is sized for at least this many blocks
+     */
+    BlockIndex(BlockStore store, Executor executor, long expectedBlocks, double falsePositiveRate) {
+        checkArgument(expectedBlocks > 0);
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1);
+        mStore = store;
+        mExecutor = executor;
+        mMinExpectedBlocks = expectedBlocks;
+        mFalsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * build the filter in the background
+     */
+    void start() {
+        scheduleRebuild();
+    }
+
+    BlockStore getStore() {
+        return mStore;
+    }
+
+    synchronized boolean isReady() {
+        return mFilter != null;
+    }
+
+    /**
+     * @return false if the filter knows {@code id} is not stored
+     */
+    private synchronized boolean mightContain(HashCode id) {
+        mStats.lookups++;
+        if(mFilter == null || mFilter.mightContain(id.asBytes())) {
+            return true;
+        }
+        mStats.filtered++;
+        return false;
+    }
+
+    private synchronized void falsePositive() {
+        if(mFilter != null) {
+            mStats.falsePositives++;
+        }
+    }
+
+    private synchronized void add(HashCode id) {
+        mStoring.add(id);
+        final byte[] key = id.asBytes();
+        if(mFilter != null) {
+            mFilter.put(key);
+            mNumBlocks++;
+            if(mNumBlocks > mExpectedBlocks) {
+                scheduleRebuild();
+            }
+        }
+        if(mNextFilter != null) {
+            mNextFilter.put(key);
+            mNextNumBlocks++;
+        }
+    }
+
+    @Override
+    public boolean contains(HashCode id) {
+        if(!mightContain(id)) {
+            return false;
+        }
+        final boolean retval = mStore.contains(id);
+        if(!retval) {
+            falsePositive();
+        }
+        return retval;
+    }
+
+    @Override
+    public long getLength(HashCode id) {
+        if(!mightContain(id)) {
+            return -1;
+        }
+        final long retval = mStore.getLength(id);
+        if(retval < 0) {
+            falsePositive();
+        }
+        return retval;
+    }
+
+    @Override
+    public void put(HashCode id, File src) throws IOException {
+        final boolean duplicate = contains(id);
+        synchronized (this) {
+            mStats.puts++;
+            if(duplicate) {
+                mStats.duplicates++;
+            }
+        }
+
+        if(duplicate) {
+            if(!src.delete()) {
+                LOGGER.warn("could not delete temp file: {}", src);
+            }
+        } else {
+            add(id);
+            try {
+                mStore.put(id, src);
+            } finally {
+                synchronized (this) {
+                    mStoring.remove(id);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void delete(HashCode id) throws IOException {
+        mStore.delete(id);
+        synchronized (this) {
+            mNumDeleted++;
+            if(mFilter != null && mNumDeleted > mNumBlocks / 2) {
+                scheduleRebuild();
+            }
+        }
+    }
+
+    @Override
+    public Iterable<HashCode> ids() {
+        return mStore.ids();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mStore.flush();
+    }
+
+    @Override
+    public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+        mStore.read(hash, offset, dst);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStore.close();
+    }
+
+    synchronized Stats getStats() {
+        Stats retval = new Stats();
+        retval.puts = mStats.puts;
+        retval.duplicates = mStats.duplicates;
+        retval.lookups = mStats.lookups;
+        retval.filtered = mStats.filtered;
+        retval.falsePositives = mStats.falsePositives;
+        return retval;
+    }
+
+    private synchronized void scheduleRebuild() {
+        if(!mRebuildScheduled) {
+            mRebuildScheduled = true;
+            mExecutor.execute(mRebuild);
+        }
+    }
+
+    private final Runnable mRebuild = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                LOGGER.error("unable to build the block index", e);
+            }
+        }
+    };
+
+    /**
+     * Fill a new filter from the store. Ids added meanwhile go into both filters, so the
+     * new one is complete once the walk is done.
+     */
+    private void rebuild() {
+        final long start = System.nanoTime();
+        final long expectedBlocks;
+        final BloomFilter<byte[]> next;
+        synchronized (this) {
+            mRebuildScheduled = false;
+            expectedBlocks = Math.max(mMinExpectedBlocks, 2 * mNumBlocks);
+            next = BloomFilter.create(Funnels.byteArrayFunnel(), expectedBlocks, mFalsePositiveRate);
+            mNextFilter = next;
+            mNextNumBlocks = 0;
+            for(HashCode id : mStoring.elementSet()) {
+                next.put(id.asBytes());
+                mNextNumBlocks++;
+            }
+        }
+
+        boolean complete = false;
+        try {
+            for(HashCode id : mStore.ids()) {
+                if(Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                synchronized (this) {
+                    next.put(id.asBytes());
+                    mNextNumBlocks++;
+                }
+            }
+            complete = true;
+        } finally {
+            synchronized (this) {
+                mNextFilter = null;
+                if(complete) {
+                    mFilter = next;
+                    mExpectedBlocks = expectedBlocks;
+                    mNumBlocks = mNextNumBlocks;
+                    mNumDeleted = 0;
+                    LOGGER.info("block index of {} blocks built in {} ms", mNumBlocks,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if(mNumBlocks > mExpectedBlocks) {
+                        scheduleRebuild();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface BlockReader extends Closeable {
+
+    /**
+     * Copy bytes of block {@code hash} starting at {@code offset} into {@code dst} until
+     * {@code dst} is full or the end of the block is reached.
+     */
+    void read(HashCode hash, long offset, ByteBuffer dst) throws IOException;
+
+}
@@ -0,0 +1,47 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Where content blocks live. Blocks are immutable and addressed by their id; storing a
+ * block that already exists is a no-op.
+ */
+public interface BlockStore extends BlockReader, Flushable {
+
+    boolean contains(HashCode id);
+
+    /**
+     * @return the length of the block, or -1 if it is not in the store
+     */
+    long getLength(HashCode id);
+
+    /**
+     * Add the contents of {@code src} as block {@code id}. The store takes ownership of
+     * {@code src}: it is moved or copied into the store and deleted.
+     */
+    void put(HashCode id, File src) throws IOException;
+
+    /**
+     * remove a block. Its space may only be reclaimed later.
+     */
+    void delete(HashCode id) throws IOException;
+
+    /**
+     * every block in the store. Blocks added or deleted while iterating may or may not
+     * show up.
+     */
+    Iterable<HashCode> ids();
+
+    /**
+     * Make every block stored so far durable. Called before every commit, holding the
+     * commit lock, so metadata never refers to blocks that could be lost.
+     */
+    @Override
+    void flush() throws IOException;
+
+}
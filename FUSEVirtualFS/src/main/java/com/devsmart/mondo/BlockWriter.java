@@ -0,0 +1,425 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.data.Chunker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Splits a byte stream into content defined blocks and stores each block as soon as its
+ * end is found. Data can be fed while a file is being written so that closing the file
+ * only has to finish the last block. Because the chunker starts over at every block
+ * boundary, a stream can also be resumed from any boundary: blocks that are known to be
+ * unchanged are added with {@link #addBlock(HashCode, long)} and chunking continues
+ * from there with the same result as chunking the whole stream.
+ *
+ * <p>Storing is pipelined. The calling thread only finds boundaries and copies the data
+ * into pieces of {@link #PIECE_SIZE} bytes. The pieces of a block are hashed and written
+ * to a temp file on the store's ingest pool, so blocks of the same file, or of different
+ * files, are hashed in parallel. Finished blocks are moved to their content address by
+ * the single block store thread. Every piece in flight holds a permit of the store's
+ * ingest budget, so the caller blocks when hashing falls behind. The piece that is still
+ * being filled holds no permit: pieces in flight always drain, so a writer waiting for a
+ * permit cannot be blocked by open writers that are not writing.</p>
+ *
+ * <p>Every block the writer stores or reuses is held with the store's {@link BlockCollector}
+ * until {@link #releaseBlocks()}, once the BlockGroup that refers to them is committed.</p>
+ */
+class BlockWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockWriter.class);
+
+    static final int PIECE_SIZE = 256 * 1024;
+
+    private final MondoFileStore mFileStore;
+    private final Chunker.Scanner mScanner;
+    private final List<ListenableFuture<HashCode>> mBlocks = new ArrayList<ListenableFuture<HashCode>>();
+    private final List<Long> mBlockLengths = new ArrayList<Long>();
+    private long mCompletedLength;
+
+    private BlockJob mBlockJob;
+    private byte[] mPiece;
+    private int mPieceLength;
+    private long mBlockLength;
+
+    //guarded by mHeldBlocks
+    private final List<HashCode> mHeldBlocks = new ArrayList<HashCode>();
+    private boolean mReleased;
+
+    BlockWriter(MondoFileStore fileStore) {
+        mFileStore = fileStore;
+        mScanner = fileStore.mChunker.newScanner();
+    }
+
+    /**
+     * number of stream bytes consumed so far
+     */
+    long getOffset() {
+        return mCompletedLength + mBlockLength;
+    }
+
+    /**
+     * whether the stream consumed so far ends on a block boundary
+     */
+    boolean isOnBoundary() {
+        return mBlockLength == 0;
+    }
+
+    /**
+     * whether a block ends exactly at stream offset {@code pos}
+     */
+    boolean endsBlock(long pos) {
+        long end = mCompletedLength;
+        for(int i=mBlockLengths.size()-1;i>=0 && end > pos;i--) {
+            end -= mBlockLengths.get(i);
+        }
+        return end == pos && pos > 0;
+    }
+
+    /**
+     * append an existing block without reading it. Only valid on a block boundary. The
+     * block must already be held, like the blocks of the BlockGroup a channel works on,
+     * or the collector may have deleted it.
+     */
+    void addBlock(HashCode hash, long length) {
+        checkState(mBlockLength == 0, "not on a block boundary");
+        if(!BlockGroup.isHole(hash)) {
+            checkState(mFileStore.mBlockCollector.isHeld(hash), "reused block %s is not held", hash);
+            holdBlock(hash);
+        }
+        mBlocks.add(Futures.immediateFuture(hash));
+        mBlockLengths.add(length);
+        mCompletedLength += length;
+    }
+
+    /**
+     * Append {@code length} zeros that are not stored, see {@link BlockGroup#holeId}.
+     * Ends the current block; chunking starts over after the hole.
+     */
+    void addHole(long length) throws IOException {
+        if(mBlockLength > 0) {
+            endBlock();
+            mScanner.reset();
+        }
+        addBlock(BlockGroup.holeId(mFileStore.mContentHash), length);
+    }
+
+    void write(ByteBuffer src) throws IOException {
+        if(src.hasArray()) {
+            final int len = src.remaining();
+            write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.position() + len);
+        } else {
+            final byte[] buffer = new byte[Math.min(PIECE_SIZE, src.remaining())];
+            while(src.hasRemaining()) {
+                final int len = Math.min(buffer.length, src.remaining());
+                src.get(buffer, 0, len);
+                write(buffer, 0, len);
+            }
+        }
+    }
+
+    void write(byte[] data, int off, int len) throws IOException {
+        final int end = off + len;
+        int start = off;
+        while(start < end) {
+            final int boundary = mScanner.scan(data, start, end - start);
+            if(boundary < 0) {
+                append(data, start, end - start);
+                break;
+            }
+            append(data, start, boundary - start);
+            endBlock();
+            start = boundary;
+        }
+    }
+
+    /**
+     * Drop everything after the last block boundary at or before {@code pos}.
+     *
+     * @return the new stream offset
+     */
+    long rewind(long pos) {
+        discardPartialBlock();
+        while(!mBlocks.isEmpty() && mCompletedLength > pos) {
+            final int last = mBlocks.size() - 1;
+            mCompletedLength -= mBlockLengths.remove(last);
+            mBlocks.remove(last);
+        }
+        return mCompletedLength;
+    }
+
+    /**
+     * store the final block, wait for all blocks to be stored and return the block list
+     */
+    BlockGroup finish() throws IOException {
+        if(mBlockLength > 0) {
+            endBlock();
+        }
+        mPiece = null;
+
+        ImmutableList.Builder<HashCode> blocks = ImmutableList.builder();
+        try {
+            for(ListenableFuture<HashCode> block : mBlocks) {
+                blocks.add(block.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+
+        final ImmutableList<HashCode> blockList = blocks.build();
+        final long[] lengths = Longs.toArray(mBlockLengths);
+        return new BlockGroup(0, BlockGroup.computeChecksum(mFileStore.mContentHash, blockList, lengths), blockList, lengths);
+    }
+
+    /**
+     * give up on the stream and remove the partially written block
+     */
+    void abort() {
+        discardPartialBlock();
+        mPiece = null;
+        releaseBlocks();
+    }
+
+    /**
+     * let the collector have the blocks of this writer. Blocks stored after this point are
+     * not held anymore.
+     */
+    void releaseBlocks() {
+        synchronized (mHeldBlocks) {
+            mReleased = true;
+            mFileStore.mBlockCollector.release(mHeldBlocks);
+            mHeldBlocks.clear();
+        }
+    }
+
+    private void holdBlock(HashCode hash) {
+        synchronized (mHeldBlocks) {
+            if(!mReleased) {
+                mFileStore.mBlockCollector.hold(hash);
+                mHeldBlocks.add(hash);
+            }
+        }
+    }
+
+    private void append(byte[] data, int off, int len) throws IOException {
+        mBlockLength += len;
+        while(len > 0) {
+            if(mPiece == null) {
+                mPiece = new byte[PIECE_SIZE];
+                mPieceLength = 0;
+            }
+
+            final int n = Math.min(len, PIECE_SIZE - mPieceLength);
+            System.arraycopy(data, off, mPiece, mPieceLength, n);
+            mPieceLength += n;
+            off += n;
+            len -= n;
+
+            if(mPieceLength == PIECE_SIZE) {
+                sendPiece();
+            }
+        }
+    }
+
+    private void sendPiece() throws IOException {
+        try {
+            mFileStore.mIngestBudget.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if(mBlockJob == null) {
+            mBlockJob = new BlockJob();
+        }
+        mBlockJob.add(ByteBuffer.wrap(mPiece, 0, mPieceLength));
+        mPiece = null;
+        mPieceLength = 0;
+    }
+
+    private void endBlock() throws IOException {
+        if(mPieceLength > 0) {
+            sendPiece();
+        }
+        if(mBlockJob == null) {
+            mBlockJob = new BlockJob();
+        }
+        mBlocks.add(mBlockJob.finish());
+        mBlockLengths.add(mBlockLength);
+        mCompletedLength += mBlockLength;
+        mBlockJob = null;
+        mBlockLength = 0;
+    }
+
+    private void discardPartialBlock() {
+        mPieceLength = 0;
+        if(mBlockJob != null) {
+            mBlockJob.abort();
+            mBlockJob = null;
+        }
+        mBlockLength = 0;
+        mScanner.reset();
+    }
+
+    /**
+     * Hashes and writes out the pieces of one block in order. The job is only scheduled on
+     * the ingest pool while it has queued pieces; it never waits for more, so a slow
+     * writer does not hold on to a pool thread.
+     */
+    private class BlockJob implements Runnable {
+
+        private final ArrayDeque<ByteBuffer> mPieces = new ArrayDeque<ByteBuffer>();
+        private final SettableFuture<HashCode> mResult = SettableFuture.create();
+        private final Hasher mHasher = mFileStore.mContentHash.hashFunction().newHasher();
+        private boolean mScheduled;
+        private boolean mFinished;
+        private volatile boolean mAborted;
+
+        private File mTempFile;
+        private FileOutputStream mOutputStream;
+        private IOException mError;
+
+        synchronized void add(ByteBuffer piece) {
+            mPieces.add(piece);
+            schedule();
+        }
+
+        synchronized ListenableFuture<HashCode> finish() {
+            mFinished = true;
+            schedule();
+            return mResult;
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            mFinished = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if(!mScheduled) {
+                mScheduled = true;
+                mFileStore.mIngestExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                final ByteBuffer piece;
+                synchronized (this) {
+                    piece = mPieces.poll();
+                    if(piece == null && !mFinished) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+
+                if(piece == null) {
+                    complete();
+                    return;
+                }
+
+                try {
+                    process(piece);
+                } finally {
+                    mFileStore.mIngestBudget.release();
+                }
+            }
+        }
+
+        private void process(ByteBuffer piece) {
+            if(mAborted || mError != null) {
+                return;
+            }
+            try {
+                if(mOutputStream == null) {
+                    mTempFile = mFileStore.createTmpFile();
+                    mOutputStream = new FileOutputStream(mTempFile);
+                }
+                mOutputStream.write(piece.array(), piece.arrayOffset() + piece.position(), piece.remaining());
+                mHasher.putBytes(piece.array(), piece.arrayOffset() + piece.position(), piece.remaining());
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        private void complete() {
+            if(mOutputStream != null) {
+                try {
+                    mOutputStream.close();
+                } catch (IOException e) {
+                    if(mError == null) {
+                        mError = e;
+                    }
+                }
+            }
+
+            if(mAborted || mError != null) {
+                deleteTempFile();
+                if(mError != null) {
+                    mResult.setException(mError);
+                } else {
+                    mResult.cancel(false);
+                }
+                return;
+            }
+
+            final HashCode secureHash = mFileStore.mContentHash.toId(mHasher.hash());
+            mFileStore.mBlockStoreExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        storeBlock(secureHash);
+                        mResult.set(secureHash);
+                    } catch (Exception e) {
+                        deleteTempFile();
+                        mResult.setException(e);
+                    }
+                }
+            });
+        }
+
+        private void storeBlock(HashCode secureHash) throws IOException {
+            LOGGER.info("adding block: {}", secureHash);
+            if(mTempFile == null) {
+                //empty block
+                mTempFile = mFileStore.createTmpFile();
+                new FileOutputStream(mTempFile).close();
+            }
+            holdBlock(secureHash);
+            mFileStore.mBlockStore.put(secureHash, mTempFile);
+        }
+
+        private void deleteTempFile() {
+            if(mTempFile != null && mTempFile.exists() && !mTempFile.delete()) {
+                LOGGER.warn("could not delete temp file: {}", mTempFile);
+            }
+        }
+    }
+}
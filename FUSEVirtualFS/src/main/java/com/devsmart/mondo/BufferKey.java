@@ -6,8 +6,6 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.Arrays;
 
-import static com.google.common.base.Preconditions.checkState;
-
 public class BufferKey implements Comparable<BufferKey>{
 
     private byte[] mHashCode;
@@ -15,7 +13,6 @@ public class BufferKey implements Comparable<BufferKey>{
 
     public BufferKey(HashCode hashCode, int bufferNum) {
         mHashCode = hashCode.asBytes();
-        checkState(mHashCode.length == 20);
         mBufferNum = bufferNum;
     }
 
@@ -23,13 +20,19 @@ public class BufferKey implements Comparable<BufferKey>{
     public int compareTo(@NotNull BufferKey other) {
         int retval;
 
-        for(int i=0;i<20;i++) {
+        final int len = Math.min(mHashCode.length, other.mHashCode.length);
+        for(int i=0;i<len;i++) {
             retval = mHashCode[i] - other.mHashCode[i];
             if(retval != 0) {
                 return retval;
             }
         }
 
+        retval = mHashCode.length - other.mHashCode.length;
+        if(retval != 0) {
+            return retval;
+        }
+
         retval = mBufferNum - other.mBufferNum;
         return retval;
     }
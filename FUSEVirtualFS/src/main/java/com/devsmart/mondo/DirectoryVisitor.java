@@ -0,0 +1,13 @@
+package com.devsmart.mondo;
+
+
+public interface DirectoryVisitor {
+
+    /**
+     * @param metadata the entry's metadata. It is only valid during the call: the same
+     *                 instance is refilled for the next entry
+     * @return false to stop the listing
+     */
+    boolean visit(String name, FileMetadata metadata);
+
+}
@@ -0,0 +1,215 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.data.ErasureCoder;
+import com.devsmart.mondo.data.ShardPool;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Computes the parity shards of committed BlockGroups and uses them to rebuild blocks that
+ * can no longer be read.
+ *
+ * <p>The blocks of a group are coded in stripes of {@code dataShards} blocks, see
+ * {@link BlockGroupParity}. Parity shards are content blocks like any other: they are
+ * named by their hash, stored in the block store and kept alive by the collector as long
+ * as the parity of a current BlockGroup refers to them.</p>
+ */
+class ErasureStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ErasureStage.class);
+
+    private final MondoFileStore mFileStore;
+    private final ForkJoinPool mPool;
+    private final ShardPool mShardPool;
+    private final ErasureCoder mCoder;
+
+    ErasureStage(MondoFileStore fileStore, int dataShards, int parityShards, ForkJoinPool pool, ShardPool shardPool) {
+        mFileStore = fileStore;
+        mPool = pool;
+        mShardPool = shardPool;
+        mCoder = new ErasureCoder(dataShards, parityShards, pool, shardPool);
+    }
+
+    /**
+     * Compute and store the parity shards of {@code bg}. Every stored shard is held with the
+     * collector and added to {@code held}; the caller releases them once the parity is
+     * committed.
+     *
+     * @return the parity of {@code bg}, or null if it has no blocks worth protecting
+     */
+    BlockGroupParity encode(BlockGroup bg, List<HashCode> held) throws IOException {
+        final long[] offsets = bg.getBlockOffsets();
+        final int dataShards = mCoder.getDataShards();
+
+        List<Integer> members = new ArrayList<Integer>();
+        for(int i=0;i<bg.blocks.size();i++) {
+            if(!BlockGroup.isHole(bg.blocks.get(i)) && offsets[i + 1] > offsets[i]) {
+                members.add(i);
+            }
+        }
+        if(members.isEmpty()) {
+            return null;
+        }
+
+        ImmutableList.Builder<BlockGroupParity.Stripe> stripes = ImmutableList.builder();
+        for(int start=0;start<members.size();start+=dataShards) {
+            final int[] blocks = new int[Math.min(dataShards, members.size() - start)];
+            int shardLength = 0;
+            for(int i=0;i<blocks.length;i++) {
+                blocks[i] = members.get(start + i);
+                shardLength = (int) Math.max(shardLength, offsets[blocks[i] + 1] - offsets[blocks[i]]);
+            }
+
+            final byte[][] shards = mCoder.allocateShards(shardLength);
+            try {
+                for(int i=0;i<dataShards;i++) {
+                    final int len = i < blocks.length ? readBlock(bg, offsets, blocks[i], shards[i]) : 0;
+                    Arrays.fill(shards[i], len, shardLength, (byte) 0);
+                }
+
+                mCoder.encode(shards, shardLength);
+
+                ImmutableList.Builder<HashCode> parity = ImmutableList.builder();
+                for(int i=dataShards;i<shards.length;i++) {
+                    final HashCode id = hash(shards[i], shardLength);
+                    storeShard(id, shards[i], shardLength, held);
+                    parity.add(id);
+                }
+                stripes.add(new BlockGroupParity.Stripe(blocks, shardLength, parity.build()));
+            } finally {
+                mCoder.releaseShards(shards);
+            }
+        }
+
+        return new BlockGroupParity(bg.checksum, dataShards, stripes.build());
+    }
+
+    /**
+     * Rebuild block {@code blockIndex} of {@code bg} from the rest of its stripe and store it
+     * again. Other blocks of the stripe that turn out to be unreadable are rebuilt as well.
+     *
+     * @throws IOException if the stripe has lost more blocks than it has parity shards
+     */
+    synchronized void repair(BlockGroup bg, BlockGroupParity parity, int blockIndex) throws IOException {
+        final BlockGroupParity.Stripe stripe = parity.getStripe(blockIndex);
+        if(stripe == null) {
+            throw new IOException("block " + blockIndex + " has no parity");
+        }
+
+        final long[] offsets = bg.getBlockOffsets();
+        final ErasureCoder coder = coderFor(parity, stripe);
+        final int shardLength = stripe.shardLength;
+        final byte[][] shards = coder.allocateShards(shardLength);
+        final boolean[] present = new boolean[coder.getTotalShards()];
+        try {
+            for(int i=0;i<parity.dataShards;i++) {
+                int len = 0;
+                if(i < stripe.blocks.length) {
+                    if(stripe.blocks[i] == blockIndex) {
+                        continue;
+                    }
+                    try {
+                        len = readBlock(bg, offsets, stripe.blocks[i], shards[i]);
+                    } catch (IOException e) {
+                        LOGGER.warn("block {} is unreadable too: {}", bg.blocks.get(stripe.blocks[i]), e.getMessage());
+                        continue;
+                    }
+                }
+                Arrays.fill(shards[i], len, shardLength, (byte) 0);
+                present[i] = true;
+            }
+            for(int i=0;i<stripe.parity.size();i++) {
+                final ByteBuffer dst = ByteBuffer.wrap(shards[parity.dataShards + i], 0, shardLength);
+                try {
+                    mFileStore.mBlockStore.read(stripe.parity.get(i), 0, dst);
+                    present[parity.dataShards + i] = !dst.hasRemaining();
+                } catch (IOException e) {
+                    LOGGER.warn("parity shard {} is unreadable: {}", stripe.parity.get(i), e.getMessage());
+                }
+            }
+
+            try {
+                coder.decode(shards, present, shardLength);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("unable to rebuild block " + bg.blocks.get(blockIndex) + ": " + e.getMessage());
+            }
+
+            for(int i=0;i<stripe.blocks.length;i++) {
+                if(!present[i]) {
+                    storeBlock(bg, offsets, stripe.blocks[i], shards[i]);
+                }
+            }
+        } finally {
+            coder.releaseShards(shards);
+        }
+    }
+
+    private ErasureCoder coderFor(BlockGroupParity parity, BlockGroupParity.Stripe stripe) {
+        if(parity.dataShards == mCoder.getDataShards() && stripe.parity.size() == mCoder.getParityShards()) {
+            return mCoder;
+        }
+        //coded with a layout that has been changed since
+        return new ErasureCoder(parity.dataShards, stripe.parity.size(), mPool, mShardPool);
+    }
+
+    /**
+     * @return the length of the block
+     */
+    private int readBlock(BlockGroup bg, long[] offsets, int blockIndex, byte[] shard) throws IOException {
+        final int len = (int) (offsets[blockIndex + 1] - offsets[blockIndex]);
+        final ByteBuffer dst = ByteBuffer.wrap(shard, 0, len);
+        mFileStore.mBlockStore.read(bg.blocks.get(blockIndex), 0, dst);
+        if(dst.hasRemaining()) {
+            throw new IOException("block " + bg.blocks.get(blockIndex) + " is shorter than " + len + " bytes");
+        }
+        return len;
+    }
+
+    private void storeBlock(BlockGroup bg, long[] offsets, int blockIndex, byte[] shard) throws IOException {
+        final HashCode id = bg.blocks.get(blockIndex);
+        final int len = (int) (offsets[blockIndex + 1] - offsets[blockIndex]);
+        if(!hash(shard, len).equals(id)) {
+            throw new IOException("rebuilt block does not match " + id);
+        }
+
+        List<HashCode> held = new ArrayList<HashCode>(1);
+        try {
+            //whatever is left of the broken copy would be taken for the block
+            mFileStore.mBlockStore.delete(id);
+            storeShard(id, shard, len, held);
+            LOGGER.info("rebuilt block {} from parity", id);
+        } finally {
+            mFileStore.mBlockCollector.release(held);
+        }
+    }
+
+    private HashCode hash(byte[] shard, int len) {
+        return mFileStore.mContentHash.toId(mFileStore.mContentHash.hashFunction().hashBytes(shard, 0, len));
+    }
+
+    private void storeShard(HashCode id, byte[] shard, int len, List<HashCode> held) throws IOException {
+        final File tmp = mFileStore.createTmpFile();
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(shard, 0, len);
+        } finally {
+            out.close();
+        }
+
+        mFileStore.mBlockCollector.hold(id);
+        held.add(id);
+        mFileStore.mBlockStore.put(id, tmp);
+    }
+}
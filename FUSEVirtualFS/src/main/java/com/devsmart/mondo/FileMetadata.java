@@ -24,6 +24,26 @@ public class FileMetadata implements BasicFileAttributes {
     int flags;
     long size;
 
+    /** not stored; filled in when the metadata is looked up, see {@link Namespace} */
+    long inode;
+
+    public FileMetadata() {
+    }
+
+    FileMetadata(FileMetadata other) {
+        copyFrom(other);
+    }
+
+    void copyFrom(FileMetadata other) {
+        blockId = other.blockId;
+        lastModifiedTime = other.lastModifiedTime;
+        lastAccessedTime = other.lastAccessedTime;
+        creationTime = other.creationTime;
+        flags = other.flags;
+        size = other.size;
+        inode = other.inode;
+    }
+
     @Override
     public FileTime lastModifiedTime() {
         return FileTime.fromMillis(lastModifiedTime);
@@ -66,7 +86,7 @@ public class FileMetadata implements BasicFileAttributes {
 
     @Override
     public Object fileKey() {
-        return null;
+        return inode != 0 ? inode : null;
     }
 
     public static final GroupSerializerObjectArray<FileMetadata> SERIALIZER = new GroupSerializerObjectArray<FileMetadata>() {
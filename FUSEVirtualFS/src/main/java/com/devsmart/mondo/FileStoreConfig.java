@@ -0,0 +1,122 @@
+package com.devsmart.mondo;
+
+
+/**
+ * Tunables for {@link MondoFileStore}. Fields are plain so the config can be read straight
+ * out of the json config file; anything left out keeps its default.
+ */
+public class FileStoreConfig {
+
+    /**
+     * chunker used to split files into blocks, see {@link com.devsmart.mondo.data.Chunkers#forName}.
+     * Only used when a store is created; an existing store keeps the chunker it was created with.
+     */
+    public String chunker = MondoFileStore.LEGACY_CHUNKER;
+
+    /**
+     * hash that names content blocks: sha1, sha256 or blake3, see {@link com.devsmart.mondo.data.ContentHash}.
+     * Like the chunker, only used when a store is created.
+     */
+    public String contentHash = "sha1";
+
+    /**
+     * how blocks are laid out on disk: "loose" keeps every block in its own file, "pack"
+     * appends them to large pack files. Only used when a store is created.
+     */
+    public String blockStore = LooseBlockStore.NAME;
+
+    /** size at which a new pack file is started */
+    public long packSize = 256L * 1024 * 1024;
+
+    /** seconds between checks for pack files worth compacting */
+    public long compactInterval = 600;
+
+    /** a pack file is compacted once this fraction of it belongs to deleted blocks */
+    public double compactDeadRatio = 0.5;
+
+    /** seconds between collections of blocks no file refers to. 0 disables collection */
+    public long gcInterval = 3600;
+
+    /**
+     * how many blocks per second a collection may look at, so it stays out of the way of
+     * foreground I/O
+     */
+    public double gcBlocksPerSecond = 5000;
+
+    /**
+     * the in-memory filter that answers whether a block is stored is sized for at least
+     * this many blocks; it grows when the store outgrows it
+     */
+    public long blockIndexExpectedBlocks = 1000000;
+
+    /** fraction of lookups of missing blocks that may still go to disk */
+    public double blockIndexFalsePositiveRate = 0.01;
+
+    /**
+     * parity shards computed for every stripe of {@code stripeDataShards} blocks of a file
+     * once it is flushed, so that many blocks of the stripe can be lost and rebuilt. 0
+     * disables erasure coding
+     */
+    public int parityShards = 0;
+
+    /** number of blocks coded together in a stripe */
+    public int stripeDataShards = 10;
+
+    /** threads that encode a stripe in parallel. Defaults to one per core */
+    public int erasureThreads = Runtime.getRuntime().availableProcessors();
+
+    /** memory kept around for reuse as shard buffers of the erasure coder */
+    public long shardPoolSize = 64L * 1024 * 1024;
+
+    /** max number of content block channels kept open for reading */
+    public int maxOpenBlocks = 256;
+
+    /** serve reads of content blocks from memory-mapped regions */
+    public boolean mmapBlocks = false;
+
+    /** upper bound on the total size of content blocks mapped at any one time */
+    public long maxMappedBytes = 1024L * 1024 * 1024;
+
+    /** off-heap memory for the shared page cache of content blocks. 0 disables the cache */
+    public long pageCacheSize = 64L * 1024 * 1024;
+
+    /**
+     * off-heap memory for data written to open files that is not in blocks yet. Once it
+     * is used up, further pages spill to a scratch log in the temp directory
+     */
+    public long writeBufferSize = 64L * 1024 * 1024;
+
+    /** memory shared by the read-ahead windows of all open channels */
+    public long readAheadBudget = 64L * 1024 * 1024;
+
+    /** largest read-ahead window of a single channel, in pages */
+    public int maxReadAheadPages = 256;
+
+    /** threads that run read-ahead */
+    public int readAheadThreads = 2;
+
+    /** threads that hash and write out new blocks. Defaults to one per core */
+    public int ingestThreads = Runtime.getRuntime().availableProcessors();
+
+    /** memory for file data waiting to be hashed; writers block when it is used up */
+    public long ingestBudget = 32L * 1024 * 1024;
+
+    /** number of closed files that are flushed at the same time */
+    public int flushThreads = 2;
+
+    /**
+     * longest time in milliseconds a metadata change waits to be committed together with
+     * others. Changes made in that window are lost on a crash unless someone syncs.
+     */
+    public long commitLatency = 100;
+
+    /** commit right away once this many metadata changes are waiting */
+    public int commitBatchSize = 1000;
+
+    /** number of locks the directories are spread over; changes in different directories mostly run in parallel */
+    public int metadataLockStripes = 64;
+
+    /** number of paths, existing or not, whose metadata is kept in memory */
+    public long metadataCacheSize = 100000;
+
+}
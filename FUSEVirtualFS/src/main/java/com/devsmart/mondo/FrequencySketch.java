@@ -0,0 +1,81 @@
+package com.devsmart.mondo;
+
+
+/**
+ * Approximate access counts for cache admission. A count-min sketch with four rows of
+ * 4-bit counters packed sixteen to a long. Once the number of recorded accesses reaches
+ * ten times the table size every counter is halved, so old popularity fades away.
+ */
+class FrequencySketch {
+
+    private static final long[] SEED = new long[] {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private int mSize;
+
+    FrequencySketch(int maxEntries) {
+        int size = Integer.highestOneBit(Math.max(16, maxEntries) - 1) << 1;
+        mTable = new long[size];
+        mTableMask = size - 1;
+        mSampleSize = 10 * size;
+    }
+
+    int frequency(int hashCode) {
+        final int hash = spread(hashCode);
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for(int i=0;i<4;i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hashCode) {
+        final int hash = spread(hashCode);
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for(int i=0;i<4;i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if(added && ++mSize == mSampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        if((mTable[index] & mask) != mask) {
+            mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for(int i=0;i<mTable.length;i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEED[row]) * SEED[row];
+        h += h >>> 32;
+        return ((int) h) & mTableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,221 @@
+package com.devsmart.mondo;
+
+
+import org.mapdb.DB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Batches database commits. Callers make their changes as before and then call
+ * {@link #mutated()} instead of committing. A single thread commits everything that
+ * piled up once the oldest uncommitted change is {@code maxLatency} old, or as soon
+ * as {@code maxBatch} changes are waiting, so a burst of small metadata updates costs a
+ * handful of synchronous commits instead of one each.
+ *
+ * <p>A change is only durable once a commit has covered it. Callers that need that,
+ * like fsync, pass the ticket returned by {@link #mutated()} to {@link #await(long)},
+ * which commits right away instead of waiting for the batch to fill.</p>
+ *
+ * <p>Data outside the database that committed entries point to, like the blocks of the
+ * {@link BlockStore}, is registered with {@link #addPreCommit(Flushable)} and
+ * forced before every commit.</p>
+ */
+class GroupCommitter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final DB mDB;
+    private final Lock mCommitLock;
+    private final long mMaxLatencyNanos;
+    private final int mMaxBatch;
+    private final Thread mThread;
+    private final CopyOnWriteArrayList<Flushable> mPreCommit = new CopyOnWriteArrayList<Flushable>();
+
+    //guarded by this
+    private long mLastTicket;
+    private long mCommittedTicket;
+    private long mOldestPending;
+    private boolean mUrgent;
+    private boolean mClosed;
+    private IOException mError;
+    private long mCommitCount;
+
+    /**
+     * @param commitLock held while committing. Changes are made holding it, or the shared
+     *                   side of the same read/write lock, so a commit never sees half of one
+     */
+    GroupCommitter(DB db, Lock commitLock, long maxLatency, TimeUnit unit, int maxBatch) {
+        checkArgument(maxBatch > 0);
+        mDB = db;
+        mCommitLock = commitLock;
+        mMaxLatencyNanos = unit.toNanos(maxLatency);
+        mMaxBatch = maxBatch;
+
+        mThread = new Thread(mCommitLoop, "group commit");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Have {@code flushable} flushed before every commit, holding the commit lock. A
+     * commit is not made if it fails.
+     */
+    void addPreCommit(Flushable flushable) {
+        mPreCommit.add(flushable);
+    }
+
+    /**
+     * Schedule a commit of the changes made so far.
+     *
+     * @return ticket to pass to {@link #await(long)}
+     */
+    synchronized long mutated() {
+        if(mLastTicket == mCommittedTicket) {
+            mOldestPending = System.nanoTime();
+        }
+        final long ticket = ++mLastTicket;
+        if(ticket == mCommittedTicket + 1 || ticket - mCommittedTicket >= mMaxBatch) {
+            notifyAll();
+        }
+        return ticket;
+    }
+
+    /**
+     * Commit now if {@code ticket} is not committed yet and wait until it is.
+     *
+     * @throws IOException if a commit failed; the database is in an unknown state
+     */
+    synchronized void await(long ticket) throws IOException {
+        try {
+            while(mCommittedTicket < ticket) {
+                if(mError != null) {
+                    throw mError;
+                }
+                mUrgent = true;
+                notifyAll();
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if(mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * make every change so far durable
+     */
+    void sync() throws IOException {
+        await(mutated());
+    }
+
+    synchronized long getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * wait until the next commit is due
+     *
+     * @return false once closed with nothing left to commit
+     */
+    private synchronized boolean awaitBatch() throws InterruptedException {
+        while(mLastTicket == mCommittedTicket) {
+            if(mClosed) {
+                return false;
+            }
+            wait();
+        }
+
+        while(!mUrgent && !mClosed && mLastTicket - mCommittedTicket < mMaxBatch) {
+            final long remaining = mOldestPending + mMaxLatencyNanos - System.nanoTime();
+            if(remaining <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        mUrgent = false;
+        return true;
+    }
+
+    private void commit() {
+        IOException error = null;
+        final long ticket;
+        mCommitLock.lock();
+        try {
+            //every ticket handed out so far belongs to a change made before the lock was taken
+            synchronized (this) {
+                ticket = mLastTicket;
+            }
+            try {
+                for(Flushable flushable : mPreCommit) {
+                    flushable.flush();
+                }
+                mDB.commit();
+            } catch (IOException e) {
+                LOGGER.error("flush before commit failed", e);
+                error = e;
+            } catch (RuntimeException e) {
+                LOGGER.error("commit failed", e);
+                error = new IOException("commit failed", e);
+            }
+        } finally {
+            mCommitLock.unlock();
+        }
+
+        synchronized (this) {
+            mCommittedTicket = Math.max(mCommittedTicket, ticket);
+            if(error != null) {
+                mError = error;
+            }
+            mCommitCount++;
+            notifyAll();
+        }
+    }
+
+    private final Runnable mCommitLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while(awaitBatch()) {
+                    commit();
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("group commit interrupted");
+            }
+        }
+    };
+
+    /**
+     * commit what is left and stop the commit thread
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        synchronized (this) {
+            if(mError != null) {
+                throw mError;
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.data.ContentHash;
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The original layout: every block is its own file in a two level hex directory tree,
+ * see {@link MondoFileStore#getFileBlock(HashCode)}. Reads go through the
+ * {@link BlockChannelCache}.
+ *
+ * <p>Nothing is synced on {@link #put(HashCode, File)}. The block files and directory
+ * entries written since the last {@link #flush()} are remembered and forced there, so
+ * a batch of blocks costs one round of syncs just before the commit that refers to
+ * them.</p>
+ */
+public class LooseBlockStore implements BlockStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LooseBlockStore.class);
+
+    static final String NAME = "loose";
+
+    private final MondoFileStore mFileStore;
+    private final BlockChannelCache mChannels;
+
+    //guarded by this; block files first, then the directories that name them
+    private Set<File> mUnsyncedFiles = new LinkedHashSet<File>();
+    private Set<File> mUnsyncedDirs = new LinkedHashSet<File>();
+    private long mSyncedCount;
+
+    public LooseBlockStore(MondoFileStore fileStore, BlockChannelCache channels) {
+        mFileStore = fileStore;
+        mChannels = channels;
+    }
+
+    @Override
+    public boolean contains(HashCode id) {
+        return mFileStore.getFileBlock(id).exists();
+    }
+
+    @Override
+    public long getLength(HashCode id) {
+        File f = mFileStore.getFileBlock(id);
+        return f.isFile() ? f.length() : -1;
+    }
+
+    /**
+     * The block is renamed into place without checking for it first: {@link BlockIndex}
+     * already knows it is new, and replacing an existing block leaves the same content.
+     */
+    @Override
+    public void put(HashCode id, File src) throws IOException {
+        File f = mFileStore.getFileBlock(id);
+        if(src.renameTo(f)) {
+            unsynced(f, false);
+            return;
+        }
+        if(f.exists()) {
+            if(!src.delete()) {
+                LOGGER.warn("could not delete temp file: {}", src);
+            }
+            //the existing file may still be waiting for the flush that makes it durable
+            return;
+        }
+        f.getParentFile().mkdirs();
+        if(!src.renameTo(f)) {
+            throw new IOException("could not move block into place: " + f);
+        }
+        unsynced(f, true);
+    }
+
+    private synchronized void unsynced(File f, boolean createdDirs) {
+        mUnsyncedFiles.add(f);
+        File dir = f.getParentFile();
+        mUnsyncedDirs.add(dir);
+        if(createdDirs) {
+            while(!dir.equals(mFileStore.mDataFileDir)) {
+                dir = dir.getParentFile();
+                mUnsyncedDirs.add(dir);
+            }
+        }
+    }
+
+    @Override
+    public void delete(HashCode id) throws IOException {
+        File f = mFileStore.getFileBlock(id);
+        if(f.exists() && !f.delete()) {
+            throw new IOException("could not delete block: " + f);
+        }
+    }
+
+    @Override
+    public Iterable<HashCode> ids() {
+        return Files.fileTreeTraverser().preOrderTraversal(mFileStore.mDataFileDir)
+                .filter(Files.isFile())
+                .transform(TO_ID)
+                .filter(Predicates.notNull());
+    }
+
+    private static final Function<File, HashCode> TO_ID = new Function<File, HashCode>() {
+        @Override
+        public HashCode apply(File input) {
+            try {
+                return ContentHash.parseFileName(input.getName());
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("not a block file: {}", input);
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Force the contents of every block file put since the last flush, then the
+     * directories their names were added to.
+     */
+    @Override
+    public void flush() throws IOException {
+        final Set<File> files;
+        final Set<File> dirs;
+        synchronized (this) {
+            if(mUnsyncedFiles.isEmpty()) {
+                return;
+            }
+            files = mUnsyncedFiles;
+            dirs = mUnsyncedDirs;
+            mUnsyncedFiles = new LinkedHashSet<File>();
+            mUnsyncedDirs = new LinkedHashSet<File>();
+        }
+        boolean done = false;
+        try {
+            for(File f : files) {
+                final FileChannel channel;
+                try {
+                    channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    //deleted again since the put, nothing left to make durable
+                    continue;
+                }
+                try {
+                    channel.force(false);
+                } finally {
+                    channel.close();
+                }
+                synchronized (this) {
+                    mSyncedCount++;
+                }
+            }
+            for(File dir : dirs) {
+                syncDirectory(dir);
+            }
+            done = true;
+        } finally {
+            if(!done) {
+                synchronized (this) {
+                    mUnsyncedFiles.addAll(files);
+                    mUnsyncedDirs.addAll(dirs);
+                }
+            }
+        }
+    }
+
+    private static void syncDirectory(File dir) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            //some platforms can't open a directory; renames there are durable on their own
+            LOGGER.debug("can not sync directory {}: {}", dir, e.toString());
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    synchronized int getUnsyncedCount() {
+        return mUnsyncedFiles.size();
+    }
+
+    /**
+     * @return how many block files were forced so far
+     */
+    synchronized long getSyncedCount() {
+        return mSyncedCount;
+    }
+
+    @Override
+    public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+        mChannels.read(hash, offset, dst);
+    }
+
+    @Override
+    public void close() throws IOException {
+        //the channel cache is shared with MappedBlockReader and closed by the file store
+    }
+}
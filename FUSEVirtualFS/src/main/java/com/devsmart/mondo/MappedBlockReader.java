@@ -0,0 +1,130 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Serves block reads from read-only memory mappings. Content blocks never change once
+ * written, so a mapping stays valid for as long as the block exists. Mappings are kept
+ * in an LRU pool bounded by total mapped bytes; evicted mappings are released by the
+ * garbage collector. Blocks that cannot be mapped are read through the
+ * {@link BlockChannelCache} with positional reads instead.
+ */
+public class MappedBlockReader implements BlockReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedBlockReader.class);
+
+    /**
+     * Mapping large files on a 32-bit JVM quickly exhausts the address space.
+     */
+    public static boolean isSupported() {
+        final String dataModel = System.getProperty("sun.arch.data.model");
+        if(dataModel != null) {
+            return !"32".equals(dataModel);
+        }
+        final String arch = System.getProperty("os.arch");
+        return arch != null && arch.contains("64");
+    }
+
+    private final BlockChannelCache mChannels;
+    private final long mMaxMappedBytes;
+    private final LinkedHashMap<HashCode, MappedByteBuffer> mMappings = new LinkedHashMap<HashCode, MappedByteBuffer>(16, 0.75f, true);
+    private long mMappedBytes;
+    private volatile boolean mMappingFailed;
+
+    public MappedBlockReader(BlockChannelCache channels, long maxMappedBytes) {
+        checkArgument(maxMappedBytes > 0);
+        mChannels = channels;
+        mMaxMappedBytes = maxMappedBytes;
+    }
+
+    @Override
+    public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+        ByteBuffer mapping = getMapping(hash);
+        if(mapping == null) {
+            mChannels.read(hash, offset, dst);
+            return;
+        }
+
+        if(offset >= mapping.capacity()) {
+            return;
+        }
+
+        ByteBuffer src = mapping.duplicate();
+        src.position((int) offset);
+        src.limit((int) Math.min(mapping.capacity(), offset + dst.remaining()));
+        dst.put(src);
+    }
+
+    private ByteBuffer getMapping(HashCode hash) throws IOException {
+        synchronized (this) {
+            MappedByteBuffer mapping = mMappings.get(hash);
+            if(mapping != null) {
+                return mapping;
+            }
+        }
+
+        if(mMappingFailed) {
+            return null;
+        }
+
+        MappedByteBuffer mapping;
+        FileChannel channel = mChannels.acquire(hash);
+        try {
+            final long size = channel.size();
+            if(size > Integer.MAX_VALUE || size > mMaxMappedBytes) {
+                return null;
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            //usually out of address space; stop trying and fall back to positional reads
+            LOGGER.warn("unable to map block {}, disabling memory mapped reads", hash, e);
+            mMappingFailed = true;
+            return null;
+        } finally {
+            mChannels.release(hash);
+        }
+
+        synchronized (this) {
+            MappedByteBuffer existing = mMappings.get(hash);
+            if(existing != null) {
+                return existing;
+            }
+            mMappings.put(hash, mapping);
+            mMappedBytes += mapping.capacity();
+            trim();
+        }
+        return mapping;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<HashCode, MappedByteBuffer>> it = mMappings.entrySet().iterator();
+        while(mMappedBytes > mMaxMappedBytes && it.hasNext()) {
+            Map.Entry<HashCode, MappedByteBuffer> entry = it.next();
+            mMappedBytes -= entry.getValue().capacity();
+            it.remove();
+        }
+    }
+
+    public synchronized long getMappedBytes() {
+        return mMappedBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mMappings.clear();
+        mMappedBytes = 0;
+    }
+}
@@ -97,6 +97,13 @@ public class MondoFSPath implements Path {
 
     }
 
+    /**
+     * @return this path with {@code name} appended
+     */
+    MondoFSPath child(Name name) {
+        return new MondoFSPath(fs, root, ImmutableList.<Name>builder().addAll(names).add(name).build());
+    }
+
     @Override
     public int getNameCount() {
         return names.size();
@@ -1,75 +1,121 @@
 package com.devsmart.mondo;
 
 
-import com.devsmart.mondo.storage.SparseArray;
+import com.devsmart.mondo.storage.SparseLongArray;
 import com.google.common.base.Throwables;
 import com.google.common.hash.HashCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.OpenOption;
-import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
-public class MondoFileChannel implements SeekableByteChannel {
+/**
+ * A file opened in a {@link MondoFileStore}. Written data is kept in the store's
+ * {@link WritePagePool} and turned into blocks when the channel is closed, or when it is
+ * forced. Memory mapping and file locks are not supported.
+ */
+public class MondoFileChannel extends FileChannel {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MondoFileChannel.class);
 
     public static final int MODE_READ = 0x1;
     public static final int MODE_WRITE = 0x2;
 
+    private static final byte[] ZEROS = new byte[MondoFileStore.BUFFER_SIZE];
+
     int mOpenMode;
-    final FileChannel mScratchFile;
     final FileMetadata mMetadata;
     final MondoFileStore mFSStore;
 
+    /**
+     * the committed BlockGroup this channel works on top of. Its blocks are held with the
+     * {@link BlockCollector} until {@link #releaseBlockGroup()}: the channel reads them and
+     * its flush reuses them, even after another channel committed a newer version.
+     */
     private BlockGroup mBlockGroup;
+    private boolean mBlockGroupReleased;
     private long[] mBlockGroupIndex;
+    ReadAheadWindow mReadAhead;
 
     private long mPosition;
     private long mSize;
-    private SparseArray<Long> mBufferIndex = new SparseArray<Long>(10);
+    /**
+     * data of the committed BlockGroup past this offset was truncated away and reads as zeros
+     */
+    private volatile long mBaseEnd = Long.MAX_VALUE;
+    /** page number -> {@link WritePagePool} handle of every page written so far */
+    private final SparseLongArray mPageTable = new SparseLongArray();
     private ByteBuffer mBuffer = ByteBuffer.allocate(MondoFileStore.BUFFER_SIZE);
     private boolean mIsBufferDirty;
     private int mBufferNum = -1;
-    private boolean mIsOpen;
+    /** whether the file was written or truncated since it was opened or last forced */
+    private boolean mIsModified;
+    /** set while {@link #readForFlush(ByteBuffer, long)} reads */
+    private boolean mFlushing;
+
+    /**
+     * chunker fed with the file data while it is written sequentially from the start.
+     * null if the file was not written that way.
+     */
+    BlockWriter mBlockWriter;
+    private boolean mStreaming;
+
+    /**
+     * lowest offset rewritten after it was already given to {@link #mBlockWriter}
+     */
+    long mDirtyFrom = Long.MAX_VALUE;
 
     MondoFSPath mPath;
 
-    MondoFileChannel(int openMode, FileChannel scratchFile, FileMetadata metadata, MondoFileStore store) {
+    MondoFileChannel(int openMode, FileMetadata metadata, MondoFileStore store) {
         mOpenMode = openMode;
-        mScratchFile = scratchFile;
         mMetadata = metadata;
         mFSStore = store;
         mSize = metadata.size;
-        mBlockGroup = mFSStore.mBlockGroups.get(mMetadata.blockId);
-        mIsOpen = true;
+        mBlockGroup = mFSStore.holdBlockGroup(mMetadata.blockId);
     }
 
     private void readBlockGroup() throws IOException {
-        mBlockGroupIndex = new long[mBlockGroup.blocks.size()+1];
-        long pos = 0;
-        int i = 0;
-        for(HashCode hashCode : mBlockGroup.blocks){
-            File blockFile = mFSStore.getFileBlock(hashCode);
-            if(!blockFile.exists() || !blockFile.isFile()) {
-                throw new IOException("missing block: " + hashCode.toString());
-            }
-
-
-            mBlockGroupIndex[i++] = pos;
-            pos += blockFile.length();
-
+        if(mBlockGroup.hasBlockLengths()) {
+            mBlockGroupIndex = mBlockGroup.getBlockOffsets();
+        } else {
+            //legacy record that has not been migrated yet
+            mBlockGroupIndex = mFSStore.statBlockOffsets(mBlockGroup);
         }
+    }
 
-        mBlockGroupIndex[i] = pos;
+    /**
+     * Pages are loaded on the read-ahead pool without the channel lock, so the loader
+     * only sees the BlockGroup, offsets and base end as they are now. The window is
+     * dropped whenever one of them changes.
+     */
+    private ReadAheadWindow newReadAhead() {
+        final BlockGroup blockGroup = mBlockGroup;
+        final long[] index = mBlockGroupIndex;
+        final long baseEnd = mBaseEnd;
+
+        final int pageSize = mBuffer.capacity();
+        final long dataEnd = Math.min(index[index.length - 1], baseEnd);
+        final int numPages = (int) ((dataEnd + pageSize - 1) / pageSize);
+        return new ReadAheadWindow(new ReadAheadWindow.PageLoader() {
+            @Override
+            public void loadPage(int pageNum, ByteBuffer dst) throws IOException {
+                //no repair from the pool: a failed page is read again, and repaired, by the reader
+                readBlocks(blockGroup, index, baseEnd, (long) pageNum * pageSize, dst, false);
+                fillZeros(dst);
+            }
+        }, mFSStore.mReadAheadExecutor, mFSStore.mReadAheadBudget, pageSize, numPages, mFSStore.mMaxReadAheadPages);
     }
 
     @Override
@@ -85,16 +131,27 @@ public class MondoFileChannel implements SeekableByteChannel {
             return -1;
         }
 
-        syncBuffer();
-
-        int bytesRead = Math.min(mBuffer.remaining(), byteBuffer.remaining());
+        final int pageSize = mBuffer.capacity();
+        int bytesRead = 0;
+        while(byteBuffer.hasRemaining() && mPosition < mSize) {
+            final int bufferNum = (int) (mPosition / pageSize);
+            final int offset = (int) (mPosition % pageSize);
+            final int len = (int) Math.min(Math.min(pageSize - offset, byteBuffer.remaining()), mSize - mPosition);
+
+            if(offset == 0 && len == pageSize && bufferNum != mBufferNum) {
+                //whole page: skip mBuffer and go straight to the caller's buffer
+                readPage(bufferNum, byteBuffer);
+            } else {
+                syncBuffer(bufferNum);
+                mBuffer.limit(offset + len);
+                mBuffer.position(offset);
+                byteBuffer.put(mBuffer);
+            }
 
-        for(int i=0;i<bytesRead;i++) {
-            byteBuffer.put(mBuffer.get());
+            mPosition += len;
+            bytesRead += len;
         }
 
-        mPosition += bytesRead;
-
         LOGGER.trace("bytesRead: {}", bytesRead);
         return bytesRead;
     }
@@ -107,38 +164,144 @@ public class MondoFileChannel implements SeekableByteChannel {
             throw new IOException("no write permission");
         }
 
-        syncBuffer();
+        mIsModified = true;
+        final ByteBuffer streamSrc = startStreaming(byteBuffer);
 
-        int bytesWritten = Math.min(mBuffer.remaining(), byteBuffer.remaining());
-        for(int i=0;i<bytesWritten;i++) {
-            mBuffer.put(byteBuffer.get());
-        }
+        final int pageSize = mBuffer.capacity();
+        int bytesWritten = 0;
+        while(byteBuffer.hasRemaining()) {
+            final int bufferNum = (int) (mPosition / pageSize);
+            final int offset = (int) (mPosition % pageSize);
+            final int len = Math.min(pageSize - offset, byteBuffer.remaining());
 
-        mPosition += bytesWritten;
-        if(mPosition > mSize) {
-            mSize = mPosition;
+            if(mReadAhead != null) {
+                mReadAhead.invalidate(bufferNum);
+            }
+
+            if(offset == 0 && len == pageSize && bufferNum != mBufferNum) {
+                //whole page: nothing to merge, so write it out directly
+                writePage(bufferNum, byteBuffer);
+            } else {
+                syncBuffer(bufferNum);
+                final int limit = byteBuffer.limit();
+                byteBuffer.limit(byteBuffer.position() + len);
+                mBuffer.limit(pageSize);
+                mBuffer.position(offset);
+                mBuffer.put(byteBuffer);
+                byteBuffer.limit(limit);
+                mIsBufferDirty = true;
+            }
+
+            mPosition += len;
+            bytesWritten += len;
+            if(mPosition > mSize) {
+                mSize = mPosition;
+            }
         }
 
-        mIsBufferDirty = true;
+        if(streamSrc != null) {
+            streamSrc.limit(streamSrc.position() + bytesWritten);
+            try {
+                mBlockWriter.write(streamSrc);
+            } catch (IOException e) {
+                //the data is safe in the write pages; it just gets chunked on close instead
+                LOGGER.warn("streaming chunker failed for {}", mPath, e);
+                mBlockWriter.abort();
+                mBlockWriter = null;
+                mStreaming = false;
+            }
+        }
 
         return bytesWritten;
     }
 
-    private void flushBuffer() throws IOException {
-        Long pos = mBufferIndex.get(mBufferNum);
-        if (pos == null) {
-            pos = mScratchFile.size();
-            mBufferIndex.put(mBufferNum, pos);
+    /**
+     * Decide whether the bytes of the write about to happen can be fed to the streaming
+     * chunker. Returns a view of those bytes, or null if the write is out of order.
+     */
+    private ByteBuffer startStreaming(ByteBuffer src) {
+        if(mBlockWriter == null && mPosition == 0 && mPageTable.size() == 0 && !mIsBufferDirty) {
+            mBlockWriter = new BlockWriter(mFSStore);
+            mStreaming = true;
         }
 
-        mBuffer.flip();
+        if(mBlockWriter == null) {
+            return null;
+        }
 
-        mScratchFile.write(mBuffer, pos);
+        final long chunkedEnd = mBlockWriter.getOffset();
+        if(mStreaming && mPosition == chunkedEnd) {
+            return src.duplicate();
+        }
+
+        mStreaming = false;
+        if(mPosition < chunkedEnd) {
+            mDirtyFrom = Math.min(mDirtyFrom, mPosition);
+        }
+        return null;
+    }
+
+    private long getPageHandle(int bufferNum) throws IOException {
+        final int i = mPageTable.indexOfKey(bufferNum);
+        if(i >= 0) {
+            return mPageTable.valueAt(i);
+        }
+        final long handle = mFSStore.mWritePages.allocate();
+        mPageTable.put(bufferNum, handle);
+        return handle;
+    }
+
+    private void flushBuffer() throws IOException {
+        final long handle = getPageHandle(mBufferNum);
 
         mBuffer.clear();
+        mFSStore.mWritePages.write(handle, mBuffer);
+
         mIsBufferDirty = false;
     }
 
+    /**
+     * write exactly one page from {@code src} into the write pages
+     */
+    private void writePage(int bufferNum, ByteBuffer src) throws IOException {
+        final long handle = getPageHandle(bufferNum);
+
+        final int limit = src.limit();
+        src.limit(src.position() + mBuffer.capacity());
+        try {
+            mFSStore.mWritePages.write(handle, src);
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * read exactly one page into {@code dst}
+     */
+    private void readPage(int bufferNum, ByteBuffer dst) throws IOException {
+        final int limit = dst.limit();
+        dst.limit(dst.position() + mBuffer.capacity());
+        try {
+            final int i = mPageTable.indexOfKey(bufferNum);
+            if(i >= 0) {
+                mFSStore.mWritePages.read(mPageTable.valueAt(i), dst);
+            } else if(mBlockGroup != null) {
+                if(mBlockGroupIndex == null) {
+                    readBlockGroup();
+                }
+                if(!mFlushing && mReadAhead == null) {
+                    mReadAhead = newReadAhead();
+                }
+                if(mFlushing || !mReadAhead.read(bufferNum, dst)) {
+                    readFromBlockGroup((long) bufferNum * mBuffer.capacity(), dst);
+                }
+            }
+            fillZeros(dst);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
     @Override
     public synchronized long position() throws IOException {
         LOGGER.trace("position() {}", mPosition);
@@ -146,101 +309,461 @@ public class MondoFileChannel implements SeekableByteChannel {
     }
 
     @Override
-    public synchronized SeekableByteChannel position(long l) throws IOException {
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long bytesRead = 0;
+        for(int i=offset;i<offset+length;i++) {
+            final int n = read(dsts[i]);
+            if(n < 0) {
+                return bytesRead > 0 ? bytesRead : -1;
+            }
+            bytesRead += n;
+            if(dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long bytesWritten = 0;
+        for(int i=offset;i<offset+length;i++) {
+            bytesWritten += write(srcs[i]);
+        }
+        return bytesWritten;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        checkArgument(position >= 0, "negative position");
+        final long current = mPosition;
+        mPosition = position;
+        try {
+            return read(dst);
+        } finally {
+            mPosition = current;
+        }
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        checkArgument(position >= 0, "negative position");
+        final long current = mPosition;
+        mPosition = position;
+        try {
+            return write(src);
+        } finally {
+            mPosition = current;
+        }
+    }
+
+    /**
+     * Read for {@link WriteOutBlockAction}: needs no read permission, leaves the position
+     * alone and bypasses the read-ahead window. The window is cleared on close and
+     * reading through it again would start prefetching pages nobody gives back.
+     */
+    synchronized int readForFlush(ByteBuffer dst, long position) throws IOException {
+        final int openMode = mOpenMode;
+        mOpenMode |= MODE_READ;
+        mFlushing = true;
+        try {
+            return read(dst, position);
+        } finally {
+            mFlushing = false;
+            mOpenMode = openMode;
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkArgument(position >= 0 && count >= 0, "negative position or count");
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, MondoFileStore.BUFFER_SIZE));
+        long transferred = 0;
+        while(transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            final int n = read(buffer, position + transferred);
+            if(n <= 0) {
+                break;
+            }
+            buffer.flip();
+            final int written = target.write(buffer);
+            transferred += written;
+            if(written < n) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        checkArgument(position >= 0 && count >= 0, "negative position or count");
+        if(position > size()) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, MondoFileStore.BUFFER_SIZE));
+        long transferred = 0;
+        while(transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            final int n = src.read(buffer);
+            if(n <= 0) {
+                break;
+            }
+            buffer.flip();
+            write(buffer, position + transferred);
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException("memory mapping is not supported");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("file locks are not supported");
+    }
+
+    @Override
+    public synchronized FileChannel position(long l) throws IOException {
         LOGGER.trace("position({})", l);
         mPosition = l;
         return this;
     }
 
-    private void syncBuffer() throws IOException {
-        int newBufferIndex = (int) (mPosition / mBuffer.capacity());
-        int offset = (int) (mPosition % mBuffer.capacity());
-
-        if(mBufferNum != newBufferIndex) {
+    private void syncBuffer(int bufferNum) throws IOException {
+        if(mBufferNum != bufferNum) {
             if(mIsBufferDirty) {
                 flushBuffer();
             }
-            loadBuffer(newBufferIndex);
+            loadBuffer(bufferNum);
         }
-
-        mBuffer.position(offset);
     }
 
     private void loadBuffer(int bufferNum) throws IOException {
-        if(mBufferIndex.get(bufferNum) != null) {
-            loadBufferFromScratchFile(bufferNum);
-        } else if(mBlockGroup != null) {
-            loadBufferFromBlockGroup(bufferNum);
-            mIsBufferDirty = false;
+        mBuffer.clear();
+        mBufferNum = -1;
+        readPage(bufferNum, mBuffer);
+        mIsBufferDirty = false;
+        mBufferNum = bufferNum;
+    }
+
+    /**
+     * fill {@code dst} with file data from the committed BlockGroup starting at file position {@code pos}.
+     * Reads may span several blocks. Anything past the end of the BlockGroup, or truncated
+     * away since, is left untouched.
+     */
+    private void readFromBlockGroup(long pos, ByteBuffer dst) throws IOException {
+        if(mBlockGroup == null || pos >= mBaseEnd) {
+            return;
         }
 
-        mBufferNum = bufferNum;
+        if(mBlockGroupIndex == null) {
+            readBlockGroup();
+        }
+        readBlocks(mBlockGroup, mBlockGroupIndex, mBaseEnd, pos, dst, true);
     }
 
-    private void loadBufferFromScratchFile(int bufferNum) throws IOException {
-        Long scratchPos = mBufferIndex.get(bufferNum);
-        checkState(scratchPos != null);
+    /**
+     * fill {@code dst} with the data of {@code blockGroup} starting at file position
+     * {@code pos}, stopping at {@code end}. Only touches final fields, so it is safe
+     * without the channel lock.
+     *
+     * @param repair whether to repair a block that can not be read
+     */
+    private void readBlocks(BlockGroup blockGroup, long[] index, long end, long pos, ByteBuffer dst, boolean repair) throws IOException {
+        int i = Arrays.binarySearch(index, pos);
+        if(i < 0) {
+            i = -i - 2;
+        }
 
-        mBuffer.clear();
+        while(dst.hasRemaining() && i < blockGroup.blocks.size() && pos < end) {
+            final long blockStart = index[i];
+            final int len = (int) Math.min(dst.remaining(), Math.min(index[i + 1], end) - pos);
+
+            final int limit = dst.limit();
+            dst.limit(dst.position() + len);
+            try {
+                final HashCode block = blockGroup.blocks.get(i);
+                if(BlockGroup.isHole(block)) {
+                    fillZeros(dst);
+                } else {
+                    final int start = dst.position();
+                    try {
+                        mFSStore.mBlockReader.read(block, pos - blockStart, dst);
+                    } catch (IOException e) {
+                        LOGGER.warn("unable to read block {}: {}", block, e.getMessage());
+                        if(!repair || !mFSStore.repairBlock(mMetadata.blockId, blockGroup, i)) {
+                            throw e;
+                        }
+                        dst.position(start);
+                        mFSStore.mBlockReader.read(block, pos - blockStart, dst);
+                    }
+                }
+            } finally {
+                dst.limit(limit);
+            }
 
-        while(mBuffer.remaining() > 0) {
-            mScratchFile.read(mBuffer, scratchPos);
+            pos += len;
+            i++;
         }
+    }
 
-        mBuffer.flip();
+    private static void fillZeros(ByteBuffer dst) {
+        while(dst.hasRemaining()) {
+            dst.put(ZEROS, 0, Math.min(ZEROS.length, dst.remaining()));
+        }
     }
 
-    private void loadBufferFromBlockGroup(int bufferNum) throws IOException {
-        FileChannel fc;
-        if(mBlockGroupIndex == null) {
-            readBlockGroup();
+    @Override
+    public synchronized long size() throws IOException {
+        return mSize;
+    }
+
+    /**
+     * Set the size of the file like ftruncate(2): unlike the contract of
+     * {@link FileChannel#truncate(long)}, a larger size extends the file with zeros.
+     * Both ways only touch the page at the new end; the zeros of an extended file are a
+     * hole that takes no storage.
+     */
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        LOGGER.trace("truncate({})", size);
+        checkArgument(size >= 0, "negative size");
+
+        if((mOpenMode & MODE_WRITE) == 0) {
+            throw new IOException("no write permission");
         }
 
-        mBuffer.clear();
+        mIsModified = true;
+        if(size < mSize) {
+            shrink(size);
+        }
+        mSize = size;
+        mPosition = Math.min(mPosition, size);
+        return this;
+    }
 
-        long pos = bufferNum * mBuffer.capacity();
+    private void shrink(long size) throws IOException {
+        final int pageSize = mBuffer.capacity();
+        final int lastPage = (int) (size / pageSize);
+        final int tail = (int) (size % pageSize);
+        final int firstDropped = tail == 0 ? lastPage : lastPage + 1;
 
-        int i = Arrays.binarySearch(mBlockGroupIndex, pos);
-        if(i < 0) {
-            i = -i - 2;
+        for(int i=mPageTable.size()-1;i>=0 && mPageTable.keyAt(i) >= firstDropped;i--) {
+            mFSStore.mWritePages.free(mPageTable.valueAt(i));
+            mPageTable.removeAt(i);
+        }
+        if(mBufferNum >= firstDropped) {
+            mBufferNum = -1;
+            mIsBufferDirty = false;
         }
 
-        if(i < mBlockGroup.blocks.size()) {
-            File blockFile = mFSStore.getFileBlock(mBlockGroup.blocks.get(i));
-            fc = FileChannel.open(blockFile.toPath(), StandardOpenOption.READ);
+        mBaseEnd = Math.min(mBaseEnd, size);
+        //its pages may hold data from past the new base end
+        clearReadAhead();
+        mReadAhead = null;
+
+        //zero what is left of the last page, in case the file grows again
+        if(tail > 0 && (mBufferNum == lastPage || mPageTable.indexOfKey(lastPage) >= 0)) {
+            syncBuffer(lastPage);
+            mBuffer.limit(pageSize);
+            mBuffer.position(tail);
+            fillZeros(mBuffer);
+            mIsBufferDirty = true;
+        }
 
-            long offset = pos - mBlockGroupIndex[i];
-            fc.read(mBuffer, offset);
+        if(mBlockWriter != null) {
+            mDirtyFrom = Math.min(mDirtyFrom, size);
+        }
+    }
+
+    BlockGroup getBlockGroup() {
+        return mBlockGroup;
+    }
 
-            fc.close();
-            mBuffer.flip();
+    /**
+     * offset table of the committed BlockGroup, see {@link BlockGroup#getBlockOffsets()}
+     */
+    synchronized long[] getBlockGroupIndex() throws IOException {
+        if(mBlockGroup != null && mBlockGroupIndex == null) {
+            readBlockGroup();
         }
+        return mBlockGroupIndex;
+    }
 
+    /**
+     * start of the first page that differs from the committed BlockGroup
+     */
+    synchronized long getFirstDirtyOffset() {
+        final int pageSize = mBuffer.capacity();
+        long retval = Long.MAX_VALUE;
+        if(mPageTable.size() > 0) {
+            retval = (long) mPageTable.keyAt(0) * pageSize;
+        }
+        if(mIsBufferDirty) {
+            retval = Math.min(retval, (long) mBufferNum * pageSize);
+        }
+        return Math.min(retval, mBaseEnd);
+    }
 
+    /**
+     * whether {@code [start, end)} still holds the data of the committed BlockGroup:
+     * no page in it was written and none of it was truncated away
+     */
+    synchronized boolean isClean(long start, long end) {
+        if(end > mBaseEnd) {
+            return false;
+        }
+        if(end <= start) {
+            return true;
+        }
+        final int pageSize = mBuffer.capacity();
+        final int first = (int) (start / pageSize);
+        final int last = (int) ((end - 1) / pageSize);
 
+        int i = mPageTable.indexOfKey(first);
+        if(i >= 0) {
+            return false;
+        }
+        i = ~i;
+        if(i < mPageTable.size() && mPageTable.keyAt(i) <= last) {
+            return false;
+        }
+        return !(mIsBufferDirty && mBufferNum >= first && mBufferNum <= last);
     }
 
-    @Override
-    public synchronized long size() throws IOException {
-        return mSize;
+    /**
+     * End of the run of zeros starting at {@code pos} that was never written: neither
+     * written pages nor data of the committed BlockGroup other than holes.
+     *
+     * @return {@code pos} if there is data at {@code pos}
+     */
+    synchronized long holeEnd(long pos) throws IOException {
+        final int pageSize = mBuffer.capacity();
+        final int page = (int) (pos / pageSize);
+        long end = mSize;
+
+        int i = mPageTable.indexOfKey(page);
+        if(i >= 0 || (mIsBufferDirty && mBufferNum == page)) {
+            return pos;
+        }
+        i = ~i;
+        if(i < mPageTable.size()) {
+            end = Math.min(end, (long) mPageTable.keyAt(i) * pageSize);
+        }
+        if(mIsBufferDirty && mBufferNum > page) {
+            end = Math.min(end, (long) mBufferNum * pageSize);
+        }
+
+        if(mBlockGroup != null && pos < mBaseEnd) {
+            final long[] index = getBlockGroupIndex();
+            int b = Arrays.binarySearch(index, pos);
+            if(b < 0) {
+                b = -b - 2;
+            }
+            final long dataEnd = Math.min(end, mBaseEnd);
+            for(;b < mBlockGroup.blocks.size() && index[b] < dataEnd;b++) {
+                if(!BlockGroup.isHole(mBlockGroup.blocks.get(b))) {
+                    end = Math.max(pos, index[b]);
+                    break;
+                }
+            }
+        }
+
+        return Math.max(pos, end);
     }
 
-    @Override
-    public synchronized SeekableByteChannel truncate(long l) throws IOException {
-        LOGGER.trace("truncate()");
-        return null;
+    /**
+     * give the written pages back to the pool once their data was turned into blocks
+     */
+    synchronized void releasePages() {
+        for(int i=0;i<mPageTable.size();i++) {
+            mFSStore.mWritePages.free(mPageTable.valueAt(i));
+        }
+        mPageTable.clear();
+    }
+
+    /**
+     * let the collector have the blocks of the BlockGroup this channel works on top of,
+     * once the channel is closed and its last flush is done
+     */
+    synchronized void releaseBlockGroup() {
+        if(mBlockGroup != null && !mBlockGroupReleased) {
+            mBlockGroupReleased = true;
+            mFSStore.mBlockCollector.release(mBlockGroup.blocks);
+        }
+    }
+
+    synchronized void clearReadAhead() {
+        if(mReadAhead != null) {
+            LOGGER.debug("read-ahead {} hits: {} misses: {}", mPath, mReadAhead.getHits(), mReadAhead.getMisses());
+            mReadAhead.clear();
+        }
     }
 
+    /**
+     * Turn what was written so far into blocks and wait until the file is committed,
+     * together with the flushes of earlier closed channels of the same file. This is
+     * where fsync(2) on a mounted file ends up. {@code metaData} is ignored: the contents
+     * of a file are only reachable through its metadata, so both are always made durable.
+     */
     @Override
-    public synchronized boolean isOpen() {
-        LOGGER.trace("isOpen()");
-        return mIsOpen;
+    public void force(boolean metaData) throws IOException {
+        LOGGER.trace("force({})", metaData);
+        synchronized (this) {
+            if(!isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if(mIsModified) {
+                writeOut();
+            }
+        }
+        mFSStore.syncFile(mMetadata.blockId);
+    }
+
+    /**
+     * Record the contents of this channel as the contents of the file. Once that worked
+     * the channel reads from the new BlockGroup like a channel opened afterwards would.
+     */
+    private void writeOut() throws IOException {
+        mMetadata.size = mSize;
+        try {
+            final BlockGroup bg = mFSStore.forceFileChannel(this);
+            if(bg != null) {
+                releasePages();
+                clearReadAhead();
+                mReadAhead = null;
+                //bg was held for this channel by the flush
+                releaseBlockGroup();
+                mBlockGroupReleased = false;
+                mBlockGroup = bg;
+                mBlockGroupIndex = null;
+                mBaseEnd = Long.MAX_VALUE;
+                mIsBufferDirty = false;
+                mIsModified = false;
+            }
+        } finally {
+            //the writer was finished or aborted, whatever comes next is chunked from scratch
+            mBlockWriter = null;
+            mStreaming = false;
+            mDirtyFrom = Long.MAX_VALUE;
+        }
     }
 
     @Override
-    public synchronized void close() throws IOException {
+    protected synchronized void implCloseChannel() throws IOException {
         LOGGER.trace("close()");
-        mIsOpen = false;
+        clearReadAhead();
         mMetadata.size = mSize;
         mFSStore.onFileChannelClose(this);
     }
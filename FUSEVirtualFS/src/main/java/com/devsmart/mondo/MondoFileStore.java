@@ -1,31 +1,51 @@
 package com.devsmart.mondo;
 
 
-import com.google.common.base.Function;
+import com.devsmart.mondo.data.Chunker;
+import com.devsmart.mondo.data.Chunkers;
+import com.devsmart.mondo.data.ContentHash;
+import com.devsmart.mondo.data.ShardPool;
 import com.google.common.base.Predicate;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.mapdb.Atomic;
 import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.Serializer;
-import org.mapdb.serializer.SerializerArrayTuple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -36,42 +56,70 @@ public class MondoFileStore implements Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MondoFileStore.class);
 
-    private static final Function<MondoFSPath, Object[]> TO_DB_KEY = new Function<MondoFSPath, Object[]>() {
-
-        private String pathPartToStr(MondoFSPath path) {
-            String retval;
-            if(path != null) {
-                retval = path.toString();
-            } else {
-                retval = "";
-            }
-            return retval;
-        }
-
-        @Override
-        public Object[] apply(MondoFSPath input) {
-            input = input.normalize();
-            return new Object[]{pathPartToStr(input.getParent()), pathPartToStr(input.getFileName())};
-        }
-    };
+    /** the chunker every store used before the choice was recorded */
+    static final String LEGACY_CHUNKER = "buzhash-w40-b20";
 
     public static final int BUFFER_SIZE = 8192;
 
     private DB mDB;
     private final File mDataRoot;
     private final File mTempFileDir;
-    private final File mDataFileDir;
+    final File mDataFileDir;
     private final FileSystemState mState;
-    private final ReadWriteLock mRWLock = new ReentrantReadWriteLock();
-    private final Lock mReadLock;
-    private final Lock mWriteLock;
-    private final BTreeMap<Object[], FileMetadata> mFileMetadata;
+
+    /**
+     * Metadata changes hold the shared side while they update the maps; commits take the
+     * exclusive side so they never see half of a change. Lookups take neither, so a slow
+     * commit does not hold up stat calls.
+     */
+    private final ReadWriteLock mCommitLock = new ReentrantReadWriteLock();
+    private final Lock mUpdateLock;
+    final Namespace mNamespace;
     final BTreeMap<Long, BlockGroup> mBlockGroups;
+
+    /** blockId -> parity of the BlockGroup; stale once the file is rewritten, see {@link #getParity(long)} */
+    final BTreeMap<Long, BlockGroupParity> mParity;
     private final Atomic.Long mBlockGroupId;
     private final ScheduledExecutorService mIOScheduler = Executors.newScheduledThreadPool(1);
+    final ContentHash mContentHash;
+    final Chunker mChunker;
+    final BlockChannelCache mBlockChannels;
+    final BlockIndex mBlockStore;
+    private final PackBlockStore mPackStore;
+    final BlockReader mBlockReader;
+    final ExecutorService mReadAheadExecutor;
+    final Semaphore mReadAheadBudget;
+    final WritePagePool mWritePages;
+    final int mMaxReadAheadPages;
+    private final double mCompactDeadRatio;
+    final ExecutorService mIngestExecutor;
+    final ExecutorService mBlockStoreExecutor;
+    final Semaphore mIngestBudget;
+    private final ExecutorService mFlushExecutor;
+    final BlockCollector mBlockCollector;
+    final GroupCommitter mCommitter;
+    private final ScheduledExecutorService mCollectorScheduler;
+    private final ErasureStage mErasureStage;
+    private final ForkJoinPool mErasurePool;
+    private final ExecutorService mErasureExecutor;
+    /** moves the records of the old path keyed table over, null if there are none */
+    private final ExecutorService mMigrationExecutor;
+    private final AtomicLong mFlushSequence = new AtomicLong();
+
+    /**
+     * blockId -> sequence number of the newest committed flush. Only kept while flushes
+     * of that blockId are pending, see {@link #mPendingFlushes}.
+     */
+    private final Map<Long, Long> mCommittedFlushes = new HashMap<Long, Long>();
+    /** blockId -> completion of every flush of that blockId not done yet */
+    private final ListMultimap<Long, SettableFuture<Void>> mPendingFlushes = ArrayListMultimap.create();
 
 
     MondoFileStore(DB db, File dataRoot) {
+        this(db, dataRoot, new FileStoreConfig());
+    }
+
+    MondoFileStore(DB db, File dataRoot, FileStoreConfig config) {
         mDB = db;
         mDataRoot = dataRoot;
 
@@ -87,37 +135,235 @@ public class MondoFileStore implements Closeable {
         }
 
         mState = new FileSystemState();
-        mReadLock = mRWLock.readLock();
-        mWriteLock = mRWLock.writeLock();
-
-        mFileMetadata = mDB.treeMap("fileMetadata")
-                .keySerializer(new SerializerArrayTuple(Serializer.STRING_DELTA, Serializer.STRING))
-                .valueSerializer(FileMetadata.SERIALIZER)
-                .createOrOpen();
-
-        final Object[] rootKey = new Object[]{"", ""};
-        if(!mFileMetadata.containsKey(rootKey)) {
-            FileMetadata root = new FileMetadata();
-            root.flags = FileMetadata.FLAG_DIR;
-            mFileMetadata.put(rootKey, root);
-        }
-
+        mUpdateLock = mCommitLock.readLock();
 
         mBlockGroups = mDB.treeMap("blockGroups")
                 .keySerializer(Serializer.LONG_DELTA)
                 .valueSerializer(BlockGroup.SERIALIZER)
                 .createOrOpen();
 
+        mParity = mDB.treeMap("parity")
+                .keySerializer(Serializer.LONG_DELTA)
+                .valueSerializer(BlockGroupParity.SERIALIZER)
+                .createOrOpen();
+
         mBlockGroupId = mDB.atomicLong("blockGroupId")
                 .createOrOpen();
 
+        mContentHash = ContentHash.forName(openFormatSetting("contentHash", config.contentHash, ContentHash.SHA1.getName()));
+        mChunker = Chunkers.forName(openFormatSetting("chunker", config.chunker, LEGACY_CHUNKER), mContentHash.hashFunction());
+
+        mCompactDeadRatio = config.compactDeadRatio;
+        mBlockChannels = new BlockChannelCache(this, config.maxOpenBlocks);
+        final String blockStore = openFormatSetting("blockStore", config.blockStore, LooseBlockStore.NAME);
+        final BlockStore store;
+        if(PackBlockStore.NAME.equals(blockStore)) {
+            try {
+                mPackStore = new PackBlockStore(mDB, mCommitLock, new File(mDataRoot, "packs"), config.packSize);
+            } catch (IOException e) {
+                throw new RuntimeException("unable to open pack files", e);
+            }
+            store = mPackStore;
+            mIOScheduler.scheduleWithFixedDelay(mCompactPacks, config.compactInterval, config.compactInterval, TimeUnit.SECONDS);
+        } else {
+            mPackStore = null;
+            store = new LooseBlockStore(this, mBlockChannels);
+        }
+        mBlockStore = new BlockIndex(store, mIOScheduler, config.blockIndexExpectedBlocks, config.blockIndexFalsePositiveRate);
+        mBlockStore.start();
+
+        if(config.mmapBlocks && store instanceof LooseBlockStore && MappedBlockReader.isSupported()) {
+            mBlockReader = new MappedBlockReader(mBlockChannels, config.maxMappedBytes);
+        } else {
+            if(config.mmapBlocks) {
+                LOGGER.warn("memory mapped blocks not supported with this platform or block store, using positional reads");
+            }
+            //mapped reads are already served from the OS page cache
+            mBlockReader = config.pageCacheSize > 0 ? new PageCache(mBlockStore, config.pageCacheSize) : mBlockStore;
+        }
+
+        mReadAheadExecutor = Executors.newFixedThreadPool(config.readAheadThreads, new ThreadFactoryBuilder()
+                .setNameFormat("read-ahead %d")
+                .setDaemon(true)
+                .build());
+        mReadAheadBudget = new Semaphore((int) Math.min(Integer.MAX_VALUE, config.readAheadBudget / BUFFER_SIZE));
+        mMaxReadAheadPages = config.maxReadAheadPages;
+        mWritePages = new WritePagePool(config.writeBufferSize, new File(mTempFileDir, "scratch.log"));
+
+        mIngestExecutor = Executors.newFixedThreadPool(Math.max(1, config.ingestThreads), new ThreadFactoryBuilder()
+                .setNameFormat("ingest %d")
+                .setDaemon(true)
+                .build());
+        mBlockStoreExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("block store")
+                .setDaemon(true)
+                .build());
+        mIngestBudget = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, config.ingestBudget / BlockWriter.PIECE_SIZE)));
+        mFlushExecutor = Executors.newFixedThreadPool(Math.max(1, config.flushThreads), new ThreadFactoryBuilder()
+                .setNameFormat("flush %d")
+                .build());
+
+        mCommitter = new GroupCommitter(mDB, mCommitLock.writeLock(), config.commitLatency, TimeUnit.MILLISECONDS, config.commitBatchSize);
+        mCommitter.addPreCommit(mBlockStore);
+        mNamespace = new Namespace(mDB, mUpdateLock, mCommitter, mBlockGroups, config.metadataLockStripes, config.metadataCacheSize);
+        if(mNamespace.isMigrating()) {
+            mMigrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("migration")
+                    .setDaemon(true)
+                    .build());
+            mMigrationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mNamespace.migrate();
+                    } catch (Exception e) {
+                        LOGGER.error("migrating paths to inodes failed, it continues on next start", e);
+                    }
+                }
+            });
+        } else {
+            mMigrationExecutor = null;
+        }
+        mBlockCollector = new BlockCollector(this, config.gcBlocksPerSecond);
+        mCollectorScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("block collector")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+        if(config.gcInterval > 0) {
+            mCollectorScheduler.scheduleWithFixedDelay(mBlockCollector, config.gcInterval, config.gcInterval, TimeUnit.SECONDS);
+        }
+
+        if(config.parityShards > 0) {
+            mErasurePool = new ForkJoinPool(Math.max(1, config.erasureThreads));
+            mErasureStage = new ErasureStage(this, config.stripeDataShards, config.parityShards, mErasurePool,
+                    new ShardPool(config.shardPoolSize));
+            //one file at a time, each stripe is coded on all threads of the pool
+            mErasureExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("erasure coding")
+                    .setDaemon(true)
+                    .setPriority(Thread.MIN_PRIORITY)
+                    .build());
+        } else {
+            mErasurePool = null;
+            mErasureStage = null;
+            mErasureExecutor = null;
+        }
+
+        mIOScheduler.execute(mMigrateBlockGroups);
+
+    }
+
+    /**
+     * The chunker and the content hash are part of the store format: blocks only dedup
+     * against blocks cut and named the same way. A new store records the configured
+     * value; an existing one keeps using the recorded value, or {@code legacy} if the
+     * store predates the record.
+     */
+    private String openFormatSetting(String key, String configured, String legacy) {
+        Atomic.String record = mDB.atomicString(key).createOrOpen();
+        String name = record.get();
+        if(name == null || name.isEmpty()) {
+            name = mBlockGroups.isEmpty() ? configured : legacy;
+            record.set(name);
+            mDB.commit();
+        } else if(!name.equals(configured)) {
+            LOGGER.warn("store was created with {} {}, ignoring configured {}", key, name, configured);
+        }
+
+        LOGGER.info("using {}: {}", key, name);
+        return name;
     }
 
     @Override
     public void close() throws IOException {
+        mFlushExecutor.shutdown();
+        try {
+            if(!mFlushExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.warn("timed out waiting for files to be flushed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(mMigrationExecutor != null) {
+            //an unfinished migration carries on where it stopped on next start
+            mMigrationExecutor.shutdownNow();
+            try {
+                if(!mMigrationExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOGGER.warn("timed out waiting for the migration to stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mCollectorScheduler.shutdownNow();
+        try {
+            if(!mCollectorScheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.warn("timed out waiting for block collection to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(mErasureExecutor != null) {
+            //files not encoded yet are encoded again when next flushed
+            mErasureExecutor.shutdownNow();
+            mErasurePool.shutdownNow();
+        }
+        mIngestExecutor.shutdownNow();
+        mBlockStoreExecutor.shutdownNow();
+        mReadAheadExecutor.shutdownNow();
+        mIOScheduler.shutdownNow();
+        if(mBlockReader != mBlockStore) {
+            mBlockReader.close();
+        }
+        mWritePages.close();
+        mCommitter.close();
+        LOGGER.info("metadata cache: {}", mNamespace.getCacheStats());
+        LOGGER.info("block index: {}", mBlockStore.getStats());
+        mBlockStore.close();
+        mBlockChannels.close();
         mDB.close();
     }
 
+    /**
+     * Make every metadata change so far durable, including the contents of every file
+     * closed so far. Changes are otherwise committed in batches, a short while after they
+     * are made. Must not be called with the write lock held.
+     *
+     * @throws IOException if a file could not be flushed or the commit failed
+     */
+    public void sync() throws IOException {
+        final List<SettableFuture<Void>> flushes;
+        synchronized (mCommittedFlushes) {
+            flushes = ImmutableList.copyOf(mPendingFlushes.values());
+        }
+        awaitFlushes(flushes);
+        mCommitter.sync();
+    }
+
+    /**
+     * Like {@link #sync()}, but only waits for the flushes of one file.
+     */
+    void syncFile(long blockId) throws IOException {
+        final List<SettableFuture<Void>> flushes;
+        synchronized (mCommittedFlushes) {
+            flushes = ImmutableList.copyOf(mPendingFlushes.get(blockId));
+        }
+        awaitFlushes(flushes);
+        mCommitter.await(mCommitter.mutated());
+    }
+
+    private static void awaitFlushes(List<SettableFuture<Void>> flushes) throws IOException {
+        for(SettableFuture<Void> flush : flushes) {
+            try {
+                Uninterruptibles.getUninterruptibly(flush);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw new IOException("flushing a file failed", e.getCause());
+            }
+        }
+    }
+
     File createTmpFile() {
         return new File(mTempFileDir, UUID.randomUUID().toString() + ".dat");
     }
@@ -126,71 +372,298 @@ public class MondoFileStore implements Closeable {
         return mState;
     }
 
-    public Lock readLock() {
-        mReadLock.lock();
-        return mReadLock;
+
+    public FileMetadata lookUpWithLock(MondoFSPath path) {
+        return mNamespace.lookUp(path);
     }
 
-    public Lock writeLock() {
-        mWriteLock.lock();
-        return mWriteLock;
+    public CacheStats getMetadataCacheStats() {
+        return mNamespace.getCacheStats();
     }
 
-    public FileMetadata lookUpWithLock(MondoFSPath path) {
-        FileMetadata retval;
-        final Object[] key = TO_DB_KEY.apply(path);
+    BlockIndex.Stats getBlockIndexStats() {
+        return mBlockStore.getStats();
+    }
 
-        mReadLock.lock();
-        try {
-            retval = mFileMetadata.get(key);
-        } finally {
-            mReadLock.unlock();
+    private long resolveDirectory(MondoFSPath dir) throws IOException {
+        final long inode = mNamespace.resolveForListing(dir);
+        final FileMetadata metadata = inode < 0 ? null : mNamespace.get(inode);
+        if(metadata == null) {
+            throw new NoSuchFileException(dir.toString());
         }
-        return retval;
+        if(!metadata.isDirectory()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        return inode;
+    }
+
+    public DirectoryStream<Path> createDirectoryStream(MondoFSPath dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        return new DBDirectoryStream(dir, resolveDirectory(dir), filter);
+    }
+
+    /**
+     * List directory {@code dir} a page at a time. Every entry is handed to {@code visitor}
+     * together with its metadata, so there is no need to look each one up afterwards.
+     *
+     * @param cookie null to start at the beginning, or the cookie returned by the previous call
+     * @return the cookie for the next page, or null once the whole directory was listed
+     */
+    public String listDirectory(MondoFSPath dir, String cookie, int maxEntries, DirectoryVisitor visitor) throws IOException {
+        return mNamespace.list(resolveDirectory(dir), cookie, maxEntries, false, visitor);
     }
 
-    public DirectoryStream<Path> createDirectoryStream(MondoFSPath dir, DirectoryStream.Filter<? super Path> filter) {
-        return new DBDirectoryStream(dir, filter);
+    public void createDirectory(MondoFSPath dir) throws IOException {
+        mNamespace.createDirectory(dir);
+    }
+
+    public void move(MondoFSPath source, MondoFSPath target, boolean replace) throws IOException {
+        mNamespace.move(source, target, replace);
     }
 
     public File getFileBlock(HashCode hash) {
-        String filename = hash.toString();
+        final ContentHash contentHash = ContentHash.of(hash);
+        String filename = contentHash.getFileName(hash);
         File retval = new File(mDataFileDir, filename.substring(0, 2));
         retval = new File(retval, filename.substring(2, 4));
         retval = new File(retval, filename);
         return retval;
     }
 
-    public void delete(MondoFSPath path) {
-        Object[] key = TO_DB_KEY.apply(path);
-        mWriteLock.lock();
+    /**
+     * Build the offset table of a BlockGroup written before block lengths were stored
+     * by looking at the size of every block file.
+     */
+    long[] statBlockOffsets(BlockGroup blockGroup) throws IOException {
+        long[] offsets = new long[blockGroup.blocks.size() + 1];
+        long pos = 0;
+        int i = 0;
+        for(HashCode hashCode : blockGroup.blocks){
+            final long length = mBlockStore.getLength(hashCode);
+            if(length < 0) {
+                throw new IOException("missing block: " + hashCode.toString());
+            }
+
+            offsets[i++] = pos;
+            pos += length;
+        }
+
+        offsets[i] = pos;
+        return offsets;
+    }
+
+    /**
+     * @return the parity of the current BlockGroup of {@code blockId}, or null. Parity left
+     * over from an older version of the file is removed.
+     */
+    BlockGroupParity getParity(long blockId) {
+        synchronized (mParity) {
+            final BlockGroupParity parity = mParity.get(blockId);
+            if(parity == null || parity.protects(mBlockGroups.get(blockId))) {
+                return parity;
+            }
+            mUpdateLock.lock();
+            try {
+                mParity.remove(blockId);
+            } finally {
+                mUpdateLock.unlock();
+            }
+        }
+        mCommitter.mutated();
+        return null;
+    }
+
+    /**
+     * Compute and commit the parity of the current BlockGroup of {@code blockId}.
+     *
+     * @return the parity, or null if erasure coding is disabled, there is nothing to protect
+     * or the file was rewritten in the meantime
+     */
+    BlockGroupParity protect(long blockId) throws IOException {
+        final BlockGroup bg = mBlockGroups.get(blockId);
+        if(mErasureStage == null || bg == null || !bg.hasBlockLengths()) {
+            return null;
+        }
+
+        final List<HashCode> held = new ArrayList<HashCode>();
         try {
-            mFileMetadata.remove(key);
-            mDB.commit();
+            final BlockGroupParity parity = mErasureStage.encode(bg, held);
+            if(parity == null) {
+                return null;
+            }
+            synchronized (mParity) {
+                if(!parity.protects(mBlockGroups.get(blockId))) {
+                    LOGGER.info("drop parity of BlockGroup {}: the file was rewritten", blockId);
+                    return null;
+                }
+                mUpdateLock.lock();
+                try {
+                    mParity.put(blockId, parity);
+                } finally {
+                    mUpdateLock.unlock();
+                }
+            }
+            mCommitter.mutated();
+            return parity;
         } finally {
-            mWriteLock.unlock();
+            mBlockCollector.release(held);
+        }
+    }
+
+    /**
+     * Rebuild block {@code blockIndex} of {@code bg}, the BlockGroup of {@code blockId},
+     * from its parity.
+     *
+     * @return false if there is no parity to rebuild it from
+     */
+    boolean repairBlock(long blockId, BlockGroup bg, int blockIndex) {
+        if(mErasureStage == null) {
+            return false;
+        }
+        final BlockGroupParity parity = getParity(blockId);
+        if(parity == null || !parity.protects(bg)) {
+            return false;
+        }
+        try {
+            mErasureStage.repair(bg, parity, blockIndex);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("unable to repair block {} of BlockGroup {}", blockIndex, blockId, e);
+            return false;
         }
     }
 
+    private Runnable createProtectTask(final long blockId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long start = System.nanoTime();
+                    final BlockGroupParity parity = protect(blockId);
+                    if(parity != null) {
+                        LOGGER.info("encoded {} stripes of BlockGroup {} in {} ms", parity.stripes.size(), blockId,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                } catch (Exception e) {
+                    LOGGER.error("unable to encode BlockGroup {}", blockId, e);
+                }
+            }
+        };
+    }
+
+    private final Runnable mCompactPacks = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final long start = System.nanoTime();
+                final long reclaimed = mPackStore.compact(mCompactDeadRatio);
+                if(reclaimed > 0) {
+                    LOGGER.info("pack compaction reclaimed {} bytes in {} ms", reclaimed,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            } catch (Exception e) {
+                LOGGER.error("pack compaction failed", e);
+            }
+        }
+    };
+
+    /**
+     * Rewrites BlockGroups stored without block lengths in the current format.
+     */
+    private final Runnable mMigrateBlockGroups = new Runnable() {
+        @Override
+        public void run() {
+            int numMigrated = 0;
+            for(Long blockId : mBlockGroups.navigableKeySet()) {
+                BlockGroup bg = mBlockGroups.get(blockId);
+                if(bg == null || bg.hasBlockLengths()) {
+                    continue;
+                }
+
+                try {
+                    long[] offsets = statBlockOffsets(bg);
+                    long[] lengths = new long[bg.blocks.size()];
+                    for(int i=0;i<lengths.length;i++) {
+                        lengths[i] = offsets[i + 1] - offsets[i];
+                    }
+                    BlockGroup upgraded = new BlockGroup(bg.offset, bg.checksum, bg.blocks, lengths);
+
+                    mUpdateLock.lock();
+                    try {
+                        //only replace it if it was not rewritten in the meantime
+                        BlockGroup current = mBlockGroups.get(blockId);
+                        if(current != null && !current.hasBlockLengths() && current.blocks.equals(bg.blocks)) {
+                            mBlockGroups.put(blockId, upgraded);
+                            numMigrated++;
+                        }
+                    } finally {
+                        mUpdateLock.unlock();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("unable to migrate BlockGroup {}", blockId, e);
+                }
+            }
+
+            if(numMigrated > 0) {
+                mCommitter.mutated();
+                LOGGER.info("migrated {} BlockGroups to store block lengths", numMigrated);
+            }
+        }
+    };
+
+    public void delete(MondoFSPath path) throws IOException {
+        mNamespace.delete(path);
+    }
+
     private class DBDirectoryStream implements DirectoryStream<Path> {
 
+        private static final int PAGE_SIZE = 1024;
+
         private final MondoFSPath mDir;
-        private final ConcurrentNavigableMap<Object[], FileMetadata> mDirFileSet;
+        private final long mInode;
         private final Predicate<Path> mPredicate;
 
-        DBDirectoryStream(MondoFSPath dir, DirectoryStream.Filter<? super Path> filter) {
+        DBDirectoryStream(MondoFSPath dir, long inode, DirectoryStream.Filter<? super Path> filter) {
             mDir = dir.normalize();
-            String dirStr = dir.toString();
-            mDirFileSet = mFileMetadata.subMap(new Object[]{dirStr, ""}, new Object[]{dirStr, null});
+            mInode = inode;
 
             mPredicate = createPredicate(filter);
         }
 
+        /**
+         * Reads the directory a page at a time, so a large directory is streamed instead of
+         * held in memory, and no database iterator stays open between calls. FUSE readdir
+         * only passes the names on and the kernel then asks for the attributes of every
+         * entry, so the metadata read with the listing goes into the metadata cache to
+         * answer those.
+         */
         @Override
         public Iterator<Path> iterator() {
-            Iterable<Path> paths = Iterables.transform(mDirFileSet.keySet(), TO_PATH);
-            paths = Iterables.filter(paths, mPredicate);
-            return paths.iterator();
+            return new AbstractIterator<Path>() {
+
+                private final ArrayDeque<Path> mPage = new ArrayDeque<Path>();
+                private String mCookie;
+                private boolean mDone;
+
+                private final DirectoryVisitor mVisitor = new DirectoryVisitor() {
+                    @Override
+                    public boolean visit(String name, FileMetadata metadata) {
+                        final Path path = mDir.child(Name.create(name));
+                        if(mPredicate.apply(path)) {
+                            mPage.add(path);
+                        }
+                        return true;
+                    }
+                };
+
+                @Override
+                protected Path computeNext() {
+                    while(mPage.isEmpty() && !mDone) {
+                        mCookie = mNamespace.list(mInode, mCookie, PAGE_SIZE, true, mVisitor);
+                        mDone = mCookie == null;
+                    }
+                    return mPage.isEmpty() ? endOfData() : mPage.poll();
+                }
+            };
         }
 
         @Override
@@ -198,19 +671,6 @@ public class MondoFileStore implements Closeable {
 
         }
 
-        private Function<Object[], Path> TO_PATH = new Function<Object[], Path>() {
-            @Override
-            public Path apply(Object[] input) {
-                String root = (String) input[0];
-                String names = (String) input[1];
-
-                MondoFSPath retval = MondoFSPath.createPath(mDir.getFileSystem(), MondoFSPath.TO_NAME.apply(root),
-                        Iterables.transform(MondoFSPath.PATH_SPLITTER.split(names), MondoFSPath.TO_NAME));
-                return retval;
-
-            }
-        };
-
         private Predicate<Path> createPredicate(final Filter<? super Path> filter) {
             return new Predicate<Path>() {
                 @Override
@@ -234,18 +694,23 @@ public class MondoFileStore implements Closeable {
             throw new FileAlreadyExistsException(path.toString());
         }
 
-        if(Iterables.contains(options, StandardOpenOption.CREATE_NEW) || Iterables.contains(options, StandardOpenOption.CREATE)) {
+        if(metadata == null && Iterables.contains(options, StandardOpenOption.CREATE_NEW)) {
             metadata = createNewFile(path);
+        } else if(metadata == null && Iterables.contains(options, StandardOpenOption.CREATE)) {
+            try {
+                metadata = createNewFile(path);
+            } catch (FileAlreadyExistsException e) {
+                //created by someone else in the meantime
+                metadata = lookUpWithLock(path);
+            }
         }
 
-        FileChannel scratchFileChannel = null;
+        if(metadata == null) {
+            throw new NoSuchFileException(path.toString());
+        }
 
         int openMode = 0;
         if(Iterables.contains(options, StandardOpenOption.WRITE)) {
-            File scratchFile = createTmpFile();
-            scratchFileChannel = FileChannel.open(scratchFile.toPath(),
-                    StandardOpenOption.READ, StandardOpenOption.WRITE,
-                    StandardOpenOption.CREATE_NEW, StandardOpenOption.DELETE_ON_CLOSE);
             openMode |= MondoFileChannel.MODE_WRITE;
         }
 
@@ -254,53 +719,171 @@ public class MondoFileStore implements Closeable {
             openMode |= MondoFileChannel.MODE_READ;
         }
 
-        MondoFileChannel mfc = new MondoFileChannel(openMode, scratchFileChannel, metadata, this);
+        MondoFileChannel mfc = new MondoFileChannel(openMode, metadata, this);
         mfc.mPath = path;
+        if((openMode & MondoFileChannel.MODE_WRITE) != 0 && Iterables.contains(options, StandardOpenOption.TRUNCATE_EXISTING)) {
+            mfc.truncate(0);
+        }
         return mfc;
 
     }
 
     void onFileChannelClose(MondoFileChannel mondoFileChannel) throws IOException {
         if((mondoFileChannel.mOpenMode & MondoFileChannel.MODE_WRITE) > 0) {
-            mIOScheduler.execute(createFlushFileTask(mondoFileChannel));
+            final SettableFuture<Void> flush = flushStarted(mondoFileChannel.mMetadata.blockId);
+            mFlushExecutor.execute(createFlushFileTask(mondoFileChannel, mFlushSequence.incrementAndGet(), flush));
+        } else {
+            mondoFileChannel.releaseBlockGroup();
         }
 
     }
 
-    private Runnable createFlushFileTask(final MondoFileChannel fileChannel) {
+    /**
+     * Read the BlockGroup of {@code blockId} and hold its blocks, so a channel can read and
+     * reuse them for as long as it works on top of it. Holding only helps if the collector
+     * has not deleted the blocks yet: that is certain once the BlockGroup is still the
+     * current one after the hold, because blocks of a BlockGroup put in the middle of a
+     * collection stay held by their writer until it ends.
+     *
+     * @return the held BlockGroup, or null if the file has none
+     */
+    BlockGroup holdBlockGroup(long blockId) {
+        BlockGroup bg = mBlockGroups.get(blockId);
+        while(bg != null) {
+            mBlockCollector.hold(bg.blocks);
+            final BlockGroup current = mBlockGroups.get(blockId);
+            if(current != null && current.blocks.equals(bg.blocks)) {
+                return bg;
+            }
+            mBlockCollector.release(bg.blocks);
+            bg = current;
+        }
+        return null;
+    }
 
-        return new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    final WriteOutBlockAction writeOutAction = new WriteOutBlockAction();
-                    writeOutAction.mFileStore = MondoFileStore.this;
-                    writeOutAction.mFileChannel = fileChannel;
+    /**
+     * Write out the contents of a channel that stays open, on the calling thread, like
+     * the flush done when it is closed. Called with the monitor of {@code fileChannel} held.
+     *
+     * @return the BlockGroup now recorded for the file, or null if it was not recorded
+     * because the file was deleted or a newer version was already written
+     */
+    BlockGroup forceFileChannel(MondoFileChannel fileChannel) throws IOException {
+        final long blockId = fileChannel.mMetadata.blockId;
+        final SettableFuture<Void> flush = flushStarted(blockId);
+        try {
+            final BlockGroup bg = writeOut(fileChannel, mFlushSequence.incrementAndGet(), true);
+            flush.set(null);
+            return bg;
+        } catch (IOException e) {
+            flush.setException(e);
+            throw e;
+        } finally {
+            flushDone(blockId, flush);
+        }
+    }
 
-                    BlockGroup bg = writeOutAction.doIt();
-                    LOGGER.info("flush file: {} {}", fileChannel.mPath, bg.checksum);
+    /**
+     * Files are flushed in parallel, so two flushes of the same file can finish out of
+     * order. The one closed last wins.
+     *
+     * @return true if a flush closed after this one has already been committed
+     */
+    private boolean isSuperseded(long blockId, long sequence) {
+        synchronized (mCommittedFlushes) {
+            Long committed = mCommittedFlushes.get(blockId);
+            if(committed != null && committed > sequence) {
+                return true;
+            }
+            mCommittedFlushes.put(blockId, sequence);
+            return false;
+        }
+    }
 
-                    mWriteLock.lock();
-                    try {
-                        mBlockGroups.put(fileChannel.mMetadata.blockId, bg);
+    private SettableFuture<Void> flushStarted(long blockId) {
+        final SettableFuture<Void> flush = SettableFuture.create();
+        synchronized (mCommittedFlushes) {
+            mPendingFlushes.put(blockId, flush);
+        }
+        return flush;
+    }
+
+    private void flushDone(long blockId, SettableFuture<Void> flush) {
+        synchronized (mCommittedFlushes) {
+            mPendingFlushes.remove(blockId, flush);
+            if(!mPendingFlushes.containsKey(blockId)) {
+                mCommittedFlushes.remove(blockId);
+            }
+        }
+    }
+
+    /**
+     * Turn the contents of {@code fileChannel} into a BlockGroup and record it as the
+     * contents of the file. The change is committed with the next batch.
+     *
+     * @param holdResult whether to hold the blocks of the BlockGroup recorded before the
+     *                   writer lets go of them, for the channel to go on working on top of it
+     * @return the BlockGroup recorded, or null if the file was deleted or a newer
+     * version was already written
+     */
+    private BlockGroup writeOut(MondoFileChannel fileChannel, long sequence, boolean holdResult) throws IOException {
+        final WriteOutBlockAction writeOutAction = new WriteOutBlockAction();
+        writeOutAction.mFileStore = MondoFileStore.this;
+        writeOutAction.mFileChannel = fileChannel;
+        try {
+            BlockGroup bg = writeOutAction.doIt();
+            LOGGER.info("flush file: {} {}", fileChannel.mPath, bg.checksum);
+
+            final Lock inodeLock = mNamespace.lockInode(fileChannel.mMetadata.inode);
+            try {
+                if(isSuperseded(fileChannel.mMetadata.blockId, sequence)) {
+                    LOGGER.info("skip flush of {}: a newer version was already written", fileChannel.mPath);
+                    return null;
+                }
 
-                        Object[] key = TO_DB_KEY.apply(fileChannel.mPath);
-                        mFileMetadata.put(key, fileChannel.mMetadata);
+                mBlockGroups.put(fileChannel.mMetadata.blockId, bg);
+                if(!mNamespace.update(fileChannel.mMetadata)) {
+                    LOGGER.info("skip flush of {}: the file was deleted", fileChannel.mPath);
+                    mBlockGroups.remove(fileChannel.mMetadata.blockId);
+                    return null;
+                } else if(mErasureExecutor != null) {
+                    mErasureExecutor.execute(createProtectTask(fileChannel.mMetadata.blockId));
+                }
+                if(holdResult) {
+                    mBlockCollector.hold(bg.blocks);
+                }
+                return bg;
 
-                        mDB.commit();
+            } finally {
+                mNamespace.unlockInode(inodeLock);
+            }
 
+        } finally {
+            if(writeOutAction.mBlockWriter != null) {
+                writeOutAction.mBlockWriter.releaseBlocks();
+            }
+        }
+    }
+
+    private Runnable createFlushFileTask(final MondoFileChannel fileChannel, final long sequence, final SettableFuture<Void> flush) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    try {
+                        writeOut(fileChannel, sequence, false);
                     } finally {
-                        mWriteLock.unlock();
+                        //before anyone waiting for the flush wakes up
+                        fileChannel.releaseBlockGroup();
                     }
-
+                    flush.set(null);
                 } catch (Exception e) {
                     LOGGER.error("", e);
+                    flush.setException(e);
                 } finally {
-                    try {
-                        fileChannel.mScratchFile.close();
-                    } catch (IOException e) {
-                        LOGGER.error("", e);
-                    }
+                    flushDone(fileChannel.mMetadata.blockId, flush);
+                    fileChannel.releasePages();
                 }
 
 
@@ -308,11 +891,9 @@ public class MondoFileStore implements Closeable {
         };
     }
 
-    private FileMetadata createNewFile(MondoFSPath path) {
+    private FileMetadata createNewFile(MondoFSPath path) throws IOException {
         FileMetadata file;
 
-        path = path.normalize();
-
         file = new FileMetadata();
         file.blockId = mBlockGroupId.getAndIncrement();
         file.flags = 0;
@@ -320,16 +901,7 @@ public class MondoFileStore implements Closeable {
         file.lastAccessedTime = file.creationTime;
         file.lastModifiedTime = file.creationTime;
 
-        Object[] key = TO_DB_KEY.apply(path);
-
-        mWriteLock.lock();
-        try {
-            mFileMetadata.put(key, file);
-            mDB.commit();
-        } finally {
-            mWriteLock.unlock();
-        }
-        return file;
+        return mNamespace.create(path, file);
     }
 
 
@@ -11,6 +11,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
@@ -65,6 +66,7 @@ public class MondoFilesystemProvider extends FileSystemProvider {
     @Override
     public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
         LOGGER.trace("createDirectory() {}", dir);
+        mStore.createDirectory(checkPath(dir));
     }
 
     @Override
@@ -81,6 +83,7 @@ public class MondoFilesystemProvider extends FileSystemProvider {
     @Override
     public void move(Path source, Path target, CopyOption... options) throws IOException {
         LOGGER.trace("move(): {} {}", source, target);
+        mStore.move(checkPath(source), checkPath(target), Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING));
     }
 
     @Override
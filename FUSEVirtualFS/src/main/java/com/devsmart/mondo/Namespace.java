@@ -0,0 +1,942 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Striped;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.SerializerArrayTuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The directory tree. Every file and directory is an inode, keyed by a 64 bit number, and
+ * directories map names to inodes in a separate entry table keyed by (parent inode, name).
+ * Renaming or moving a file, or a whole directory, only replaces one entry.
+ *
+ * <p>Paths are resolved by walking the entries down from {@link #ROOT}. Entries and inodes
+ * are cached, including entries that do not exist, so walking a hot path does not touch
+ * the database.</p>
+ *
+ * <p>A change holds the store's update lock, then the entry locks of the directories it
+ * changes, then the locks of the inodes it changes. Cache loads run under the matching
+ * read lock and changes invalidate under the write lock, so a load never brings back a
+ * value that was just replaced. Moves of directories are the only changes that can turn
+ * one directory into an ancestor of another; they take {@link #mDirMoveLock} first, so
+ * checking the ancestors of the target is not raced by another such move.</p>
+ *
+ * <p>Stores from before inodes keep their files in a table keyed by path. Those are
+ * moved over by {@link #migrate()} in the background while the store is in use. Until it
+ * is done every change and lookup first moves over the legacy records of the paths it
+ * touches, see {@link #migratePath(List)}.</p>
+ */
+class Namespace {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Namespace.class);
+
+    static final long ROOT = 1;
+
+    private static final String LEGACY_TABLE = "fileMetadata";
+    private static final int MIGRATE_BATCH = 1000;
+
+    /** entries read per turn of a directory's read lock while listing it */
+    private static final int LIST_BATCH = 256;
+
+    /**
+     * Skipping an inode while scanning the inode table is much cheaper than searching for
+     * the next one, so inodes at most this far apart are read with one scan.
+     */
+    private static final long SCAN_GAP = 64;
+
+    private final Lock mUpdateLock;
+    private final GroupCommitter mCommitter;
+    private final BTreeMap<Long, BlockGroup> mBlockGroups;
+
+    /** inode -> metadata */
+    private final BTreeMap<Long, FileMetadata> mInodes;
+
+    /** (parent inode, name) -> inode */
+    private final BTreeMap<Object[], Long> mEntries;
+    private final Atomic.Long mLastInode;
+
+    /**
+     * the old path keyed table, (parent path, name) -> metadata, while there are records
+     * left to migrate; null after that
+     */
+    private volatile BTreeMap<Object[], FileMetadata> mLegacy;
+    /** held while moving legacy records over, so every record is moved only once */
+    private final Lock mMigrateLock = new ReentrantLock();
+    private final Lock mDirMoveLock = new ReentrantLock();
+
+    private final Striped<ReadWriteLock> mDirLocks;
+    private final Striped<ReadWriteLock> mInodeLocks;
+    private final LoadingCache<List<Object>, Optional<Long>> mEntryCache;
+    private final LoadingCache<Long, Optional<FileMetadata>> mInodeCache;
+    /**
+     * bumped under the inode's write lock with every change of {@link #mInodes}, so
+     * metadata read without the lock can tell whether it is still current
+     */
+    private final AtomicLong mInodeChanges = new AtomicLong();
+
+    /**
+     * @param updateLock shared with other metadata changes and held while changing the
+     *                   tables, see {@link GroupCommitter}
+     * @param blockGroups the BlockGroup of a file is removed together with its inode
+     */
+    Namespace(DB db, Lock updateLock, GroupCommitter committer, BTreeMap<Long, BlockGroup> blockGroups,
+              int lockStripes, long cacheSize) {
+        mUpdateLock = updateLock;
+        mCommitter = committer;
+        mBlockGroups = blockGroups;
+
+        mInodes = db.treeMap("inodes")
+                .keySerializer(Serializer.LONG)
+                .valueSerializer(FileMetadata.SERIALIZER)
+                .createOrOpen();
+
+        mEntries = db.treeMap("dirEntries")
+                .keySerializer(new SerializerArrayTuple(Serializer.LONG, Serializer.STRING))
+                .valueSerializer(Serializer.LONG)
+                .createOrOpen();
+
+        mLastInode = db.atomicLong("lastInode").createOrOpen();
+        if(mLastInode.get() < ROOT) {
+            mLastInode.set(ROOT);
+        }
+
+        mDirLocks = Striped.readWriteLock(lockStripes);
+        mInodeLocks = Striped.readWriteLock(lockStripes);
+        mEntryCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build(new CacheLoader<List<Object>, Optional<Long>>() {
+                    @Override
+                    public Optional<Long> load(List<Object> key) {
+                        return Optional.fromNullable(mEntries.get(key.toArray()));
+                    }
+                });
+        mInodeCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build(new CacheLoader<Long, Optional<FileMetadata>>() {
+                    @Override
+                    public Optional<FileMetadata> load(Long key) {
+                        return Optional.fromNullable(mInodes.get(key));
+                    }
+                });
+
+        if(!mInodes.containsKey(ROOT)) {
+            mInodes.put(ROOT, newDirectory());
+            mCommitter.mutated();
+        }
+        if(db.exists(LEGACY_TABLE)) {
+            BTreeMap<Object[], FileMetadata> legacy = db.treeMap(LEGACY_TABLE)
+                    .keySerializer(new SerializerArrayTuple(Serializer.STRING_DELTA, Serializer.STRING))
+                    .valueSerializer(FileMetadata.SERIALIZER)
+                    .open();
+            if(!legacy.isEmpty()) {
+                mLegacy = legacy;
+            }
+        }
+    }
+
+    private static FileMetadata newDirectory() {
+        FileMetadata retval = new FileMetadata();
+        retval.flags = FileMetadata.FLAG_DIR;
+        retval.creationTime = System.currentTimeMillis();
+        retval.lastAccessedTime = retval.creationTime;
+        retval.lastModifiedTime = retval.creationTime;
+        return retval;
+    }
+
+    private static List<String> names(MondoFSPath path) {
+        path = path.normalize();
+        List<String> retval = new ArrayList<String>(path.getNameCount());
+        for(int i=0;i<path.getNameCount();i++) {
+            retval.add(path.getName(i).toString());
+        }
+        return retval;
+    }
+
+    private static Object[] entryKey(long dir, String name) {
+        return new Object[]{dir, name};
+    }
+
+    /**
+     * @return the inode of {@code name} in {@code dir}, or -1
+     */
+    private long lookUpEntry(long dir, String name) {
+        final Lock lock = mDirLocks.get(dir).readLock();
+        lock.lock();
+        try {
+            Optional<Long> retval = mEntryCache.getUnchecked(Arrays.<Object>asList(dir, name));
+            return retval.isPresent() ? retval.get() : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long resolve(List<String> names) {
+        long inode = ROOT;
+        for(String name : names) {
+            inode = lookUpEntry(inode, name);
+            if(inode < 0) {
+                break;
+            }
+        }
+        return inode;
+    }
+
+    /**
+     * @return the inode at {@code path}, or -1 if there is none
+     */
+    long resolve(MondoFSPath path) {
+        final List<String> names = names(path);
+        migratePath(names);
+        return resolve(names);
+    }
+
+    /**
+     * Like {@link #resolve(MondoFSPath)}, for a directory about to be listed.
+     */
+    long resolveForListing(MondoFSPath dir) {
+        final List<String> names = names(dir);
+        migratePath(names);
+        migrateChildren(names);
+        return resolve(names);
+    }
+
+    /**
+     * @return whether {@code dir} is one of the directories on the way from the root to
+     * {@code names}, or the inode at {@code names} itself
+     */
+    private boolean isOnPath(long dir, List<String> names) {
+        long inode = ROOT;
+        for(String name : names) {
+            inode = lookUpEntry(inode, name);
+            if(inode < 0) {
+                return false;
+            }
+            if(inode == dir) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the metadata of {@code inode}, or null if it does not exist
+     */
+    FileMetadata get(long inode) {
+        //callers are free to change what they get
+        FileMetadata retval = new FileMetadata();
+        return read(inode, retval) ? retval : null;
+    }
+
+    /**
+     * copy the metadata of {@code inode} into {@code dst}
+     *
+     * @return false if it does not exist
+     */
+    private boolean read(long inode, FileMetadata dst) {
+        final Lock lock = mInodeLocks.get(inode).readLock();
+        final Optional<FileMetadata> metadata;
+        lock.lock();
+        try {
+            metadata = mInodeCache.getUnchecked(inode);
+        } finally {
+            lock.unlock();
+        }
+        if(!metadata.isPresent()) {
+            return false;
+        }
+        dst.copyFrom(metadata.get());
+        dst.inode = inode;
+        return true;
+    }
+
+    FileMetadata lookUp(MondoFSPath path) {
+        final long inode = resolve(path);
+        return inode < 0 ? null : get(inode);
+    }
+
+    private long resolveDirectory(List<String> names, String path) throws IOException {
+        final long inode = resolve(names);
+        final FileMetadata metadata = inode < 0 ? null : get(inode);
+        if(metadata == null) {
+            throw new NoSuchFileException(path);
+        }
+        if(!metadata.isDirectory()) {
+            throw new NotDirectoryException(path);
+        }
+        return inode;
+    }
+
+    private static String parentString(MondoFSPath path) {
+        return String.valueOf(path.getParent());
+    }
+
+    /**
+     * Lock the entries of {@code dirs} for a change. Unlock with {@link #unlockDirs(Iterable)}.
+     */
+    private Iterable<ReadWriteLock> lockDirs(Long... dirs) {
+        mUpdateLock.lock();
+        //bulkGet hands out the stripes in a fixed order, so two changes never wait on each other
+        final Iterable<ReadWriteLock> locks = mDirLocks.bulkGet(Arrays.asList(dirs));
+        for(ReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        return locks;
+    }
+
+    private void unlockDirs(Iterable<ReadWriteLock> locks) {
+        for(ReadWriteLock lock : locks) {
+            lock.writeLock().unlock();
+        }
+        mUpdateLock.unlock();
+    }
+
+    /**
+     * Lock {@code inode} for a change. Unlock with {@link #unlockInode(Lock)}.
+     */
+    Lock lockInode(long inode) {
+        mUpdateLock.lock();
+        final Lock lock = mInodeLocks.get(inode).writeLock();
+        lock.lock();
+        return lock;
+    }
+
+    void unlockInode(Lock lock) {
+        lock.unlock();
+        mUpdateLock.unlock();
+    }
+
+    private void putEntry(long dir, String name, long inode) {
+        mEntries.put(entryKey(dir, name), inode);
+        mEntryCache.invalidate(Arrays.<Object>asList(dir, name));
+    }
+
+    private void removeEntry(long dir, String name) {
+        mEntries.remove(entryKey(dir, name));
+        mEntryCache.invalidate(Arrays.<Object>asList(dir, name));
+    }
+
+    private void putInode(long inode, FileMetadata metadata) {
+        final Lock lock = mInodeLocks.get(inode).writeLock();
+        lock.lock();
+        try {
+            mInodes.put(inode, metadata);
+            mInodeChanges.incrementAndGet();
+            mInodeCache.invalidate(inode);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeInode(long inode) {
+        final FileMetadata metadata;
+        final Lock lock = mInodeLocks.get(inode).writeLock();
+        lock.lock();
+        try {
+            metadata = mInodes.remove(inode);
+            mInodeChanges.incrementAndGet();
+            mInodeCache.invalidate(inode);
+        } finally {
+            lock.unlock();
+        }
+        if(metadata != null && metadata.isRegularFile()) {
+            //its blocks are left to the BlockCollector
+            mBlockGroups.remove(metadata.blockId);
+        }
+    }
+
+    private boolean hasEntries(long dir) {
+        return !mEntries.subMap(new Object[]{dir, ""}, new Object[]{dir, null}).isEmpty();
+    }
+
+    /**
+     * Add a new file or directory at {@code path}.
+     *
+     * @return {@code metadata}, with its new inode number
+     */
+    FileMetadata create(MondoFSPath path, FileMetadata metadata) throws IOException {
+        final List<String> names = names(path);
+        if(names.isEmpty()) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        final String name = names.get(names.size() - 1);
+        migratePath(names);
+        final long parent = resolveDirectory(names.subList(0, names.size() - 1), parentString(path));
+
+        final Iterable<ReadWriteLock> locks = lockDirs(parent);
+        try {
+            if(!mInodes.containsKey(parent)) {
+                throw new NoSuchFileException(parentString(path));
+            }
+            if(mEntries.containsKey(entryKey(parent, name))) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+
+            final long inode = mLastInode.incrementAndGet();
+            putInode(inode, metadata);
+            putEntry(parent, name, inode);
+            mCommitter.mutated();
+            metadata.inode = inode;
+            return metadata;
+        } finally {
+            unlockDirs(locks);
+        }
+    }
+
+    FileMetadata createDirectory(MondoFSPath path) throws IOException {
+        return create(path, newDirectory());
+    }
+
+    /**
+     * Replace the metadata of an inode, unless it was deleted in the meantime.
+     *
+     * @return false if the inode no longer exists
+     */
+    boolean update(FileMetadata metadata) {
+        final Lock lock = lockInode(metadata.inode);
+        try {
+            if(!mInodes.containsKey(metadata.inode)) {
+                return false;
+            }
+            mInodes.put(metadata.inode, new FileMetadata(metadata));
+            mInodeChanges.incrementAndGet();
+            mInodeCache.invalidate(metadata.inode);
+            mCommitter.mutated();
+            return true;
+        } finally {
+            unlockInode(lock);
+        }
+    }
+
+    void delete(MondoFSPath path) throws IOException {
+        final List<String> names = names(path);
+        if(names.isEmpty()) {
+            throw new FileSystemException(path.toString(), null, "cannot delete the root directory");
+        }
+        final String name = names.get(names.size() - 1);
+        migratePath(names);
+        //for the empty check
+        migrateChildren(names);
+
+        while(true) {
+            final long parent = resolve(names.subList(0, names.size() - 1));
+            final long inode = parent < 0 ? -1 : lookUpEntry(parent, name);
+            if(inode < 0) {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            //the inode's own entries are locked for the empty check
+            final Iterable<ReadWriteLock> locks = lockDirs(parent, inode);
+            try {
+                if(!Objects.equal(mEntries.get(entryKey(parent, name)), inode)) {
+                    //changed before the locks were taken
+                    continue;
+                }
+                final FileMetadata metadata = mInodes.get(inode);
+                if(metadata != null && metadata.isDirectory() && hasEntries(inode)) {
+                    throw new DirectoryNotEmptyException(path.toString());
+                }
+
+                removeEntry(parent, name);
+                removeInode(inode);
+                mCommitter.mutated();
+                return;
+            } finally {
+                unlockDirs(locks);
+            }
+        }
+    }
+
+    /**
+     * Move the entry at {@code source} to {@code target}.
+     *
+     * @param replace replace an existing file, or empty directory, at {@code target}
+     */
+    void move(MondoFSPath source, MondoFSPath target, boolean replace) throws IOException {
+        final List<String> srcNames = names(source);
+        final List<String> dstNames = names(target);
+        if(srcNames.isEmpty() || dstNames.isEmpty()) {
+            throw new FileSystemException(source.toString(), target.toString(), "cannot move the root directory");
+        }
+        if(srcNames.equals(dstNames)) {
+            return;
+        }
+        //legacy records below the source have to move along with it
+        migratePath(srcNames);
+        migrateSubtree(srcNames);
+        migratePath(dstNames);
+        //for the empty check of a directory to replace
+        migrateChildren(dstNames);
+
+        while(true) {
+            final long srcParent = resolve(srcNames.subList(0, srcNames.size() - 1));
+            final long inode = srcParent < 0 ? -1 : lookUpEntry(srcParent, srcNames.get(srcNames.size() - 1));
+            if(inode < 0) {
+                throw new NoSuchFileException(source.toString());
+            }
+            final FileMetadata metadata = get(inode);
+            if(metadata == null) {
+                //deleted in the meantime
+                continue;
+            }
+
+            final boolean moved;
+            if(metadata.isDirectory()) {
+                mDirMoveLock.lock();
+                try {
+                    moved = tryMove(source, target, srcParent, inode, true, replace);
+                } finally {
+                    mDirMoveLock.unlock();
+                }
+            } else {
+                moved = tryMove(source, target, srcParent, inode, false, replace);
+            }
+            if(moved) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move {@code inode}, found in {@code srcParent}, to {@code target}. Moving a directory
+     * must hold {@link #mDirMoveLock}.
+     *
+     * @return false if the entries changed before the locks were taken
+     */
+    private boolean tryMove(MondoFSPath source, MondoFSPath target, long srcParent, long inode,
+                            boolean isDirectory, boolean replace) throws IOException {
+        final List<String> srcNames = names(source);
+        final List<String> dstNames = names(target);
+        final String srcName = srcNames.get(srcNames.size() - 1);
+        final String dstName = dstNames.get(dstNames.size() - 1);
+
+        final List<String> dstParentNames = dstNames.subList(0, dstNames.size() - 1);
+        if(isDirectory && isOnPath(inode, dstParentNames)) {
+            throw new FileSystemException(source.toString(), target.toString(), "cannot move a directory into itself");
+        }
+        final long dstParent = resolveDirectory(dstParentNames, parentString(target));
+        final long existing = lookUpEntry(dstParent, dstName);
+
+        final Iterable<ReadWriteLock> locks = lockDirs(srcParent, dstParent, existing < 0 ? dstParent : existing);
+        try {
+            if(!Objects.equal(mEntries.get(entryKey(srcParent, srcName)), inode)
+                    || !Objects.equal(mEntries.get(entryKey(dstParent, dstName)), existing < 0 ? null : existing)
+                    || !mInodes.containsKey(dstParent)) {
+                //changed before the locks were taken
+                return false;
+            }
+
+            if(existing >= 0) {
+                if(!replace) {
+                    throw new FileAlreadyExistsException(target.toString());
+                }
+                final FileMetadata src = mInodes.get(inode);
+                final FileMetadata dst = mInodes.get(existing);
+                if(dst != null && dst.isDirectory()) {
+                    if(!src.isDirectory()) {
+                        throw new FileSystemException(source.toString(), target.toString(), "target is a directory");
+                    }
+                    if(hasEntries(existing)) {
+                        throw new DirectoryNotEmptyException(target.toString());
+                    }
+                } else if(src.isDirectory()) {
+                    throw new NotDirectoryException(target.toString());
+                }
+                removeInode(existing);
+            }
+
+            removeEntry(srcParent, srcName);
+            putEntry(dstParent, dstName, inode);
+            mCommitter.mutated();
+            return true;
+        } finally {
+            unlockDirs(locks);
+        }
+    }
+
+    /**
+     * Visit up to {@code maxEntries} entries of directory {@code dir} in name order, each
+     * together with its metadata, like readdirplus. Entries are read with one range scan of
+     * the entry table, a batch at a time under the directory's read lock, and go into the
+     * entry cache on the way, so looking up a listed path afterwards is a cache hit. The
+     * visitor is called without holding any lock.
+     *
+     * @param cookie the name of the last entry already seen, or null to start at the beginning
+     * @param cacheMetadata whether the metadata goes into the inode cache as well, for
+     *                      callers like FUSE readdir that are followed by a lookup of every
+     *                      entry
+     * @return the cookie to continue after the last visited entry, or null if the end of the
+     *         directory was reached
+     */
+    String list(long dir, String cookie, int maxEntries, boolean cacheMetadata, DirectoryVisitor visitor) {
+        final String[] names = new String[Math.max(1, Math.min(maxEntries, LIST_BATCH))];
+        final long[] inodes = new long[names.length];
+        final long[] sortedInodes = new long[names.length];
+        final FileMetadata[] found = new FileMetadata[names.length];
+        final FileMetadata metadata = new FileMetadata();
+
+        int remaining = maxEntries;
+        while(remaining > 0) {
+            final int max = Math.min(remaining, names.length);
+            final int count = readEntries(dir, cookie, names, inodes, max);
+            System.arraycopy(inodes, 0, sortedInodes, 0, count);
+            Arrays.sort(sortedInodes, 0, count);
+            final long changes = mInodeChanges.get();
+            readInodes(sortedInodes, found, count);
+            if(cacheMetadata) {
+                cacheInodes(sortedInodes, found, count, changes);
+            }
+            for(int i=0;i<count;i++) {
+                cookie = names[i];
+                final FileMetadata inode = found[Arrays.binarySearch(sortedInodes, 0, count, inodes[i])];
+                //entries that were deleted since are skipped
+                if(inode == null) {
+                    continue;
+                }
+                metadata.copyFrom(inode);
+                metadata.inode = inodes[i];
+                if(!visitor.visit(names[i], metadata)) {
+                    return cookie;
+                }
+            }
+            if(count < max) {
+                return null;
+            }
+            remaining -= count;
+        }
+        return cookie;
+    }
+
+    /**
+     * Look up the metadata of {@code count} sorted inodes, or null for the ones that do not
+     * exist. Files created together get neighbouring inodes, so the inodes are split into
+     * runs of close neighbours and every run is read with one range scan of the inode table
+     * instead of a search for each. The cache is left alone, so listing a large directory
+     * does not evict the hot entries, unless the caller asks for it.
+     */
+    private void readInodes(long[] sorted, FileMetadata[] dst, int count) {
+        Arrays.fill(dst, 0, count, null);
+        int start = 0;
+        while(start < count) {
+            int end = start + 1;
+            while(end < count && sorted[end] - sorted[end - 1] <= SCAN_GAP) {
+                end++;
+            }
+
+            int i = start;
+            for(Map.Entry<Long, FileMetadata> entry : mInodes.subMap(sorted[start], true, sorted[end - 1], true).entrySet()) {
+                final long inode = entry.getKey();
+                while(sorted[i] < inode) {
+                    i++;
+                }
+                if(sorted[i] == inode) {
+                    dst[i] = entry.getValue();
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Put metadata read by {@link #readInodes(long[], FileMetadata[], int)} into the inode
+     * cache. It was read without the inode locks, so it only goes in as long as no inode
+     * changed since {@code changes}; checked under the inode's read lock, like a load.
+     */
+    private void cacheInodes(long[] sorted, FileMetadata[] found, int count, long changes) {
+        for(int i=0;i<count;i++) {
+            if(found[i] == null) {
+                continue;
+            }
+            final Lock lock = mInodeLocks.get(sorted[i]).readLock();
+            lock.lock();
+            try {
+                if(mInodeChanges.get() != changes) {
+                    return;
+                }
+                mInodeCache.put(sorted[i], Optional.of(found[i]));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries after {@code after} copied to {@code names} and {@code inodes}
+     */
+    private int readEntries(long dir, String after, String[] names, long[] inodes, int max) {
+        final Lock lock = mDirLocks.get(dir).readLock();
+        lock.lock();
+        try {
+            final Object[] from = entryKey(dir, after != null ? after : "");
+            int count = 0;
+            for(Map.Entry<Object[], Long> entry : mEntries.subMap(from, after == null, entryKey(dir, null), false).entrySet()) {
+                if(count == max) {
+                    break;
+                }
+                names[count] = (String) entry.getKey()[1];
+                inodes[count] = entry.getValue();
+                mEntryCache.put(Arrays.<Object>asList(dir, names[count]), Optional.of(inodes[count]));
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    CacheStats getCacheStats() {
+        return mEntryCache.stats().plus(mInodeCache.stats());
+    }
+
+    /**
+     * @return whether there are legacy records left to migrate
+     */
+    boolean isMigrating() {
+        return mLegacy != null;
+    }
+
+    /**
+     * Move the records of the old path keyed table over, a batch at a time. Records come
+     * out ordered by parent path, so every directory is usually moved before its contents;
+     * directories that were never created explicitly are made up on the way. Every record
+     * is removed from the old table in the same change that adds it to the new ones, so
+     * an interrupted migration carries on where it stopped. Changes are committed by the
+     * {@link GroupCommitter} like any other.
+     *
+     * <p>Returns once everything was moved, or when the calling thread is interrupted.</p>
+     */
+    void migrate() {
+        final BTreeMap<Object[], FileMetadata> legacy = mLegacy;
+        if(legacy == null) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        long numMigrated = 0;
+        while(!Thread.currentThread().isInterrupted()) {
+            mMigrateLock.lock();
+            try {
+                final List<Object[]> batch = new ArrayList<Object[]>(MIGRATE_BATCH);
+                for(Object[] key : legacy.navigableKeySet()) {
+                    batch.add(key);
+                    if(batch.size() == MIGRATE_BATCH) {
+                        break;
+                    }
+                }
+                if(batch.isEmpty()) {
+                    mLegacy = null;
+                    LOGGER.info("migrated {} paths to inodes in {} ms", numMigrated, (System.nanoTime() - start) / 1000000);
+                    return;
+                }
+                for(Object[] key : batch) {
+                    if(migrateRecord(legacy, key)) {
+                        numMigrated++;
+                    }
+                }
+            } finally {
+                mMigrateLock.unlock();
+            }
+        }
+    }
+
+    private static String pathString(List<String> names) {
+        return "/" + Joiner.on('/').join(names);
+    }
+
+    /**
+     * Move the legacy records of {@code names} and of every directory on the way to it,
+     * and make up the directories among them that only have records below them.
+     */
+    private void migratePath(List<String> names) {
+        final BTreeMap<Object[], FileMetadata> legacy = mLegacy;
+        if(legacy == null) {
+            return;
+        }
+        mMigrateLock.lock();
+        try {
+            for(int i=0;i<names.size();i++) {
+                migrateRecord(legacy, new Object[]{pathString(names.subList(0, i)), names.get(i)});
+                if(hasRecordsBelow(legacy, pathString(names.subList(0, i + 1)))) {
+                    mkdirs(names.subList(0, i + 1));
+                }
+            }
+        } finally {
+            mMigrateLock.unlock();
+        }
+    }
+
+    private static boolean hasRecordsBelow(BTreeMap<Object[], FileMetadata> legacy, String dir) {
+        Object[] key = legacy.ceilingKey(new Object[]{dir, ""});
+        if(key != null && key[0].equals(dir)) {
+            return true;
+        }
+        key = legacy.ceilingKey(new Object[]{dir + "/", ""});
+        return key != null && ((String) key[0]).startsWith(dir + "/");
+    }
+
+    /**
+     * Move the legacy records of the entries of directory {@code names}, and make up the
+     * directories in it that only have records below them.
+     */
+    private void migrateChildren(List<String> names) {
+        final BTreeMap<Object[], FileMetadata> legacy = mLegacy;
+        if(legacy == null) {
+            return;
+        }
+        final String dir = pathString(names);
+        mMigrateLock.lock();
+        try {
+            migrateRange(legacy, legacy.subMap(new Object[]{dir, ""}, new Object[]{dir, null}));
+
+            //parent paths below dir, one seek per child directory
+            final String prefix = names.isEmpty() ? dir : dir + "/";
+            final Set<String> seen = new HashSet<String>();
+            Object[] key = legacy.ceilingKey(new Object[]{prefix, ""});
+            while(key != null && ((String) key[0]).startsWith(prefix)) {
+                final String rest = ((String) key[0]).substring(prefix.length());
+                final int slash = rest.indexOf('/');
+                final String child = slash < 0 ? rest : rest.substring(0, slash);
+                if(child.isEmpty()) {
+                    //the records of the root's own entries
+                    key = legacy.ceilingKey(new Object[]{key[0], null});
+                    continue;
+                }
+                if(!seen.add(child)) {
+                    //'0' follows '/': skip the rest of what is below child
+                    key = legacy.ceilingKey(new Object[]{prefix + child + "0", ""});
+                    continue;
+                }
+                final List<String> childNames = new ArrayList<String>(names);
+                childNames.add(child);
+                mkdirs(childNames);
+                key = legacy.ceilingKey(new Object[]{key[0], null});
+            }
+        } finally {
+            mMigrateLock.unlock();
+        }
+    }
+
+    /**
+     * Move the legacy records of everything below directory {@code names}.
+     */
+    private void migrateSubtree(List<String> names) {
+        final BTreeMap<Object[], FileMetadata> legacy = mLegacy;
+        if(legacy == null) {
+            return;
+        }
+        final String dir = pathString(names);
+        mMigrateLock.lock();
+        try {
+            migrateRange(legacy, legacy.subMap(new Object[]{dir, ""}, new Object[]{dir, null}));
+            //'0' follows '/', so this is every parent path starting with dir + "/"
+            migrateRange(legacy, legacy.subMap(new Object[]{dir + "/", ""}, new Object[]{dir + "0", ""}));
+        } finally {
+            mMigrateLock.unlock();
+        }
+    }
+
+    private void migrateRange(BTreeMap<Object[], FileMetadata> legacy, Map<Object[], FileMetadata> range) {
+        for(Object[] key : new ArrayList<Object[]>(range.keySet())) {
+            migrateRecord(legacy, key);
+        }
+    }
+
+    /**
+     * Move one legacy record over. Called with {@link #mMigrateLock} held.
+     *
+     * @return false if there was no such record
+     */
+    private boolean migrateRecord(BTreeMap<Object[], FileMetadata> legacy, Object[] key) {
+        if(!legacy.containsKey(key)) {
+            return false;
+        }
+        final String parent = (String) key[0];
+        final String name = (String) key[1];
+        final long dir = parent.isEmpty() ? -1 : mkdirs(Splitter.on('/').omitEmptyStrings().split(parent));
+
+        final Iterable<ReadWriteLock> locks = lockDirs(dir < 0 ? ROOT : dir);
+        try {
+            final FileMetadata metadata = legacy.get(key);
+            if(metadata == null) {
+                return false;
+            }
+            if(dir < 0) {
+                putInode(ROOT, metadata);
+            } else {
+                final Long inode = mEntries.get(entryKey(dir, name));
+                if(inode != null) {
+                    //a directory made up for the records below it
+                    putInode(inode, metadata);
+                } else {
+                    final long newInode = mLastInode.incrementAndGet();
+                    putInode(newInode, metadata);
+                    putEntry(dir, name, newInode);
+                }
+            }
+            legacy.remove(key);
+            mCommitter.mutated();
+            return true;
+        } finally {
+            unlockDirs(locks);
+        }
+    }
+
+    /**
+     * @return the inode of directory {@code names}, created as needed
+     */
+    private long mkdirs(Iterable<String> names) {
+        long dir = ROOT;
+        for(String name : names) {
+            long child = lookUpEntry(dir, name);
+            if(child < 0) {
+                final Iterable<ReadWriteLock> locks = lockDirs(dir);
+                try {
+                    final Long existing = mEntries.get(entryKey(dir, name));
+                    if(existing != null) {
+                        child = existing;
+                    } else {
+                        child = mLastInode.incrementAndGet();
+                        putInode(child, newDirectory());
+                        putEntry(dir, name, child);
+                        mCommitter.mutated();
+                    }
+                } finally {
+                    unlockDirs(locks);
+                }
+            }
+            dir = child;
+        }
+        return dir;
+    }
+}
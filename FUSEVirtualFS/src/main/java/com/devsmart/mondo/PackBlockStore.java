@@ -0,0 +1,404 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Stores blocks back to back in large append-only pack files instead of one file per
+ * block. An index in the store's database maps every block id to its pack, offset and
+ * length.
+ *
+ * <p>Blocks are appended in the order they are stored, so the blocks of a file end up
+ * next to each other. Appends are only forced to disk by {@link #flush()}, once per
+ * flushed file rather than once per block. A commit must never cover index entries for
+ * bytes that are not on disk yet, so whoever commits the database calls {@link #flush()}
+ * first, holding the commit lock; the {@link GroupCommitter} does so for every batch. On
+ * open, anything past the last committed end of the newest pack is cut off: it was never
+ * referenced by a committed index.</p>
+ *
+ * <p>Deleting a block only drops it from the index. {@link #compact(double)} rewrites
+ * packs that are mostly dead: the live blocks are copied to the current pack, the index
+ * is committed and then the old pack is removed.</p>
+ */
+public class PackBlockStore implements BlockStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackBlockStore.class);
+
+    static final String NAME = "pack";
+
+    //index entry fields
+    private static final int PACK = 0;
+    private static final int OFFSET = 1;
+    private static final int LENGTH = 2;
+
+    //pack stat fields
+    private static final int SIZE = 0;
+    private static final int LIVE = 1;
+
+    private final DB mDB;
+    private final Lock mUpdateLock;
+    private final Lock mCommitLock;
+    private final File mPackDir;
+    private final long mMaxPackSize;
+
+    /** block id -> {pack, offset, length} */
+    private final BTreeMap<byte[], long[]> mIndex;
+
+    /** pack -> {size, live bytes} */
+    private final BTreeMap<Long, long[]> mPacks;
+
+    private final Map<Long, FileChannel> mReadChannels = new HashMap<Long, FileChannel>();
+
+    //guarded by this
+    private long mAppendPack = -1;
+    private FileChannel mAppendChannel;
+    private boolean mNeedsSync;
+
+    /**
+     * @param commitLock its write side is held while committing the database. Appends
+     *                   and their index updates hold the read side, so a commit never
+     *                   lands in the middle of one
+     */
+    public PackBlockStore(DB db, ReadWriteLock commitLock, File packDir, long maxPackSize) throws IOException {
+        checkArgument(maxPackSize > 0);
+        mDB = db;
+        mUpdateLock = commitLock.readLock();
+        mCommitLock = commitLock.writeLock();
+        mPackDir = packDir;
+        mMaxPackSize = maxPackSize;
+
+        if(!mPackDir.exists()) {
+            checkState(mPackDir.mkdirs());
+        }
+
+        mIndex = db.treeMap("packIndex")
+                .keySerializer(Serializer.BYTE_ARRAY)
+                .valueSerializer(Serializer.LONG_ARRAY)
+                .createOrOpen();
+
+        mPacks = db.treeMap("packs")
+                .keySerializer(Serializer.LONG)
+                .valueSerializer(Serializer.LONG_ARRAY)
+                .createOrOpen();
+
+        if(!mPacks.isEmpty()) {
+            final long last = mPacks.lastKey();
+            final long size = mPacks.get(last)[SIZE];
+            if(size < mMaxPackSize) {
+                openAppendPack(last, size);
+            }
+        }
+    }
+
+    File getPackFile(long pack) {
+        return new File(mPackDir, String.format("pack-%08d.dat", pack));
+    }
+
+    private void openAppendPack(long pack, long size) throws IOException {
+        mAppendChannel = FileChannel.open(getPackFile(pack).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(mAppendChannel.size() > size) {
+            LOGGER.info("dropping {} uncommitted bytes from pack {}", mAppendChannel.size() - size, pack);
+            mAppendChannel.truncate(size);
+        }
+        mAppendChannel.position(size);
+        mAppendPack = pack;
+    }
+
+    /**
+     * Make room for {@code length} more bytes, starting a new pack if the current one
+     * would grow past the limit.
+     */
+    private void ensureAppendPack(long length) throws IOException {
+        if(mAppendChannel != null) {
+            final long size = mAppendChannel.position();
+            if(size == 0 || size + length <= mMaxPackSize) {
+                return;
+            }
+            mAppendChannel.force(false);
+            mAppendChannel.close();
+            mAppendChannel = null;
+        }
+
+        final long pack = mPacks.isEmpty() ? 0 : mPacks.lastKey() + 1;
+        mPacks.put(pack, new long[]{0, 0});
+        openAppendPack(pack, 0);
+    }
+
+    /**
+     * copy {@code length} bytes of {@code src} to the end of the current pack and index them.
+     * Called holding the update lock and this.
+     */
+    private void append(byte[] key, FileChannel src, long srcOffset, long length) throws IOException {
+        ensureAppendPack(length);
+        final long offset = mAppendChannel.position();
+        long transferred = 0;
+        while(transferred < length) {
+            final long n = src.transferTo(srcOffset + transferred, length - transferred, mAppendChannel);
+            if(n <= 0) {
+                throw new IOException("short read copying block into pack " + mAppendPack);
+            }
+            transferred += n;
+        }
+
+        mIndex.put(key, new long[]{mAppendPack, offset, length});
+        long[] stats = mPacks.get(mAppendPack);
+        mPacks.put(mAppendPack, new long[]{offset + length, stats[LIVE] + length});
+        mNeedsSync = true;
+    }
+
+    @Override
+    public boolean contains(HashCode id) {
+        return mIndex.containsKey(id.asBytes());
+    }
+
+    @Override
+    public long getLength(HashCode id) {
+        long[] entry = mIndex.get(id.asBytes());
+        return entry != null ? entry[LENGTH] : -1;
+    }
+
+    @Override
+    public void put(HashCode id, File src) throws IOException {
+        final byte[] key = id.asBytes();
+        //the update lock comes first, a commit takes the commit lock and then calls flush()
+        mUpdateLock.lock();
+        try {
+            synchronized (this) {
+                if(!mIndex.containsKey(key)) {
+                    FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+                    try {
+                        append(key, in, 0, in.size());
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            mUpdateLock.unlock();
+        }
+        if(!src.delete()) {
+            LOGGER.warn("could not delete temp file: {}", src);
+        }
+    }
+
+    @Override
+    public void delete(HashCode id) throws IOException {
+        mUpdateLock.lock();
+        try {
+            synchronized (this) {
+                long[] entry = mIndex.remove(id.asBytes());
+                if(entry != null) {
+                    long[] stats = mPacks.get(entry[PACK]);
+                    if(stats != null) {
+                        mPacks.put(entry[PACK], new long[]{stats[SIZE], stats[LIVE] - entry[LENGTH]});
+                    }
+                }
+            }
+        } finally {
+            mUpdateLock.unlock();
+        }
+    }
+
+    @Override
+    public Iterable<HashCode> ids() {
+        return Iterables.transform(mIndex.navigableKeySet(), new Function<byte[], HashCode>() {
+            @Override
+            public HashCode apply(byte[] input) {
+                return HashCode.fromBytes(input);
+            }
+        });
+    }
+
+    /**
+     * force appended blocks to disk. Must be called before any commit that could cover
+     * their index entries.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if(mNeedsSync && mAppendChannel != null) {
+            mAppendChannel.force(false);
+        }
+        mNeedsSync = false;
+    }
+
+    private FileChannel getReadChannel(long pack) throws IOException {
+        synchronized (mReadChannels) {
+            FileChannel channel = mReadChannels.get(pack);
+            if(channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(getPackFile(pack).toPath(), StandardOpenOption.READ);
+                mReadChannels.put(pack, channel);
+            }
+            return channel;
+        }
+    }
+
+    @Override
+    public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+        final byte[] key = hash.asBytes();
+        for(int attempt=0;;attempt++) {
+            long[] entry = mIndex.get(key);
+            if(entry == null) {
+                throw new IOException("missing block: " + hash);
+            }
+
+            final int start = dst.position();
+            try {
+                readEntry(entry, offset, dst);
+                return;
+            } catch (IOException e) {
+                //the block may have been moved by a compaction; look it up again
+                long[] current = mIndex.get(key);
+                if(attempt > 0 || current == null || current[PACK] == entry[PACK]) {
+                    throw e;
+                }
+                dst.position(start);
+            }
+        }
+    }
+
+    private void readEntry(long[] entry, long offset, ByteBuffer dst) throws IOException {
+        final long remaining = entry[LENGTH] - offset;
+        if(remaining <= 0) {
+            return;
+        }
+
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + (int) Math.min(remaining, view.remaining()));
+        final FileChannel channel = getReadChannel(entry[PACK]);
+        long pos = entry[OFFSET] + offset;
+        while(view.hasRemaining()) {
+            final int bytesRead = channel.read(view, pos);
+            if(bytesRead < 0) {
+                throw new IOException("unexpected end of pack " + entry[PACK]);
+            }
+            pos += bytesRead;
+        }
+        dst.position(view.position());
+    }
+
+    /**
+     * Rewrite every pack, other than the one being appended to, in which at least
+     * {@code minDeadRatio} of the bytes belong to deleted blocks.
+     *
+     * @return number of bytes reclaimed
+     */
+    public long compact(double minDeadRatio) throws IOException {
+        List<Long> candidates = new ArrayList<Long>();
+        synchronized (this) {
+            for(Long pack : mPacks.navigableKeySet()) {
+                final long[] stats = mPacks.get(pack);
+                final long dead = stats[SIZE] - stats[LIVE];
+                if(pack != mAppendPack && stats[SIZE] > 0 && dead >= stats[SIZE] * minDeadRatio) {
+                    candidates.add(pack);
+                }
+            }
+        }
+
+        long reclaimed = 0;
+        for(long pack : candidates) {
+            reclaimed += compactPack(pack);
+        }
+        return reclaimed;
+    }
+
+    private long compactPack(long pack) throws IOException {
+        List<byte[]> live = new ArrayList<byte[]>();
+        for(byte[] key : mIndex.navigableKeySet()) {
+            long[] entry = mIndex.get(key);
+            if(entry != null && entry[PACK] == pack) {
+                live.add(key);
+            }
+        }
+
+        final FileChannel src = getReadChannel(pack);
+        final long size;
+        long moved = 0;
+        mUpdateLock.lock();
+        try {
+            synchronized (this) {
+                size = mPacks.get(pack)[SIZE];
+                for(byte[] key : live) {
+                    long[] entry = mIndex.get(key);
+                    //skip blocks deleted in the meantime
+                    if(entry != null && entry[PACK] == pack) {
+                        append(key, src, entry[OFFSET], entry[LENGTH]);
+                        moved += entry[LENGTH];
+                    }
+                }
+                mPacks.remove(pack);
+            }
+        } finally {
+            mUpdateLock.unlock();
+        }
+
+        //the old pack may only go once the moved entries are committed
+        mCommitLock.lock();
+        try {
+            flush();
+            mDB.commit();
+        } finally {
+            mCommitLock.unlock();
+        }
+
+        synchronized (mReadChannels) {
+            FileChannel channel = mReadChannels.remove(pack);
+            if(channel != null) {
+                channel.close();
+            }
+        }
+        final File packFile = getPackFile(pack);
+        if(!packFile.delete()) {
+            LOGGER.warn("could not delete pack file: {}", packFile);
+        }
+
+        LOGGER.info("compacted pack {}: moved {} blocks", pack, live.size());
+        return size - moved;
+    }
+
+    /**
+     * @return number of pack files, including the one being appended to
+     */
+    public synchronized int getPackCount() {
+        return mPacks.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if(mAppendChannel != null) {
+                mAppendChannel.force(false);
+                mAppendChannel.close();
+                mAppendChannel = null;
+            }
+        }
+        synchronized (mReadChannels) {
+            for(FileChannel channel : mReadChannels.values()) {
+                channel.close();
+            }
+            mReadChannels.clear();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Process-wide cache of content block pages, keyed by {@link BufferKey} (block hash, page
+ * number within the block). Because blocks are content addressed, every file that shares
+ * a block also shares its cached pages, and a cached page never goes stale.
+ *
+ * <p>Page data lives off-heap in direct buffers that are allocated as the cache fills
+ * up. Eviction follows W-TinyLFU: new pages enter a small LRU window, and a page leaving
+ * the window only displaces a page of the main segmented LRU if it has been accessed
+ * more often according to a {@link FrequencySketch}. A single large scan therefore only
+ * churns the window and cannot flush the frequently used pages.</p>
+ */
+public class PageCache implements BlockReader {
+
+    public static final int PAGE_SIZE = MondoFileStore.BUFFER_SIZE;
+
+    private static final int SLOTS_PER_ARENA = 1024;
+
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private final BlockReader mSource;
+    private final int mCapacity;
+    private final int mMaxWindow;
+    private final int mMaxProtected;
+
+    private final ByteBuffer[] mArenas;
+    private final HashMap<BufferKey, Integer> mIndex;
+    private final FrequencySketch mSketch;
+
+    //per slot state. Slots mCapacity + queue are the list heads of each queue.
+    private final BufferKey[] mKeys;
+    private final int[] mLengths;
+    private final byte[] mQueue;
+    private final int[] mPrev;
+    private final int[] mNext;
+    private final int[] mQueueSize = new int[3];
+    private int mUsedSlots;
+
+    private long mHits;
+    private long mMisses;
+
+    public PageCache(BlockReader source, long maxBytes) {
+        checkArgument(maxBytes / PAGE_SIZE >= 2, "page cache must hold at least 2 pages");
+        mSource = source;
+        mCapacity = (int) Math.min(Integer.MAX_VALUE - 3, maxBytes / PAGE_SIZE);
+        mMaxWindow = Math.max(1, mCapacity / 100);
+        mMaxProtected = (mCapacity - mMaxWindow) * 8 / 10;
+
+        mArenas = new ByteBuffer[(mCapacity + SLOTS_PER_ARENA - 1) / SLOTS_PER_ARENA];
+        mIndex = new HashMap<BufferKey, Integer>();
+        mSketch = new FrequencySketch(mCapacity);
+
+        mKeys = new BufferKey[mCapacity];
+        mLengths = new int[mCapacity];
+        mQueue = new byte[mCapacity];
+        mPrev = new int[mCapacity + 3];
+        mNext = new int[mCapacity + 3];
+        for(int q=0;q<3;q++) {
+            final int head = mCapacity + q;
+            mPrev[head] = head;
+            mNext[head] = head;
+        }
+    }
+
+    @Override
+    public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+        while(dst.hasRemaining()) {
+            final int pageNum = (int) (offset / PAGE_SIZE);
+            final int pageOffset = (int) (offset % PAGE_SIZE);
+            final BufferKey key = new BufferKey(hash, pageNum);
+
+            int bytesCopied = copyCached(key, pageOffset, dst);
+            if(bytesCopied < 0) {
+                //load outside the lock; if another thread loads the same page meanwhile, one copy wins
+                ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+                mSource.read(hash, (long) pageNum * PAGE_SIZE, page);
+                page.flip();
+                bytesCopied = insert(key, page, pageOffset, dst);
+            }
+
+            if(bytesCopied == 0) {
+                //past the end of the block
+                break;
+            }
+            offset += bytesCopied;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * number of pages currently cached
+     */
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    synchronized boolean contains(HashCode hash, int pageNum) {
+        return mIndex.containsKey(new BufferKey(hash, pageNum));
+    }
+
+    private synchronized int copyCached(BufferKey key, int pageOffset, ByteBuffer dst) {
+        mSketch.increment(key.hashCode());
+        Integer slot = mIndex.get(key);
+        if(slot == null) {
+            mMisses++;
+            return -1;
+        }
+        mHits++;
+        onHit(slot);
+        return copyOut(slot, pageOffset, dst);
+    }
+
+    private synchronized int insert(BufferKey key, ByteBuffer page, int pageOffset, ByteBuffer dst) {
+        Integer existing = mIndex.get(key);
+        if(existing != null) {
+            return copyOut(existing, pageOffset, dst);
+        }
+
+        final int slot = mUsedSlots < mCapacity ? mUsedSlots++ : evict();
+        ByteBuffer slotBuffer = slotBuffer(slot);
+        mLengths[slot] = page.remaining();
+        slotBuffer.put(page);
+        mKeys[slot] = key;
+        mIndex.put(key, slot);
+        link(slot, WINDOW);
+
+        while(mQueueSize[WINDOW] > mMaxWindow) {
+            //cache is not full yet, so the window overflows straight into main
+            final int oldest = mNext[mCapacity + WINDOW];
+            unlink(oldest);
+            link(oldest, PROBATION);
+        }
+
+        return copyOut(slot, pageOffset, dst);
+    }
+
+    private int copyOut(int slot, int pageOffset, ByteBuffer dst) {
+        final int length = mLengths[slot];
+        if(pageOffset >= length) {
+            return 0;
+        }
+        ByteBuffer src = slotBuffer(slot);
+        src.limit(src.position() + Math.min(length, pageOffset + dst.remaining()));
+        src.position(src.position() + pageOffset);
+        final int bytesCopied = src.remaining();
+        dst.put(src);
+        return bytesCopied;
+    }
+
+    private void onHit(int slot) {
+        switch(mQueue[slot]) {
+            case WINDOW:
+                unlink(slot);
+                link(slot, WINDOW);
+                break;
+
+            case PROBATION:
+                unlink(slot);
+                link(slot, PROTECTED);
+                if(mQueueSize[PROTECTED] > mMaxProtected) {
+                    final int demoted = mNext[mCapacity + PROTECTED];
+                    unlink(demoted);
+                    link(demoted, PROBATION);
+                }
+                break;
+
+            case PROTECTED:
+                unlink(slot);
+                link(slot, PROTECTED);
+                break;
+        }
+    }
+
+    /**
+     * Free one slot of a full cache. The oldest window page competes against the oldest
+     * main page and the one with the lower estimated frequency is dropped.
+     */
+    private int evict() {
+        final int candidate = mQueueSize[WINDOW] >= mMaxWindow ? mNext[mCapacity + WINDOW] : -1;
+        int victim = -1;
+        if(mQueueSize[PROBATION] > 0) {
+            victim = mNext[mCapacity + PROBATION];
+        } else if(mQueueSize[PROTECTED] > 0) {
+            victim = mNext[mCapacity + PROTECTED];
+        }
+
+        final int evicted;
+        if(candidate < 0) {
+            evicted = victim;
+        } else if(victim < 0) {
+            evicted = candidate;
+        } else if(mSketch.frequency(mKeys[candidate].hashCode()) > mSketch.frequency(mKeys[victim].hashCode())) {
+            unlink(candidate);
+            link(candidate, PROBATION);
+            evicted = victim;
+        } else {
+            evicted = candidate;
+        }
+
+        unlink(evicted);
+        mIndex.remove(mKeys[evicted]);
+        mKeys[evicted] = null;
+        return evicted;
+    }
+
+    private ByteBuffer slotBuffer(int slot) {
+        final int arenaIndex = slot / SLOTS_PER_ARENA;
+        ByteBuffer arena = mArenas[arenaIndex];
+        if(arena == null) {
+            final int slots = Math.min(SLOTS_PER_ARENA, mCapacity - arenaIndex * SLOTS_PER_ARENA);
+            arena = ByteBuffer.allocateDirect(slots * PAGE_SIZE);
+            mArenas[arenaIndex] = arena;
+        }
+
+        ByteBuffer retval = arena.duplicate();
+        final int start = (slot % SLOTS_PER_ARENA) * PAGE_SIZE;
+        retval.limit(start + PAGE_SIZE);
+        retval.position(start);
+        return retval;
+    }
+
+    /**
+     * append {@code slot} to the most recently used end of {@code queue}
+     */
+    private void link(int slot, byte queue) {
+        final int head = mCapacity + queue;
+        final int last = mPrev[head];
+        mNext[last] = slot;
+        mPrev[slot] = last;
+        mNext[slot] = head;
+        mPrev[head] = slot;
+        mQueue[slot] = queue;
+        mQueueSize[queue]++;
+    }
+
+    private void unlink(int slot) {
+        mNext[mPrev[slot]] = mNext[slot];
+        mPrev[mNext[slot]] = mPrev[slot];
+        mQueueSize[mQueue[slot]]--;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mIndex.clear();
+        for(int i=0;i<mArenas.length;i++) {
+            mArenas[i] = null;
+        }
+        for(int i=0;i<mUsedSlots;i++) {
+            mKeys[i] = null;
+        }
+        for(int q=0;q<3;q++) {
+            final int head = mCapacity + q;
+            mPrev[head] = head;
+            mNext[head] = head;
+            mQueueSize[q] = 0;
+        }
+        mUsedSlots = 0;
+    }
+}
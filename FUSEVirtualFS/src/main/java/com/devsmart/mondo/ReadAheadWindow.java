@@ -0,0 +1,186 @@
+package com.devsmart.mondo;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Per-channel read-ahead. Once a channel reads pages in order, the pages following the
+ * current one are loaded on a background executor so the reader does not stall on every
+ * block boundary. The window doubles every time a full window of prefetched pages is
+ * consumed and halves when the reader jumps away and leaves prefetched pages unused.
+ * Every prefetched page holds one permit of a {@link Semaphore} shared by all channels,
+ * which caps the memory used by read-ahead process-wide.
+ */
+class ReadAheadWindow {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadAheadWindow.class);
+
+    static final int MIN_WINDOW = 4;
+
+    /** number of in-order page reads before read-ahead kicks in */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    interface PageLoader {
+        /**
+         * fill {@code dst} with the contents of page {@code pageNum}
+         */
+        void loadPage(int pageNum, ByteBuffer dst) throws IOException;
+    }
+
+    private final PageLoader mLoader;
+    private final ExecutorService mExecutor;
+    private final Semaphore mBudget;
+    private final int mPageSize;
+    private final int mNumPages;
+    private final int mMaxWindow;
+    private final TreeMap<Integer, Future<ByteBuffer>> mPages = new TreeMap<Integer, Future<ByteBuffer>>();
+
+    private int mWindowSize = MIN_WINDOW;
+    private int mLastPage = -1;
+    private int mSequential;
+    private int mHitStreak;
+    private long mHits;
+    private long mMisses;
+
+    ReadAheadWindow(PageLoader loader, ExecutorService executor, Semaphore budget, int pageSize, int numPages, int maxWindow) {
+        mLoader = loader;
+        mExecutor = executor;
+        mBudget = budget;
+        mPageSize = pageSize;
+        mNumPages = numPages;
+        mMaxWindow = Math.max(MIN_WINDOW, maxWindow);
+    }
+
+    /**
+     * Copy page {@code pageNum} into {@code dst} if it was prefetched. Either way the
+     * access is recorded and more pages may be scheduled.
+     *
+     * @return true if the page was served from the window
+     */
+    synchronized boolean read(int pageNum, ByteBuffer dst) throws IOException {
+        boolean hit = false;
+        Future<ByteBuffer> page = mPages.remove(pageNum);
+        if(page != null) {
+            try {
+                dst.put(page.get());
+                hit = true;
+            } catch (ExecutionException e) {
+                LOGGER.warn("read-ahead of page {} failed", pageNum, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                mBudget.release();
+            }
+        }
+
+        onAccess(pageNum, hit);
+        return hit;
+    }
+
+    /**
+     * forget a prefetched page because its contents are about to change
+     */
+    synchronized void invalidate(int pageNum) {
+        drop(mPages.remove(pageNum));
+    }
+
+    synchronized void clear() {
+        for(Future<ByteBuffer> page : mPages.values()) {
+            drop(page);
+        }
+        mPages.clear();
+    }
+
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    private void drop(Future<ByteBuffer> page) {
+        if(page != null) {
+            page.cancel(false);
+            mBudget.release();
+        }
+    }
+
+    private void onAccess(int pageNum, boolean hit) {
+        if(pageNum == mLastPage + 1) {
+            mSequential++;
+        } else {
+            if(!mPages.isEmpty()) {
+                //the reader moved on and left prefetched pages behind
+                mWindowSize = Math.max(MIN_WINDOW, mWindowSize / 2);
+                clear();
+            }
+            mSequential = 0;
+            mHitStreak = 0;
+        }
+        mLastPage = pageNum;
+
+        if(hit) {
+            mHits++;
+            if(++mHitStreak >= mWindowSize) {
+                mWindowSize = Math.min(mMaxWindow, mWindowSize * 2);
+                mHitStreak = 0;
+            }
+        } else {
+            mMisses++;
+        }
+
+        //pages behind the reader will not be asked for again
+        Map<Integer, Future<ByteBuffer>> behind = mPages.headMap(pageNum, true);
+        for(Future<ByteBuffer> page : behind.values()) {
+            drop(page);
+        }
+        behind.clear();
+
+        if(mSequential >= SEQUENTIAL_THRESHOLD) {
+            schedule(pageNum + 1, Math.min(mNumPages, pageNum + 1 + mWindowSize));
+        }
+    }
+
+    private void schedule(int start, int end) {
+        for(int i=start;i<end;i++) {
+            if(mPages.containsKey(i)) {
+                continue;
+            }
+            if(!mBudget.tryAcquire()) {
+                break;
+            }
+
+            final int pageNum = i;
+            try {
+                Future<ByteBuffer> page = mExecutor.submit(new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws Exception {
+                        ByteBuffer buffer = ByteBuffer.allocate(mPageSize);
+                        mLoader.loadPage(pageNum, buffer);
+                        buffer.flip();
+                        return buffer;
+                    }
+                });
+                mPages.put(pageNum, page);
+            } catch (RejectedExecutionException e) {
+                mBudget.release();
+                break;
+            }
+        }
+    }
+}
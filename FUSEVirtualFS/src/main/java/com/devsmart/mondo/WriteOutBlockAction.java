@@ -1,105 +1,157 @@
 package com.devsmart.mondo;
 
 
-import com.devsmart.mondo.data.Buzhash;
-import com.google.common.collect.ImmutableList;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
-
-import static com.google.common.base.Preconditions.checkState;
-
+import java.util.Arrays;
+
+/**
+ * Turns the contents of a closed {@link MondoFileChannel} into a {@link BlockGroup}.
+ * Only the parts of the file that changed are read: if the file was written sequentially
+ * the chunker fed while writing is resumed, and blocks of the previous version whose
+ * pages were not written are reused as they are.
+ *
+ * <p>The chunker starts over at every block boundary, so once chunking the data after a
+ * modified page cuts a block exactly where a block of the previous version starts, and
+ * that block is unchanged, the rest of the previous blocks up to the next modified page
+ * would come out the same. Chunking stops there and those blocks are reused. A write
+ * in the middle of a large file therefore costs the blocks around it, not the rest of
+ * the file.</p>
+ *
+ * <p>Holes of at least {@link #MIN_HOLE} bytes are recorded as such instead of being
+ * read and chunked.</p>
+ */
 public class WriteOutBlockAction {
 
     public static final Logger LOGGER = LoggerFactory.getLogger(WriteOutBlockAction.class);
 
-    public static final HashFunction HASH_FUNCTION = Hashing.sha1();
     public static final int BUFFER_SIZE = 8196;
-    public static final long HASH_MASK = (1 << 20) - 1;
+
+    private static final int READ_SIZE = 128 * 1024;
+
+    /**
+     * shorter runs of zeros are chunked like any other data; each hole ends a block, so
+     * recording small ones would only fragment the file
+     */
+    static final int MIN_HOLE = 64 * 1024;
 
     MondoFileStore mFileStore;
     MondoFileChannel mFileChannel;
 
-    private File mTempFile;
-    private FileOutputStream mOutputStream;
-    private Hasher mBlockHash;
-    private Hasher mChecksumHash;
-    private List<HashCode> mBlockHashList = new ArrayList<HashCode>();
-    private Buzhash mBuzHash;
+    /** the writer used by {@link #doIt()}; its blocks have to be released once the result is committed */
+    BlockWriter mBlockWriter;
 
 
     public BlockGroup doIt() throws IOException {
+        final long size = mFileChannel.size();
 
-        mChecksumHash = HASH_FUNCTION.newHasher();
-        mTempFile = mFileStore.createTmpFile();
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-        mBuzHash = new Buzhash(40);
-        mBlockHash = HASH_FUNCTION.newHasher();
-
-        mFileChannel.mOpenMode |= MondoFileChannel.MODE_READ;
-        mFileChannel.position(0);
-
-        while(mFileChannel.position() < mFileChannel.size()) {
-
-            mFileChannel.read(buffer);
-            buffer.flip();
-            while(buffer.remaining() > 0) {
-                ensureOutputStream();
-                final byte value = buffer.get();
-
-                mChecksumHash.putByte(value);
-                mBlockHash.putByte(value);
-                mOutputStream.write(value);
-                long hash = mBuzHash.addByte(value);
+        BlockWriter writer = mFileChannel.mBlockWriter;
+        if(writer != null) {
+            writer.rewind(Math.min(mFileChannel.mDirtyFrom, size));
+        } else {
+            writer = new BlockWriter(mFileStore);
+        }
+        mBlockWriter = writer;
+
+        final BlockGroup previous = mFileChannel.getBlockGroup();
+        final long[] offsets = previous != null ? mFileChannel.getBlockGroupIndex() : null;
+
+        long pos = writer.getOffset();
+        LOGGER.debug("chunking {} from {} of {} bytes", mFileChannel.mPath, pos, size);
+
+        long bytesChunked = 0;
+        int blocksReused = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            while(pos < size) {
+                if(offsets != null && writer.isOnBoundary()) {
+                    final int i = Arrays.binarySearch(offsets, 0, offsets.length - 1, pos);
+                    if(i >= 0 && isReusable(previous, offsets, i, size)) {
+                        writer.addBlock(previous.blocks.get(i), offsets[i + 1] - offsets[i]);
+                        pos = offsets[i + 1];
+                        blocksReused++;
+                        continue;
+                    }
+                }
 
+                final long holeEnd = mFileChannel.holeEnd(pos);
+                if(holeEnd - pos >= MIN_HOLE) {
+                    writer.addHole(holeEnd - pos);
+                    pos = holeEnd;
+                    continue;
+                }
 
-                if((hash & HASH_MASK) == 0) {
-                    segment();
+                buffer.clear();
+                buffer.limit((int) (nextHole(pos, Math.min(size, pos + READ_SIZE)) - pos));
+                if(mFileChannel.readForFlush(buffer, pos) <= 0) {
+                    break;
+                }
+                buffer.flip();
+                final long start = pos;
+                pos += buffer.remaining();
+                bytesChunked += buffer.remaining();
+                writer.write(buffer);
+
+                if(offsets != null) {
+                    final long resync = findResync(writer, previous, offsets, start, pos, size);
+                    if(resync >= 0) {
+                        //drop what was chunked past the point where the blocks line up again
+                        pos = writer.rewind(resync);
+                    }
                 }
             }
-            buffer.clear();
-        }
 
-        if(mOutputStream != null) {
-            segment();
+            LOGGER.debug("chunked {} bytes of {}, reused {} blocks", bytesChunked, mFileChannel.mPath, blocksReused);
+            return writer.finish();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
         }
-
-        return new BlockGroup(0, mChecksumHash.hash(), ImmutableList.copyOf(mBlockHashList));
     }
 
-    private void ensureOutputStream() throws IOException {
-        if(mOutputStream == null) {
-            mOutputStream = new FileOutputStream(mTempFile);
+    /**
+     * Whether block {@code i} of the previous version can be reused as it is. The last
+     * block ended at end of file rather than at a content boundary, so it is only kept if
+     * the file still ends there.
+     */
+    private boolean isReusable(BlockGroup previous, long[] offsets, int i, long size) {
+        final int numBlocks = previous.blocks.size();
+        if(i == numBlocks - 1 && offsets[numBlocks] != size) {
+            return false;
         }
+        return mFileChannel.isClean(offsets[i], offsets[i + 1]);
     }
 
-    private void segment() throws IOException {
-
-        mOutputStream.close();
-
-        final HashCode secureHash = mBlockHash.hash();
-        LOGGER.info("adding block: {}", secureHash);
-        mBlockHashList.add(secureHash);
-        File f = mFileStore.getFileBlock(secureHash);
-        if(!f.exists()) {
-            f.getParentFile().mkdirs();
-            checkState(mTempFile.renameTo(f));
+    /**
+     * @return the first offset in ({@code start}, {@code end}] where {@code writer} ended a
+     * block and a reusable block of the previous version starts, or -1
+     */
+    private long findResync(BlockWriter writer, BlockGroup previous, long[] offsets, long start, long end, long size) {
+        int j = Arrays.binarySearch(offsets, start);
+        j = j < 0 ? -j - 1 : j + 1;
+        for(;j < previous.blocks.size() && offsets[j] <= end;j++) {
+            if(writer.endsBlock(offsets[j]) && isReusable(previous, offsets, j, size)) {
+                return offsets[j];
+            }
         }
+        return -1;
+    }
 
-        mOutputStream = null;
-        mBlockHash = HASH_FUNCTION.newHasher();
-        mBuzHash.reset();
-
+    /**
+     * @return start of the first page in ({@code pos}, {@code end}) where a hole
+     * worth recording starts, or {@code end}
+     */
+    private long nextHole(long pos, long end) throws IOException {
+        final int pageSize = MondoFileStore.BUFFER_SIZE;
+        for(long page = (pos / pageSize + 1) * pageSize;page < end;page += pageSize) {
+            if(mFileChannel.holeEnd(page) - page >= MIN_HOLE) {
+                return page;
+            }
+        }
+        return end;
     }
 
 }
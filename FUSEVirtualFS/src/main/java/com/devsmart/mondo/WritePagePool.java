@@ -0,0 +1,203 @@
+package com.devsmart.mondo;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pages of file data written to open channels that were not turned into blocks yet,
+ * shared by all channels of a store.
+ *
+ * <p>Pages live off-heap in direct buffers that are allocated {@value #PAGES_PER_ARENA}
+ * pages at a time, up to a fixed budget. Only once that is used up do new pages spill to
+ * a scratch log shared by all channels, which grows a chunk at a time and reuses the
+ * slots of freed pages. Writing a small file therefore never touches the disk.</p>
+ *
+ * <p>A page is named by a handle: a handle {@code >= 0} is a page in memory, a negative one
+ * a slot of the scratch log. A page belongs to the channel that allocated it, so reads and
+ * writes of a page need no locking here.</p>
+ */
+class WritePagePool implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WritePagePool.class);
+
+    public static final int PAGE_SIZE = MondoFileStore.BUFFER_SIZE;
+
+    private static final int PAGES_PER_ARENA = 1024;
+
+    /** the scratch log is grown this many slots at a time */
+    private static final int LOG_GROWTH = 1024;
+    private static final int ZERO_CHUNK = 64 * PAGE_SIZE;
+
+    private final File mLogFile;
+    private final int mMaxPages;
+    private final ByteBuffer[] mArenas;
+
+    //guarded by this
+    private int[] mFreePages = new int[16];
+    private int mNumFreePages;
+    private int mUsedPages;
+
+    private FileChannel mLog;
+    private int[] mFreeSlots = new int[16];
+    private int mNumFreeSlots;
+    private int mLogSlots;
+    private int mUsedSlots;
+
+    /**
+     * @param maxBytes memory for pages before they spill to {@code logFile}
+     */
+    WritePagePool(long maxBytes, File logFile) {
+        checkArgument(maxBytes >= 0);
+        mLogFile = logFile;
+        mMaxPages = (int) Math.min(Integer.MAX_VALUE - PAGES_PER_ARENA, maxBytes / PAGE_SIZE);
+        mArenas = new ByteBuffer[(mMaxPages + PAGES_PER_ARENA - 1) / PAGES_PER_ARENA];
+    }
+
+    /**
+     * @return handle of a new page, in memory if there is room
+     */
+    synchronized long allocate() throws IOException {
+        if(mNumFreePages > 0) {
+            return mFreePages[--mNumFreePages];
+        }
+        if(mUsedPages < mMaxPages) {
+            final int page = mUsedPages++;
+            final int arenaIndex = page / PAGES_PER_ARENA;
+            if(mArenas[arenaIndex] == null) {
+                final int pages = Math.min(PAGES_PER_ARENA, mMaxPages - arenaIndex * PAGES_PER_ARENA);
+                mArenas[arenaIndex] = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+            }
+            return page;
+        }
+        return -1 - allocateSlot();
+    }
+
+    private int allocateSlot() throws IOException {
+        if(mNumFreeSlots > 0) {
+            return mFreeSlots[--mNumFreeSlots];
+        }
+        if(mUsedSlots == mLogSlots) {
+            if(mLog == null) {
+                LOGGER.info("write buffers full, spilling pages to {}", mLogFile);
+                mLog = FileChannel.open(mLogFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            //reserve the space up front rather than a page at a time. It takes writing
+            //zeros: only extending the file would leave a hole that takes no space.
+            final long end = (long) (mLogSlots + LOG_GROWTH) * PAGE_SIZE;
+            final ByteBuffer zeros = ByteBuffer.allocate(ZERO_CHUNK);
+            for(long pos = (long) mLogSlots * PAGE_SIZE;pos < end;) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), end - pos));
+                while(zeros.hasRemaining()) {
+                    pos += mLog.write(zeros, pos);
+                }
+            }
+            mLogSlots += LOG_GROWTH;
+        }
+        return mUsedSlots++;
+    }
+
+    synchronized void free(long handle) {
+        if(handle >= 0) {
+            if(mNumFreePages == mFreePages.length) {
+                mFreePages = Arrays.copyOf(mFreePages, mNumFreePages * 2);
+            }
+            mFreePages[mNumFreePages++] = (int) handle;
+        } else {
+            if(mNumFreeSlots == mFreeSlots.length) {
+                mFreeSlots = Arrays.copyOf(mFreeSlots, mNumFreeSlots * 2);
+            }
+            mFreeSlots[mNumFreeSlots++] = (int) (-1 - handle);
+        }
+    }
+
+    /**
+     * write exactly one page from {@code src}
+     */
+    void write(long handle, ByteBuffer src) throws IOException {
+        checkArgument(src.remaining() == PAGE_SIZE);
+        if(handle >= 0) {
+            memoryPage(handle).put(src);
+        } else {
+            final FileChannel log = log();
+            long pos = slotPosition(handle);
+            while(src.hasRemaining()) {
+                pos += log.write(src, pos);
+            }
+        }
+    }
+
+    /**
+     * fill {@code dst} with up to one page from the start of page {@code handle}
+     */
+    void read(long handle, ByteBuffer dst) throws IOException {
+        checkArgument(dst.remaining() <= PAGE_SIZE);
+        if(handle >= 0) {
+            final ByteBuffer page = memoryPage(handle);
+            page.limit(page.position() + dst.remaining());
+            dst.put(page);
+        } else {
+            final FileChannel log = log();
+            long pos = slotPosition(handle);
+            int bytesRead;
+            while(dst.hasRemaining() && (bytesRead = log.read(dst, pos)) >= 0) {
+                pos += bytesRead;
+            }
+        }
+    }
+
+    private ByteBuffer memoryPage(long handle) {
+        final int page = (int) handle;
+        final ByteBuffer arena;
+        synchronized (this) {
+            arena = mArenas[page / PAGES_PER_ARENA];
+        }
+        ByteBuffer retval = arena.duplicate();
+        final int start = (page % PAGES_PER_ARENA) * PAGE_SIZE;
+        retval.limit(start + PAGE_SIZE);
+        retval.position(start);
+        return retval;
+    }
+
+    private static long slotPosition(long handle) {
+        return (-1 - handle) * PAGE_SIZE;
+    }
+
+    private synchronized FileChannel log() {
+        return mLog;
+    }
+
+    /**
+     * number of pages held in memory right now
+     */
+    synchronized int getMemoryPages() {
+        return mUsedPages - mNumFreePages;
+    }
+
+    /**
+     * number of pages spilled to the scratch log right now
+     */
+    synchronized int getSpilledPages() {
+        return mUsedSlots - mNumFreeSlots;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(mLog != null) {
+            mLog.close();
+            mLog = null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class BlockChannelCacheTest {
+
+    private MondoFileStore mFileStore;
+
+    @Before
+    public void setup() {
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private HashCode createBlock(String content) throws Exception {
+        byte[] data = content.getBytes("UTF-8");
+        HashCode hash = Hashing.sha1().hashBytes(data);
+        File f = mFileStore.getFileBlock(hash);
+        f.getParentFile().mkdirs();
+        Files.write(data, f);
+        return hash;
+    }
+
+    @Test
+    public void testEvictsOnlyUnreferenced() throws Exception {
+        HashCode a = createBlock("a");
+        HashCode b = createBlock("b");
+        HashCode c = createBlock("c");
+
+        BlockChannelCache cache = new BlockChannelCache(mFileStore, 2);
+
+        FileChannel channelA = cache.acquire(a);
+        assertSame(channelA, cache.acquire(a));
+        FileChannel channelB = cache.acquire(b);
+        FileChannel channelC = cache.acquire(c);
+
+        //everything is referenced so nothing can be evicted yet
+        assertEquals(3, cache.size());
+
+        cache.release(b);
+        assertEquals(2, cache.size());
+        assertFalse(channelB.isOpen());
+
+        cache.release(a);
+        assertEquals(2, cache.size());
+        assertTrue(channelA.isOpen());
+
+        cache.release(a);
+        cache.release(c);
+        assertEquals(2, cache.size());
+        assertTrue(channelC.isOpen());
+
+        cache.close();
+        assertFalse(channelA.isOpen());
+        assertFalse(channelC.isOpen());
+    }
+}
@@ -0,0 +1,215 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+
+import java.nio.ByteBuffer;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockCollectorTest {
+
+    private MondoFileStore mFileStore;
+    private MondoFilesystem mFilesystem;
+
+    private void open(String blockStore) {
+        FileStoreConfig config = new FileStoreConfig();
+        config.blockStore = blockStore;
+        config.chunker = "fastcdc-4096-16384-65536";
+        config.gcInterval = 0;
+        config.gcBlocksPerSecond = 1e6;
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir(), config);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private MondoFSPath path(String name) {
+        return MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+    }
+
+    /**
+     * write a new file and commit it like the store's flush task
+     */
+    private BlockGroup writeFile(String name, byte[] data) throws Exception {
+        MondoFileChannel channel = (MondoFileChannel) mFileStore.newByteChannel(path(name),
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), null);
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while(src.hasRemaining()) {
+            channel.write(src);
+        }
+
+        WriteOutBlockAction action = new WriteOutBlockAction();
+        action.mFileStore = mFileStore;
+        action.mFileChannel = channel;
+        BlockGroup bg = action.doIt();
+        channel.mMetadata.size = channel.size();
+        mFileStore.mBlockGroups.put(channel.mMetadata.blockId, bg);
+        mFileStore.mNamespace.update(channel.mMetadata);
+        mFileStore.sync();
+        action.mBlockWriter.releaseBlocks();
+        channel.releasePages();
+        return bg;
+    }
+
+    private static byte[] randomBytes(Random r, int len) {
+        byte[] retval = new byte[len];
+        r.nextBytes(retval);
+        return retval;
+    }
+
+    private void assertStored(BlockGroup bg, boolean stored) {
+        for(HashCode id : bg.blocks) {
+            assertEquals(stored, mFileStore.mBlockStore.contains(id));
+        }
+    }
+
+    private void testDeletedFile(String blockStore) throws Exception {
+        open(blockStore);
+        Random r = new Random(1);
+        BlockGroup kept = writeFile("kept", randomBytes(r, 500 * 1024));
+        BlockGroup deleted = writeFile("deleted", randomBytes(r, 300 * 1024));
+        assertTrue(deleted.blocks.size() > 1);
+
+        BlockCollector.Result result = mFileStore.mBlockCollector.collect();
+        assertEquals(0, result.blocksRemoved);
+        assertEquals(kept.blocks.size() + deleted.blocks.size(), result.blocksScanned);
+
+        mFileStore.delete(path("deleted"));
+        assertEquals(1, mFileStore.mBlockGroups.size());
+
+        result = mFileStore.mBlockCollector.collect();
+        assertEquals(deleted.blocks.size(), result.blocksRemoved);
+        assertEquals(300 * 1024, result.bytesReclaimed);
+        assertStored(deleted, false);
+        assertStored(kept, true);
+    }
+
+    @Test
+    public void testDeletedFileLoose() throws Exception {
+        testDeletedFile(LooseBlockStore.NAME);
+    }
+
+    @Test
+    public void testDeletedFilePack() throws Exception {
+        testDeletedFile(PackBlockStore.NAME);
+    }
+
+    @Test
+    public void testRewrittenFile() throws Exception {
+        open(LooseBlockStore.NAME);
+        Random r = new Random(1);
+        byte[] data = randomBytes(r, 500 * 1024);
+        BlockGroup before = writeFile("file", data);
+
+        //the same file with a new tail: only the replaced blocks are garbage
+        System.arraycopy(randomBytes(r, 100 * 1024), 0, data, 400 * 1024, 100 * 1024);
+        mFileStore.delete(path("file"));
+        BlockGroup after = writeFile("file", data);
+
+        BlockCollector.Result result = mFileStore.mBlockCollector.collect();
+        assertTrue(result.blocksRemoved > 0);
+        assertStored(after, true);
+        for(HashCode id : before.blocks) {
+            assertEquals(after.blocks.contains(id), mFileStore.mBlockStore.contains(id));
+        }
+    }
+
+    @Test
+    public void testUncommittedBlocksAreKept() throws Exception {
+        open(LooseBlockStore.NAME);
+        BlockWriter writer = new BlockWriter(mFileStore);
+        writer.write(ByteBuffer.wrap(randomBytes(new Random(1), 200 * 1024)));
+        BlockGroup bg = writer.finish();
+
+        assertEquals(0, mFileStore.mBlockCollector.collect().blocksRemoved);
+        assertStored(bg, true);
+
+        writer.releaseBlocks();
+        assertEquals(bg.blocks.size(), mFileStore.mBlockCollector.collect().blocksRemoved);
+        assertStored(bg, false);
+    }
+
+    private MondoFileChannel open(String name, StandardOpenOption... options) throws Exception {
+        return (MondoFileChannel) mFileStore.newByteChannel(path(name), ImmutableSet.<OpenOption>copyOf(options), null);
+    }
+
+    private static void write(MondoFileChannel channel, byte[] data, int off, int len) throws Exception {
+        ByteBuffer src = ByteBuffer.wrap(data, off, len);
+        channel.position(off);
+        while(src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    @Test
+    public void testFlushAfterConcurrentCommitAndCollection() throws Exception {
+        open(LooseBlockStore.NAME);
+        Random r = new Random(1);
+        byte[] data = randomBytes(r, 500 * 1024);
+        MondoFileChannel channel = open("file", StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        write(channel, data, 0, data.length);
+        channel.close();
+        mFileStore.sync();
+        final long blockId = channel.mMetadata.blockId;
+        final BlockGroup original = mFileStore.mBlockGroups.get(blockId);
+
+        //a channel still working on top of the original version
+        final MondoFileChannel stale = open("file", StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        //meanwhile the whole file is replaced and committed, and a collection runs
+        channel = open("file", StandardOpenOption.WRITE);
+        write(channel, randomBytes(r, data.length), 0, data.length);
+        channel.close();
+        mFileStore.sync();
+        assertEquals(0, mFileStore.mBlockCollector.collect().blocksRemoved);
+        assertStored(original, true);
+
+        //the stale channel's flush reuses the blocks of the original version it did not touch
+        data[100] ^= 0x55;
+        write(stale, data, 100, 1);
+        stale.force(true);
+        final BlockGroup bg = mFileStore.mBlockGroups.get(blockId);
+        assertTrue(bg.blocks.containsAll(original.blocks.subList(1, original.blocks.size())));
+        assertStored(bg, true);
+
+        final ByteBuffer readBack = ByteBuffer.allocate(data.length);
+        stale.position(0);
+        while(readBack.hasRemaining() && stale.read(readBack) > 0);
+        assertArrayEquals(data, readBack.array());
+        stale.close();
+    }
+
+    @Test
+    public void testChannelBaseIsHeldUntilClosed() throws Exception {
+        open(LooseBlockStore.NAME);
+        Random r = new Random(2);
+        BlockGroup original = writeFile("file", randomBytes(r, 300 * 1024));
+        final MondoFileChannel reader = open("file", StandardOpenOption.READ);
+        final MondoFileChannel writer = open("file", StandardOpenOption.WRITE);
+
+        mFileStore.delete(path("file"));
+        writeFile("file", randomBytes(r, 300 * 1024));
+        assertEquals(0, mFileStore.mBlockCollector.collect().blocksRemoved);
+        assertStored(original, true);
+
+        //a reader lets go when it is closed, a writer once the flush of its close is done
+        reader.close();
+        assertEquals(0, mFileStore.mBlockCollector.collect().blocksRemoved);
+        writer.close();
+        mFileStore.sync();
+        assertEquals(original.blocks.size(), mFileStore.mBlockCollector.collect().blocksRemoved);
+        assertStored(original, false);
+    }
+}
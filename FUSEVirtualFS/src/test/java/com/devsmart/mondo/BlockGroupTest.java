@@ -0,0 +1,118 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.data.ContentHash;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.Test;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class BlockGroupTest {
+
+    private static final HashCode A = Hashing.sha1().hashInt(1);
+    private static final HashCode B = Hashing.sha1().hashInt(2);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        BlockGroup bg = new BlockGroup(0, Hashing.sha1().hashInt(3), ImmutableList.of(A, B), new long[]{100, 250});
+
+        DataOutput2 out = new DataOutput2();
+        BlockGroup.SERIALIZER.serialize(out, bg);
+        BlockGroup copy = BlockGroup.SERIALIZER.deserialize(new DataInput2.ByteArray(out.copyBytes()), -1);
+
+        assertEquals(bg.checksum, copy.checksum);
+        assertEquals(bg.blocks, copy.blocks);
+        assertTrue(copy.hasBlockLengths());
+        assertArrayEquals(new long[]{0, 100, 350}, copy.getBlockOffsets());
+        assertEquals(250, copy.getBlockLength(1));
+    }
+
+    @Test
+    public void testRoundTripTaggedIds() throws Exception {
+        final ContentHash contentHash = ContentHash.BLAKE3;
+        ImmutableList<HashCode> blocks = ImmutableList.of(
+                contentHash.toId(contentHash.hashFunction().hashInt(1)),
+                contentHash.toId(contentHash.hashFunction().hashInt(2)));
+        final long[] lengths = {100, 250};
+        BlockGroup bg = new BlockGroup(0, BlockGroup.computeChecksum(contentHash, blocks, lengths), blocks, lengths);
+        assertSame(contentHash, bg.getContentHash());
+
+        DataOutput2 out = new DataOutput2();
+        BlockGroup.SERIALIZER.serialize(out, bg);
+        BlockGroup copy = BlockGroup.SERIALIZER.deserialize(new DataInput2.ByteArray(out.copyBytes()), -1);
+
+        assertSame(contentHash, copy.getContentHash());
+        assertEquals(bg.checksum, copy.checksum);
+        assertEquals(blocks, copy.blocks);
+        assertArrayEquals(new long[]{0, 100, 350}, copy.getBlockOffsets());
+    }
+
+    @Test
+    public void testReadLegacyFormat() throws Exception {
+        DataOutput2 out = new DataOutput2();
+        out.packInt(0);
+        out.write(Hashing.sha1().hashInt(3).asBytes());
+        out.packInt(2);
+        out.write(A.asBytes());
+        out.write(B.asBytes());
+
+        BlockGroup bg = BlockGroup.SERIALIZER.deserialize(new DataInput2.ByteArray(out.copyBytes()), -1);
+        assertEquals(ImmutableList.of(A, B), bg.blocks);
+        assertFalse(bg.hasBlockLengths());
+    }
+
+    private static BTreeMap<Long, BlockGroup> openMap(DB db) {
+        return db.treeMap("blockGroups")
+                .keySerializer(Serializer.LONG_DELTA)
+                .valueSerializer(BlockGroup.SERIALIZER)
+                .createOrOpen();
+    }
+
+    @Test
+    public void testWriteNextToLegacyRecord() throws Exception {
+        final File file = new File(Files.createTempDir(), "db");
+        final BlockGroup legacy = new BlockGroup(0, Hashing.sha1().hashInt(3), ImmutableList.of(A, B), null);
+
+        DB db = DBMaker.fileDB(file).transactionEnable().make();
+        BTreeMap<Long, BlockGroup> map = openMap(db);
+        for(long i=0;i<20;i++) {
+            map.put(i, new BlockGroup(0, Hashing.sha1().hashLong(i), ImmutableList.of(A), new long[]{i}));
+        }
+        map.put(10L, legacy);
+        db.commit();
+        db.close();
+
+        //the legacy record shares a node with every change below
+        db = DBMaker.fileDB(file).transactionEnable().make();
+        map = openMap(db);
+        map.put(11L, new BlockGroup(0, Hashing.sha1().hashInt(4), ImmutableList.of(B), new long[]{5}));
+        map.put(100L, new BlockGroup(0, Hashing.sha1().hashInt(5), ImmutableList.of(A), new long[]{6}));
+        map.remove(9L);
+        db.commit();
+        db.close();
+
+        db = DBMaker.fileDB(file).transactionEnable().make();
+        map = openMap(db);
+        try {
+            assertFalse(map.get(10L).hasBlockLengths());
+            assertEquals(legacy.blocks, map.get(10L).blocks);
+            assertEquals(legacy.checksum, map.get(10L).checksum);
+            assertEquals(5, map.get(11L).getBlockLength(0));
+            assertNotNull(map.get(100L));
+            assertNull(map.get(9L));
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BlockIndexTest {
+
+    /**
+     * keeps block lengths in memory and counts how often it is asked
+     */
+    private static class CountingStore implements BlockStore {
+
+        final Map<HashCode, Long> mBlocks = new HashMap<HashCode, Long>();
+        int mLookups;
+
+        @Override
+        public synchronized boolean contains(HashCode id) {
+            mLookups++;
+            return mBlocks.containsKey(id);
+        }
+
+        @Override
+        public synchronized long getLength(HashCode id) {
+            mLookups++;
+            Long length = mBlocks.get(id);
+            return length != null ? length : -1;
+        }
+
+        @Override
+        public synchronized void put(HashCode id, File src) throws IOException {
+            mBlocks.put(id, src.length());
+            assertTrue(src.delete());
+        }
+
+        @Override
+        public synchronized void delete(HashCode id) throws IOException {
+            mBlocks.remove(id);
+        }
+
+        @Override
+        public synchronized Iterable<HashCode> ids() {
+            return new ArrayList<HashCode>(mBlocks.keySet());
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public void read(HashCode hash, long offset, ByteBuffer dst) throws IOException {
+            throw new IOException("not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private File mTempDir;
+    private CountingStore mStore;
+
+    @Before
+    public void setup() {
+        mTempDir = Files.createTempDir();
+        mStore = new CountingStore();
+    }
+
+    private static HashCode id(int i) {
+        return Hashing.sha1().hashInt(i);
+    }
+
+    private File tempFile(int length) throws IOException {
+        File f = File.createTempFile("block", ".dat", mTempDir);
+        Files.write(new byte[length], f);
+        return f;
+    }
+
+    @Test
+    public void testLookupsOfNewBlocksStayInMemory() throws Exception {
+        for(int i=0;i<1000;i++) {
+            mStore.mBlocks.put(id(i), 100L);
+        }
+
+        BlockIndex index = new BlockIndex(mStore, MoreExecutors.directExecutor(), 10000, 0.01);
+        assertFalse(index.isReady());
+        //before the filter is built every lookup goes to the store
+        assertTrue(index.contains(id(1)));
+        assertEquals(1, mStore.mLookups);
+
+        index.start();
+        assertTrue(index.isReady());
+
+        mStore.mLookups = 0;
+        for(int i=0;i<1000;i++) {
+            assertTrue(index.contains(id(i)));
+            assertEquals(100, index.getLength(id(i)));
+        }
+        assertEquals(2000, mStore.mLookups);
+
+        mStore.mLookups = 0;
+        for(int i=1000;i<11000;i++) {
+            assertFalse(index.contains(id(i)));
+        }
+        assertTrue(mStore.mLookups < 300);
+
+        BlockIndex.Stats stats = index.getStats();
+        assertEquals(mStore.mLookups, stats.falsePositives);
+        assertTrue(stats.falsePositiveRate() < 0.03);
+    }
+
+    @Test
+    public void testPutCountsDuplicates() throws Exception {
+        BlockIndex index = new BlockIndex(mStore, MoreExecutors.directExecutor(), 10000, 0.01);
+        index.start();
+
+        for(int i=0;i<100;i++) {
+            index.put(id(i), tempFile(10));
+        }
+        for(int i=0;i<50;i++) {
+            File src = tempFile(10);
+            index.put(id(i), src);
+            assertFalse(src.exists());
+        }
+        assertEquals(100, mStore.mBlocks.size());
+
+        BlockIndex.Stats stats = index.getStats();
+        assertEquals(150, stats.puts);
+        assertEquals(50, stats.duplicates);
+        assertEquals(1.0 / 3, stats.dedupRatio(), 1e-9);
+    }
+
+    @Test
+    public void testRebuildKeepsEveryBlock() throws Exception {
+        //rebuilds run whenever the test says so
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+
+        BlockIndex index = new BlockIndex(mStore, executor, 100, 0.01);
+        index.start();
+        tasks.remove(0).run();
+        assertTrue(index.isReady());
+
+        //outgrowing the filter schedules a bigger one
+        for(int i=0;i<101;i++) {
+            index.put(id(i), tempFile(10));
+        }
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        for(int i=0;i<101;i++) {
+            assertTrue(index.contains(id(i)));
+        }
+
+        //deleting most blocks schedules a rebuild that drops them
+        for(int i=0;i<60;i++) {
+            index.delete(id(i));
+        }
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        mStore.mLookups = 0;
+        for(int i=0;i<60;i++) {
+            assertFalse(index.contains(id(i)));
+        }
+        assertTrue(mStore.mLookups < 10);
+        for(int i=60;i<101;i++) {
+            assertTrue(index.contains(id(i)));
+        }
+    }
+
+}
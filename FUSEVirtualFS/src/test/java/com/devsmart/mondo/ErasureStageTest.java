@@ -0,0 +1,168 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ErasureStageTest {
+
+    private MondoFileStore mFileStore;
+    private MondoFilesystem mFilesystem;
+
+    @Before
+    public void setup() {
+        FileStoreConfig config = new FileStoreConfig();
+        config.chunker = "fastcdc-4096-16384-65536";
+        config.parityShards = 2;
+        config.stripeDataShards = 4;
+        config.gcInterval = 0;
+        config.gcBlocksPerSecond = 1e6;
+        //every block is read from its file, so a deleted block is noticed right away
+        config.pageCacheSize = 0;
+        config.maxOpenBlocks = 1;
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir(), config);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private MondoFSPath path(String name) {
+        return MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+    }
+
+    /**
+     * write a new file and commit it like the store's flush task
+     */
+    private MondoFileChannel writeFile(String name, byte[] data) throws Exception {
+        MondoFileChannel channel = (MondoFileChannel) mFileStore.newByteChannel(path(name),
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), null);
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while(src.hasRemaining()) {
+            channel.write(src);
+        }
+
+        WriteOutBlockAction action = new WriteOutBlockAction();
+        action.mFileStore = mFileStore;
+        action.mFileChannel = channel;
+        BlockGroup bg = action.doIt();
+        channel.mMetadata.size = channel.size();
+        mFileStore.mBlockGroups.put(channel.mMetadata.blockId, bg);
+        mFileStore.mNamespace.update(channel.mMetadata);
+        action.mBlockWriter.releaseBlocks();
+        channel.releasePages();
+        return channel;
+    }
+
+    private byte[] readFile(String name, int length) throws IOException {
+        MondoFileChannel channel = (MondoFileChannel) mFileStore.newByteChannel(path(name),
+                ImmutableSet.<OpenOption>of(StandardOpenOption.READ), null);
+        try {
+            ByteBuffer dst = ByteBuffer.allocate(length);
+            while(dst.hasRemaining() && channel.read(dst) >= 0) {
+            }
+            return dst.array();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static byte[] randomBytes(Random r, int len) {
+        byte[] retval = new byte[len];
+        r.nextBytes(retval);
+        return retval;
+    }
+
+    private void deleteBlock(HashCode id) {
+        assertTrue(mFileStore.getFileBlock(id).delete());
+    }
+
+    @Test
+    public void testLostBlocksAreRebuilt() throws Exception {
+        final byte[] data = randomBytes(new Random(1), 400 * 1024);
+        final long blockId = writeFile("a.dat", data).mMetadata.blockId;
+        final BlockGroup bg = mFileStore.mBlockGroups.get(blockId);
+        assertTrue(bg.blocks.size() > 8);
+
+        BlockGroupParity parity = mFileStore.protect(blockId);
+        assertNotNull(parity);
+        assertEquals((bg.blocks.size() + 3) / 4, parity.stripes.size());
+        for(BlockGroupParity.Stripe stripe : parity.stripes) {
+            assertEquals(2, stripe.parity.size());
+        }
+        assertTrue(mFileStore.getParity(blockId).protects(bg));
+
+        //as many blocks of the first stripe as there are parity shards
+        final BlockGroupParity.Stripe stripe = parity.stripes.get(0);
+        final HashCode lost1 = bg.blocks.get(stripe.blocks[0]);
+        final HashCode lost2 = bg.blocks.get(stripe.blocks[2]);
+        deleteBlock(lost1);
+        deleteBlock(lost2);
+
+        assertArrayEquals(data, readFile("a.dat", data.length));
+        assertTrue(mFileStore.getFileBlock(lost1).exists());
+        assertTrue(mFileStore.getFileBlock(lost2).exists());
+    }
+
+    @Test
+    public void testTooManyLostBlocks() throws Exception {
+        final byte[] data = randomBytes(new Random(2), 200 * 1024);
+        final long blockId = writeFile("a.dat", data).mMetadata.blockId;
+        final BlockGroup bg = mFileStore.mBlockGroups.get(blockId);
+        final BlockGroupParity parity = mFileStore.protect(blockId);
+
+        final BlockGroupParity.Stripe stripe = parity.stripes.get(0);
+        deleteBlock(bg.blocks.get(stripe.blocks[0]));
+        deleteBlock(bg.blocks.get(stripe.blocks[1]));
+        deleteBlock(stripe.parity.get(0));
+
+        try {
+            readFile("a.dat", data.length);
+            fail("read a file that lost more blocks than its parity covers");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testStaleParityIsCollected() throws Exception {
+        Random r = new Random(3);
+        final long blockId = writeFile("a.dat", randomBytes(r, 200 * 1024)).mMetadata.blockId;
+        final BlockGroupParity old = mFileStore.protect(blockId);
+
+        mFileStore.delete(path("a.dat"));
+        final byte[] data = randomBytes(r, 200 * 1024);
+        final long newBlockId = writeFile("b.dat", data).mMetadata.blockId;
+        final BlockGroupParity parity = mFileStore.protect(newBlockId);
+
+        mFileStore.mBlockCollector.collect();
+        assertNull(mFileStore.mParity.get(blockId));
+        for(BlockGroupParity.Stripe stripe : old.stripes) {
+            for(HashCode id : stripe.parity) {
+                assertFalse(mFileStore.mBlockStore.contains(id));
+            }
+        }
+        for(BlockGroupParity.Stripe stripe : parity.stripes) {
+            for(HashCode id : stripe.parity) {
+                assertTrue(mFileStore.mBlockStore.contains(id));
+            }
+        }
+        assertArrayEquals(data, readFile("b.dat", data.length));
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.io.Files;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitterTest {
+
+    private static DB openDB(File file) {
+        return DBMaker.fileDB(file).transactionEnable().make();
+    }
+
+    private static BTreeMap<Long, Long> openMap(DB db) {
+        return db.treeMap("map")
+                .keySerializer(Serializer.LONG)
+                .valueSerializer(Serializer.LONG)
+                .createOrOpen();
+    }
+
+    @Test
+    public void testSyncIsDurable() throws Exception {
+        DB db = openDB(new File(Files.createTempDir(), "db"));
+        BTreeMap<Long, Long> map = openMap(db);
+        Lock lock = new ReentrantLock();
+
+        //a long latency: only the sync commits
+        GroupCommitter committer = new GroupCommitter(db, lock, 1, TimeUnit.HOURS, 1000000);
+        for(long i=0;i<100;i++) {
+            lock.lock();
+            try {
+                map.put(i, i);
+                committer.mutated();
+            } finally {
+                lock.unlock();
+            }
+        }
+        assertEquals(0, committer.getCommitCount());
+        committer.sync();
+        assertEquals(1, committer.getCommitCount());
+
+        //a change after the sync is not durable yet and a rollback drops it
+        lock.lock();
+        try {
+            map.put(100L, 100L);
+            committer.mutated();
+            db.rollback();
+        } finally {
+            lock.unlock();
+        }
+        assertEquals(100, map.size());
+        committer.close();
+        db.close();
+    }
+
+    @Test
+    public void testPreCommitFlush() throws Exception {
+        File dbFile = new File(Files.createTempDir(), "db");
+        DB db = openDB(dbFile);
+        BTreeMap<Long, Long> map = openMap(db);
+        final ReentrantLock lock = new ReentrantLock();
+        GroupCommitter committer = new GroupCommitter(db, lock, 1, TimeUnit.HOURS, 1000000);
+
+        final AtomicInteger flushes = new AtomicInteger();
+        committer.addPreCommit(new Flushable() {
+            @Override
+            public void flush() throws IOException {
+                assertTrue(lock.isHeldByCurrentThread());
+                if(flushes.incrementAndGet() > 1) {
+                    throw new IOException("disk full");
+                }
+            }
+        });
+
+        lock.lock();
+        try {
+            map.put(1L, 1L);
+        } finally {
+            lock.unlock();
+        }
+        committer.sync();
+        assertEquals(1, flushes.get());
+
+        //a failed flush fails the commit instead of committing past it
+        lock.lock();
+        try {
+            map.put(2L, 2L);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.sync();
+            fail("commit did not fail");
+        } catch (IOException e) {
+        }
+        db.close();
+
+        db = openDB(dbFile);
+        map = openMap(db);
+        assertEquals(1, map.size());
+        db.close();
+    }
+
+    @Test
+    public void testBatchesConcurrentMutations() throws Exception {
+        DB db = openDB(new File(Files.createTempDir(), "db"));
+        final BTreeMap<Long, Long> map = openMap(db);
+        final Lock lock = new ReentrantLock();
+        final GroupCommitter committer = new GroupCommitter(db, lock, 20, TimeUnit.MILLISECONDS, 100);
+
+        final int numThreads = 4;
+        final int perThread = 2000;
+        Thread[] threads = new Thread[numThreads];
+        for(int t=0;t<numThreads;t++) {
+            final long base = t * perThread;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for(long i=0;i<perThread;i++) {
+                        lock.lock();
+                        try {
+                            map.put(base + i, i);
+                            committer.mutated();
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        committer.sync();
+
+        final long commits = committer.getCommitCount();
+        assertTrue(commits > 0);
+        assertTrue("too many commits: " + commits, commits <= numThreads * perThread / 100 + 100);
+        committer.close();
+        assertEquals(numThreads * perThread, map.size());
+        db.close();
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmark() throws Exception {
+        final int count = 2000;
+        File dir = Files.createTempDir();
+
+        DB db = openDB(new File(dir, "single"));
+        BTreeMap<Long, Long> map = openMap(db);
+        long start = System.nanoTime();
+        for(long i=0;i<count;i++) {
+            map.put(i, i);
+            db.commit();
+        }
+        final double single = (System.nanoTime() - start) / 1e9;
+        db.close();
+
+        db = openDB(new File(dir, "group"));
+        map = openMap(db);
+        Lock lock = new ReentrantLock();
+        GroupCommitter committer = new GroupCommitter(db, lock, 50, TimeUnit.MILLISECONDS, 1000);
+        start = System.nanoTime();
+        for(long i=0;i<count;i++) {
+            lock.lock();
+            try {
+                map.put(i, i);
+                committer.mutated();
+            } finally {
+                lock.unlock();
+            }
+        }
+        committer.sync();
+        final double group = (System.nanoTime() - start) / 1e9;
+        final long commits = committer.getCommitCount();
+        committer.close();
+        db.close();
+
+        System.out.println(String.format("%d updates, commit each: %.0f/s, group commit: %.0f/s (%d commits)",
+                count, count / single, count / group, commits));
+    }
+}
@@ -0,0 +1,72 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MappedBlockReaderTest {
+
+    private MondoFileStore mFileStore;
+
+    @Before
+    public void setup() {
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private HashCode createBlock(byte[] data) throws Exception {
+        HashCode hash = Hashing.sha1().hashBytes(data);
+        File f = mFileStore.getFileBlock(hash);
+        f.getParentFile().mkdirs();
+        Files.write(data, f);
+        return hash;
+    }
+
+    @Test
+    public void testReadMapped() throws Exception {
+        Random r = new Random(1);
+        byte[] a = new byte[20000];
+        r.nextBytes(a);
+        byte[] b = new byte[30000];
+        r.nextBytes(b);
+        HashCode hashA = createBlock(a);
+        HashCode hashB = createBlock(b);
+
+        MappedBlockReader reader = new MappedBlockReader(mFileStore.mBlockChannels, 40000);
+
+        ByteBuffer dst = ByteBuffer.allocate(1000);
+        reader.read(hashA, 500, dst);
+        assertFalse(dst.hasRemaining());
+        for(int i=0;i<1000;i++) {
+            assertEquals(a[500 + i], dst.get(i));
+        }
+
+        //read past the end of the block stops at the end
+        dst.clear();
+        reader.read(hashA, a.length - 10, dst);
+        assertEquals(10, dst.position());
+
+        //mapping b pushes a out of the pool
+        dst.clear();
+        reader.read(hashB, 0, dst);
+        assertEquals(b.length, reader.getMappedBytes());
+        assertEquals(b[999], dst.get(999));
+
+        reader.close();
+    }
+}
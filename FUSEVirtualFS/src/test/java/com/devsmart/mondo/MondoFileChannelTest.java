@@ -0,0 +1,362 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MondoFileChannelTest {
+
+    private File mDataRoot;
+    private MondoFileStore mFileStore;
+    private MondoFilesystem mFilesystem;
+
+    @Before
+    public void setup() {
+        mDataRoot = Files.createTempDir();
+        DB db = DBMaker.memoryDB().make();
+        mFileStore = new MondoFileStore(db, mDataRoot);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private MondoFileChannel createFile(String name) throws Exception {
+        MondoFSPath path = MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+        return (MondoFileChannel) mFileStore.newByteChannel(path,
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                null);
+    }
+
+    /**
+     * store {@code data} as a committed file made of blocks of the given lengths
+     */
+    private MondoFileChannel openCommittedFile(String name, byte[] data, int... blockLengths) throws Exception {
+        MondoFSPath path = MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+        FileMetadata metadata = ((MondoFileChannel) mFileStore.newByteChannel(path,
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE), null)).mMetadata;
+
+        ImmutableList.Builder<HashCode> blocks = ImmutableList.builder();
+        long[] lengths = new long[blockLengths.length];
+        int offset = 0;
+        for(int i=0;i<blockLengths.length;i++) {
+            byte[] block = Arrays.copyOfRange(data, offset, offset + blockLengths[i]);
+            HashCode hash = Hashing.sha1().hashBytes(block);
+            File f = mFileStore.getFileBlock(hash);
+            f.getParentFile().mkdirs();
+            Files.write(block, f);
+            blocks.add(hash);
+            lengths[i] = block.length;
+            offset += block.length;
+        }
+        assertEquals(data.length, offset);
+
+        metadata.size = data.length;
+        mFileStore.mBlockGroups.put(metadata.blockId, new BlockGroup(0, Hashing.sha1().hashBytes(data), blocks.build(), lengths));
+
+        return new MondoFileChannel(MondoFileChannel.MODE_READ, metadata, mFileStore);
+    }
+
+    private static void readFully(MondoFileChannel channel, ByteBuffer dst) throws Exception {
+        while(dst.hasRemaining() && channel.read(dst) > 0);
+    }
+
+    @Test
+    public void testReadWriteSpans() throws Exception {
+        final int pageSize = MondoFileStore.BUFFER_SIZE;
+        byte[] data = new byte[10 * pageSize + 123];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = createFile("/spans.dat");
+
+        //unaligned multi-page write
+        channel.position(17);
+        assertEquals(data.length - 17, channel.write(ByteBuffer.wrap(data, 17, data.length - 17)));
+
+        //aligned pages go the direct path
+        channel.position(0);
+        assertEquals(3 * pageSize, channel.write(ByteBuffer.wrap(data, 0, 3 * pageSize)));
+        assertEquals(data.length, channel.size());
+
+        byte[] readBack = new byte[data.length];
+        channel.position(0);
+        readFully(channel, ByteBuffer.wrap(readBack));
+        assertArrayEquals(data, readBack);
+
+        //read that starts and ends mid-page
+        byte[] middle = new byte[4 * pageSize];
+        channel.position(pageSize / 2);
+        readFully(channel, ByteBuffer.wrap(middle));
+        for(int i=0;i<middle.length;i++) {
+            assertEquals(data[pageSize / 2 + i], middle[i]);
+        }
+
+        channel.position(data.length);
+        assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    public void testSparseWriteReadsZeros() throws Exception {
+        final int pageSize = MondoFileStore.BUFFER_SIZE;
+        MondoFileChannel channel = createFile("/sparse.dat");
+
+        byte[] ones = new byte[100];
+        Arrays.fill(ones, (byte) 1);
+        channel.write(ByteBuffer.wrap(ones));
+
+        channel.position(5L * pageSize + 7);
+        channel.write(ByteBuffer.wrap(ones));
+
+        ByteBuffer readBack = ByteBuffer.allocate((int) channel.size());
+        channel.position(0);
+        readFully(channel, readBack);
+        byte[] array = readBack.array();
+        for(int i=0;i<array.length;i++) {
+            final boolean written = i < 100 || i >= 5 * pageSize + 7;
+            assertEquals("offset " + i, written ? 1 : 0, array[i]);
+        }
+    }
+
+    @Test
+    public void testTruncateAndExtend() throws Exception {
+        final int pageSize = MondoFileStore.BUFFER_SIZE;
+        byte[] data = new byte[7 * pageSize / 2];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = createFile("/truncate.dat");
+        channel.write(ByteBuffer.wrap(data));
+        //the half page at the end is still in the channel's buffer
+        assertEquals(3, mFileStore.mWritePages.getMemoryPages());
+
+        final int newSize = 3 * pageSize / 2;
+        assertSame(channel, channel.truncate(newSize));
+        assertEquals(newSize, channel.size());
+        assertEquals(newSize, channel.position());
+        assertEquals(2, mFileStore.mWritePages.getMemoryPages());
+
+        //the old data must not come back when the file grows again
+        channel.truncate(4 * pageSize);
+        assertEquals(4 * pageSize, channel.size());
+        ByteBuffer readBack = ByteBuffer.allocate(4 * pageSize);
+        channel.position(0);
+        readFully(channel, readBack);
+        for(int i=0;i<readBack.capacity();i++) {
+            assertEquals("offset " + i, i < newSize ? data[i] : 0, readBack.get(i));
+        }
+    }
+
+    @Test
+    public void testTruncateCommittedFile() throws Exception {
+        byte[] data = new byte[5 * MondoFileStore.BUFFER_SIZE];
+        new Random(1).nextBytes(data);
+        MondoFileChannel channel = openCommittedFile("/committed.dat", data, 10000, 20000, data.length - 30000);
+        channel.mOpenMode |= MondoFileChannel.MODE_WRITE;
+
+        channel.truncate(15000);
+        channel.truncate(data.length);
+
+        ByteBuffer readBack = ByteBuffer.allocate(data.length);
+        channel.position(0);
+        readFully(channel, readBack);
+        for(int i=0;i<data.length;i++) {
+            assertEquals("offset " + i, i < 15000 ? data[i] : 0, readBack.get(i));
+        }
+        //nothing past the new end is worth keeping
+        assertEquals(14999, channel.holeEnd(14999));
+        assertEquals(data.length, channel.holeEnd(15000));
+        assertEquals(15000, channel.getFirstDirtyOffset());
+    }
+
+    @Test
+    public void testSpillToScratchLog() throws Exception {
+        mFileStore.close();
+        FileStoreConfig config = new FileStoreConfig();
+        config.writeBufferSize = 4 * MondoFileStore.BUFFER_SIZE;
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), mDataRoot, config);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+
+        final int pageSize = MondoFileStore.BUFFER_SIZE;
+        byte[] data = new byte[10 * pageSize + 123];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = createFile("/spill.dat");
+        channel.position(17);
+        channel.write(ByteBuffer.wrap(data, 17, data.length - 17));
+        channel.position(0);
+        channel.write(ByteBuffer.wrap(data, 0, 3 * pageSize));
+        assertEquals(4, mFileStore.mWritePages.getMemoryPages());
+        assertTrue(mFileStore.mWritePages.getSpilledPages() > 0);
+
+        byte[] readBack = new byte[data.length];
+        channel.position(0);
+        readFully(channel, ByteBuffer.wrap(readBack));
+        assertArrayEquals(data, readBack);
+
+        //pages are reused once released
+        final int spilled = mFileStore.mWritePages.getSpilledPages();
+        channel.releasePages();
+        assertEquals(0, mFileStore.mWritePages.getMemoryPages());
+        assertEquals(0, mFileStore.mWritePages.getSpilledPages());
+
+        MondoFileChannel other = createFile("/other.dat");
+        other.write(ByteBuffer.wrap(data));
+        assertEquals(4, mFileStore.mWritePages.getMemoryPages());
+        assertEquals(spilled, mFileStore.mWritePages.getSpilledPages());
+        readBack = new byte[data.length];
+        other.position(0);
+        readFully(other, ByteBuffer.wrap(readBack));
+        assertArrayEquals(data, readBack);
+    }
+
+    @Test
+    public void testSmallFileStaysInMemory() throws Exception {
+        MondoFileChannel channel = createFile("/small.dat");
+        channel.position(100);
+        channel.write(ByteBuffer.wrap(new byte[3 * MondoFileStore.BUFFER_SIZE]));
+        assertEquals(3, mFileStore.mWritePages.getMemoryPages());
+        assertEquals(0, mFileStore.mWritePages.getSpilledPages());
+        assertEquals(0, new File(mDataRoot, "tmp").list().length);
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmarkSmallFiles() throws Exception {
+        byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        final int numFiles = 2000;
+        for(int round=0;round<3;round++) {
+            final long start = System.nanoTime();
+            for(int i=0;i<numFiles;i++) {
+                MondoFileChannel channel = createFile("/small" + round + "-" + i);
+                channel.write(ByteBuffer.wrap(data));
+                channel.close();
+            }
+            System.out.println(String.format("create + write 4 KB + close: %.0f files/s",
+                    numFiles / ((System.nanoTime() - start) / 1e9)));
+        }
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 77];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = openCommittedFile("/committed.dat", data, 300000, 5, 500000, data.length - 800005);
+
+        byte[] readBack = new byte[data.length];
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        int offset = 0;
+        int bytesRead;
+        while((bytesRead = channel.read(buffer)) > 0) {
+            buffer.flip();
+            buffer.get(readBack, offset, bytesRead);
+            offset += bytesRead;
+            buffer.clear();
+        }
+        assertArrayEquals(data, readBack);
+
+        assertTrue(channel.mReadAhead.getHits() > 0);
+        channel.close();
+    }
+
+    @Test
+    public void testFlushBypassesReadAhead() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 77];
+        new Random(2).nextBytes(data);
+        final int budget = mFileStore.mReadAheadBudget.availablePermits();
+
+        FileMetadata metadata = openCommittedFile("/committed.dat", data, 300000, 5, 500000, data.length - 800005).mMetadata;
+        MondoFileChannel channel = new MondoFileChannel(MondoFileChannel.MODE_READ | MondoFileChannel.MODE_WRITE, metadata, mFileStore);
+
+        //the large blocks around the write are chunked again on close
+        channel.position(300004);
+        channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        final long accesses = channel.mReadAhead.getHits() + channel.mReadAhead.getMisses();
+        channel.close();
+        mFileStore.sync();
+
+        assertEquals(accesses, channel.mReadAhead.getHits() + channel.mReadAhead.getMisses());
+        assertEquals(budget, mFileStore.mReadAheadBudget.availablePermits());
+    }
+
+    @Test
+    public void testTruncateDropsReadAhead() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 77];
+        new Random(3).nextBytes(data);
+
+        MondoFileChannel channel = openCommittedFile("/committed.dat", data, 300000, 5, 500000, data.length - 800005);
+        channel.mOpenMode |= MondoFileChannel.MODE_WRITE;
+        channel.read(ByteBuffer.allocate(4096));
+        assertNotNull(channel.mReadAhead);
+
+        //pages loaded ahead hold data that is truncated away below
+        channel.truncate(100000);
+        assertNull(channel.mReadAhead);
+        channel.position(200000);
+        channel.write(ByteBuffer.wrap(new byte[] {1}));
+
+        final ByteBuffer readBack = ByteBuffer.allocate(200001);
+        channel.position(0);
+        while(readBack.hasRemaining() && channel.read(readBack) > 0);
+        final byte[] expected = new byte[200001];
+        System.arraycopy(data, 0, expected, 0, 100000);
+        expected[200000] = 1;
+        assertArrayEquals(expected, readBack.array());
+        channel.close();
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void testThroughput() throws Exception {
+        final long fileSize = 64 * 1024 * 1024;
+        final int[] requestSizes = new int[] { MondoFileStore.BUFFER_SIZE, 128 * 1024, 1024 * 1024 };
+
+        for(int requestSize : requestSizes) {
+            byte[] data = new byte[requestSize];
+            new Random(1).nextBytes(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+
+            MondoFileChannel channel = createFile("/bench" + requestSize + ".dat");
+
+            long start = System.nanoTime();
+            while(channel.position() < fileSize) {
+                buffer.clear();
+                channel.write(buffer);
+            }
+            final long writeTime = System.nanoTime() - start;
+
+            channel.position(0);
+            start = System.nanoTime();
+            while(channel.position() < fileSize) {
+                buffer.clear();
+                channel.read(buffer);
+            }
+            final long readTime = System.nanoTime() - start;
+
+            System.out.println(String.format("request size: %7d write: %8.2f MB/s read: %8.2f MB/s",
+                    requestSize,
+                    (fileSize / (1024.0 * 1024.0)) / (writeTime / 1e9),
+                    (fileSize / (1024.0 * 1024.0)) / (readTime / 1e9)));
+        }
+    }
+}
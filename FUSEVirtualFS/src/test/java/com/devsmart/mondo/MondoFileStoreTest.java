@@ -0,0 +1,679 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.SerializerArrayTuple;
+
+import java.io.File;
+import java.io.Flushable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.*;
+
+public class MondoFileStoreTest {
+
+    private DB mDB;
+    private MondoFileStore mFileStore;
+    private MondoFilesystem mFilesystem;
+
+    @Before
+    public void setup() {
+        File root = Files.createTempDir();
+        mDB = DBMaker.fileDB(new File(root, "db")).transactionEnable().make();
+        mFileStore = new MondoFileStore(mDB, root);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private MondoFSPath path(String name) {
+        return MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+    }
+
+    private void create(MondoFSPath path) throws Exception {
+        mFileStore.newByteChannel(path, ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE_NEW), null).close();
+    }
+
+    private void mkdir(String dir) throws Exception {
+        if(mFileStore.lookUpWithLock(path(dir)) == null) {
+            mFileStore.createDirectory(path(dir));
+        }
+    }
+
+    private Set<String> list(String dir) throws Exception {
+        Set<String> retval = new HashSet<String>();
+        DirectoryStream<Path> stream = mFileStore.createDirectoryStream(path(dir), new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path entry) {
+                return true;
+            }
+        });
+        for(Path p : stream) {
+            retval.add(p.toString());
+        }
+        stream.close();
+        return retval;
+    }
+
+    /**
+     * Every thread creates, stats and deletes files in a directory of its own, or all of
+     * them in the same directory.
+     *
+     * @return operations per second
+     */
+    private double stress(final int numThreads, final int filesPerThread, final boolean sharedDir) throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[numThreads];
+        for(int t=0;t<numThreads;t++) {
+            mkdir(sharedDir ? "/shared" : "/dir" + t);
+        }
+        final long start = System.nanoTime();
+        for(int t=0;t<numThreads;t++) {
+            final String dir = sharedDir ? "/shared" : "/dir" + t;
+            final String prefix = dir + "/t" + t + "-" + numThreads + "-";
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i=0;i<filesPerThread;i++) {
+                            MondoFSPath p = path(prefix + i);
+                            create(p);
+                            assertNotNull(mFileStore.lookUpWithLock(p));
+                            if(i % 2 == 0) {
+                                mFileStore.delete(p);
+                                assertNull(mFileStore.lookUpWithLock(p));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        if(error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        //the odd numbered files are left
+        for(int t=0;t<numThreads;t++) {
+            final String dir = sharedDir ? "/shared" : "/dir" + t;
+            for(int i=0;i<filesPerThread;i++) {
+                final FileMetadata file = mFileStore.lookUpWithLock(path(dir + "/t" + t + "-" + numThreads + "-" + i));
+                assertEquals(i % 2 == 1, file != null);
+            }
+        }
+
+        //create + 2 stats for every file, a delete for half of them
+        return numThreads * filesPerThread * 3.5 / seconds;
+    }
+
+    @Test
+    public void testConcurrentCreateStatDelete() throws Exception {
+        stress(4, 500, false);
+        stress(4, 500, true);
+        mFileStore.sync();
+    }
+
+    @Test
+    public void testMetadataCache() throws Exception {
+        MondoFSPath p = path("/file");
+        final long misses = mFileStore.getMetadataCacheStats().missCount();
+
+        //missing paths are cached too
+        assertNull(mFileStore.lookUpWithLock(p));
+        assertNull(mFileStore.lookUpWithLock(p));
+        assertEquals(misses + 1, mFileStore.getMetadataCacheStats().missCount());
+
+        create(p);
+        FileMetadata file = mFileStore.lookUpWithLock(p);
+        assertNotNull(file);
+        assertEquals(0, file.size());
+
+        //changes to a returned copy do not leak into the cache
+        file.size = 100;
+        assertEquals(0, mFileStore.lookUpWithLock(p).size());
+        assertTrue(mFileStore.getMetadataCacheStats().hitCount() >= 2);
+
+        mFileStore.delete(p);
+        assertNull(mFileStore.lookUpWithLock(p));
+    }
+
+    @Test
+    public void testListingFeedsMetadataLookups() throws Exception {
+        mkdir("/dir");
+        final int numFiles = 300;
+        for(int i=0;i<numFiles;i++) {
+            create(path("/dir/" + i));
+        }
+
+        //like FUSE: readdir, then the attributes of every entry
+        assertEquals(numFiles, list("/dir").size());
+        final long misses = mFileStore.getMetadataCacheStats().missCount();
+        for(int i=0;i<numFiles;i++) {
+            assertTrue(mFilesystem.provider().readAttributes(path("/dir/" + i), BasicFileAttributes.class).isRegularFile());
+        }
+        assertEquals(misses, mFileStore.getMetadataCacheStats().missCount());
+
+        //a change after the listing is not hidden by it
+        final SeekableByteChannel channel = mFileStore.newByteChannel(path("/dir/7"),
+                ImmutableSet.<OpenOption>of(StandardOpenOption.WRITE), null);
+        channel.write(ByteBuffer.allocate(10));
+        ((MondoFileChannel) channel).force(true);
+        channel.close();
+        assertEquals(10, mFileStore.lookUpWithLock(path("/dir/7")).size());
+    }
+
+    @Test
+    public void testDirectories() throws Exception {
+        try {
+            create(path("/a/file"));
+            fail("created a file in a missing directory");
+        } catch (NoSuchFileException e) {
+        }
+
+        mFileStore.createDirectory(path("/a"));
+        assertTrue(mFileStore.lookUpWithLock(path("/a")).isDirectory());
+        try {
+            mFileStore.createDirectory(path("/a"));
+            fail("created a directory twice");
+        } catch (FileAlreadyExistsException e) {
+        }
+
+        create(path("/a/file"));
+        mFileStore.createDirectory(path("/a/b"));
+        create(path("/a/b/file"));
+        assertEquals(ImmutableSet.of("/a/file", "/a/b"), list("/a"));
+
+        try {
+            mFileStore.delete(path("/a/b"));
+            fail("deleted a directory that is not empty");
+        } catch (DirectoryNotEmptyException e) {
+        }
+
+        mFileStore.delete(path("/a/b/file"));
+        mFileStore.delete(path("/a/b"));
+        assertNull(mFileStore.lookUpWithLock(path("/a/b")));
+        assertEquals(ImmutableSet.of("/a/file"), list("/a"));
+    }
+
+    @Test
+    public void testListDirectoryPages() throws Exception {
+        mFileStore.createDirectory(path("/big"));
+        final int numFiles = 2500;
+        for(int i=0;i<numFiles;i++) {
+            create(path(String.format("/big/%05d", i)));
+        }
+        mFileStore.createDirectory(path("/big/zdir"));
+
+        final List<String> names = new ArrayList<String>();
+        DirectoryVisitor visitor = new DirectoryVisitor() {
+            @Override
+            public boolean visit(String name, FileMetadata metadata) {
+                names.add(name);
+                assertEquals(name.equals("zdir"), metadata.isDirectory());
+                assertNotNull(metadata.fileKey());
+                return true;
+            }
+        };
+
+        String cookie = mFileStore.listDirectory(path("/big"), null, 1000, visitor);
+        assertEquals(1000, names.size());
+        assertEquals("00999", cookie);
+
+        //entries deleted or added behind the cookie do not disturb the next page
+        mFileStore.delete(path("/big/00999"));
+        mFileStore.delete(path("/big/01000"));
+        create(path("/big/00000a"));
+        cookie = mFileStore.listDirectory(path("/big"), cookie, 1000, visitor);
+        assertEquals("02000", names.get(names.size() - 1));
+        cookie = mFileStore.listDirectory(path("/big"), cookie, 1000, visitor);
+        assertNull(cookie);
+        assertEquals(numFiles, names.size());
+        assertEquals("zdir", names.get(names.size() - 1));
+
+        //a visitor can stop early and carry on from the cookie
+        names.clear();
+        cookie = mFileStore.listDirectory(path("/big"), null, 1000, new DirectoryVisitor() {
+            @Override
+            public boolean visit(String name, FileMetadata metadata) {
+                names.add(name);
+                return names.size() < 3;
+            }
+        });
+        assertEquals("00001", cookie);
+        assertEquals(Arrays.asList("00000", "00000a", "00001"), names);
+
+        //the stream sees the same entries
+        assertEquals(numFiles, list("/big").size());
+    }
+
+    @Test
+    public void testMoveDirectory() throws Exception {
+        mFileStore.createDirectory(path("/src"));
+        mFileStore.createDirectory(path("/src/sub"));
+        create(path("/src/sub/file"));
+        final Object inode = mFileStore.lookUpWithLock(path("/src/sub/file")).fileKey();
+
+        mFileStore.createDirectory(path("/dst"));
+        mFileStore.move(path("/src/sub"), path("/dst/moved"), false);
+
+        assertNull(mFileStore.lookUpWithLock(path("/src/sub")));
+        assertNull(mFileStore.lookUpWithLock(path("/src/sub/file")));
+        assertTrue(mFileStore.lookUpWithLock(path("/dst/moved")).isDirectory());
+        assertEquals(inode, mFileStore.lookUpWithLock(path("/dst/moved/file")).fileKey());
+        assertEquals(ImmutableSet.of("/dst/moved/file"), list("/dst/moved"));
+
+        //a directory can not be moved into itself
+        try {
+            mFileStore.move(path("/dst"), path("/dst/moved/dst"), false);
+            fail("moved a directory into itself");
+        } catch (FileSystemException e) {
+        }
+
+        //renaming over an existing file needs REPLACE_EXISTING
+        create(path("/dst/other"));
+        try {
+            mFileStore.move(path("/dst/other"), path("/dst/moved/file"), false);
+            fail("replaced a file");
+        } catch (FileAlreadyExistsException e) {
+        }
+        mFileStore.move(path("/dst/other"), path("/dst/moved/file"), true);
+        assertNull(mFileStore.lookUpWithLock(path("/dst/other")));
+        assertNotEquals(inode, mFileStore.lookUpWithLock(path("/dst/moved/file")).fileKey());
+    }
+
+    /**
+     * size of the file as recorded by the last commit: rolling back the database drops
+     * whatever is not committed yet, like a crash would
+     */
+    private long committedSize(long blockId) {
+        mDB.rollback();
+        final BlockGroup bg = mFileStore.mBlockGroups.get(blockId);
+        if(bg == null) {
+            return -1;
+        }
+        final long[] offsets = bg.getBlockOffsets();
+        return offsets[offsets.length - 1];
+    }
+
+    @Test
+    public void testForce() throws Exception {
+        final MondoFileChannel channel = (MondoFileChannel) mFileStore.newByteChannel(path("/file"),
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), null);
+        final long blockId = channel.mMetadata.blockId;
+        final byte[] data = new byte[300000];
+        new Random(1).nextBytes(data);
+
+        channel.write(ByteBuffer.wrap(data, 0, 200000));
+        channel.force(true);
+        assertEquals(200000, committedSize(blockId));
+        assertEquals(200000, channel.position());
+
+        //the channel goes on working on top of what was committed
+        channel.write(ByteBuffer.wrap(data, 200000, 100000));
+        channel.position(0);
+        final ByteBuffer contents = ByteBuffer.allocate(data.length);
+        while(contents.hasRemaining() && channel.read(contents) > 0);
+        assertArrayEquals(data, contents.array());
+
+        //the flush done on close happens in the background; sync waits for it
+        channel.close();
+        mFileStore.sync();
+        assertEquals(data.length, committedSize(blockId));
+
+        try {
+            channel.force(true);
+            fail("forced a closed channel");
+        } catch (ClosedChannelException e) {
+        }
+    }
+
+    @Test
+    public void testForceSyncsBlocksBeforeCommit() throws Exception {
+        final LooseBlockStore blocks = (LooseBlockStore) mFileStore.mBlockStore.getStore();
+        final GroupCommitter committer = mFileStore.mCommitter;
+
+        //registered after the block store, so it sees what the block store left behind
+        final List<long[]> preCommits = new ArrayList<long[]>();
+        committer.addPreCommit(new Flushable() {
+            @Override
+            public void flush() {
+                synchronized (preCommits) {
+                    preCommits.add(new long[]{blocks.getUnsyncedCount(), blocks.getSyncedCount(), committer.getCommitCount()});
+                }
+            }
+        });
+
+        final SeekableByteChannel channel = mFileStore.newByteChannel(path("/file"),
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), null);
+        final byte[] data = new byte[300000];
+        new Random(1).nextBytes(data);
+        channel.write(ByteBuffer.wrap(data));
+        final long synced = blocks.getSyncedCount();
+        final long commits = committer.getCommitCount();
+        ((MondoFileChannel) channel).force(true);
+        channel.close();
+
+        final long[] last;
+        synchronized (preCommits) {
+            for(long[] preCommit : preCommits) {
+                assertEquals("block files left unsynced at commit", 0, preCommit[0]);
+            }
+            last = preCommits.get(preCommits.size() - 1);
+        }
+        //the block files of the new version were forced, and before the commit that refers to them
+        assertTrue(last[1] > synced);
+        assertTrue(last[2] >= commits);
+        assertTrue(committer.getCommitCount() > last[2]);
+    }
+
+    @Test
+    public void testConcurrentDirectoryMoves() throws Exception {
+        mkdir("/p");
+        mkdir("/p/a");
+        mkdir("/p/b");
+
+        //each thread moves one directory into the other and back; together they could make a cycle
+        final String[][] moves = {
+                {"/p/a", "/p/b/a"},
+                {"/p/b", "/p/a/b"}
+        };
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[moves.length];
+        for(int t=0;t<threads.length;t++) {
+            final String[] move = moves[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for(int i=0;i<2000;i++) {
+                        try {
+                            mFileStore.move(path(move[0]), path(move[1]), false);
+                            mFileStore.move(path(move[1]), path(move[0]), false);
+                        } catch (FileSystemException e) {
+                            //the other thread got there first
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        if(error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        //both are still reachable from the root
+        Set<String> found = new HashSet<String>();
+        for(String dir : list("/p")) {
+            found.add(dir);
+            found.addAll(list(dir));
+        }
+        assertEquals(2, found.size());
+    }
+
+    private static BTreeMap<Object[], FileMetadata> createLegacyTable(DB db) {
+        BTreeMap<Object[], FileMetadata> legacy = db.treeMap("fileMetadata")
+                .keySerializer(new SerializerArrayTuple(Serializer.STRING_DELTA, Serializer.STRING))
+                .valueSerializer(FileMetadata.SERIALIZER)
+                .create();
+        FileMetadata dir = new FileMetadata();
+        dir.flags = FileMetadata.FLAG_DIR;
+        FileMetadata file = new FileMetadata();
+        file.blockId = 7;
+        file.size = 1234;
+        legacy.put(new Object[]{"", ""}, dir);
+        legacy.put(new Object[]{"/", "a"}, dir);
+        legacy.put(new Object[]{"/a", "f"}, file);
+        //a file whose directory was never created
+        legacy.put(new Object[]{"/b/c", "g"}, file);
+        return legacy;
+    }
+
+    private static Set<String> names(Namespace namespace, MondoFSPath dir) {
+        final Set<String> retval = new HashSet<String>();
+        namespace.list(namespace.resolveForListing(dir), null, 1000, false, new DirectoryVisitor() {
+            @Override
+            public boolean visit(String name, FileMetadata metadata) {
+                retval.add(name);
+                return true;
+            }
+        });
+        return retval;
+    }
+
+    @Test
+    public void testOnlineMigration() throws Exception {
+        DB db = DBMaker.memoryDB().make();
+        BTreeMap<Object[], FileMetadata> legacy = createLegacyTable(db);
+        FileMetadata dir = new FileMetadata();
+        dir.flags = FileMetadata.FLAG_DIR;
+        legacy.put(new Object[]{"/a", "sub"}, dir);
+        legacy.put(new Object[]{"/a/sub", "h"}, new FileMetadata());
+        legacy.put(new Object[]{"/", "e"}, dir);
+        legacy.put(new Object[]{"/e", "i"}, new FileMetadata());
+
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        GroupCommitter committer = new GroupCommitter(db, lock.writeLock(), 10, TimeUnit.MILLISECONDS, 1000);
+        BTreeMap<Long, BlockGroup> blockGroups = db.treeMap("blockGroups")
+                .keySerializer(Serializer.LONG_DELTA)
+                .valueSerializer(BlockGroup.SERIALIZER)
+                .create();
+        Namespace namespace = new Namespace(db, lock.readLock(), committer, blockGroups, 16, 1000);
+        try {
+            //nothing is migrated in the background here; everything used is moved over on the way
+            assertTrue(namespace.isMigrating());
+            assertEquals(1234, namespace.lookUp(path("/a/f")).size());
+            assertTrue(namespace.lookUp(path("/b/c")).isDirectory());
+            assertEquals(ImmutableSet.of("a", "b", "e"), names(namespace, path("/")));
+            try {
+                namespace.delete(path("/e"));
+                fail("deleted a directory with legacy entries");
+            } catch (DirectoryNotEmptyException e) {
+            }
+            try {
+                namespace.create(path("/b/c/g"), new FileMetadata());
+                fail("created over a legacy file");
+            } catch (FileAlreadyExistsException e) {
+            }
+
+            //a moved directory takes its legacy entries along
+            namespace.move(path("/a"), path("/x"), false);
+            assertNull(namespace.lookUp(path("/a/sub/h")));
+            assertNotNull(namespace.lookUp(path("/x/sub/h")));
+
+            namespace.migrate();
+            assertFalse(namespace.isMigrating());
+            assertTrue(legacy.isEmpty());
+            assertNull(namespace.lookUp(path("/a")));
+            assertNotNull(namespace.lookUp(path("/e/i")));
+            assertEquals(ImmutableSet.of("b", "e", "x"), names(namespace, path("/")));
+            assertEquals(ImmutableSet.of("f", "sub"), names(namespace, path("/x")));
+        } finally {
+            committer.close();
+        }
+    }
+
+    @Test
+    public void testOpenWithLegacyBlockGroups() throws Exception {
+        mFileStore.close();
+
+        File root = Files.createTempDir();
+        DB db = DBMaker.fileDB(new File(root, "db")).transactionEnable().make();
+        BTreeMap<Long, BlockGroup> blockGroups = db.treeMap("blockGroups")
+                .keySerializer(Serializer.LONG_DELTA)
+                .valueSerializer(BlockGroup.SERIALIZER)
+                .create();
+        //its blocks are missing, so it can not be migrated and stays in the old format.
+        //With this few records it shares a node with the new ones.
+        blockGroups.put(1000L, new BlockGroup(0, Hashing.sha1().hashInt(1),
+                ImmutableList.of(Hashing.sha1().hashInt(2)), null));
+        db.commit();
+        db.close();
+
+        mDB = DBMaker.fileDB(new File(root, "db")).transactionEnable().make();
+        mFileStore = new MondoFileStore(mDB, root);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+
+        //files written next to the old record are stored fine
+        for(int i=0;i<10;i++) {
+            SeekableByteChannel channel = mFileStore.newByteChannel(path("/file" + i),
+                    ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), null);
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) i, 1, 2, 3}));
+            channel.close();
+        }
+        mFileStore.sync();
+        for(int i=0;i<10;i++) {
+            final FileMetadata file = mFileStore.lookUpWithLock(path("/file" + i));
+            assertEquals(4, committedSize(file.blockId));
+        }
+        assertFalse(mFileStore.mBlockGroups.get(1000L).hasBlockLengths());
+    }
+
+    @Test
+    public void testMigrateLegacyPaths() throws Exception {
+        mFileStore.close();
+
+        File root = Files.createTempDir();
+        DB db = DBMaker.fileDB(new File(root, "db")).transactionEnable().make();
+        createLegacyTable(db);
+        db.commit();
+        db.close();
+
+        mFileStore = new MondoFileStore(DBMaker.fileDB(new File(root, "db")).transactionEnable().make(), root);
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+        assertTrue(mFileStore.lookUpWithLock(path("/a")).isDirectory());
+        assertEquals(1234, mFileStore.lookUpWithLock(path("/a/f")).size());
+        assertEquals(7, mFileStore.lookUpWithLock(path("/a/f")).blockId);
+        assertTrue(mFileStore.lookUpWithLock(path("/b/c")).isDirectory());
+        assertNotNull(mFileStore.lookUpWithLock(path("/b/c/g")));
+        assertEquals(ImmutableSet.of("/a", "/b"), list("/"));
+
+        //the rest is migrated in the background
+        final long deadline = System.currentTimeMillis() + 10000;
+        while(mFileStore.mNamespace.isMigrating() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(mFileStore.mNamespace.isMigrating());
+        assertEquals(ImmutableSet.of("/b/c/g"), list("/b/c"));
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmark() throws Exception {
+        final int files = 4000;
+        for(int numThreads : new int[]{1, 4, 16}) {
+            final double separate = stress(numThreads, files / numThreads, false);
+            final double shared = stress(numThreads, files / numThreads, true);
+            System.out.println(String.format("%2d threads: separate dirs %8.0f ops/s, one dir %8.0f ops/s",
+                    numThreads, separate, shared));
+        }
+
+        //repeated stats of the same files, like ls -l or a build tool
+        mkdir("/stat");
+        MondoFSPath[] paths = new MondoFSPath[1000];
+        for(int i=0;i<paths.length;i++) {
+            paths[i] = path("/stat/" + i);
+            create(paths[i]);
+        }
+        final int rounds = 200;
+        final long start = System.nanoTime();
+        for(int r=0;r<rounds;r++) {
+            for(MondoFSPath p : paths) {
+                mFileStore.lookUpWithLock(p);
+            }
+        }
+        System.out.println(String.format("stat: %.0f ops/s, %s", rounds * paths.length / ((System.nanoTime() - start) / 1e9),
+                mFileStore.getMetadataCacheStats()));
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmarkListing() throws Exception {
+        mFileStore.createDirectory(path("/list"));
+        final int numFiles = 100000;
+        for(int i=0;i<numFiles;i++) {
+            create(path("/list/file" + i));
+        }
+
+        for(int round=0;round<3;round++) {
+            //stream the names, then stat every entry, like ls -l on top of readdir
+            long start = System.nanoTime();
+            int count = 0;
+            DirectoryStream<Path> stream = mFileStore.createDirectoryStream(path("/list"), new DirectoryStream.Filter<Path>() {
+                @Override
+                public boolean accept(Path entry) {
+                    return true;
+                }
+            });
+            for(Path p : stream) {
+                assertNotNull(mFileStore.lookUpWithLock((MondoFSPath) p));
+                count++;
+            }
+            stream.close();
+            assertEquals(numFiles, count);
+            final double streamed = (System.nanoTime() - start) / 1e6;
+
+            //one pass that returns the metadata too
+            start = System.nanoTime();
+            final int[] visited = new int[1];
+            String cookie = null;
+            do {
+                cookie = mFileStore.listDirectory(path("/list"), cookie, 4096, new DirectoryVisitor() {
+                    @Override
+                    public boolean visit(String name, FileMetadata metadata) {
+                        visited[0]++;
+                        return true;
+                    }
+                });
+            } while(cookie != null);
+            assertEquals(numFiles, visited[0]);
+            final double listed = (System.nanoTime() - start) / 1e6;
+
+            System.out.println(String.format("%d entries: stream + stat %.0f ms, listDirectory %.0f ms",
+                    numFiles, streamed, listed));
+        }
+    }
+}
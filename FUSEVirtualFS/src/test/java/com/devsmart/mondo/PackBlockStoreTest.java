@@ -0,0 +1,162 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.*;
+
+public class PackBlockStoreTest {
+
+    private File mDir;
+
+    @Before
+    public void setup() {
+        mDir = Files.createTempDir();
+    }
+
+    private HashCode put(PackBlockStore store, byte[] data) throws Exception {
+        HashCode id = Hashing.sha1().hashBytes(data);
+        File tmp = File.createTempFile("block", ".dat", mDir);
+        Files.write(data, tmp);
+        store.put(id, tmp);
+        assertFalse(tmp.exists());
+        return id;
+    }
+
+    private static byte[] read(BlockReader store, HashCode id, long offset, int len) throws Exception {
+        ByteBuffer dst = ByteBuffer.allocate(len);
+        store.read(id, offset, dst);
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+
+    private static byte[] randomBytes(Random r, int len) {
+        byte[] retval = new byte[len];
+        r.nextBytes(retval);
+        return retval;
+    }
+
+    @Test
+    public void testPutAndRead() throws Exception {
+        PackBlockStore store = new PackBlockStore(DBMaker.memoryDB().make(), new ReentrantReadWriteLock(), new File(mDir, "packs"), 100000);
+        Random r = new Random(1);
+        byte[][] blocks = new byte[10][];
+        HashCode[] ids = new HashCode[blocks.length];
+        for(int i=0;i<blocks.length;i++) {
+            blocks[i] = randomBytes(r, 30000);
+            ids[i] = put(store, blocks[i]);
+        }
+
+        //storing a block again is a no-op
+        put(store, blocks[0]);
+
+        //three blocks fit in a pack
+        assertEquals(4, store.getPackCount());
+        for(int i=0;i<blocks.length;i++) {
+            assertTrue(store.contains(ids[i]));
+            assertEquals(30000, store.getLength(ids[i]));
+            assertArrayEquals(blocks[i], read(store, ids[i], 0, 30000));
+        }
+
+        //reads stop at the end of the block
+        assertArrayEquals(Arrays.copyOfRange(blocks[4], 29000, 30000), read(store, ids[4], 29000, 5000));
+        assertEquals(-1, store.getLength(Hashing.sha1().hashInt(1)));
+        store.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        DB db = DBMaker.memoryDB().make();
+        PackBlockStore store = new PackBlockStore(db, new ReentrantReadWriteLock(), new File(mDir, "packs"), 100000);
+        Random r = new Random(1);
+        byte[][] blocks = new byte[6][];
+        HashCode[] ids = new HashCode[blocks.length];
+        for(int i=0;i<blocks.length;i++) {
+            blocks[i] = randomBytes(r, 30000);
+            ids[i] = put(store, blocks[i]);
+        }
+        assertEquals(2, store.getPackCount());
+
+        //two thirds of the first pack are dead
+        store.delete(ids[0]);
+        store.delete(ids[1]);
+        assertFalse(store.contains(ids[0]));
+
+        assertEquals(0, store.compact(0.9));
+        assertEquals(60000, store.compact(0.5));
+        assertFalse(store.getPackFile(0).exists());
+
+        for(int i=2;i<blocks.length;i++) {
+            assertArrayEquals(blocks[i], read(store, ids[i], 0, 30000));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testReopenDropsUncommittedData() throws Exception {
+        File dbFile = new File(mDir, "db");
+        DB db = DBMaker.fileDB(dbFile).transactionEnable().make();
+        PackBlockStore store = new PackBlockStore(db, new ReentrantReadWriteLock(), new File(mDir, "packs"), 1000000);
+        Random r = new Random(1);
+        byte[] committed = randomBytes(r, 30000);
+        HashCode committedId = put(store, committed);
+        store.flush();
+        db.commit();
+
+        HashCode lostId = put(store, randomBytes(r, 30000));
+        store.close();
+        db.close();
+
+        db = DBMaker.fileDB(dbFile).transactionEnable().make();
+        store = new PackBlockStore(db, new ReentrantReadWriteLock(), new File(mDir, "packs"), 1000000);
+        assertFalse(store.contains(lostId));
+        assertEquals(30000, store.getPackFile(0).length());
+        assertArrayEquals(committed, read(store, committedId, 0, 30000));
+
+        //appends continue where the committed data ends
+        byte[] next = randomBytes(r, 1000);
+        HashCode nextId = put(store, next);
+        assertArrayEquals(next, read(store, nextId, 0, 1000));
+        assertArrayEquals(committed, read(store, committedId, 0, 30000));
+        store.close();
+        db.close();
+    }
+
+    @Test
+    public void testFileStoreWithPacks() throws Exception {
+        FileStoreConfig config = new FileStoreConfig();
+        config.blockStore = PackBlockStore.NAME;
+        config.chunker = "fastcdc-4096-16384-65536";
+        MondoFileStore fileStore = new MondoFileStore(DBMaker.memoryDB().make(), mDir, config);
+        assertTrue(fileStore.mBlockStore.getStore() instanceof PackBlockStore);
+
+        byte[] data = randomBytes(new Random(1), 3 * 1024 * 1024);
+        BlockWriter writer = new BlockWriter(fileStore);
+        writer.write(ByteBuffer.wrap(data));
+        BlockGroup bg = writer.finish();
+        assertTrue(bg.blocks.size() > 1);
+
+        //no per block files
+        assertEquals(0, new File(mDir, "data").list().length);
+
+        long offset = 0;
+        for(int i=0;i<bg.blocks.size();i++) {
+            final int len = (int) bg.getBlockLength(i);
+            assertArrayEquals(Arrays.copyOfRange(data, (int) offset, (int) offset + len),
+                    read(fileStore.mBlockReader, bg.blocks.get(i), 0, len));
+            offset += len;
+        }
+        fileStore.close();
+    }
+}
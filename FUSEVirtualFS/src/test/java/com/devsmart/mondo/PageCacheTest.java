@@ -0,0 +1,100 @@
+package com.devsmart.mondo;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageCacheTest {
+
+    private MondoFileStore mFileStore;
+
+    @Before
+    public void setup() {
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private HashCode createBlock(byte[] data) throws Exception {
+        HashCode hash = Hashing.sha1().hashBytes(data);
+        File f = mFileStore.getFileBlock(hash);
+        f.getParentFile().mkdirs();
+        Files.write(data, f);
+        return hash;
+    }
+
+    @Test
+    public void testReadAcrossPages() throws Exception {
+        byte[] data = new byte[5 * PageCache.PAGE_SIZE + 300];
+        new Random(1).nextBytes(data);
+        HashCode hash = createBlock(data);
+
+        PageCache cache = new PageCache(mFileStore.mBlockChannels, 16 * PageCache.PAGE_SIZE);
+
+        ByteBuffer dst = ByteBuffer.allocate(3 * PageCache.PAGE_SIZE);
+        cache.read(hash, 100, dst);
+        assertFalse(dst.hasRemaining());
+        for(int i=0;i<dst.capacity();i++) {
+            assertEquals(data[100 + i], dst.get(i));
+        }
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.getMissCount());
+
+        //second read is served from the cache and stops at the end of the block
+        dst.clear();
+        cache.read(hash, 4 * PageCache.PAGE_SIZE + 10, dst);
+        assertEquals(PageCache.PAGE_SIZE + 290, dst.position());
+        assertEquals(data[data.length - 1], dst.get(dst.position() - 1));
+        assertEquals(1, cache.getHitCount());
+
+        cache.close();
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        Random r = new Random(1);
+        byte[] hot = new byte[20 * PageCache.PAGE_SIZE];
+        r.nextBytes(hot);
+        byte[] scan = new byte[1000 * PageCache.PAGE_SIZE];
+        r.nextBytes(scan);
+        HashCode hotHash = createBlock(hot);
+        HashCode scanHash = createBlock(scan);
+
+        PageCache cache = new PageCache(mFileStore.mBlockChannels, 100 * PageCache.PAGE_SIZE);
+
+        ByteBuffer dst = ByteBuffer.allocate(PageCache.PAGE_SIZE);
+        for(int pass=0;pass<4;pass++) {
+            for(int i=0;i<20;i++) {
+                dst.clear();
+                cache.read(hotHash, (long) i * PageCache.PAGE_SIZE, dst);
+            }
+        }
+
+        //one large sequential scan must not flush the frequently used pages
+        for(int i=0;i<1000;i++) {
+            dst.clear();
+            cache.read(scanHash, (long) i * PageCache.PAGE_SIZE, dst);
+        }
+
+        assertEquals(100, cache.size());
+        for(int i=0;i<20;i++) {
+            assertTrue("hot page " + i + " evicted", cache.contains(hotHash, i));
+        }
+
+        cache.close();
+    }
+}
@@ -0,0 +1,371 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.data.ContentHash;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WriteOutBlockActionTest {
+
+    private MondoFileStore mFileStore;
+    private MondoFilesystem mFilesystem;
+
+    @Before
+    public void setup() {
+        mFileStore = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir());
+        mFilesystem = new MondoFilesystem(new MondoFilesystemProvider(mFileStore), mFileStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFileStore.close();
+    }
+
+    private MondoFileChannel create(String name) throws Exception {
+        MondoFSPath path = MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+        return (MondoFileChannel) mFileStore.newByteChannel(path,
+                ImmutableSet.<OpenOption>of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                null);
+    }
+
+    private MondoFileChannel open(String name) throws Exception {
+        MondoFSPath path = MondoFSPath.parsePath(mFilesystem, name, new String[0]);
+        return (MondoFileChannel) mFileStore.newByteChannel(path,
+                ImmutableSet.<OpenOption>of(StandardOpenOption.READ, StandardOpenOption.WRITE),
+                null);
+    }
+
+    /**
+     * run the flush step of close and commit the result, like the store's flush task
+     */
+    private BlockGroup flush(MondoFileChannel channel) throws Exception {
+        WriteOutBlockAction action = new WriteOutBlockAction();
+        action.mFileStore = mFileStore;
+        action.mFileChannel = channel;
+        BlockGroup bg = action.doIt();
+
+        channel.mMetadata.size = channel.size();
+        mFileStore.mBlockGroups.put(channel.mMetadata.blockId, bg);
+        mFileStore.mNamespace.update(channel.mMetadata);
+        return bg;
+    }
+
+    private BlockGroup chunkAll(byte[] data) throws Exception {
+        BlockWriter writer = new BlockWriter(mFileStore);
+        writer.write(ByteBuffer.wrap(data));
+        return writer.finish();
+    }
+
+    private static void write(MondoFileChannel channel, byte[] data, int off, int len) throws Exception {
+        ByteBuffer src = ByteBuffer.wrap(data, off, len);
+        channel.position(off);
+        while(src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    @Test
+    public void testSequentialWriteIsChunkedWhileWriting() throws Exception {
+        byte[] data = new byte[6 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = create("/seq.dat");
+        for(int i=0;i<data.length;i+=100000) {
+            write(channel, data, i, Math.min(100000, data.length - i));
+        }
+
+        //everything up to the last boundary is already stored
+        assertNotNull(channel.mBlockWriter);
+        assertEquals(data.length, channel.mBlockWriter.getOffset());
+
+        BlockGroup expected = chunkAll(data);
+        assertTrue(expected.blocks.size() > 1);
+        BlockGroup bg = flush(channel);
+        assertEquals(expected.blocks, bg.blocks);
+        assertEquals(expected.checksum, bg.checksum);
+    }
+
+    @Test
+    public void testOverwriteReusesLeadingBlocks() throws Exception {
+        byte[] data = new byte[6 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = create("/rand.dat");
+        write(channel, data, 0, data.length);
+        BlockGroup original = flush(channel);
+
+        //modify a few bytes near the end of the file
+        final int modified = data.length - 10000;
+        for(int i=0;i<100;i++) {
+            data[modified + i] ^= 0x55;
+        }
+
+        channel = open("/rand.dat");
+        write(channel, data, modified, 100);
+        assertNull(channel.mBlockWriter);
+
+        BlockGroup bg = flush(channel);
+        BlockGroup expected = chunkAll(data);
+        assertEquals(expected.blocks, bg.blocks);
+        assertEquals(original.blocks.subList(0, original.blocks.size() - 1), bg.blocks.subList(0, original.blocks.size() - 1));
+
+        //rewriting already chunked data falls back to the last boundary before it
+        channel = open("/rand.dat");
+        write(channel, data, 0, data.length);
+        data[500] ^= 0x55;
+        write(channel, data, 500, 1);
+        assertEquals(500, channel.mDirtyFrom);
+
+        bg = flush(channel);
+        assertEquals(chunkAll(data).blocks, bg.blocks);
+    }
+
+    @Test
+    public void testOverwriteRechunksOnlyAroundChanges() throws Exception {
+        byte[] data = new byte[32 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = create("/delta.dat");
+        write(channel, data, 0, data.length);
+        BlockGroup original = flush(channel);
+        assertTrue(original.blocks.size() > 10);
+
+        //two small writes far apart, neither near the ends of the file
+        final int[] modified = {8 * 1024 * 1024 + 123, 24 * 1024 * 1024 + 4567};
+        channel = open("/delta.dat");
+        for(int offset : modified) {
+            for(int i=0;i<4096;i++) {
+                data[offset + i] ^= 0x55;
+            }
+            write(channel, data, offset, 4096);
+        }
+
+        final long putsBefore = mFileStore.getBlockIndexStats().puts;
+        BlockGroup bg = flush(channel);
+        final long blocksChunked = mFileStore.getBlockIndexStats().puts - putsBefore;
+
+        assertEquals(chunkAll(data).blocks, bg.blocks);
+        //only the blocks around each change were chunked again
+        assertTrue("chunked " + blocksChunked + " blocks", blocksChunked <= 6);
+        int changed = 0;
+        for(HashCode block : bg.blocks) {
+            if(!original.blocks.contains(block)) {
+                changed++;
+            }
+        }
+        assertTrue(changed >= 2 && changed <= 4);
+        assertEquals(original.blocks.get(original.blocks.size() - 1), bg.blocks.get(bg.blocks.size() - 1));
+
+        byte[] readBack = new byte[data.length];
+        channel = open("/delta.dat");
+        ByteBuffer dst = ByteBuffer.wrap(readBack);
+        while(dst.hasRemaining() && channel.read(dst) > 0);
+        assertArrayEquals(data, readBack);
+    }
+
+    @Test
+    public void testHolesAreNotStored() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        final int holeStart = 100000;
+        final int holeEnd = 2 * 1024 * 1024;
+        Arrays.fill(data, holeStart, holeEnd, (byte) 0);
+
+        //write both ends and let the middle be a hole
+        MondoFileChannel channel = create("/sparse.dat");
+        write(channel, data, 0, holeStart);
+        write(channel, data, holeEnd, data.length - holeEnd);
+
+        BlockGroup bg = flush(channel);
+        assertEquals(data.length, bg.getBlockOffsets()[bg.blocks.size()]);
+        long holeLength = 0;
+        for(int i=0;i<bg.blocks.size();i++) {
+            final HashCode block = bg.blocks.get(i);
+            if(BlockGroup.isHole(block)) {
+                holeLength += bg.getBlockLength(i);
+                assertTrue(mFileStore.mBlockStore.getLength(block) < 0);
+            }
+        }
+        assertTrue(holeLength > holeEnd - holeStart - 2 * MondoFileStore.BUFFER_SIZE);
+
+        channel = open("/sparse.dat");
+        byte[] readBack = new byte[data.length];
+        ByteBuffer dst = ByteBuffer.wrap(readBack);
+        while(dst.hasRemaining() && channel.read(dst) > 0);
+        assertArrayEquals(data, readBack);
+
+        //extending a file only adds a hole
+        channel.truncate(2L * data.length);
+        bg = flush(channel);
+        final int last = bg.blocks.size() - 1;
+        assertTrue(BlockGroup.isHole(bg.blocks.get(last)));
+        assertEquals(data.length, bg.getBlockLength(last));
+    }
+
+    @Test
+    public void testTruncateReusesLeadingBlocks() throws Exception {
+        byte[] data = new byte[6 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        MondoFileChannel channel = create("/truncate.dat");
+        write(channel, data, 0, data.length);
+        BlockGroup original = flush(channel);
+
+        final int newSize = 4 * 1024 * 1024;
+        channel = open("/truncate.dat");
+        channel.truncate(newSize);
+        BlockGroup bg = flush(channel);
+
+        BlockGroup expected = chunkAll(Arrays.copyOf(data, newSize));
+        assertEquals(expected.blocks, bg.blocks);
+        int kept = 0;
+        while(original.getBlockOffsets()[kept + 1] <= newSize) {
+            kept++;
+        }
+        assertTrue(kept > 0);
+        assertEquals(original.blocks.subList(0, kept), bg.blocks.subList(0, kept));
+    }
+
+    @Test
+    public void testParallelIngest() throws Exception {
+        FileStoreConfig config = new FileStoreConfig();
+        config.ingestThreads = 3;
+        //small enough that the writers have to wait for the hashing threads
+        config.ingestBudget = 2 * BlockWriter.PIECE_SIZE;
+        final MondoFileStore store = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir(), config);
+
+        final byte[][] files = new byte[4][];
+        final BlockGroup[] results = new BlockGroup[files.length];
+        Thread[] writers = new Thread[files.length];
+        for(int i=0;i<files.length;i++) {
+            files[i] = new byte[3 * 1024 * 1024];
+            new Random(i).nextBytes(files[i]);
+
+            final int fileNum = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        BlockWriter writer = new BlockWriter(store);
+                        for(int off=0;off<files[fileNum].length;off+=100000) {
+                            writer.write(files[fileNum], off, Math.min(100000, files[fileNum].length - off));
+                        }
+                        results[fileNum] = writer.finish();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writers[i].start();
+        }
+
+        for(int i=0;i<files.length;i++) {
+            writers[i].join();
+            BlockGroup expected = chunkAll(files[i]);
+            assertEquals(expected.blocks, results[i].blocks);
+            for(int j=0;j<expected.blocks.size();j++) {
+                File block = store.getFileBlock(expected.blocks.get(j));
+                assertTrue(block.exists());
+                assertEquals(expected.getBlockLength(j), block.length());
+            }
+        }
+
+        //every piece was handed back
+        assertEquals(2, store.mIngestBudget.availablePermits());
+        store.close();
+    }
+
+    @Test
+    public void testManyOpenWriters() throws Exception {
+        FileStoreConfig config = new FileStoreConfig();
+        config.ingestBudget = 4 * BlockWriter.PIECE_SIZE;
+        final MondoFileStore store = new MondoFileStore(DBMaker.memoryDB().make(), Files.createTempDir(), config);
+
+        //more writers with a partial piece than there are permits, all on one thread
+        Random r = new Random(1);
+        BlockWriter[] writers = new BlockWriter[20];
+        byte[][] files = new byte[writers.length][];
+        for(int i=0;i<writers.length;i++) {
+            files[i] = new byte[1000];
+            r.nextBytes(files[i]);
+            writers[i] = new BlockWriter(store);
+            writers[i].write(files[i], 0, files[i].length);
+        }
+
+        //and one that needs the budget
+        byte[] big = new byte[3 * 1024 * 1024];
+        r.nextBytes(big);
+        BlockWriter bigWriter = new BlockWriter(store);
+        bigWriter.write(big, 0, big.length);
+        assertEquals(chunkAll(big).blocks, bigWriter.finish().blocks);
+
+        for(int i=0;i<writers.length;i++) {
+            assertEquals(chunkAll(files[i]).blocks, writers[i].finish().blocks);
+        }
+        assertEquals(4, store.mIngestBudget.availablePermits());
+        store.close();
+    }
+
+    @Test
+    public void testChunkerIsRecorded() throws Exception {
+        File dataRoot = Files.createTempDir();
+        File dbFile = new File(dataRoot, "db");
+
+        FileStoreConfig config = new FileStoreConfig();
+        config.chunker = "fastcdc-4096-16384-65536";
+        MondoFileStore store = new MondoFileStore(DBMaker.fileDB(dbFile).transactionEnable().make(), dataRoot, config);
+        assertEquals(config.chunker, store.mChunker.getName());
+        store.close();
+
+        //the configured chunker only applies to new stores
+        store = new MondoFileStore(DBMaker.fileDB(dbFile).transactionEnable().make(), dataRoot, new FileStoreConfig());
+        assertEquals(config.chunker, store.mChunker.getName());
+        store.close();
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        File dataRoot = Files.createTempDir();
+        File dbFile = new File(dataRoot, "db");
+
+        FileStoreConfig config = new FileStoreConfig();
+        config.contentHash = ContentHash.BLAKE3.getName();
+        MondoFileStore store = new MondoFileStore(DBMaker.fileDB(dbFile).transactionEnable().make(), dataRoot, config);
+        assertSame(ContentHash.BLAKE3, store.mContentHash);
+
+        byte[] data = new byte[3 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        BlockWriter writer = new BlockWriter(store);
+        writer.write(ByteBuffer.wrap(data));
+        BlockGroup bg = writer.finish();
+        assertSame(ContentHash.BLAKE3, bg.getContentHash());
+
+        long offset = 0;
+        for(int i=0;i<bg.blocks.size();i++) {
+            HashCode id = bg.blocks.get(i);
+            File block = store.getFileBlock(id);
+            assertTrue(block.getName().endsWith(".blake3"));
+            assertEquals(ContentHash.BLAKE3.toId(ContentHash.BLAKE3.hashFunction().hashBytes(data, (int) offset, (int) bg.getBlockLength(i))), id);
+            offset += bg.getBlockLength(i);
+        }
+        store.close();
+
+        store = new MondoFileStore(DBMaker.fileDB(dbFile).transactionEnable().make(), dataRoot, new FileStoreConfig());
+        assertSame(ContentHash.BLAKE3, store.mContentHash);
+        store.close();
+    }
+}
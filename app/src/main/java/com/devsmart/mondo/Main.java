@@ -33,6 +33,7 @@ public class Main {
         String username;
         String password;
         String mount;
+        FileStoreConfig store;
 
     }
 
@@ -53,7 +54,8 @@ public class Main {
                     .transactionEnable()
                     .make();
 
-            mFileStore = new MondoFileStore(db, dataRoot);
+            FileStoreConfig storeConfig = mConfigFile.store != null ? mConfigFile.store : new FileStoreConfig();
+            mFileStore = new MondoFileStore(db, dataRoot, storeConfig);
             MondoFilesystemProvider provider = new MondoFilesystemProvider(mFileStore);
             MondoFilesystem fs = new MondoFilesystem(provider, mFileStore);
 
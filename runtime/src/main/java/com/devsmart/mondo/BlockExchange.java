@@ -0,0 +1,865 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.kademlia.CongestionWindow;
+import com.devsmart.mondo.kademlia.FragmentReceiver;
+import com.devsmart.mondo.kademlia.FragmentSender;
+import com.devsmart.mondo.kademlia.ID;
+import com.devsmart.mondo.kademlia.Message;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves content blocks between a {@link MondoNode} and its peers with the HAVE, GET_BLOCK,
+ * PUT_BLOCK and DATA messages, see {@link Message}.
+ *
+ * <p>A block is sent in fragments by a {@link FragmentSender}, as many at a time as the
+ * {@link CongestionWindow} of the peer allows, and acked fragment by fragment by the
+ * {@link FragmentReceiver} on the other side. Acks clock out the next fragments on the
+ * socket reader thread; {@link #run()} is called every {@link #TICK_MILLIS} to retry
+ * requests, fire retransmit timers and drop transfers that went quiet. Everything that
+ * touches the {@link BlockRepository} or hashes a whole block runs on a few I/O threads
+ * instead, so a slow disk does not hold up the messages of other peers.</p>
+ *
+ * <p>All transfers to a peer share one congestion window and round trip time estimate,
+ * kept for {@link #PATH_LINGER} after the last of them, so parallel transfers do not each
+ * fill the path and a new transfer starts from what earlier ones learned. Every tick pumps
+ * every sender, as room freed by the acks of one transfer may be taken by another.</p>
+ *
+ * <p>Transfer ids are picked by the peer that starts a transfer, so both peers of a
+ * transfer key it by the peer's address, the id and who picked it.</p>
+ *
+ * <p>Any address can start a transfer, so the transfers started by peers are limited in
+ * number and in the bytes they may buffer, per peer host and in total. A put that would
+ * go over is refused and a get is not answered, the peer asks again later.</p>
+ */
+class BlockExchange implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockExchange.class);
+
+    static final long TICK_MILLIS = 10;
+
+    /** wait for the response to a request this long before sending it again */
+    static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    static final int REQUEST_TRIES = 5;
+
+    /** an accepted put that brings no data for this long is dropped */
+    static final long START_TIMEOUT = REQUEST_TIMEOUT * REQUEST_TRIES;
+
+    /** a receiver that got no fragment for this long gives up */
+    static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    /** a finished receiver stays around this long to ack fragments whose acks were lost */
+    static final long LINGER = TimeUnit.SECONDS.toNanos(10);
+
+    static final int MAX_WINDOW = 1024;
+
+    /** the congestion window of a peer no transfer used for this long is dropped */
+    static final long PATH_LINGER = TimeUnit.MINUTES.toNanos(1);
+    static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    static final int MAX_REMOTE_TRANSFERS = 64;
+    static final int MAX_REMOTE_TRANSFERS_PER_PEER = 8;
+    static final long MAX_REMOTE_BYTES = 256L * 1024 * 1024;
+    static final long MAX_REMOTE_BYTES_PER_PEER = MAX_BLOCK_SIZE;
+
+    static final int IO_THREADS = 2;
+
+    /** requests of peers waiting for an I/O thread; more are dropped */
+    static final int MAX_QUEUED_REQUESTS = 256;
+
+    private static class TransferKey {
+
+        final InetSocketAddress remote;
+        final int transferId;
+        /** true if the transfer id was picked by this node */
+        final boolean initiator;
+
+        TransferKey(InetSocketAddress remote, int transferId, boolean initiator) {
+            this.remote = remote;
+            this.transferId = transferId;
+            this.initiator = initiator;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(remote, transferId, initiator);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof TransferKey)) {
+                return false;
+            }
+            TransferKey o = (TransferKey) obj;
+            return transferId == o.transferId && initiator == o.initiator && remote.equals(o.remote);
+        }
+    }
+
+    private class Transfer implements FragmentSender.Output {
+
+        final TransferKey key;
+        final ID blockId;
+        final int type;
+        SettableFuture<byte[]> getResult;
+        SettableFuture<Boolean> putResult;
+        /** the block, on the sending side */
+        byte[] data;
+
+        boolean awaitingResponse;
+        /** all fragments of a put were acked, waiting for the peer to store the block */
+        boolean awaitingStatus;
+        int tries;
+        long requestSentAt;
+
+        FragmentSender sender;
+        FragmentReceiver receiver;
+        long lastActivity;
+        boolean started;
+        boolean complete;
+        /** final status of a put received from a peer, -1 until the block is stored */
+        int status = -1;
+        long finishedAt = -1;
+
+        //guarded by mRemoteLoad
+        boolean reserved;
+        long reservedBytes;
+
+        Transfer(TransferKey key, ID blockId, int type) {
+            this.key = key;
+            this.blockId = blockId;
+            this.type = type;
+            this.lastActivity = System.nanoTime();
+        }
+
+        @Override
+        public void sendFragment(int sequence, byte[] data, int offset, int length) {
+            Message msg = borrow();
+            Message.DataMessage.formatFragment(msg, key.initiator, key.transferId, sequence, data, offset, length);
+            send(msg, key.remote);
+        }
+    }
+
+    /** congestion state of the path to a peer */
+    private static class PeerPath {
+        final CongestionWindow window = new CongestionWindow(MAX_WINDOW);
+        volatile long lastUsed;
+    }
+
+    private static class HaveRequest {
+        final InetSocketAddress remote;
+        final ID blockId;
+        final SettableFuture<Integer> result = SettableFuture.create();
+        int tries;
+        long sentAt;
+
+        HaveRequest(InetSocketAddress remote, ID blockId) {
+            this.remote = remote;
+            this.blockId = blockId;
+            this.sentAt = System.nanoTime();
+        }
+    }
+
+    private final MondoNode mNode;
+    private volatile BlockRepository mRepository;
+    private final AtomicInteger mNextTransferId = new AtomicInteger(new Random().nextInt());
+    private final ConcurrentMap<TransferKey, Transfer> mTransfers = new ConcurrentHashMap<TransferKey, Transfer>();
+    private final ConcurrentMap<Map.Entry<InetSocketAddress, ID>, HaveRequest> mHaveRequests =
+            new ConcurrentHashMap<Map.Entry<InetSocketAddress, ID>, HaveRequest>();
+    private final ThreadPoolExecutor mIOExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("block io %d")
+                    .setDaemon(true)
+                    .build());
+
+    private final ConcurrentMap<InetSocketAddress, PeerPath> mPaths = new ConcurrentHashMap<InetSocketAddress, PeerPath>();
+
+    /** peer host -> {transfers, bytes} of the transfers it started */
+    private final Map<InetAddress, long[]> mRemoteLoad = new HashMap<InetAddress, long[]>();
+    //guarded by mRemoteLoad
+    private int mRemoteTransfers;
+    private long mRemoteBytes;
+
+    BlockExchange(MondoNode node) {
+        mNode = node;
+    }
+
+    void setRepository(BlockRepository repository) {
+        mRepository = repository;
+    }
+
+    void close() {
+        mIOExecutor.shutdownNow();
+    }
+
+    private Message borrow() {
+        try {
+            return mNode.mMessagePool.borrowObject();
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * send {@code msg} and give it back to the pool
+     */
+    private void send(Message msg, InetSocketAddress address) {
+        try {
+            msg.mPacket.setSocketAddress(address);
+            mNode.mDatagramSocket.send(msg.mPacket);
+        } catch (IOException e) {
+            logger.warn("unable to send to {}: {}", address, e.getMessage());
+        } finally {
+            try {
+                mNode.mMessagePool.returnObject(msg);
+            } catch (Exception e) {
+                logger.error("", e);
+            }
+        }
+    }
+
+    /**
+     * Run the part of a peer's request that needs the repository on an I/O thread. When
+     * they are too far behind the request is dropped; the peer asks again.
+     *
+     * @return false if dropped
+     */
+    private boolean submitRequest(Runnable task) {
+        try {
+            mIOExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.debug("dropping request, block io is behind");
+            return false;
+        }
+    }
+
+    private static boolean hashesTo(byte[] data, ID id) {
+        return new ID(Hashing.sha1().hashBytes(data).asBytes(), 0).equals(id);
+    }
+
+    private static Map.Entry<InetSocketAddress, ID> haveKey(InetSocketAddress address, ID blockId) {
+        return new AbstractMap.SimpleImmutableEntry<InetSocketAddress, ID>(address, blockId);
+    }
+
+    /**
+     * Count {@code t}, started by a peer, and {@code bytes} more of buffered data against
+     * the limits.
+     *
+     * @return false if that would go over
+     */
+    private boolean reserve(Transfer t, long bytes) {
+        final InetAddress peer = t.key.remote.getAddress();
+        synchronized (mRemoteLoad) {
+            long[] load = mRemoteLoad.get(peer);
+            final long peerTransfers = load != null ? load[0] : 0;
+            final long peerBytes = load != null ? load[1] : 0;
+            if(!t.reserved && (mRemoteTransfers >= MAX_REMOTE_TRANSFERS || peerTransfers >= MAX_REMOTE_TRANSFERS_PER_PEER)) {
+                return false;
+            }
+            if(mRemoteBytes + bytes > MAX_REMOTE_BYTES || peerBytes + bytes > MAX_REMOTE_BYTES_PER_PEER) {
+                return false;
+            }
+
+            if(load == null) {
+                load = new long[2];
+                mRemoteLoad.put(peer, load);
+            }
+            if(!t.reserved) {
+                t.reserved = true;
+                load[0]++;
+                mRemoteTransfers++;
+            }
+            load[1] += bytes;
+            mRemoteBytes += bytes;
+            t.reservedBytes += bytes;
+            return true;
+        }
+    }
+
+    private void release(Transfer t) {
+        final InetAddress peer = t.key.remote.getAddress();
+        synchronized (mRemoteLoad) {
+            if(!t.reserved) {
+                return;
+            }
+            t.reserved = false;
+            long[] load = mRemoteLoad.get(peer);
+            load[0]--;
+            load[1] -= t.reservedBytes;
+            mRemoteTransfers--;
+            mRemoteBytes -= t.reservedBytes;
+            t.reservedBytes = 0;
+            if(load[0] == 0) {
+                mRemoteLoad.remove(peer);
+            }
+        }
+    }
+
+    private void remove(Transfer t) {
+        mTransfers.remove(t.key, t);
+        release(t);
+        if(t.sender != null) {
+            t.sender.close();
+        }
+    }
+
+    /**
+     * @return the congestion window shared by all transfers to {@code remote}
+     */
+    private CongestionWindow window(InetSocketAddress remote, long now) {
+        PeerPath path = mPaths.get(remote);
+        if(path == null) {
+            final PeerPath newPath = new PeerPath();
+            path = mPaths.putIfAbsent(remote, newPath);
+            if(path == null) {
+                path = newPath;
+            }
+        }
+        path.lastUsed = now;
+        return path.window;
+    }
+
+    ListenableFuture<Integer> have(InetSocketAddress address, ID blockId) {
+        HaveRequest request = new HaveRequest(address, blockId);
+        HaveRequest pending = mHaveRequests.putIfAbsent(haveKey(address, blockId), request);
+        if(pending != null) {
+            return pending.result;
+        }
+        synchronized (request) {
+            sendHave(request);
+        }
+        return request.result;
+    }
+
+    private void sendHave(HaveRequest request) {
+        request.tries++;
+        request.sentAt = System.nanoTime();
+        Message msg = borrow();
+        Message.HaveMessage.formatRequest(msg, request.blockId);
+        send(msg, request.remote);
+    }
+
+    ListenableFuture<byte[]> getBlock(InetSocketAddress address, ID blockId) {
+        final TransferKey key = new TransferKey(address, mNextTransferId.incrementAndGet(), true);
+        Transfer t = new Transfer(key, blockId, Message.GET_BLOCK);
+        t.getResult = SettableFuture.create();
+        t.awaitingResponse = true;
+        synchronized (t) {
+            mTransfers.put(key, t);
+            sendRequest(t);
+        }
+        return t.getResult;
+    }
+
+    ListenableFuture<Boolean> putBlock(InetSocketAddress address, ID blockId, byte[] data) {
+        final TransferKey key = new TransferKey(address, mNextTransferId.incrementAndGet(), true);
+        Transfer t = new Transfer(key, blockId, Message.PUT_BLOCK);
+        t.putResult = SettableFuture.create();
+        t.data = data;
+        t.awaitingResponse = true;
+        synchronized (t) {
+            mTransfers.put(key, t);
+            sendRequest(t);
+        }
+        return t.putResult;
+    }
+
+    private void sendRequest(Transfer t) {
+        t.tries++;
+        t.requestSentAt = System.nanoTime();
+        Message msg = borrow();
+        if(t.type == Message.GET_BLOCK) {
+            Message.GetBlockMessage.formatRequest(msg, t.key.transferId, t.blockId);
+        } else {
+            Message.PutBlockMessage.formatRequest(msg, t.key.transferId, t.blockId, t.data.length);
+        }
+        send(msg, t.key.remote);
+    }
+
+    private void finish(Transfer t, Throwable error) {
+        remove(t);
+        if(t.getResult != null) {
+            t.getResult.setException(error);
+        }
+        if(t.putResult != null) {
+            t.putResult.setException(error);
+        }
+    }
+
+    void handleHave(Message msg) {
+        final ID blockId = Message.HaveMessage.getBlockId(msg);
+        final InetSocketAddress remote = msg.getRemoteSocketAddress();
+        if(msg.isResponse()) {
+            HaveRequest request = mHaveRequests.remove(haveKey(remote, blockId));
+            if(request != null) {
+                request.result.set(Message.HaveMessage.getLength(msg));
+            }
+        } else {
+            submitRequest(new Runnable() {
+                @Override
+                public void run() {
+                    int length = -1;
+                    try {
+                        final BlockRepository repository = mRepository;
+                        if(repository != null) {
+                            length = repository.getLength(blockId);
+                        }
+                    } catch (IOException e) {
+                        logger.error("", e);
+                    }
+                    Message resp = borrow();
+                    Message.HaveMessage.formatResponse(resp, blockId, length);
+                    send(resp, remote);
+                }
+            });
+        }
+    }
+
+    void handleGetBlock(Message msg) {
+        final int transferId = Message.GetBlockMessage.getTransferId(msg);
+        final InetSocketAddress remote = msg.getRemoteSocketAddress();
+        final long now = System.nanoTime();
+
+        if(msg.isResponse()) {
+            final Transfer t = mTransfers.get(new TransferKey(remote, transferId, true));
+            if(t == null) {
+                return;
+            }
+            synchronized (t) {
+                if(!t.awaitingResponse) {
+                    return;
+                }
+                t.awaitingResponse = false;
+                final int length = Message.GetBlockMessage.getLength(msg);
+                if(length < 0) {
+                    remove(t);
+                    t.getResult.set(null);
+                } else if(length > MAX_BLOCK_SIZE) {
+                    finish(t, new IOException("block " + t.blockId + " is too large: " + length));
+                } else {
+                    t.receiver = new FragmentReceiver(length);
+                    t.lastActivity = now;
+                }
+            }
+
+        } else {
+            final TransferKey key = new TransferKey(remote, transferId, false);
+            Transfer t = mTransfers.get(key);
+            if(t == null) {
+                t = new Transfer(key, Message.GetBlockMessage.getBlockId(msg), Message.GET_BLOCK);
+                if(!reserve(t, 0)) {
+                    logger.debug("too many transfers, ignoring get from {}", remote);
+                    return;
+                }
+                mTransfers.put(key, t);
+                final Transfer transfer = t;
+                if(!submitRequest(new Runnable() {
+                    @Override
+                    public void run() {
+                        startSending(transfer);
+                    }
+                })) {
+                    remove(t);
+                }
+                return;
+            }
+
+            synchronized (t) {
+                if(t.sender == null) {
+                    //still reading the block
+                    return;
+                }
+                //a repeated request means the response was lost; the transfer goes on
+                Message resp = borrow();
+                Message.GetBlockMessage.formatResponse(resp, transferId, t.data.length);
+                send(resp, remote);
+                t.lastActivity = now;
+                t.sender.pump(now, t);
+            }
+        }
+    }
+
+    /**
+     * read the block a peer asked for and start sending it. Runs on an I/O thread.
+     */
+    private void startSending(Transfer t) {
+        final BlockRepository repository = mRepository;
+        byte[] data = null;
+        try {
+            if(repository != null) {
+                final int length = repository.getLength(t.blockId);
+                if(length >= 0 && !reserve(t, length)) {
+                    logger.debug("too many bytes in flight, ignoring get from {}", t.key.remote);
+                    remove(t);
+                    return;
+                }
+                if(length >= 0) {
+                    data = repository.read(t.blockId);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("unable to read block {}", t.blockId, e);
+        }
+
+        synchronized (t) {
+            if(data == null) {
+                remove(t);
+                Message resp = borrow();
+                Message.GetBlockMessage.formatResponse(resp, t.key.transferId, -1);
+                send(resp, t.key.remote);
+                return;
+            }
+
+            logger.debug("sending block {} to {}", t.blockId, t.key.remote);
+            final long now = System.nanoTime();
+            t.data = data;
+            t.sender = new FragmentSender(data, window(t.key.remote, now));
+            t.lastActivity = now;
+            Message resp = borrow();
+            Message.GetBlockMessage.formatResponse(resp, t.key.transferId, data.length);
+            send(resp, t.key.remote);
+            t.sender.pump(now, t);
+        }
+    }
+
+    void handlePutBlock(Message msg) {
+        final int transferId = Message.PutBlockMessage.getTransferId(msg);
+        final InetSocketAddress remote = msg.getRemoteSocketAddress();
+        final long now = System.nanoTime();
+
+        if(msg.isResponse()) {
+            final Transfer t = mTransfers.get(new TransferKey(remote, transferId, true));
+            if(t == null) {
+                return;
+            }
+            synchronized (t) {
+                final int status = Message.PutBlockMessage.getStatus(msg);
+                if(t.awaitingStatus) {
+                    onPutStatus(t, status);
+                    return;
+                }
+                if(!t.awaitingResponse) {
+                    return;
+                }
+                t.awaitingResponse = false;
+                switch (status) {
+                    case Message.PutBlockMessage.PUT_ACCEPTED:
+                        t.sender = new FragmentSender(t.data, window(remote, now));
+                        t.lastActivity = now;
+                        t.sender.pump(now, t);
+                        break;
+
+                    case Message.PutBlockMessage.PUT_HAVE:
+                        remove(t);
+                        t.putResult.set(true);
+                        break;
+
+                    default:
+                        remove(t);
+                        t.putResult.set(false);
+                        break;
+                }
+            }
+
+        } else {
+            final TransferKey key = new TransferKey(remote, transferId, false);
+            final Transfer existing = mTransfers.get(key);
+            if(existing != null) {
+                synchronized (existing) {
+                    //a repeated request: the response, or the final status, was lost
+                    if(existing.receiver != null) {
+                        sendPutStatus(existing, existing.status >= 0 ? existing.status : Message.PutBlockMessage.PUT_ACCEPTED);
+                    }
+                }
+                return;
+            }
+
+            final ID blockId = Message.PutBlockMessage.getBlockId(msg);
+            final int length = Message.PutBlockMessage.getLength(msg);
+            final Transfer t = new Transfer(key, blockId, Message.PUT_BLOCK);
+            if(mRepository == null || length < 0 || length > MAX_BLOCK_SIZE || !reserve(t, length)) {
+                sendPutStatus(t, Message.PutBlockMessage.PUT_REFUSED);
+                return;
+            }
+            mTransfers.put(key, t);
+            if(!submitRequest(new Runnable() {
+                @Override
+                public void run() {
+                    startReceiving(t, length);
+                }
+            })) {
+                remove(t);
+            }
+        }
+    }
+
+    /**
+     * accept a put unless the block is here already. Runs on an I/O thread.
+     */
+    private void startReceiving(Transfer t, int length) {
+        int status = Message.PutBlockMessage.PUT_ACCEPTED;
+        try {
+            final BlockRepository repository = mRepository;
+            if(repository == null) {
+                status = Message.PutBlockMessage.PUT_REFUSED;
+            } else if(repository.getLength(t.blockId) >= 0) {
+                status = Message.PutBlockMessage.PUT_HAVE;
+            }
+        } catch (IOException e) {
+            logger.error("", e);
+            status = Message.PutBlockMessage.PUT_REFUSED;
+        }
+
+        synchronized (t) {
+            if(status == Message.PutBlockMessage.PUT_ACCEPTED) {
+                logger.debug("receiving block {} from {}", t.blockId, t.key.remote);
+                t.receiver = new FragmentReceiver(length);
+                t.lastActivity = System.nanoTime();
+            } else {
+                remove(t);
+            }
+            sendPutStatus(t, status);
+        }
+    }
+
+    private void sendPutStatus(Transfer t, int status) {
+        Message resp = borrow();
+        Message.PutBlockMessage.formatResponse(resp, t.key.transferId, status);
+        send(resp, t.key.remote);
+    }
+
+    private void onPutStatus(Transfer t, int status) {
+        switch (status) {
+            case Message.PutBlockMessage.PUT_STORED:
+            case Message.PutBlockMessage.PUT_HAVE:
+                remove(t);
+                t.putResult.set(true);
+                break;
+
+            case Message.PutBlockMessage.PUT_FAILED:
+                finish(t, new IOException(t.key.remote + " could not store block " + t.blockId));
+                break;
+
+            case Message.PutBlockMessage.PUT_REFUSED:
+                remove(t);
+                t.putResult.set(false);
+                break;
+
+            default:
+                //still storing
+                break;
+        }
+    }
+
+    void handleData(Message msg) {
+        final InetSocketAddress remote = msg.getRemoteSocketAddress();
+        final TransferKey key = new TransferKey(remote, Message.DataMessage.getTransferId(msg), !msg.isFromInitiator());
+        final Transfer t = mTransfers.get(key);
+        if(t == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+
+        synchronized (t) {
+            if(msg.isResponse()) {
+                if(t.sender == null || t.sender.isDone()) {
+                    return;
+                }
+                t.sender.onAck(Message.DataMessage.getCumulativeAck(msg), Message.DataMessage.getSack(msg), now);
+                t.lastActivity = now;
+                if(t.sender.isDone()) {
+                    logger.debug("sent block {} to {}: {} fragments, {} retransmitted", t.blockId, remote,
+                            t.sender.getNumFragments(), t.sender.getRetransmits());
+                    if(t.putResult != null) {
+                        //the peer still has to check and store it
+                        t.awaitingStatus = true;
+                        t.requestSentAt = now;
+                    } else {
+                        remove(t);
+                    }
+                } else {
+                    t.sender.pump(now, t);
+                }
+
+            } else {
+                if(t.receiver == null || !t.receiver.onFragment(Message.DataMessage.getSequence(msg),
+                        msg.mPacket.getData(), Message.DataMessage.PAYLOAD_OFFSET, Message.DataMessage.getPayloadLength(msg))) {
+                    return;
+                }
+                t.lastActivity = now;
+                t.started = true;
+
+                Message ack = borrow();
+                Message.DataMessage.formatAck(ack, key.initiator, key.transferId,
+                        t.receiver.getCumulativeAck(), t.receiver.getSack());
+                send(ack, remote);
+
+                if(t.receiver.isComplete() && !t.complete) {
+                    t.complete = true;
+                    final byte[] data = t.receiver.getData();
+                    final Runnable task = new Runnable() {
+                        @Override
+                        public void run() {
+                            received(t, data);
+                        }
+                    };
+                    try {
+                        mIOExecutor.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        //the transfer is done, it must be checked either way
+                        task.run();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * check a received block against its id and hand it over. Runs on an I/O thread.
+     */
+    private void received(Transfer t, byte[] data) {
+        final boolean valid = hashesTo(data, t.blockId);
+        if(!valid) {
+            logger.warn("block {} from {} does not match its id", t.blockId, t.key.remote);
+        }
+
+        if(t.getResult != null) {
+            if(valid) {
+                t.getResult.set(data);
+            } else {
+                t.getResult.setException(new IOException("block " + t.blockId + " does not match its id"));
+            }
+            synchronized (t) {
+                t.finishedAt = System.nanoTime();
+            }
+            return;
+        }
+
+        int status = Message.PutBlockMessage.PUT_FAILED;
+        if(valid) {
+            try {
+                final BlockRepository repository = mRepository;
+                if(repository != null) {
+                    repository.put(t.blockId, data);
+                    status = Message.PutBlockMessage.PUT_STORED;
+                }
+            } catch (IOException e) {
+                logger.error("unable to store block {}", t.blockId, e);
+            }
+        }
+
+        synchronized (t) {
+            t.status = status;
+            t.finishedAt = System.nanoTime();
+            release(t);
+            sendPutStatus(t, status);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            tick(System.nanoTime());
+        } catch (Exception e) {
+            logger.error("", e);
+        }
+    }
+
+    private void tick(long now) {
+        for(Transfer t : mTransfers.values()) {
+            synchronized (t) {
+                if(t.awaitingResponse) {
+                    if(now - t.requestSentAt > REQUEST_TIMEOUT) {
+                        if(t.tries >= REQUEST_TRIES) {
+                            finish(t, new IOException("no response from " + t.key.remote));
+                        } else {
+                            sendRequest(t);
+                        }
+                    }
+
+                } else if(t.awaitingStatus) {
+                    if(now - t.lastActivity > IDLE_TIMEOUT) {
+                        finish(t, new IOException(t.key.remote + " did not confirm block " + t.blockId));
+                    } else if(now - t.requestSentAt > REQUEST_TIMEOUT) {
+                        //asking again gets the status once there is one
+                        sendRequest(t);
+                    }
+
+                } else if(t.sender != null) {
+                    if(t.sender.checkTimeout(now)) {
+                        if(t.sender.isFailed()) {
+                            logger.warn("giving up on sending block {} to {}", t.blockId, t.key.remote);
+                            finish(t, new IOException(t.key.remote + " stopped acking"));
+                        } else {
+                            t.sender.pump(now, t);
+                        }
+                    } else if(!t.sender.isDone()) {
+                        //the window is shared, acks of other transfers may have made room
+                        t.sender.pump(now, t);
+                    }
+
+                } else if(t.receiver != null) {
+                    if(t.finishedAt >= 0) {
+                        if(now - t.finishedAt > LINGER) {
+                            remove(t);
+                        }
+                    } else if(t.complete) {
+                        //being checked and stored
+                    } else if(!t.key.initiator && !t.started && now - t.lastActivity > START_TIMEOUT) {
+                        remove(t);
+                    } else if(now - t.lastActivity > IDLE_TIMEOUT) {
+                        finish(t, new IOException("transfer of block " + t.blockId + " from " + t.key.remote + " stalled"));
+                    }
+                }
+            }
+        }
+
+        for(Map.Entry<InetSocketAddress, PeerPath> entry : mPaths.entrySet()) {
+            final PeerPath path = entry.getValue();
+            //a sender with nothing in flight takes room as soon as there is any, so a path
+            //without fragments in flight has no transfer that is still sending
+            if(now - path.lastUsed > PATH_LINGER && path.window.getInFlight() == 0) {
+                mPaths.remove(entry.getKey(), path);
+            }
+        }
+
+        Iterator<HaveRequest> it = mHaveRequests.values().iterator();
+        while(it.hasNext()) {
+            final HaveRequest request = it.next();
+            synchronized (request) {
+                if(now - request.sentAt > REQUEST_TIMEOUT) {
+                    if(request.tries >= REQUEST_TRIES) {
+                        it.remove();
+                        request.result.setException(new IOException("no response from " + request.remote));
+                    } else {
+                        sendHave(request);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.kademlia.ID;
+
+import java.io.IOException;
+
+/**
+ * The content blocks a {@link MondoNode} serves to and stores for its peers. Blocks are
+ * named by the SHA-1 of their data.
+ */
+public interface BlockRepository {
+
+    /**
+     * @return the length of block {@code id}, or -1 if it is not stored here
+     */
+    int getLength(ID id) throws IOException;
+
+    /**
+     * @return the data of block {@code id}, or null if it is not stored here
+     */
+    byte[] read(ID id) throws IOException;
+
+    /**
+     * store a block received from a peer. {@code data} was checked to hash to {@code id}.
+     */
+    void put(ID id, byte[] data) throws IOException;
+}
@@ -4,6 +4,7 @@ package com.devsmart.mondo;
 import com.devsmart.mondo.kademlia.*;
 import com.google.common.base.Throwables;
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.commons.cli.*;
@@ -70,6 +71,8 @@ public class MondoNode {
     private ScheduledFuture<?> mTrimBucketTask;
     private ScheduledFuture<?> mFindPeersTask;
     private ScheduledFuture<?> mMaintainConnections;
+    private ScheduledFuture<?> mBlockExchangeTask;
+    private final BlockExchange mBlockExchange = new BlockExchange(this);
     Consensus<InetSocketAddress> mLocalSocketAddressConsensus = new Consensus<InetSocketAddress>(InetSocketAddress.class, 5);
 
 
@@ -91,6 +94,43 @@ public class MondoNode {
         return mRoutingTable;
     }
 
+    /**
+     * serve blocks to peers from {@code repository} and store the blocks they put in it
+     */
+    public void setBlockRepository(BlockRepository repository) {
+        mBlockExchange.setRepository(repository);
+    }
+
+    /**
+     * ask the peer at {@code address} whether it has block {@code blockId}
+     *
+     * @return the length of the block, or -1 if the peer does not have it
+     */
+    public ListenableFuture<Integer> have(InetSocketAddress address, ID blockId) {
+        return mBlockExchange.have(address, blockId);
+    }
+
+    /**
+     * fetch block {@code blockId} from the peer at {@code address}. The data is checked
+     * against the id before the future completes.
+     *
+     * @return the data of the block, or null if the peer does not have it
+     */
+    public ListenableFuture<byte[]> getBlock(InetSocketAddress address, ID blockId) {
+        return mBlockExchange.getBlock(address, blockId);
+    }
+
+    /**
+     * store block {@code blockId} with the peer at {@code address}. The future completes
+     * once the peer has checked the data against the id and stored it; it fails if the
+     * peer could not.
+     *
+     * @return true once the peer has the block, false if it refused it
+     */
+    public ListenableFuture<Boolean> putBlock(InetSocketAddress address, ID blockId, byte[] data) {
+        return mBlockExchange.putBlock(address, blockId, data);
+    }
+
     public void start() throws Exception {
         initLocalConfig();
         logger.info("Local id: {}", mLocalId.toString(BaseEncoding.base64Url()));
@@ -120,9 +160,13 @@ public class MondoNode {
 
         mFindPeersTask = mTaskExecutors.scheduleWithFixedDelay(new FindPeersTask(this, bootstrapAddresses), 5, 30, TimeUnit.SECONDS);
         mMaintainConnections = mTaskExecutors.scheduleWithFixedDelay(new GenerateNewConnections(this), 5, 5, TimeUnit.SECONDS);
+        mBlockExchangeTask = mTaskExecutors.scheduleWithFixedDelay(mBlockExchange, BlockExchange.TICK_MILLIS, BlockExchange.TICK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public void stop() {
+        mRunning = false;
+        mBlockExchangeTask.cancel(false);
+        mBlockExchange.close();
         mFindPeersTask.cancel(false);
         mTrimBucketTask.cancel(false);
         mMaintainConnections.cancel(false);
@@ -208,6 +252,22 @@ public class MondoNode {
                                 handleConnect(msg);
                                 break;
 
+                            case Message.HAVE:
+                                mBlockExchange.handleHave(msg);
+                                break;
+
+                            case Message.GET_BLOCK:
+                                mBlockExchange.handleGetBlock(msg);
+                                break;
+
+                            case Message.PUT_BLOCK:
+                                mBlockExchange.handlePutBlock(msg);
+                                break;
+
+                            case Message.DATA:
+                                mBlockExchange.handleData(msg);
+                                break;
+
                         }
                     } catch (SocketTimeoutException e) {
                     } finally {
@@ -217,7 +277,9 @@ public class MondoNode {
 
 
             } catch (Exception e) {
-                Throwables.propagate(e);
+                if(mRunning) {
+                    Throwables.propagate(e);
+                }
             }
         }
     };
@@ -0,0 +1,521 @@
+package com.devsmart.mondo.data;
+
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * Pure Java BLAKE3 with a 256 bit output (hash mode only, no keyed hashing or XOF).
+ *
+ * <p>BLAKE3 hashes 1 KiB chunks independently and combines them in a binary tree, so a
+ * large input can be hashed on several cores. When {@code putBytes} is handed a large
+ * enough piece of data, the complete subtrees it contains are split across the fork/join
+ * pool given to the constructor. Subtrees are only hashed once it is known more input
+ * follows them, as in the reference implementation, so the result does not depend on how
+ * the input is fed.</p>
+ */
+public final class Blake3 implements HashFunction {
+
+    public static final int OUT_LEN = 32;
+    public static final int BLOCK_LEN = 64;
+    public static final int CHUNK_LEN = 1024;
+
+    /** subtrees larger than this are split across the pool */
+    static final int PARALLEL_MIN = 64 * CHUNK_LEN;
+
+    private static final int CHUNK_START = 1;
+    private static final int CHUNK_END = 2;
+    private static final int PARENT = 4;
+    private static final int ROOT = 8;
+
+    private static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+            0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    /** single threaded instance */
+    public static final Blake3 SEQUENTIAL = new Blake3(null);
+
+    private final ForkJoinPool mPool;
+
+    /**
+     * @param pool used to hash large inputs in parallel, or null to hash on the calling thread
+     */
+    public Blake3(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    private static void compress(int[] cv, int[] m, long counter, int blockLen, int flags, int[] out) {
+        int v0 = cv[0], v1 = cv[1], v2 = cv[2], v3 = cv[3];
+        int v4 = cv[4], v5 = cv[5], v6 = cv[6], v7 = cv[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        int v12 = (int) counter, v13 = (int) (counter >>> 32), v14 = blockLen, v15 = flags;
+
+        int m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3], m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        int m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11], m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+
+        for(int r=0;r<7;r++) {
+            //columns
+            v0 += v4 + m0; v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 12);
+            v0 += v4 + m1; v12 = Integer.rotateRight(v12 ^ v0, 8); v8 += v12; v4 = Integer.rotateRight(v4 ^ v8, 7);
+            v1 += v5 + m2; v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 12);
+            v1 += v5 + m3; v13 = Integer.rotateRight(v13 ^ v1, 8); v9 += v13; v5 = Integer.rotateRight(v5 ^ v9, 7);
+            v2 += v6 + m4; v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+            v2 += v6 + m5; v14 = Integer.rotateRight(v14 ^ v2, 8); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+            v3 += v7 + m6; v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+            v3 += v7 + m7; v15 = Integer.rotateRight(v15 ^ v3, 8); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+
+            //diagonals
+            v0 += v5 + m8; v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+            v0 += v5 + m9; v15 = Integer.rotateRight(v15 ^ v0, 8); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+            v1 += v6 + m10; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+            v1 += v6 + m11; v12 = Integer.rotateRight(v12 ^ v1, 8); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+            v2 += v7 + m12; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 12);
+            v2 += v7 + m13; v13 = Integer.rotateRight(v13 ^ v2, 8); v8 += v13; v7 = Integer.rotateRight(v7 ^ v8, 7);
+            v3 += v4 + m14; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 12);
+            v3 += v4 + m15; v14 = Integer.rotateRight(v14 ^ v3, 8); v9 += v14; v4 = Integer.rotateRight(v4 ^ v9, 7);
+
+            //permute the message words for the next round
+            final int t0 = m0, t1 = m1, t2 = m2, t3 = m3, t4 = m4, t5 = m5, t6 = m6, t7 = m7;
+            final int t8 = m8, t9 = m9, t10 = m10, t11 = m11, t12 = m12, t13 = m13, t14 = m14, t15 = m15;
+            m0 = t2;
+            m1 = t6;
+            m2 = t3;
+            m3 = t10;
+            m4 = t7;
+            m5 = t0;
+            m6 = t4;
+            m7 = t13;
+            m8 = t1;
+            m9 = t11;
+            m10 = t12;
+            m11 = t5;
+            m12 = t9;
+            m13 = t14;
+            m14 = t15;
+            m15 = t8;
+        }
+
+        out[0] = v0 ^ v8;
+        out[1] = v1 ^ v9;
+        out[2] = v2 ^ v10;
+        out[3] = v3 ^ v11;
+        out[4] = v4 ^ v12;
+        out[5] = v5 ^ v13;
+        out[6] = v6 ^ v14;
+        out[7] = v7 ^ v15;
+    }
+
+    private static void readWords(byte[] data, int off, int[] words) {
+        for(int i=0;i<16;i++, off+=4) {
+            words[i] = (data[off] & 0xff)
+                    | (data[off + 1] & 0xff) << 8
+                    | (data[off + 2] & 0xff) << 16
+                    | (data[off + 3] & 0xff) << 24;
+        }
+    }
+
+    /**
+     * chaining value of a complete chunk that is not the root
+     */
+    private static int[] chunkCV(byte[] data, int off, long chunkCounter) {
+        final int[] cv = IV.clone();
+        final int[] words = new int[16];
+        for(int i=0;i<CHUNK_LEN / BLOCK_LEN;i++) {
+            readWords(data, off + i * BLOCK_LEN, words);
+            int flags = 0;
+            if(i == 0) {
+                flags |= CHUNK_START;
+            }
+            if(i == CHUNK_LEN / BLOCK_LEN - 1) {
+                flags |= CHUNK_END;
+            }
+            compress(cv, words, chunkCounter, BLOCK_LEN, flags, cv);
+        }
+        return cv;
+    }
+
+    private static int[] parentWords(int[] left, int[] right) {
+        final int[] words = new int[16];
+        System.arraycopy(left, 0, words, 0, 8);
+        System.arraycopy(right, 0, words, 8, 8);
+        return words;
+    }
+
+    private static int[] parentCV(int[] left, int[] right) {
+        final int[] cv = new int[8];
+        compress(IV, parentWords(left, right), 0, BLOCK_LEN, PARENT, cv);
+        return cv;
+    }
+
+    /**
+     * chaining value of a complete subtree that is not the root. {@code len} is a power of
+     * two multiple of {@link #CHUNK_LEN}.
+     */
+    private static int[] subtreeCV(byte[] data, int off, int len, long chunkCounter) {
+        if(len == CHUNK_LEN) {
+            return chunkCV(data, off, chunkCounter);
+        }
+        final int half = len / 2;
+        return parentCV(subtreeCV(data, off, half, chunkCounter),
+                subtreeCV(data, off + half, half, chunkCounter + half / CHUNK_LEN));
+    }
+
+    private static class SubtreeTask extends RecursiveTask<int[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mData;
+        private final int mOffset;
+        private final int mLength;
+        private final long mChunkCounter;
+
+        SubtreeTask(byte[] data, int off, int len, long chunkCounter) {
+            mData = data;
+            mOffset = off;
+            mLength = len;
+            mChunkCounter = chunkCounter;
+        }
+
+        @Override
+        protected int[] compute() {
+            if(mLength <= PARALLEL_MIN) {
+                return subtreeCV(mData, mOffset, mLength, mChunkCounter);
+            }
+            final int half = mLength / 2;
+            SubtreeTask right = new SubtreeTask(mData, mOffset + half, half, mChunkCounter + half / CHUNK_LEN);
+            right.fork();
+            int[] left = new SubtreeTask(mData, mOffset, half, mChunkCounter).compute();
+            return parentCV(left, right.join());
+        }
+    }
+
+    @Override
+    public Hasher newHasher() {
+        return new Blake3Hasher();
+    }
+
+    @Override
+    public Hasher newHasher(int expectedInputSize) {
+        return newHasher();
+    }
+
+    @Override
+    public HashCode hashInt(int input) {
+        return newHasher().putInt(input).hash();
+    }
+
+    @Override
+    public HashCode hashLong(long input) {
+        return newHasher().putLong(input).hash();
+    }
+
+    @Override
+    public HashCode hashBytes(byte[] input) {
+        return newHasher().putBytes(input).hash();
+    }
+
+    @Override
+    public HashCode hashBytes(byte[] input, int off, int len) {
+        return newHasher().putBytes(input, off, len).hash();
+    }
+
+    @Override
+    public HashCode hashUnencodedChars(CharSequence input) {
+        return newHasher().putUnencodedChars(input).hash();
+    }
+
+    @Override
+    public HashCode hashString(CharSequence input, Charset charset) {
+        return newHasher().putString(input, charset).hash();
+    }
+
+    @Override
+    public <T> HashCode hashObject(T instance, Funnel<? super T> funnel) {
+        return newHasher().putObject(instance, funnel).hash();
+    }
+
+    @Override
+    public int bits() {
+        return OUT_LEN * 8;
+    }
+
+    @Override
+    public String toString() {
+        return "Blake3";
+    }
+
+    private class Blake3Hasher implements Hasher {
+
+        private final int[][] mCvStack = new int[54][];
+        private int mStackLen;
+
+        //state of the current chunk
+        private final int[] mChunkCv = IV.clone();
+        private final byte[] mBlock = new byte[BLOCK_LEN];
+        private final int[] mWords = new int[16];
+        private long mChunkCounter;
+        private int mBlockLen;
+        private int mBlocksCompressed;
+
+        private final byte[] mScratch = new byte[8];
+
+        private int chunkLength() {
+            return mBlocksCompressed * BLOCK_LEN + mBlockLen;
+        }
+
+        private void chunkUpdate(byte[] data, int off, int len) {
+            while(len > 0) {
+                if(mBlockLen == BLOCK_LEN) {
+                    readWords(mBlock, 0, mWords);
+                    compress(mChunkCv, mWords, mChunkCounter, BLOCK_LEN, mBlocksCompressed == 0 ? CHUNK_START : 0, mChunkCv);
+                    mBlocksCompressed++;
+                    mBlockLen = 0;
+                    Arrays.fill(mBlock, (byte) 0);
+                }
+                final int take = Math.min(BLOCK_LEN - mBlockLen, len);
+                System.arraycopy(data, off, mBlock, mBlockLen, take);
+                mBlockLen += take;
+                off += take;
+                len -= take;
+            }
+        }
+
+        private void startChunk(long chunkCounter) {
+            System.arraycopy(IV, 0, mChunkCv, 0, 8);
+            Arrays.fill(mBlock, (byte) 0);
+            mChunkCounter = chunkCounter;
+            mBlockLen = 0;
+            mBlocksCompressed = 0;
+        }
+
+        /**
+         * the last block of the current chunk, not yet compressed
+         */
+        private Output chunkOutput() {
+            final int[] words = new int[16];
+            readWords(mBlock, 0, words);
+            final int flags = (mBlocksCompressed == 0 ? CHUNK_START : 0) | CHUNK_END;
+            return new Output(mChunkCv.clone(), words, mChunkCounter, mBlockLen, flags);
+        }
+
+        /**
+         * Merge completed subtrees. A subtree is only merged once more input is known to
+         * follow it, because the root node has to be compressed with a different flag.
+         */
+        private void mergeCvStack(long totalChunks) {
+            final int postMergeLen = Long.bitCount(totalChunks);
+            while(mStackLen > postMergeLen) {
+                mCvStack[mStackLen - 2] = parentCV(mCvStack[mStackLen - 2], mCvStack[mStackLen - 1]);
+                mStackLen--;
+            }
+        }
+
+        private void pushCv(int[] cv, long chunkCounter) {
+            mergeCvStack(chunkCounter);
+            mCvStack[mStackLen++] = cv;
+        }
+
+        @Override
+        public Hasher putBytes(byte[] data, int off, int len) {
+            checkPositionIndexes(off, off + len, data.length);
+
+            if(chunkLength() > 0) {
+                final int take = Math.min(CHUNK_LEN - chunkLength(), len);
+                chunkUpdate(data, off, take);
+                off += take;
+                len -= take;
+                if(len == 0) {
+                    return this;
+                }
+                //the chunk is full and more input follows, so it is not the root
+                pushCv(chunkOutput().chainingValue(), mChunkCounter);
+                startChunk(mChunkCounter + 1);
+            }
+
+            while(len > CHUNK_LEN) {
+                //largest complete subtree that starts at the current chunk
+                int subtreeLen = Integer.highestOneBit(len);
+                final long countSoFar = mChunkCounter * CHUNK_LEN;
+                while(((subtreeLen - 1) & countSoFar) != 0) {
+                    subtreeLen /= 2;
+                }
+                final long subtreeChunks = subtreeLen / CHUNK_LEN;
+
+                if(subtreeLen == CHUNK_LEN) {
+                    pushCv(chunkCV(data, off, mChunkCounter), mChunkCounter);
+                } else {
+                    final int half = subtreeLen / 2;
+                    final long rightCounter = mChunkCounter + subtreeChunks / 2;
+                    final int[] left;
+                    final int[] right;
+                    if(mPool != null && subtreeLen > PARALLEL_MIN) {
+                        ForkJoinTask<int[]> leftTask = mPool.submit(new SubtreeTask(data, off, half, mChunkCounter));
+                        right = mPool.invoke(new SubtreeTask(data, off + half, half, rightCounter));
+                        left = leftTask.join();
+                    } else {
+                        left = subtreeCV(data, off, half, mChunkCounter);
+                        right = subtreeCV(data, off + half, half, rightCounter);
+                    }
+
+                    //push both halves rather than their parent, which might be the root
+                    pushCv(left, mChunkCounter);
+                    pushCv(right, rightCounter);
+                }
+                startChunk(mChunkCounter + subtreeChunks);
+                off += subtreeLen;
+                len -= subtreeLen;
+            }
+
+            if(len > 0) {
+                chunkUpdate(data, off, len);
+                mergeCvStack(mChunkCounter);
+            }
+            return this;
+        }
+
+        @Override
+        public HashCode hash() {
+            Output output;
+            int remaining = mStackLen;
+            if(mStackLen == 0 || chunkLength() > 0) {
+                output = chunkOutput();
+            } else {
+                remaining -= 2;
+                output = new Output(IV, parentWords(mCvStack[remaining], mCvStack[remaining + 1]), 0, BLOCK_LEN, PARENT);
+            }
+            while(remaining > 0) {
+                remaining--;
+                output = new Output(IV, parentWords(mCvStack[remaining], output.chainingValue()), 0, BLOCK_LEN, PARENT);
+            }
+            return output.rootHash();
+        }
+
+        @Override
+        public Hasher putBytes(byte[] bytes) {
+            return putBytes(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public Hasher putByte(byte b) {
+            mScratch[0] = b;
+            return putBytes(mScratch, 0, 1);
+        }
+
+        private Hasher putLittleEndian(long value, int numBytes) {
+            for(int i=0;i<numBytes;i++) {
+                mScratch[i] = (byte) (value >>> (8 * i));
+            }
+            return putBytes(mScratch, 0, numBytes);
+        }
+
+        @Override
+        public Hasher putShort(short s) {
+            return putLittleEndian(s, 2);
+        }
+
+        @Override
+        public Hasher putInt(int i) {
+            return putLittleEndian(i, 4);
+        }
+
+        @Override
+        public Hasher putLong(long l) {
+            return putLittleEndian(l, 8);
+        }
+
+        @Override
+        public Hasher putFloat(float f) {
+            return putInt(Float.floatToRawIntBits(f));
+        }
+
+        @Override
+        public Hasher putDouble(double d) {
+            return putLong(Double.doubleToRawLongBits(d));
+        }
+
+        @Override
+        public Hasher putBoolean(boolean b) {
+            return putByte(b ? (byte) 1 : (byte) 0);
+        }
+
+        @Override
+        public Hasher putChar(char c) {
+            return putLittleEndian(c, 2);
+        }
+
+        @Override
+        public Hasher putUnencodedChars(CharSequence charSequence) {
+            for(int i=0;i<charSequence.length();i++) {
+                putChar(charSequence.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Hasher putString(CharSequence charSequence, Charset charset) {
+            return putBytes(charSequence.toString().getBytes(charset));
+        }
+
+        @Override
+        public <T> Hasher putObject(T instance, Funnel<? super T> funnel) {
+            funnel.funnel(instance, this);
+            return this;
+        }
+
+        @Override
+        @Deprecated
+        public int hashCode() {
+            return hash().asInt();
+        }
+    }
+
+    /**
+     * a node whose compression has been deferred until it is known whether it is the root
+     */
+    private static class Output {
+
+        private final int[] mCv;
+        private final int[] mWords;
+        private final long mCounter;
+        private final int mBlockLen;
+        private final int mFlags;
+
+        Output(int[] cv, int[] words, long counter, int blockLen, int flags) {
+            mCv = cv;
+            mWords = words;
+            mCounter = counter;
+            mBlockLen = blockLen;
+            mFlags = flags;
+        }
+
+        int[] chainingValue() {
+            final int[] cv = new int[8];
+            compress(mCv, mWords, mCounter, mBlockLen, mFlags, cv);
+            return cv;
+        }
+
+        HashCode rootHash() {
+            final int[] words = new int[8];
+            compress(mCv, mWords, 0, mBlockLen, mFlags | ROOT, words);
+            final byte[] out = new byte[OUT_LEN];
+            for(int i=0;i<8;i++) {
+                out[4 * i] = (byte) words[i];
+                out[4 * i + 1] = (byte) (words[i] >>> 8);
+                out[4 * i + 2] = (byte) (words[i] >>> 16);
+                out[4 * i + 3] = (byte) (words[i] >>> 24);
+            }
+            return HashCode.fromBytes(out);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.devsmart.mondo.data;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -19,42 +21,155 @@ public class Buzhash {
 
 
     private final int mWindowSize;
-    private final byte[] mWindow;
+
+    /**
+     * hash of each byte already rotated by the window size, which is what has to be xor-ed
+     * out once the byte leaves the window
+     */
+    private final long[] mOutHash = new long[256];
+
+    /**
+     * power of two ring holding the out-hash of the last bytes added. Slots not written
+     * since the last reset are 0, so removing them is a no-op and the roll needs no branch.
+     */
+    private final long[] mRing;
+    private final int mRingMask;
     private long mHashvalue;
-    private int mBufPos;
-    private long mBytesAdded ;
+    private long mBytesAdded;
 
     public Buzhash(int windowSize) {
         checkArgument(windowSize > 0 && windowSize < WORD_SIZE);
         mWindowSize = windowSize;
-        mWindow = new byte[mWindowSize];
+        for(int i=0;i<mOutHash.length;i++) {
+            mOutHash[i] = Long.rotateLeft(HASHMAP[i], mWindowSize);
+        }
+        int ringSize = Integer.highestOneBit(windowSize);
+        if(ringSize < windowSize) {
+            ringSize <<= 1;
+        }
+        mRing = new long[ringSize];
+        mRingMask = mRing.length - 1;
         reset();
     }
 
 
     public long addByte(final byte b) {
+        final int value = b & 0xff;
+        final int slot = (int) mBytesAdded & mRingMask;
+        mHashvalue = Long.rotateLeft(mHashvalue, 1)
+                ^ mRing[(slot - mWindowSize) & mRingMask]
+                ^ HASHMAP[value];
+        mRing[slot] = mOutHash[value];
+        mBytesAdded++;
+
+        return mHashvalue;
+    }
 
-        mHashvalue = Long.rotateLeft(mHashvalue, 1);
+    /**
+     * Roll the hash over {@code data[off, off + len)} and stop at the first byte after which
+     * {@code (hash & mask) == 0}. A boundary is only accepted once the current chunk is at
+     * least {@code minChunk} bytes long; bytes that cannot affect the hash at that point are
+     * skipped without being hashed. With {@code minChunk == 0} the boundaries are the same as
+     * calling {@link #addByte(byte)} for every byte.
+     *
+     * <p>The state carries over between calls, so a chunk can span several buffers. When a
+     * boundary is found the hash is reset for the next chunk.</p>
+     *
+     * @return the array index just past the boundary byte, or -1 if there is no boundary in range
+     */
+    public int scan(byte[] data, int off, int len, long mask, int minChunk) {
+        final int end = off + len;
+        int i = off;
+
+        //the hash at the first candidate boundary only depends on the last mWindowSize bytes
+        final long skipUntil = minChunk - mWindowSize;
+        if(mBytesAdded < skipUntil) {
+            final int skip = (int) Math.min(skipUntil - mBytesAdded, end - i);
+            i += skip;
+            mBytesAdded += skip;
+        }
 
-        if(++mBytesAdded > mWindowSize) {
-            mHashvalue ^= Long.rotateLeft(hash(mWindow[mBufPos]), mWindowSize);
+        final long[] ring = mRing;
+        final long[] inHash = HASHMAP;
+        final long[] outHash = mOutHash;
+        final int ringMask = mRingMask;
+        final int windowSize = mWindowSize;
+
+        //index of the first byte that may end the chunk, relative to i
+        final long firstCandidate = i + Math.max(0, minChunk - 1 - mBytesAdded);
+        //ring slot of byte i is (i + slotBase) & ringMask
+        final int slotBase = (int) mBytesAdded - i;
+        final int loopStart = i;
+        long hash = mHashvalue;
+
+        //bytes leaving the window were added by an earlier call, so they come from the ring
+        final int headEnd = Math.min(end, loopStart + windowSize);
+        for(;i<headEnd;i++) {
+            final int value = data[i] & 0xff;
+            final int slot = (i + slotBase) & ringMask;
+            hash = Long.rotateLeft(hash, 1) ^ ring[(slot - windowSize) & ringMask] ^ inHash[value];
+            ring[slot] = outHash[value];
+            if((hash & mask) == 0 && i >= firstCandidate) {
+                reset();
+                return i + 1;
+            }
         }
 
-        mHashvalue ^= hash(b);
+        //from here on the byte leaving the window is still in data
+        for(;i<end;i++) {
+            hash = Long.rotateLeft(hash, 1) ^ outHash[data[i - windowSize] & 0xff] ^ inHash[data[i] & 0xff];
+            if((hash & mask) == 0 && i >= firstCandidate) {
+                reset();
+                return i + 1;
+            }
+        }
 
-        mWindow[mBufPos] = b;
-        mBufPos = (mBufPos + 1) % mWindowSize;
+        for(int j=Math.max(headEnd, end - windowSize);j<end;j++) {
+            ring[(j + slotBase) & ringMask] = outHash[data[j] & 0xff];
+        }
 
-        return mHashvalue;
+        mHashvalue = hash;
+        mBytesAdded += end - loopStart;
+        return -1;
+    }
+
+    /**
+     * Same as {@link #scan(byte[], int, int, long, int)} over the remaining bytes of
+     * {@code buffer}. The buffer position is not changed.
+     *
+     * @return the buffer index just past the boundary byte, or -1
+     */
+    public int scan(ByteBuffer buffer, long mask, int minChunk) {
+        if(buffer.hasArray()) {
+            final int base = buffer.arrayOffset();
+            final int boundary = scan(buffer.array(), base + buffer.position(), buffer.remaining(), mask, minChunk);
+            return boundary < 0 ? -1 : boundary - base;
+        }
+
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        ByteBuffer src = buffer.duplicate();
+        while(src.hasRemaining()) {
+            final int start = src.position();
+            final int len = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, len);
+            final int boundary = scan(chunk, 0, len, mask, minChunk);
+            if(boundary >= 0) {
+                return start + boundary;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * number of bytes since the last reset
+     */
+    public long getBytesAdded() {
+        return mBytesAdded;
     }
 
     public void reset() {
         mHashvalue = 0;
         mBytesAdded = 0;
-        mBufPos = 0;
-    }
-
-    private long hash(byte b) {
-        return HASHMAP[0xff & b];
+        Arrays.fill(mRing, 0);
     }
 }
@@ -0,0 +1,39 @@
+package com.devsmart.mondo.data;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content defined chunking strategy. Two chunkers with the same {@link #getName()} must
+ * cut every stream at exactly the same places; the name is stored alongside chunked data
+ * so that later writes keep producing the same blocks and dedup against them.
+ */
+public interface Chunker {
+
+    /**
+     * Finds chunk boundaries in a stream that is fed in pieces. Not thread safe; get one
+     * per stream from {@link #newScanner()}.
+     */
+    interface Scanner {
+
+        /**
+         * Look for the end of the current chunk in {@code data[off, off + len)}. State
+         * carries over between calls and is reset when a boundary is returned.
+         *
+         * @return the array index just past the last byte of the chunk, or -1
+         */
+        int scan(byte[] data, int off, int len);
+
+        /**
+         * forget the current chunk and start a new one at the next byte
+         */
+        void reset();
+    }
+
+    String getName();
+
+    Scanner newScanner();
+
+    Iterable<SecureSegment> getSegments(InputStream in) throws IOException;
+}
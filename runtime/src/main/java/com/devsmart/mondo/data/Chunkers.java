@@ -0,0 +1,82 @@
+package com.devsmart.mondo.data;
+
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public final class Chunkers {
+
+    private static final Pattern BUZHASH = Pattern.compile("buzhash-w(\\d+)-b(\\d+)(?:-m(\\d+))?");
+    private static final Pattern LOG_BUZHASH = Pattern.compile("logbuzhash-b(\\d+)");
+    private static final Pattern FASTCDC = Pattern.compile("fastcdc-(\\d+)-(\\d+)-(\\d+)");
+
+    private Chunkers() {}
+
+    /**
+     * Create the chunker that {@link Chunker#getName()} returned {@code name}.
+     *
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static Chunker forName(String name, HashFunction secureHash) {
+        Matcher m = BUZHASH.matcher(name);
+        if(m.matches()) {
+            final int minChunk = m.group(3) != null ? Integer.parseInt(m.group(3)) : 0;
+            return new DataStreamBreaker(secureHash, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), minChunk);
+        }
+
+        m = LOG_BUZHASH.matcher(name);
+        if(m.matches()) {
+            return new LogDataStreamBreaker(secureHash, Integer.parseInt(m.group(1)));
+        }
+
+        m = FASTCDC.matcher(name);
+        if(m.matches()) {
+            return new FastCDC(secureHash, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+        }
+
+        throw new IllegalArgumentException("unknown chunker: " + name);
+    }
+
+    /**
+     * split {@code in} into segments using {@code scanner} and hash each one with {@code secureHash}
+     */
+    public static LinkedList<SecureSegment> getSegments(Chunker.Scanner scanner, HashFunction secureHash, InputStream in) throws IOException {
+        LinkedList<SecureSegment> retval = new LinkedList<SecureSegment>();
+        Hasher hasher = secureHash.newHasher();
+        byte[] buffer = new byte[32 * 1024];
+
+        long last = 0;
+        long pos = 0;
+        int bytesRead;
+
+        while((bytesRead = in.read(buffer, 0, buffer.length)) > 0) {
+            int start = 0;
+            while(start < bytesRead) {
+                final int boundary = scanner.scan(buffer, start, bytesRead - start);
+                final int end = boundary < 0 ? bytesRead : boundary;
+
+                hasher.putBytes(buffer, start, end - start);
+                pos += end - start;
+                start = end;
+
+                if(boundary >= 0) {
+                    retval.add(new SecureSegment(last, pos - last, hasher.hash()));
+                    last = pos;
+                    hasher = secureHash.newHasher();
+                }
+            }
+        }
+
+        if(pos > last) {
+            retval.add(new SecureSegment(last, pos - last, hasher.hash()));
+        }
+
+        return retval;
+    }
+}
@@ -0,0 +1,28 @@
+package com.devsmart.mondo.data;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * The inner loop of erasure coding: multiplies a matrix over GF(2^8) with a set of input
+ * shards, one byte position at a time. Encoding and decoding only differ in the matrix
+ * and in which shards are inputs and outputs.
+ */
+public interface CodingKernel {
+
+    /**
+     * For every byte position {@code b} in {@code [offset, offset + length)} set
+     * {@code outputs[o][b]} to the sum over {@code i < inputCount} of
+     * {@code matrixRows[o][i] * inputs[i][b]}, for every {@code o < outputCount}.
+     */
+    void code(byte[][] matrixRows, byte[][] inputs, int inputCount,
+              byte[][] outputs, int outputCount, int offset, int length);
+
+    /**
+     * Same as {@link #code(byte[][], byte[][], int, byte[][], int, int, int)} with shards in
+     * buffers, heap or direct. {@code offset} is an absolute index into every buffer; positions
+     * and limits are left alone.
+     */
+    void code(byte[][] matrixRows, ByteBuffer[] inputs, int inputCount,
+              ByteBuffer[] outputs, int outputCount, int offset, int length);
+}
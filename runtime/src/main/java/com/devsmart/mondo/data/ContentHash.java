@@ -0,0 +1,127 @@
+package com.devsmart.mondo.data;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Hash algorithms that identify content blocks.
+ *
+ * <p>A block id is the digest prefixed with the algorithm's tag byte, so any id tells which
+ * algorithm produced it. SHA-1 ids are the bare 20 byte digest, which is what every
+ * block was named before other algorithms were added.</p>
+ */
+public enum ContentHash {
+
+    SHA1("sha1", 0, Hashing.sha1()),
+    SHA256("sha256", 1, Hashing.sha256()),
+    BLAKE3("blake3", 2, new Blake3(new ForkJoinPool()));
+
+    public final int tag;
+    private final String mName;
+    private final HashFunction mHashFunction;
+
+    ContentHash(String name, int tag, HashFunction hashFunction) {
+        this.tag = tag;
+        mName = name;
+        mHashFunction = hashFunction;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * the raw hash function. Turn its result into a block id with {@link #toId(HashCode)}.
+     */
+    public HashFunction hashFunction() {
+        return mHashFunction;
+    }
+
+    /**
+     * number of bytes in a block id
+     */
+    public int idLength() {
+        final int digestLength = mHashFunction.bits() / 8;
+        return this == SHA1 ? digestLength : 1 + digestLength;
+    }
+
+    public HashCode toId(HashCode digest) {
+        checkArgument(digest.bits() == mHashFunction.bits());
+        if(this == SHA1) {
+            return digest;
+        }
+        byte[] id = new byte[idLength()];
+        id[0] = (byte) tag;
+        digest.writeBytesTo(id, 1, id.length - 1);
+        return HashCode.fromBytes(id);
+    }
+
+    public HashCode getDigest(HashCode id) {
+        if(this == SHA1) {
+            return id;
+        }
+        byte[] bytes = id.asBytes();
+        byte[] digest = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 1, digest, 0, digest.length);
+        return HashCode.fromBytes(digest);
+    }
+
+    /**
+     * Name of the file that holds a block: the hex digest, followed by the algorithm for
+     * anything but SHA-1.
+     */
+    public String getFileName(HashCode id) {
+        String digest = getDigest(id).toString();
+        return this == SHA1 ? digest : digest + "." + mName;
+    }
+
+    /**
+     * The reverse of {@link #getFileName(HashCode)}.
+     *
+     * @throws IllegalArgumentException if {@code fileName} does not name a block
+     */
+    public static HashCode parseFileName(String fileName) {
+        final int dot = fileName.indexOf('.');
+        if(dot < 0) {
+            return SHA1.toId(HashCode.fromString(fileName));
+        }
+        return forName(fileName.substring(dot + 1)).toId(HashCode.fromString(fileName.substring(0, dot)));
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code id} is not a valid block id
+     */
+    public static ContentHash of(HashCode id) {
+        final int length = id.bits() / 8;
+        if(length == SHA1.idLength()) {
+            return SHA1;
+        }
+        ContentHash retval = forTag(id.asBytes()[0] & 0xff);
+        checkArgument(length == retval.idLength(), "wrong length for a %s block id: %s", retval.mName, length);
+        return retval;
+    }
+
+    public static ContentHash forTag(int tag) {
+        for(ContentHash contentHash : values()) {
+            if(contentHash.tag == tag) {
+                return contentHash;
+            }
+        }
+        throw new IllegalArgumentException("unknown content hash tag: " + tag);
+    }
+
+    public static ContentHash forName(String name) {
+        for(ContentHash contentHash : values()) {
+            if(contentHash.mName.equals(name)) {
+                return contentHash;
+            }
+        }
+        throw new IllegalArgumentException("unknown content hash: " + name);
+    }
+}
@@ -50,36 +50,17 @@ public class DataBreakerInputStream extends InputStream {
     }
 
     private boolean mEndReached = false;
+    private final byte[] mSingleByte = new byte[1];
 
     @Override
     public int read() throws IOException {
         final int data = mInputStream.read();
         if(data < 0) {
-            if(mPos - mLast > 0 && !mEndReached) {
-                mEndReached = true;
-                SecureSegment segment = new SecureSegment(mLast, mPos - mLast, mSecureHash.hash());
-
-                mSegmentBuffer.flush();
-                newSegment(segment, mSegmentBuffer.toByteArray());
-                mSegmentBuffer.reset();
-            }
+            onEnd();
             return data;
         }
-        final long hash = mBuzHash.addByte((byte)data);
-        mSecureHash.putByte((byte)data);
-        mSegmentBuffer.write(data);
-        mPos++;
-        if((hash & mMask) == 0) {
-            SecureSegment segment = new SecureSegment(mLast, mPos - mLast, mSecureHash.hash());
-            mSegmentBuffer.flush();
-            newSegment(segment, mSegmentBuffer.toByteArray());
-            mSegmentBuffer.reset();
-
-            mLast = mPos;
-            mBuzHash.reset();
-            mSecureHash = mSecureHashFunction.newHasher();
-        }
-
+        mSingleByte[0] = (byte) data;
+        process(mSingleByte, 0, 1);
         return data;
     }
 
@@ -87,33 +68,42 @@ public class DataBreakerInputStream extends InputStream {
     public int read(@NotNull byte[] b, int off, int len) throws IOException {
         int bytesRead = mInputStream.read(b, off, len);
         if(bytesRead > 0) {
-            for(int i=0;i<bytesRead;i++) {
-                final byte data = b[off + i];
-                final long hash = mBuzHash.addByte(data);
-                mSecureHash.putByte(data);
-                mSegmentBuffer.write(data);
-                mPos++;
-                if((hash & mMask) == 0) {
-                    SecureSegment segment = new SecureSegment(mLast, mPos - mLast, mSecureHash.hash());
-                    mSegmentBuffer.flush();
-                    newSegment(segment, mSegmentBuffer.toByteArray());
-                    mSegmentBuffer.reset();
-
-                    mLast = mPos;
-                    mBuzHash.reset();
-                    mSecureHash = mSecureHashFunction.newHasher();
-                }
-            }
+            process(b, off, bytesRead);
         } else {
-            if(mPos - mLast > 0 && !mEndReached) {
-                mEndReached = true;
-                SecureSegment segment = new SecureSegment(mLast, mPos - mLast, mSecureHash.hash());
+            onEnd();
+        }
+        return bytesRead;
+    }
+
+    private void process(byte[] b, int off, int len) {
+        final int end = off + len;
+        int start = off;
+        while(start < end) {
+            final int boundary = mBuzHash.scan(b, start, end - start, mMask, 0);
+            final int segmentEnd = boundary < 0 ? end : boundary;
+
+            mSecureHash.putBytes(b, start, segmentEnd - start);
+            mSegmentBuffer.write(b, start, segmentEnd - start);
+            mPos += segmentEnd - start;
+            start = segmentEnd;
 
-                mSegmentBuffer.flush();
+            if(boundary >= 0) {
+                SecureSegment segment = new SecureSegment(mLast, mPos - mLast, mSecureHash.hash());
                 newSegment(segment, mSegmentBuffer.toByteArray());
                 mSegmentBuffer.reset();
+
+                mLast = mPos;
+                mSecureHash = mSecureHashFunction.newHasher();
             }
         }
-        return bytesRead;
+    }
+
+    private void onEnd() {
+        if(mPos - mLast > 0 && !mEndReached) {
+            mEndReached = true;
+            SecureSegment segment = new SecureSegment(mLast, mPos - mLast, mSecureHash.hash());
+            newSegment(segment, mSegmentBuffer.toByteArray());
+            mSegmentBuffer.reset();
+        }
     }
 }
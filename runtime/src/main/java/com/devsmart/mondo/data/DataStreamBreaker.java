@@ -9,7 +9,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.LinkedList;
 
-public class DataStreamBreaker {
+public class DataStreamBreaker implements Chunker {
 
     public interface Callback {
         OutputStream createOutputStream();
@@ -18,12 +18,54 @@ public class DataStreamBreaker {
 
     private static final int WINDOW_SIZE = 50;
     private final HashFunction mSecureHash;
+    private final int mWindowSize;
+    private final int mNumBits;
     private final long mMask;
+    private final int mMinChunk;
     private Callback mCallback;
 
     public DataStreamBreaker(HashFunction secureHash, int numBits) {
+        this(secureHash, numBits, 0);
+    }
+
+    /**
+     * @param minChunk segments shorter than this are never cut, except the last one
+     */
+    public DataStreamBreaker(HashFunction secureHash, int numBits, int minChunk) {
+        this(secureHash, WINDOW_SIZE, numBits, minChunk);
+    }
+
+    public DataStreamBreaker(HashFunction secureHash, int windowSize, int numBits, int minChunk) {
         mSecureHash = secureHash;
+        mWindowSize = windowSize;
+        mNumBits = numBits;
         mMask = (1 << numBits) - 1;
+        mMinChunk = minChunk;
+    }
+
+    @Override
+    public String getName() {
+        String retval = "buzhash-w" + mWindowSize + "-b" + mNumBits;
+        if(mMinChunk > 0) {
+            retval += "-m" + mMinChunk;
+        }
+        return retval;
+    }
+
+    @Override
+    public Scanner newScanner() {
+        final Buzhash buzHash = new Buzhash(mWindowSize);
+        return new Scanner() {
+            @Override
+            public int scan(byte[] data, int off, int len) {
+                return buzHash.scan(data, off, len, mMask, mMinChunk);
+            }
+
+            @Override
+            public void reset() {
+                buzHash.reset();
+            }
+        };
     }
 
     public void setCallback(Callback cb) {
@@ -36,6 +78,7 @@ public class DataStreamBreaker {
         }
     }
 
+    @Override
     public Iterable<SecureSegment> getSegments(InputStream in) throws IOException {
 
         OutputStream outputStream = null;
@@ -43,8 +86,7 @@ public class DataStreamBreaker {
 
         Hasher hasher = mSecureHash.newHasher();
 
-        Buzhash buzHash = new Buzhash(WINDOW_SIZE);
-        buzHash.reset();
+        Scanner scanner = newScanner();
         byte[] buffer = new byte[32 * 1024];
 
         long last = 0;
@@ -52,34 +94,34 @@ public class DataStreamBreaker {
         int bytesRead;
 
         while((bytesRead = in.read(buffer, 0, buffer.length)) > 0) {
-            for (int i = 0; i < bytesRead; i++) {
-                byte newByte = buffer[i];
-                long hash = buzHash.addByte(newByte);
-                hasher.putByte(newByte);
+            int start = 0;
+            while(start < bytesRead) {
+                final int boundary = scanner.scan(buffer, start, bytesRead - start);
+                final int end = boundary < 0 ? bytesRead : boundary;
+
+                hasher.putBytes(buffer, start, end - start);
                 if(mCallback != null && outputStream == null) {
                     outputStream = mCallback.createOutputStream();
                 }
                 if(outputStream != null) {
-                    outputStream.write(newByte);
+                    outputStream.write(buffer, start, end - start);
                 }
-                pos++;
+                pos += end - start;
+                start = end;
 
-                final long length = pos - last;
-                if ((hash & mMask) == 0) {
+                if(boundary >= 0) {
                     //segment boundery found
                     if(outputStream != null) {
                         outputStream.close();
                         outputStream = null;
                     }
 
-                    SecureSegment segment = new SecureSegment(last, length, hasher.hash());
+                    SecureSegment segment = new SecureSegment(last, pos - last, hasher.hash());
                     newSegment(segment);
                     retval.add(segment);
 
                     last = pos;
-                    buzHash.reset();
                     hasher = mSecureHash.newHasher();
-
                 }
             }
         }
@@ -0,0 +1,325 @@
+package com.devsmart.mondo.data;
+
+
+import com.backblaze.erasure.Galois;
+import com.backblaze.erasure.Matrix;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reed-Solomon coding of stripes of {@code dataShards} equally long shards, with
+ * {@code parityShards} parity shards computed from them. Any {@code dataShards} of the
+ * shards of a stripe are enough to get the others back.
+ *
+ * <p>The coding matrix is the one of {@code com.backblaze.erasure.ReedSolomon}, so parity
+ * computed by either can be decoded by the other. The byte loops are left to a
+ * {@link CodingKernel}; shards can be byte arrays or {@link ByteBuffer}s.</p>
+ *
+ * <p>Every byte position of a shard is coded independently of the others, so a stripe is
+ * split into slices of its byte range that are coded in parallel on the fork/join pool
+ * given to the constructor. Shard buffers come from a {@link ShardPool}.</p>
+ */
+public class ErasureCoder {
+
+    /** byte ranges of shards larger than this are split across the pool */
+    static final int PARALLEL_MIN = 64 * 1024;
+
+    private final int mDataShards;
+    private final int mParityShards;
+    private final Matrix mMatrix;
+    private final byte[][] mParityRows;
+    private final CodingKernel mKernel;
+    private final ForkJoinPool mPool;
+    private final ShardPool mShardPool;
+
+    /**
+     * @param pool runs slices of a stripe in parallel, or null to code on the calling thread
+     */
+    public ErasureCoder(int dataShards, int parityShards, ForkJoinPool pool, ShardPool shardPool) {
+        this(dataShards, parityShards, new TableCodingKernel(), pool, shardPool);
+    }
+
+    public ErasureCoder(int dataShards, int parityShards, CodingKernel kernel, ForkJoinPool pool, ShardPool shardPool) {
+        checkArgument(dataShards > 0 && parityShards > 0 && dataShards + parityShards <= 256,
+                "bad stripe layout: %s data + %s parity shards", dataShards, parityShards);
+        mDataShards = dataShards;
+        mParityShards = parityShards;
+        mMatrix = buildMatrix(dataShards, dataShards + parityShards);
+        mParityRows = new byte[parityShards][];
+        for(int i=0;i<parityShards;i++) {
+            mParityRows[i] = mMatrix.getRow(dataShards + i);
+        }
+        mKernel = kernel;
+        mPool = pool;
+        mShardPool = shardPool;
+    }
+
+    /**
+     * A Vandermonde matrix made systematic: the top square is the identity, so the data
+     * shards are stored as they are, and every square submatrix is still invertible.
+     */
+    private static Matrix buildMatrix(int dataShards, int totalShards) {
+        Matrix vandermonde = new Matrix(totalShards, dataShards);
+        for(int r=0;r<totalShards;r++) {
+            for(int c=0;c<dataShards;c++) {
+                vandermonde.set(r, c, Galois.exp((byte) r, c));
+            }
+        }
+        Matrix top = vandermonde.submatrix(0, 0, dataShards, dataShards);
+        return vandermonde.times(top.invert());
+    }
+
+    public int getDataShards() {
+        return mDataShards;
+    }
+
+    public int getParityShards() {
+        return mParityShards;
+    }
+
+    public int getTotalShards() {
+        return mDataShards + mParityShards;
+    }
+
+    /**
+     * @return buffers for all shards of a stripe with shards of {@code shardLength} bytes.
+     * Give them back with {@link #releaseShards(byte[][])}.
+     */
+    public byte[][] allocateShards(int shardLength) {
+        byte[][] shards = new byte[getTotalShards()][];
+        for(int i=0;i<shards.length;i++) {
+            shards[i] = mShardPool.acquire(shardLength);
+        }
+        return shards;
+    }
+
+    public void releaseShards(byte[][] shards) {
+        for(byte[] shard : shards) {
+            if(shard != null) {
+                mShardPool.release(shard);
+            }
+        }
+    }
+
+    /**
+     * compute the parity shards from the first {@link #getDataShards()} shards
+     */
+    public void encode(byte[][] shards, int shardLength) {
+        checkArgument(shards.length == getTotalShards());
+        run(new ArrayJob(mParityRows, shards, range(mDataShards), range(mDataShards, getTotalShards())), shardLength);
+    }
+
+    /**
+     * Same as {@link #encode(byte[][], int)}, coding bytes {@code [0, shardLength)} of
+     * every buffer.
+     */
+    public void encode(ByteBuffer[] shards, int shardLength) {
+        checkArgument(shards.length == getTotalShards());
+        run(new BufferJob(mParityRows, shards, range(mDataShards), range(mDataShards, getTotalShards())), shardLength);
+    }
+
+    /**
+     * Recompute the shards that are not {@code present} from the others.
+     *
+     * @throws IllegalArgumentException if fewer than {@link #getDataShards()} shards are present
+     */
+    public void decode(byte[][] shards, boolean[] present, int shardLength) {
+        checkArgument(shards.length == getTotalShards());
+        final DecodePlan plan = new DecodePlan(present);
+        if(plan.missingData.length > 0) {
+            run(new ArrayJob(plan.dataRows, shards, plan.inputs, plan.missingData), shardLength);
+        }
+        if(plan.missingParity.length > 0) {
+            run(new ArrayJob(plan.parityRows, shards, range(mDataShards), plan.missingParity), shardLength);
+        }
+    }
+
+    /**
+     * Same as {@link #decode(byte[][], boolean[], int)}, coding bytes {@code [0, shardLength)}
+     * of every buffer.
+     */
+    public void decode(ByteBuffer[] shards, boolean[] present, int shardLength) {
+        checkArgument(shards.length == getTotalShards());
+        final DecodePlan plan = new DecodePlan(present);
+        if(plan.missingData.length > 0) {
+            run(new BufferJob(plan.dataRows, shards, plan.inputs, plan.missingData), shardLength);
+        }
+        if(plan.missingParity.length > 0) {
+            run(new BufferJob(plan.parityRows, shards, range(mDataShards), plan.missingParity), shardLength);
+        }
+    }
+
+    /**
+     * Missing data shards are the product of the inverse of the rows of the present shards
+     * with those shards. Missing parity shards are computed from the data shards once all
+     * of them are back.
+     */
+    private class DecodePlan {
+
+        final int[] inputs;
+        final int[] missingData;
+        final byte[][] dataRows;
+        final int[] missingParity;
+        final byte[][] parityRows;
+
+        DecodePlan(boolean[] present) {
+            checkArgument(present.length == getTotalShards());
+            int numPresent = 0;
+            int numMissingData = 0;
+            for(int i=0;i<present.length;i++) {
+                if(present[i]) {
+                    numPresent++;
+                } else if(i < mDataShards) {
+                    numMissingData++;
+                }
+            }
+            checkArgument(numPresent >= mDataShards, "only %s of %s shards present, %s needed",
+                    numPresent, present.length, mDataShards);
+
+            inputs = new int[mDataShards];
+            for(int i=0, n=0;n<mDataShards;i++) {
+                if(present[i]) {
+                    inputs[n++] = i;
+                }
+            }
+            missingData = new int[numMissingData];
+            missingParity = new int[getTotalShards() - numPresent - numMissingData];
+            for(int i=0, d=0, p=0;i<present.length;i++) {
+                if(present[i]) {
+                    continue;
+                }
+                if(i < mDataShards) {
+                    missingData[d++] = i;
+                } else {
+                    missingParity[p++] = i;
+                }
+            }
+
+            if(missingData.length > 0) {
+                Matrix sub = new Matrix(mDataShards, mDataShards);
+                for(int r=0;r<mDataShards;r++) {
+                    for(int c=0;c<mDataShards;c++) {
+                        sub.set(r, c, mMatrix.get(inputs[r], c));
+                    }
+                }
+                Matrix inverse = sub.invert();
+                dataRows = new byte[missingData.length][];
+                for(int i=0;i<missingData.length;i++) {
+                    dataRows[i] = inverse.getRow(missingData[i]);
+                }
+            } else {
+                dataRows = null;
+            }
+
+            parityRows = new byte[missingParity.length][];
+            for(int i=0;i<missingParity.length;i++) {
+                parityRows[i] = mParityRows[missingParity[i] - mDataShards];
+            }
+        }
+    }
+
+    private static int[] range(int end) {
+        return range(0, end);
+    }
+
+    private static int[] range(int start, int end) {
+        int[] retval = new int[end - start];
+        for(int i=0;i<retval.length;i++) {
+            retval[i] = start + i;
+        }
+        return retval;
+    }
+
+    private void run(Job job, int length) {
+        if(mPool != null && length > PARALLEL_MIN) {
+            mPool.invoke(new Slice(job, 0, length));
+        } else {
+            job.code(0, length);
+        }
+    }
+
+    /**
+     * codes a byte range of the output shards of a stripe
+     */
+    private interface Job {
+        void code(int offset, int length);
+    }
+
+    private class ArrayJob implements Job {
+
+        private final byte[][] mRows;
+        private final byte[][] mInputs;
+        private final byte[][] mOutputs;
+
+        ArrayJob(byte[][] rows, byte[][] shards, int[] inputs, int[] outputs) {
+            mRows = rows;
+            mInputs = new byte[inputs.length][];
+            for(int i=0;i<inputs.length;i++) {
+                mInputs[i] = shards[inputs[i]];
+            }
+            mOutputs = new byte[outputs.length][];
+            for(int i=0;i<outputs.length;i++) {
+                mOutputs[i] = shards[outputs[i]];
+            }
+        }
+
+        @Override
+        public void code(int offset, int length) {
+            mKernel.code(mRows, mInputs, mInputs.length, mOutputs, mOutputs.length, offset, length);
+        }
+    }
+
+    private class BufferJob implements Job {
+
+        private final byte[][] mRows;
+        private final ByteBuffer[] mInputs;
+        private final ByteBuffer[] mOutputs;
+
+        BufferJob(byte[][] rows, ByteBuffer[] shards, int[] inputs, int[] outputs) {
+            mRows = rows;
+            mInputs = new ByteBuffer[inputs.length];
+            for(int i=0;i<inputs.length;i++) {
+                mInputs[i] = shards[inputs[i]];
+            }
+            mOutputs = new ByteBuffer[outputs.length];
+            for(int i=0;i<outputs.length;i++) {
+                mOutputs[i] = shards[outputs[i]];
+            }
+        }
+
+        @Override
+        public void code(int offset, int length) {
+            mKernel.code(mRows, mInputs, mInputs.length, mOutputs, mOutputs.length, offset, length);
+        }
+    }
+
+    private static class Slice extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Job mJob;
+        private final int mOffset;
+        private final int mLength;
+
+        Slice(Job job, int offset, int length) {
+            mJob = job;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        protected void compute() {
+            if(mLength <= PARALLEL_MIN) {
+                mJob.code(mOffset, mLength);
+                return;
+            }
+            final int half = mLength / 2;
+            invokeAll(new Slice(mJob, mOffset, half),
+                    new Slice(mJob, mOffset + half, mLength - half));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.devsmart.mondo.data;
+
+
+import com.google.common.hash.HashFunction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * FastCDC chunking (Xia et al., USENIX ATC 2016). The rolling hash is a gear hash, which
+ * only needs a shift, an add and one table lookup per byte. The first {@code minSize}
+ * bytes of a chunk are skipped entirely. Up to {@code avgSize} a mask with two extra bits
+ * makes a cut unlikely; after it, a mask with two fewer bits makes a cut likely. This
+ * normalized chunking keeps chunk sizes tightly around the average. A cut is forced at
+ * {@code maxSize}.
+ */
+public class FastCDC implements Chunker {
+
+    private static final long[] GEAR;
+
+    static {
+        GEAR = new long[256];
+        Random r = new Random(2);
+        for(int i=0;i<GEAR.length;i++) {
+            GEAR[i] = r.nextLong();
+        }
+    }
+
+    private final HashFunction mSecureHash;
+    private final int mMinSize;
+    private final int mAvgSize;
+    private final int mMaxSize;
+    private final long mMaskSmall;
+    private final long mMaskLarge;
+
+    public FastCDC(HashFunction secureHash, int minSize, int avgSize, int maxSize) {
+        checkArgument(Integer.bitCount(avgSize) == 1, "avgSize must be a power of 2");
+        checkArgument(0 < minSize && minSize <= avgSize && avgSize <= maxSize);
+        mSecureHash = secureHash;
+        mMinSize = minSize;
+        mAvgSize = avgSize;
+        mMaxSize = maxSize;
+
+        //the high bits of a gear hash depend on the most bytes, so the masks use those
+        final int bits = Integer.numberOfTrailingZeros(avgSize);
+        mMaskSmall = -1L << (Long.SIZE - Math.min(Long.SIZE - 1, bits + 2));
+        mMaskLarge = -1L << (Long.SIZE - Math.max(1, bits - 2));
+    }
+
+    @Override
+    public String getName() {
+        return "fastcdc-" + mMinSize + "-" + mAvgSize + "-" + mMaxSize;
+    }
+
+    @Override
+    public Scanner newScanner() {
+        return new Scanner() {
+
+            private long mHash;
+            private long mLength;
+
+            @Override
+            public int scan(byte[] data, int off, int len) {
+                final int end = off + len;
+                int i = off;
+
+                if(mLength < mMinSize) {
+                    final int skip = (int) Math.min(mMinSize - mLength, end - i);
+                    i += skip;
+                    mLength += skip;
+                }
+
+                long hash = mHash;
+
+                final int smallStart = i;
+                int limit = (int) Math.min(end, i + Math.max(0, mAvgSize - mLength));
+                for(;i<limit;i++) {
+                    hash = (hash << 1) + GEAR[data[i] & 0xff];
+                    if((hash & mMaskSmall) == 0) {
+                        reset();
+                        return i + 1;
+                    }
+                }
+                mLength += i - smallStart;
+
+                final int largeStart = i;
+                limit = (int) Math.min(end, i + (mMaxSize - mLength));
+                for(;i<limit;i++) {
+                    hash = (hash << 1) + GEAR[data[i] & 0xff];
+                    if((hash & mMaskLarge) == 0) {
+                        reset();
+                        return i + 1;
+                    }
+                }
+                mLength += i - largeStart;
+
+                if(mLength >= mMaxSize) {
+                    reset();
+                    return i;
+                }
+
+                mHash = hash;
+                return -1;
+            }
+
+            @Override
+            public void reset() {
+                mHash = 0;
+                mLength = 0;
+            }
+        };
+    }
+
+    @Override
+    public Iterable<SecureSegment> getSegments(InputStream in) throws IOException {
+        return Chunkers.getSegments(newScanner(), mSecureHash, in);
+    }
+}
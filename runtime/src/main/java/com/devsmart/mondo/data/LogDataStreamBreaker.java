@@ -2,13 +2,11 @@ package com.devsmart.mondo.data;
 
 
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
 
-public class LogDataStreamBreaker {
+public class LogDataStreamBreaker implements Chunker {
 
     private static final int WINDOW_SIZE = 50;
     private final HashFunction mSecureHash;
@@ -19,48 +17,48 @@ public class LogDataStreamBreaker {
         mNumBitsTarget = numBits;
     }
 
-    public Iterable<SecureSegment> getSegments(InputStream in) throws IOException {
-
-        LinkedList<SecureSegment> retval = new LinkedList<SecureSegment>();
-
-        Hasher hasher = mSecureHash.newHasher();
-
-        Buzhash buzHash = new Buzhash(WINDOW_SIZE);
-        buzHash.reset();
-        byte[] buffer = new byte[32 * 1024];
-
-        long last = 0;
-        long pos = 0;
-        int bytesRead;
-
-        while((bytesRead = in.read(buffer, 0, buffer.length)) > 0) {
-            for (int i = 0; i < bytesRead; i++) {
-                byte newByte = buffer[i];
-                long hash = buzHash.addByte(newByte);
-                hasher.putByte(newByte);
-                pos++;
-
-                final long length = pos - last;
-                final int numBitsNeeded = (Long.SIZE - Long.numberOfLeadingZeros(Math.max(1, (1 << mNumBitsTarget) - length)));
-                final long mask = (long) ((1 << numBitsNeeded) -1);
-                if ((hash & mask) == 0) {
-                    //segment boundery found
-                    SecureSegment segment = new SecureSegment(last, length, hasher.hash());
-                    retval.add(segment);
+    @Override
+    public String getName() {
+        return "logbuzhash-b" + mNumBitsTarget;
+    }
 
-                    last = pos;
-                    buzHash.reset();
-                    hasher = mSecureHash.newHasher();
+    @Override
+    public Scanner newScanner() {
+        final long target = 1 << mNumBitsTarget;
+        final Buzhash buzHash = new Buzhash(WINDOW_SIZE);
+        return new Scanner() {
+            @Override
+            public int scan(byte[] data, int off, int len) {
+                final int end = off + len;
+                int start = off;
+                while(start < end) {
+                    //the mask only changes when the bit length of the remaining distance to the
+                    //target changes, so scan the stretch that uses the same mask in one go
+                    final long length = buzHash.getBytesAdded() + 1;
+                    final long distance = Math.max(1, target - length);
+                    final int numBitsNeeded = Long.SIZE - Long.numberOfLeadingZeros(distance);
+                    final long mask = (long) ((1 << numBitsNeeded) - 1);
+                    final long span = distance == 1 ? Long.MAX_VALUE : distance - (1L << (numBitsNeeded - 1)) + 1;
+
+                    final int spanLen = (int) Math.min(span, end - start);
+                    final int boundary = buzHash.scan(data, start, spanLen, mask, 0);
+                    if(boundary >= 0) {
+                        return boundary;
+                    }
+                    start += spanLen;
                 }
+                return -1;
             }
-        }
-
-        if(pos > last) {
-            SecureSegment segment = new SecureSegment(last, pos - last, hasher.hash());
-            retval.add(segment);
-        }
 
+            @Override
+            public void reset() {
+                buzHash.reset();
+            }
+        };
+    }
 
-        return retval;
+    @Override
+    public Iterable<SecureSegment> getSegments(InputStream in) throws IOException {
+        return Chunkers.getSegments(newScanner(), mSecureHash, in);
     }
 }
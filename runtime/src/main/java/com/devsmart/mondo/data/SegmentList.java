@@ -100,7 +100,7 @@ public class SegmentList implements Iterable<Segment> {
             if(s.offset >= size) {
                 it.remove();
             } else if(s.end() > size) {
-                it.set(new Segment(s.offset, s.end() - size));
+                it.set(new Segment(s.offset, size - s.offset));
             }
         }
     }
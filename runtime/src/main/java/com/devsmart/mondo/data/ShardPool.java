@@ -0,0 +1,71 @@
+package com.devsmart.mondo.data;
+
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Reuses the shard buffers of an {@link ErasureCoder}, which are large and short lived.
+ *
+ * <p>Buffers come in power of two sizes, so the shards of a stripe asked for with the same
+ * length all have the same size, as ReedSolomon requires. Released buffers are kept up to
+ * a total of {@code maxPooledBytes}; beyond that they are left to the garbage collector.
+ * The contents of an acquired buffer are undefined.</p>
+ */
+public class ShardPool {
+
+    static final int MIN_BUFFER_SIZE = 4096;
+
+    private final long mMaxPooledBytes;
+
+    //guarded by this
+    private final Map<Integer, ArrayDeque<byte[]>> mFree = new HashMap<Integer, ArrayDeque<byte[]>>();
+    private long mPooledBytes;
+
+    public ShardPool(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0);
+        mMaxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * size of the buffers handed out for shards of {@code length} bytes
+     */
+    public static int bufferSize(int length) {
+        checkArgument(length >= 0 && length <= 1 << 30, "bad shard length: %s", length);
+        return Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+    }
+
+    public synchronized byte[] acquire(int length) {
+        final int size = bufferSize(length);
+        ArrayDeque<byte[]> free = mFree.get(size);
+        if(free != null && !free.isEmpty()) {
+            mPooledBytes -= size;
+            return free.pop();
+        }
+        return new byte[size];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        final int size = buffer.length;
+        if(Integer.bitCount(size) != 1 || size < MIN_BUFFER_SIZE || mPooledBytes + size > mMaxPooledBytes) {
+            return;
+        }
+        ArrayDeque<byte[]> free = mFree.get(size);
+        if(free == null) {
+            free = new ArrayDeque<byte[]>();
+            mFree.put(size, free);
+        }
+        free.push(buffer);
+        mPooledBytes += size;
+    }
+
+    /**
+     * bytes held by released buffers waiting to be reused
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+}
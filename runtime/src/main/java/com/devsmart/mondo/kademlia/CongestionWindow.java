@@ -0,0 +1,123 @@
+package com.devsmart.mondo.kademlia;
+
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of fragments a transfer keeps in flight, the way TCP Reno does: the
+ * window grows by one fragment per acked fragment in slow start and by one fragment per
+ * window after that (additive increase), is halved when a loss is detected from the acks
+ * (multiplicative decrease) and falls back to one fragment when the retransmit timer fires.
+ *
+ * <p>The retransmit timeout follows RFC 6298: a smoothed round trip time plus four times
+ * its variation, doubled on every timeout until a new round trip is measured.</p>
+ *
+ * <p>One window is shared by all transfers to the same peer, like the congestion state of
+ * a path: the fragments in flight of all of them count against it, see
+ * {@link #tryAcquire()}.</p>
+ */
+public class CongestionWindow {
+
+    static final int INITIAL_WINDOW = 4;
+    static final int MIN_WINDOW = 2;
+    static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    static final long MAX_RTO = TimeUnit.SECONDS.toNanos(30);
+
+    private final int mMaxWindow;
+    private double mWindow = INITIAL_WINDOW;
+    private double mSlowStartThreshold;
+    private long mSmoothedRtt = -1;
+    private long mRttVariation;
+    private long mRto = INITIAL_RTO;
+    private int mInFlight;
+
+    /**
+     * @param maxWindow the most fragments ever in flight, whatever the network takes
+     */
+    public CongestionWindow(int maxWindow) {
+        mMaxWindow = Math.max(INITIAL_WINDOW, maxWindow);
+        mSlowStartThreshold = mMaxWindow;
+    }
+
+    /**
+     * @return number of fragments that may be in flight
+     */
+    public synchronized int getWindow() {
+        return (int) Math.min(mMaxWindow, mWindow);
+    }
+
+    /**
+     * @return nanoseconds to wait for an ack before the oldest fragment in flight is
+     * taken for lost
+     */
+    public synchronized long getRto() {
+        return mRto;
+    }
+
+    /**
+     * take room for one more fragment in flight
+     *
+     * @return false if the window is full
+     */
+    public synchronized boolean tryAcquire() {
+        if(mInFlight >= getWindow()) {
+            return false;
+        }
+        mInFlight++;
+        return true;
+    }
+
+    /**
+     * {@code numFragments} taken with {@link #tryAcquire()} are no longer in flight
+     */
+    public synchronized void release(int numFragments) {
+        mInFlight = Math.max(0, mInFlight - numFragments);
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    public synchronized void onAck(int numFragments) {
+        for(int i=0;i<numFragments;i++) {
+            if(mWindow < mSlowStartThreshold) {
+                mWindow += 1;
+            } else {
+                mWindow += 1 / mWindow;
+            }
+        }
+        mWindow = Math.min(mWindow, mMaxWindow);
+    }
+
+    /**
+     * a fragment was lost but later ones got through
+     */
+    public synchronized void onLoss() {
+        mSlowStartThreshold = Math.max(MIN_WINDOW, mWindow / 2);
+        mWindow = mSlowStartThreshold;
+    }
+
+    /**
+     * nothing was acked for an RTO
+     */
+    public synchronized void onTimeout() {
+        mSlowStartThreshold = Math.max(MIN_WINDOW, mWindow / 2);
+        mWindow = 1;
+        mRto = Math.min(MAX_RTO, 2 * mRto);
+    }
+
+    /**
+     * @param rtt nanoseconds from sending a fragment, that was not retransmitted, to its ack
+     */
+    public synchronized void onRttSample(long rtt) {
+        if(mSmoothedRtt < 0) {
+            mSmoothedRtt = rtt;
+            mRttVariation = rtt / 2;
+        } else {
+            mRttVariation = (3 * mRttVariation + Math.abs(mSmoothedRtt - rtt)) / 4;
+            mSmoothedRtt = (7 * mSmoothedRtt + rtt) / 8;
+        }
+        mRto = Math.max(MIN_RTO, Math.min(MAX_RTO, mSmoothedRtt + 4 * mRttVariation));
+    }
+}
@@ -0,0 +1,99 @@
+package com.devsmart.mondo.kademlia;
+
+
+import java.util.BitSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Receiving side of a block transfer: puts fragments in place in whatever order they come
+ * and answers every one of them with the state needed for the ack, see
+ * {@link FragmentSender}.
+ *
+ * <p>The block is buffered in chunks of {@link #CHUNK_FRAGMENTS} fragments that are only
+ * allocated once data for them arrives, so announcing a large block costs nothing until
+ * it is actually sent.</p>
+ *
+ * <p>Not thread safe; the owner of a transfer serializes calls.</p>
+ */
+public class FragmentReceiver {
+
+    static final int CHUNK_FRAGMENTS = 64;
+    private static final int CHUNK_SIZE = CHUNK_FRAGMENTS * Message.DataMessage.FRAGMENT_SIZE;
+
+    private final int mLength;
+    private final int mNumFragments;
+    private final BitSet mReceived;
+    private byte[][] mChunks;
+    private byte[] mData;
+    private int mCumulativeAck;
+
+    public FragmentReceiver(int length) {
+        checkArgument(length >= 0);
+        mLength = length;
+        mNumFragments = FragmentSender.numFragments(length);
+        mReceived = new BitSet(mNumFragments);
+        mChunks = new byte[(mNumFragments + CHUNK_FRAGMENTS - 1) / CHUNK_FRAGMENTS][];
+    }
+
+    /**
+     * @return false if the fragment does not belong to this block
+     */
+    public boolean onFragment(int sequence, byte[] buf, int offset, int length) {
+        if(sequence < 0 || sequence >= mNumFragments) {
+            return false;
+        }
+        final int start = sequence * Message.DataMessage.FRAGMENT_SIZE;
+        if(length != Math.min(Message.DataMessage.FRAGMENT_SIZE, mLength - start)) {
+            return false;
+        }
+
+        if(!mReceived.get(sequence)) {
+            final int chunk = sequence / CHUNK_FRAGMENTS;
+            if(mChunks[chunk] == null) {
+                mChunks[chunk] = new byte[Math.min(CHUNK_SIZE, mLength - chunk * CHUNK_SIZE)];
+            }
+            System.arraycopy(buf, offset, mChunks[chunk], start - chunk * CHUNK_SIZE, length);
+            mReceived.set(sequence);
+            mCumulativeAck = mReceived.nextClearBit(mCumulativeAck);
+        }
+        return true;
+    }
+
+    public boolean isComplete() {
+        return mCumulativeAck >= mNumFragments;
+    }
+
+    public int getCumulativeAck() {
+        return Math.min(mCumulativeAck, mNumFragments);
+    }
+
+    /**
+     * @return bit i is set if fragment {@link #getCumulativeAck()} + 1 + i was received
+     */
+    public long getSack() {
+        long sack = 0;
+        for(int i=0;i<64;i++) {
+            if(mReceived.get(mCumulativeAck + 1 + i)) {
+                sack |= 1L << i;
+            }
+        }
+        return sack;
+    }
+
+    /**
+     * @return the whole block. Only valid once complete; the chunks are let go of.
+     */
+    public byte[] getData() {
+        checkState(isComplete(), "block is not complete");
+        if(mData == null) {
+            mData = new byte[mLength];
+            for(int i=0;i<mChunks.length;i++) {
+                System.arraycopy(mChunks[i], 0, mData, i * CHUNK_SIZE, mChunks[i].length);
+            }
+            mChunks = null;
+        }
+        return mData;
+    }
+}
@@ -0,0 +1,215 @@
+package com.devsmart.mondo.kademlia;
+
+
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sending side of a block transfer. The block is cut into fragments of
+ * {@link Message.DataMessage#FRAGMENT_SIZE} bytes, which are sent without waiting for each
+ * other as long as the {@link CongestionWindow} allows.
+ *
+ * <p>Acks carry the number of fragments received without a gap and a bitmap of the
+ * fragments received after the gap, so only fragments that are really missing are sent
+ * again. A fragment is taken for lost once {@link #DUP_THRESHOLD} fragments sent after it
+ * were acked, or when nothing was acked for an RTO.</p>
+ *
+ * <p>The window may be shared with other senders to the same peer. A sender that is given
+ * up on before it is done has to be {@link #close() closed} to give its fragments in flight
+ * back.</p>
+ *
+ * <p>Not thread safe; the owner of a transfer serializes calls.</p>
+ */
+public class FragmentSender {
+
+    /** acked fragments sent after a missing one before it is taken for lost */
+    static final int DUP_THRESHOLD = 3;
+
+    /** retransmit timeouts in a row after which the peer is given up on */
+    static final int MAX_TIMEOUTS = 8;
+
+    private static final byte UNSENT = 0;
+    private static final byte IN_FLIGHT = 1;
+    private static final byte LOST = 2;
+    private static final byte ACKED = 3;
+
+    public interface Output {
+        void sendFragment(int sequence, byte[] data, int offset, int length);
+    }
+
+    private final byte[] mData;
+    private final CongestionWindow mWindow;
+    private final int mNumFragments;
+    private final byte[] mState;
+    private final boolean[] mRetransmitted;
+    private final long[] mSentAt;
+    private final long[] mSendOrder;
+    private final ArrayDeque<Integer> mLost = new ArrayDeque<Integer>();
+
+    private long mSendCount;
+    private long mHighestAckedOrder;
+    private int mCumulativeAck;
+    private int mNextSequence;
+    private int mInFlight;
+    private int mRecoveryPoint;
+    private int mTimeouts;
+    private int mNumAcked;
+    private long mRetransmits;
+
+    public FragmentSender(byte[] data, CongestionWindow window) {
+        mData = data;
+        mWindow = window;
+        mNumFragments = numFragments(data.length);
+        mState = new byte[mNumFragments];
+        mRetransmitted = new boolean[mNumFragments];
+        mSentAt = new long[mNumFragments];
+        mSendOrder = new long[mNumFragments];
+    }
+
+    /**
+     * an empty block is sent as one empty fragment
+     */
+    public static int numFragments(int length) {
+        checkArgument(length >= 0);
+        return Math.max(1, (length + Message.DataMessage.FRAGMENT_SIZE - 1) / Message.DataMessage.FRAGMENT_SIZE);
+    }
+
+    public int getNumFragments() {
+        return mNumFragments;
+    }
+
+    public boolean isDone() {
+        return mNumAcked == mNumFragments;
+    }
+
+    /**
+     * @return true once the peer stopped acking
+     */
+    public boolean isFailed() {
+        return mTimeouts > MAX_TIMEOUTS;
+    }
+
+    public long getRetransmits() {
+        return mRetransmits;
+    }
+
+    /**
+     * send lost fragments and then new ones until the window is full
+     */
+    public void pump(long now, Output out) {
+        while(!isFailed() && (!mLost.isEmpty() || mNextSequence < mNumFragments) && mWindow.tryAcquire()) {
+            final int sequence;
+            if(!mLost.isEmpty()) {
+                sequence = mLost.poll();
+                mRetransmitted[sequence] = true;
+                mRetransmits++;
+            } else {
+                sequence = mNextSequence++;
+            }
+
+            mState[sequence] = IN_FLIGHT;
+            mSentAt[sequence] = now;
+            mSendOrder[sequence] = ++mSendCount;
+            mInFlight++;
+
+            final int offset = sequence * Message.DataMessage.FRAGMENT_SIZE;
+            out.sendFragment(sequence, mData, offset, Math.min(Message.DataMessage.FRAGMENT_SIZE, mData.length - offset));
+        }
+    }
+
+    public void onAck(int cumulativeAck, long sack, long now) {
+        if(cumulativeAck < 0 || cumulativeAck > mNumFragments) {
+            return;
+        }
+
+        int newlyAcked = 0;
+        long rtt = -1;
+        for(int i=mCumulativeAck;i<cumulativeAck + 64 && i<mNumFragments;i++) {
+            final boolean acked = i < cumulativeAck || (i > cumulativeAck && (sack & (1L << (i - cumulativeAck - 1))) != 0);
+            if(!acked || mState[i] == ACKED || mState[i] == UNSENT) {
+                continue;
+            }
+            if(mState[i] == IN_FLIGHT) {
+                mInFlight--;
+                mWindow.release(1);
+                //Karn: the ack of a retransmitted fragment may be for either copy
+                if(!mRetransmitted[i]) {
+                    rtt = now - mSentAt[i];
+                }
+            } else {
+                mLost.remove(i);
+            }
+            mState[i] = ACKED;
+            mHighestAckedOrder = Math.max(mHighestAckedOrder, mSendOrder[i]);
+            mNumAcked++;
+            newlyAcked++;
+        }
+        while(mCumulativeAck < mNumFragments && mState[mCumulativeAck] == ACKED) {
+            mCumulativeAck++;
+        }
+        if(newlyAcked == 0) {
+            return;
+        }
+
+        mTimeouts = 0;
+        mWindow.onAck(newlyAcked);
+        if(rtt >= 0) {
+            mWindow.onRttSample(rtt);
+        }
+
+        boolean loss = false;
+        for(int i=mCumulativeAck;i<mNextSequence;i++) {
+            if(mState[i] == IN_FLIGHT && mSendOrder[i] + DUP_THRESHOLD <= mHighestAckedOrder) {
+                markLost(i);
+                loss |= i >= mRecoveryPoint;
+            }
+        }
+        if(loss) {
+            //one decrease per window of data, however many of its fragments were lost
+            mWindow.onLoss();
+            mRecoveryPoint = mNextSequence;
+        }
+    }
+
+    /**
+     * @return true if the oldest fragment in flight timed out and everything in flight was
+     * taken for lost
+     */
+    public boolean checkTimeout(long now) {
+        long oldest = Long.MAX_VALUE;
+        for(int i=mCumulativeAck;i<mNextSequence;i++) {
+            if(mState[i] == IN_FLIGHT) {
+                oldest = Math.min(oldest, mSentAt[i]);
+            }
+        }
+        if(oldest == Long.MAX_VALUE || now - oldest < mWindow.getRto()) {
+            return false;
+        }
+
+        for(int i=mCumulativeAck;i<mNextSequence;i++) {
+            if(mState[i] == IN_FLIGHT) {
+                markLost(i);
+            }
+        }
+        mWindow.onTimeout();
+        mRecoveryPoint = mNextSequence;
+        mTimeouts++;
+        return true;
+    }
+
+    private void markLost(int sequence) {
+        mState[sequence] = LOST;
+        mInFlight--;
+        mWindow.release(1);
+        mLost.add(sequence);
+    }
+
+    /**
+     * give the fragments still in flight back to the window
+     */
+    public void close() {
+        mWindow.release(mInFlight);
+        mInFlight = 0;
+    }
+}
@@ -15,18 +15,24 @@ public class Message {
     public static final int PING = 0;
     public static final int FINDPEERS = 1;
     public static final int CONNECT = 2;
+    public static final int HAVE = 3;
+    public static final int GET_BLOCK = 4;
+    public static final int PUT_BLOCK = 5;
+    public static final int DATA = 6;
 
     private static final int FLAG_RESPONSE = 0x10;
+    private static final int FLAG_INITIATOR = 0x20;
     /*
 
         Version: 2bits
-        X: Reserved: 2bits
+        X: Reserved: 1bit
+        I: (Initiator): 1bit
         R: (Response): 1bit
         PT (Payload Type): 3bits
 
          0 1 2 3 4 5 6 7 8
         +-+-+-+-+-+-+-+-+-
-        |Ver|   |R| PT  |
+        |Ver|X|I|R| PT  |
 
 
         # SocketAddress #
@@ -73,6 +79,64 @@ public class Message {
         ID: destId
         Yes/No, ID, SocketAddress[]
 
+        ## Block Transfer ##
+        Content blocks are named by the SHA-1 of their data. A transfer is identified by a
+        4-byte transfer id picked by the peer that starts it, the initiator. Ints are big endian.
+
+        ### Have ###
+        PT: 3
+
+        Request Payload:
+        ID: blockId
+
+        Response Payload:
+        ID: blockId
+        Length: 4-byte length of the block, -1 if the peer does not have it
+
+        ### GetBlock ###
+        PT: 4
+
+        Request Payload:
+        TransferId: 4-byte
+        ID: blockId
+
+        Response Payload:
+        TransferId: 4-byte
+        Length: 4-byte length of the block, -1 if the peer does not have it
+        The responder then sends the block in Data fragments.
+
+        ### PutBlock ###
+        PT: 5
+
+        Request Payload:
+        TransferId: 4-byte
+        ID: blockId
+        Length: 4-byte
+
+        Response Payload:
+        TransferId: 4-byte
+        Status: 1-byte, one of PUT_ACCEPTED, PUT_HAVE, PUT_REFUSED, PUT_STORED or PUT_FAILED
+        On PUT_ACCEPTED the requester sends the block in Data fragments. PUT_REFUSED also
+        means the responder is too busy to take the block. Once every fragment arrived
+        the responder checks the block against its id, stores it and sends a second
+        response, PUT_STORED or PUT_FAILED. A requester that does not get it repeats the
+        request; it is answered with the final status once there is one.
+
+        ### Data ###
+        PT: 6
+        I is set when the packet comes from the initiator of the transfer.
+
+        Request Payload (fragment):
+        TransferId: 4-byte
+        Sequence: 4-byte fragment number
+        Data: the bytes of the block at Sequence * FRAGMENT_SIZE, FRAGMENT_SIZE of them
+              except in the last fragment
+
+        Response Payload (ack):
+        TransferId: 4-byte
+        CumulativeAck: 4-byte number of fragments received without a gap
+        Sack: 8-byte bitmap, bit i is set if fragment CumulativeAck + 1 + i was received
+
         */
     byte[] mRawData = new byte[64 * 1024];
     public final DatagramPacket mPacket = new DatagramPacket(mRawData, mRawData.length);
@@ -102,6 +166,31 @@ public class Message {
         }
     }
 
+    private static int writeInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+        return 4;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) << 24
+                | (buf[offset + 1] & 0xFF) << 16
+                | (buf[offset + 2] & 0xFF) << 8
+                | (buf[offset + 3] & 0xFF);
+    }
+
+    private static int writeLong(byte[] buf, int offset, long value) {
+        writeInt(buf, offset, (int) (value >>> 32));
+        writeInt(buf, offset + 4, (int) value);
+        return 8;
+    }
+
+    private static long readLong(byte[] buf, int offset) {
+        return ((long) readInt(buf, offset) << 32) | (readInt(buf, offset + 4) & 0xFFFFFFFFL);
+    }
+
     public boolean parseData() {
         return false;
     }
@@ -118,6 +207,10 @@ public class Message {
         return (FLAG_RESPONSE & mRawData[0]) > 0;
     }
 
+    public boolean isFromInitiator() {
+        return (FLAG_INITIATOR & mRawData[0]) > 0;
+    }
+
     public InetSocketAddress getRemoteSocketAddress() {
         return (InetSocketAddress) mPacket.getSocketAddress();
     }
@@ -263,4 +356,154 @@ public class Message {
 
 
     }
+
+    public static class HaveMessage {
+
+        public static void formatRequest(Message msg, ID blockId) {
+            msg.mRawData[0] = HAVE;
+            int offset = 1;
+            offset += blockId.write(msg.mRawData, offset);
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static void formatResponse(Message msg, ID blockId, int length) {
+            msg.mRawData[0] = HAVE | FLAG_RESPONSE;
+            int offset = 1;
+            offset += blockId.write(msg.mRawData, offset);
+            offset += writeInt(msg.mRawData, offset, length);
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static ID getBlockId(Message msg) {
+            return new ID(msg.mRawData, 1);
+        }
+
+        public static int getLength(Message msg) {
+            return readInt(msg.mRawData, 1 + ID.NUM_BYTES);
+        }
+    }
+
+    public static class GetBlockMessage {
+
+        public static void formatRequest(Message msg, int transferId, ID blockId) {
+            msg.mRawData[0] = GET_BLOCK;
+            int offset = 1;
+            offset += writeInt(msg.mRawData, offset, transferId);
+            offset += blockId.write(msg.mRawData, offset);
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static void formatResponse(Message msg, int transferId, int length) {
+            msg.mRawData[0] = GET_BLOCK | FLAG_RESPONSE;
+            int offset = 1;
+            offset += writeInt(msg.mRawData, offset, transferId);
+            offset += writeInt(msg.mRawData, offset, length);
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static int getTransferId(Message msg) {
+            return readInt(msg.mRawData, 1);
+        }
+
+        public static ID getBlockId(Message msg) {
+            return new ID(msg.mRawData, 5);
+        }
+
+        public static int getLength(Message msg) {
+            return readInt(msg.mRawData, 5);
+        }
+    }
+
+    public static class PutBlockMessage {
+
+        public static final int PUT_ACCEPTED = 0;
+        public static final int PUT_HAVE = 1;
+        public static final int PUT_REFUSED = 2;
+        public static final int PUT_STORED = 3;
+        public static final int PUT_FAILED = 4;
+
+        public static void formatRequest(Message msg, int transferId, ID blockId, int length) {
+            msg.mRawData[0] = PUT_BLOCK;
+            int offset = 1;
+            offset += writeInt(msg.mRawData, offset, transferId);
+            offset += blockId.write(msg.mRawData, offset);
+            offset += writeInt(msg.mRawData, offset, length);
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static void formatResponse(Message msg, int transferId, int status) {
+            msg.mRawData[0] = PUT_BLOCK | FLAG_RESPONSE;
+            int offset = 1;
+            offset += writeInt(msg.mRawData, offset, transferId);
+            msg.mRawData[offset++] = (byte) status;
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static int getTransferId(Message msg) {
+            return readInt(msg.mRawData, 1);
+        }
+
+        public static ID getBlockId(Message msg) {
+            return new ID(msg.mRawData, 5);
+        }
+
+        public static int getLength(Message msg) {
+            return readInt(msg.mRawData, 5 + ID.NUM_BYTES);
+        }
+
+        public static int getStatus(Message msg) {
+            return msg.mRawData[5];
+        }
+    }
+
+    public static class DataMessage {
+
+        /** data bytes in every fragment but the last; small enough to never be split by IP */
+        public static final int FRAGMENT_SIZE = 1200;
+
+        public static final int PAYLOAD_OFFSET = 9;
+
+        public static void formatFragment(Message msg, boolean initiator, int transferId, int sequence,
+                                          byte[] data, int dataOffset, int length) {
+            msg.mRawData[0] = (byte) (DATA | (initiator ? FLAG_INITIATOR : 0));
+            int offset = 1;
+            offset += writeInt(msg.mRawData, offset, transferId);
+            offset += writeInt(msg.mRawData, offset, sequence);
+            System.arraycopy(data, dataOffset, msg.mRawData, offset, length);
+            offset += length;
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static void formatAck(Message msg, boolean initiator, int transferId, int cumulativeAck, long sack) {
+            msg.mRawData[0] = (byte) (DATA | FLAG_RESPONSE | (initiator ? FLAG_INITIATOR : 0));
+            int offset = 1;
+            offset += writeInt(msg.mRawData, offset, transferId);
+            offset += writeInt(msg.mRawData, offset, cumulativeAck);
+            offset += writeLong(msg.mRawData, offset, sack);
+            msg.mPacket.setData(msg.mRawData, 0, offset);
+        }
+
+        public static int getTransferId(Message msg) {
+            return readInt(msg.mRawData, 1);
+        }
+
+        public static int getSequence(Message msg) {
+            return readInt(msg.mRawData, 5);
+        }
+
+        /**
+         * the data of a fragment is at {@link #PAYLOAD_OFFSET} of {@code msg.mPacket.getData()}
+         */
+        public static int getPayloadLength(Message msg) {
+            return msg.mPacket.getLength() - PAYLOAD_OFFSET;
+        }
+
+        public static int getCumulativeAck(Message msg) {
+            return readInt(msg.mRawData, 5);
+        }
+
+        public static long getSack(Message msg) {
+            return readLong(msg.mRawData, 9);
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package com.devsmart.mondo;
+
+
+import com.devsmart.mondo.kademlia.ID;
+import com.devsmart.mondo.kademlia.Message;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlockExchangeTest {
+
+    private static class MemoryRepository implements BlockRepository {
+
+        final Map<ID, byte[]> mBlocks = new HashMap<ID, byte[]>();
+
+        @Override
+        public synchronized int getLength(ID id) throws IOException {
+            byte[] data = mBlocks.get(id);
+            return data != null ? data.length : -1;
+        }
+
+        @Override
+        public synchronized byte[] read(ID id) throws IOException {
+            return mBlocks.get(id);
+        }
+
+        @Override
+        public synchronized void put(ID id, byte[] data) throws IOException {
+            mBlocks.put(id, data);
+        }
+
+        synchronized ID add(byte[] data) {
+            ID id = idOf(data);
+            mBlocks.put(id, data);
+            return id;
+        }
+    }
+
+    private MondoNode mNodeA;
+    private MondoNode mNodeB;
+    private MemoryRepository mBlocksA;
+    private MemoryRepository mBlocksB;
+
+    private static ID idOf(byte[] data) {
+        return new ID(Hashing.sha1().hashBytes(data).asBytes(), 0);
+    }
+
+    private static byte[] randomBytes(Random r, int len) {
+        byte[] retval = new byte[len];
+        r.nextBytes(retval);
+        return retval;
+    }
+
+    private static InetSocketAddress addressOf(MondoNode node) {
+        return new InetSocketAddress("127.0.0.1", node.mDatagramSocket.getLocalPort());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        mNodeA = new MondoNode(Files.createTempDir());
+        mNodeB = new MondoNode(Files.createTempDir());
+        mNodeA.start();
+        mNodeB.start();
+        mBlocksA = new MemoryRepository();
+        mBlocksB = new MemoryRepository();
+        mNodeA.setBlockRepository(mBlocksA);
+        mNodeB.setBlockRepository(mBlocksB);
+    }
+
+    @After
+    public void tearDown() {
+        mNodeA.stop();
+        mNodeB.stop();
+    }
+
+    @Test
+    public void testGetBlock() throws Exception {
+        final byte[] data = randomBytes(new Random(1), 3 * 1024 * 1024 + 5);
+        final ID id = mBlocksB.add(data);
+
+        assertEquals(data.length, (int) mNodeA.have(addressOf(mNodeB), id).get(10, TimeUnit.SECONDS));
+        assertArrayEquals(data, mNodeA.getBlock(addressOf(mNodeB), id).get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMissingBlock() throws Exception {
+        final ID id = idOf(new byte[] {1, 2, 3});
+        assertEquals(-1, (int) mNodeA.have(addressOf(mNodeB), id).get(10, TimeUnit.SECONDS));
+        assertNull(mNodeA.getBlock(addressOf(mNodeB), id).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPutBlock() throws Exception {
+        Random r = new Random(2);
+        final byte[] data = randomBytes(r, 1024 * 1024);
+        final ID id = idOf(data);
+
+        assertTrue(mNodeA.putBlock(addressOf(mNodeB), id, data).get(30, TimeUnit.SECONDS));
+        assertArrayEquals(data, mBlocksB.read(id));
+
+        //putting it again is answered without sending the data
+        assertTrue(mNodeA.putBlock(addressOf(mNodeB), id, data).get(10, TimeUnit.SECONDS));
+
+        //data that does not match its id is not stored, and the put fails
+        final byte[] other = randomBytes(r, 5000);
+        final ID wrongId = idOf(randomBytes(r, 5000));
+        try {
+            mNodeA.putBlock(addressOf(mNodeB), wrongId, other).get(10, TimeUnit.SECONDS);
+            fail("peer stored a block that does not match its id");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(-1, mBlocksB.getLength(wrongId));
+    }
+
+    @Test
+    public void testSlowRepository() throws Exception {
+        final CountDownLatch stored = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mNodeB.setBlockRepository(new MemoryRepository() {
+            @Override
+            public void put(ID id, byte[] data) throws IOException {
+                stored.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.put(id, data);
+            }
+        });
+
+        final byte[] data = randomBytes(new Random(4), 100000);
+        ListenableFuture<Boolean> put = mNodeA.putBlock(addressOf(mNodeB), idOf(data), data);
+        assertTrue(stored.await(10, TimeUnit.SECONDS));
+
+        //the put is not done until the block is stored, and the peer goes on answering meanwhile
+        assertFalse(put.isDone());
+        assertEquals(-1, (int) mNodeA.have(addressOf(mNodeB), idOf(new byte[1])).get(10, TimeUnit.SECONDS));
+        assertFalse(put.isDone());
+
+        release.countDown();
+        assertTrue(put.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRemoteTransferLimits() throws Exception {
+        //a peer on another host than node A
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.2", 0));
+        socket.setSoTimeout(5000);
+        try {
+            //a block this large takes up everything one peer may have in flight
+            assertEquals(Message.PutBlockMessage.PUT_ACCEPTED, requestPut(socket, 1, BlockExchange.MAX_BLOCK_SIZE));
+            assertEquals(Message.PutBlockMessage.PUT_REFUSED, requestPut(socket, 2, 1000));
+        } finally {
+            socket.close();
+        }
+
+        //other peers are not affected
+        final byte[] data = randomBytes(new Random(5), 1000);
+        assertTrue(mNodeA.putBlock(addressOf(mNodeB), idOf(data), data).get(10, TimeUnit.SECONDS));
+    }
+
+    private int requestPut(DatagramSocket socket, int transferId, int length) throws IOException {
+        Message msg = new Message();
+        Message.PutBlockMessage.formatRequest(msg, transferId, idOf(new byte[] {(byte) transferId}), length);
+        msg.mPacket.setSocketAddress(addressOf(mNodeB));
+        socket.send(msg.mPacket);
+
+        Message resp = new Message();
+        resp.prepareReceive();
+        socket.receive(resp.mPacket);
+        assertEquals(Message.PUT_BLOCK, resp.getType());
+        assertTrue(resp.isResponse());
+        assertEquals(transferId, Message.PutBlockMessage.getTransferId(resp));
+        return Message.PutBlockMessage.getStatus(resp);
+    }
+
+    @Test
+    public void testNoRepository() throws Exception {
+        mNodeB.setBlockRepository(null);
+        final byte[] data = randomBytes(new Random(3), 100);
+        assertFalse(mNodeA.putBlock(addressOf(mNodeB), idOf(data), data).get(10, TimeUnit.SECONDS));
+        try {
+            mNodeA.getBlock(new InetSocketAddress("127.0.0.1", 9), idOf(data)).get(10, TimeUnit.SECONDS);
+            fail("got a block from nobody");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -1,14 +1,119 @@
 package com.devsmart.mondo;
 
+import com.devsmart.mondo.data.ErasureCoder;
+import com.devsmart.mondo.data.ShardPool;
 import org.junit.*;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
 public class ReedSolomonTest {
 
+    private static byte[][] randomStripe(ErasureCoder coder, Random r, int shardLength) {
+        byte[][] shards = coder.allocateShards(shardLength);
+        for(int i=0;i<coder.getDataShards();i++) {
+            byte[] data = new byte[shardLength];
+            r.nextBytes(data);
+            System.arraycopy(data, 0, shards[i], 0, shardLength);
+        }
+        return shards;
+    }
+
+    private static byte[][] copy(byte[][] shards, int shardLength) {
+        byte[][] retval = new byte[shards.length][];
+        for(int i=0;i<shards.length;i++) {
+            retval[i] = Arrays.copyOf(shards[i], shardLength);
+        }
+        return retval;
+    }
 
     @Test
     public void reedSolomonTest() {
+        ErasureCoder coder = new ErasureCoder(10, 4, new ForkJoinPool(), new ShardPool(64 * 1024 * 1024));
+        Random r = new Random(1);
+        final int shardLength = 300 * 1024 + 17;
+
+        byte[][] shards = randomStripe(coder, r, shardLength);
+        coder.encode(shards, shardLength);
+        final byte[][] expected = copy(shards, shardLength);
+
+        for(int round=0;round<20;round++) {
+            //lose as many shards as there are parity shards
+            boolean[] present = new boolean[coder.getTotalShards()];
+            Arrays.fill(present, true);
+            for(int lost=0;lost<coder.getParityShards();) {
+                final int i = r.nextInt(present.length);
+                if(present[i]) {
+                    present[i] = false;
+                    Arrays.fill(shards[i], (byte) 0);
+                    lost++;
+                }
+            }
+
+            coder.decode(shards, present, shardLength);
+            for(int i=0;i<shards.length;i++) {
+                assertArrayEquals("shard " + i, expected[i], Arrays.copyOf(shards[i], shardLength));
+            }
+        }
+        coder.releaseShards(shards);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        ShardPool shardPool = new ShardPool(0);
+        ErasureCoder parallel = new ErasureCoder(6, 3, new ForkJoinPool(4), shardPool);
+        ErasureCoder sequential = new ErasureCoder(6, 3, null, shardPool);
+        final int shardLength = 1024 * 1024 + 3;
+
+        byte[][] a = randomStripe(parallel, new Random(2), shardLength);
+        byte[][] b = randomStripe(sequential, new Random(2), shardLength);
+        parallel.encode(a, shardLength);
+        sequential.encode(b, shardLength);
+        for(int i=0;i<a.length;i++) {
+            assertArrayEquals(Arrays.copyOf(b[i], shardLength), Arrays.copyOf(a[i], shardLength));
+        }
+    }
+
+    @Test
+    public void testTooFewShards() {
+        ErasureCoder coder = new ErasureCoder(4, 2, null, new ShardPool(0));
+        byte[][] shards = randomStripe(coder, new Random(3), 1000);
+        coder.encode(shards, 1000);
+
+        boolean[] present = {true, false, true, false, true, false};
+        try {
+            coder.decode(shards, present, 1000);
+            fail("decoded with 3 of 6 shards");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testShardPool() {
+        ShardPool pool = new ShardPool(3 * 8192);
+        assertEquals(4096, ShardPool.bufferSize(1));
+        assertEquals(4096, ShardPool.bufferSize(4096));
+        assertEquals(8192, ShardPool.bufferSize(4097));
 
+        byte[] a = pool.acquire(5000);
+        byte[] b = pool.acquire(5000);
+        assertEquals(8192, a.length);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(2 * 8192, pool.getPooledBytes());
+        assertSame(b, pool.acquire(6000));
+        assertSame(a, pool.acquire(8192));
+        assertEquals(0, pool.getPooledBytes());
 
+        //only up to the limit is kept
+        for(int i=0;i<4;i++) {
+            pool.release(new byte[8192]);
+        }
+        assertEquals(3 * 8192, pool.getPooledBytes());
     }
 
 }
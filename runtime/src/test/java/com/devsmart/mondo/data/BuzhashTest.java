@@ -3,7 +3,11 @@ package com.devsmart.mondo.data;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -46,4 +50,129 @@ public class BuzhashTest {
         assertNotEquals(h3, h1);
         */
     }
+
+    private static final long MASK = (1 << 13) - 1;
+
+    /**
+     * boundaries found by calling addByte for every byte, skipping the first minChunk - 1
+     * bytes of each chunk
+     */
+    private static List<Integer> referenceBoundaries(byte[] data, int minChunk) {
+        List<Integer> retval = new ArrayList<Integer>();
+        Buzhash hash = new Buzhash(40);
+        int chunkStart = 0;
+        for(int i=0;i<data.length;i++) {
+            final int length = i + 1 - chunkStart;
+            if(length <= minChunk - 40) {
+                continue;
+            }
+            if((hash.addByte(data[i]) & MASK) == 0 && length >= minChunk) {
+                retval.add(i + 1);
+                hash.reset();
+                chunkStart = i + 1;
+            }
+        }
+        return retval;
+    }
+
+    private static List<Integer> scanBoundaries(byte[] data, int bufferSize, int minChunk) {
+        List<Integer> retval = new ArrayList<Integer>();
+        Buzhash hash = new Buzhash(40);
+        for(int off=0;off<data.length;off+=bufferSize) {
+            final int end = Math.min(data.length, off + bufferSize);
+            int start = off;
+            int boundary;
+            while(start < end && (boundary = hash.scan(data, start, end - start, MASK, minChunk)) >= 0) {
+                retval.add(boundary);
+                start = boundary;
+            }
+        }
+        return retval;
+    }
+
+    @Test
+    public void scanMatchesAddByte() {
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        List<Integer> expected = referenceBoundaries(data, 0);
+        assertTrue(expected.size() > 10);
+        assertEquals(expected, scanBoundaries(data, data.length, 0));
+        assertEquals(expected, scanBoundaries(data, 1000, 0));
+        assertEquals(expected, scanBoundaries(data, 1, 0));
+    }
+
+    @Test
+    public void scanMinChunk() {
+        byte[] data = new byte[1024 * 1024];
+        new Random(2).nextBytes(data);
+
+        final int minChunk = 2048;
+        List<Integer> expected = referenceBoundaries(data, minChunk);
+        assertEquals(expected, scanBoundaries(data, data.length, minChunk));
+        assertEquals(expected, scanBoundaries(data, 777, minChunk));
+
+        int last = 0;
+        for(int boundary : expected) {
+            assertTrue(boundary - last >= minChunk);
+            last = boundary;
+        }
+    }
+
+    @Test
+    public void scanByteBuffer() {
+        byte[] data = new byte[256 * 1024];
+        new Random(3).nextBytes(data);
+
+        Buzhash hash = new Buzhash(40);
+        final int expected = hash.scan(data, 100, data.length - 100, MASK, 0);
+        assertTrue(expected > 0);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        direct.position(100);
+        hash.reset();
+        assertEquals(expected, hash.scan(direct, MASK, 0));
+
+        hash.reset();
+        assertEquals(expected, hash.scan(ByteBuffer.wrap(data, 100, data.length - 100), MASK, 0));
+    }
+
+    @Test
+    public void throughput() {
+        byte[] data = new byte[64 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        final long mask = (1 << 20) - 1;
+
+        for(int round=0;round<3;round++) {
+            Buzhash hash = new Buzhash(40);
+            int boundaries = 0;
+            long start = System.nanoTime();
+            for(int i=0;i<data.length;i++) {
+                if((hash.addByte(data[i]) & mask) == 0) {
+                    hash.reset();
+                    boundaries++;
+                }
+            }
+            final long addByteTime = System.nanoTime() - start;
+
+            hash.reset();
+            start = System.nanoTime();
+            int off = 0;
+            while(off < data.length) {
+                final int boundary = hash.scan(data, off, data.length - off, mask, 0);
+                if(boundary < 0) {
+                    break;
+                }
+                boundaries--;
+                off = boundary;
+            }
+            final long scanTime = System.nanoTime() - start;
+            assertEquals(0, boundaries);
+
+            System.out.println(String.format("addByte: %.2f GB/s scan: %.2f GB/s",
+                    data.length / (addByteTime / 1e9) / 1e9,
+                    data.length / (scanTime / 1e9) / 1e9));
+        }
+    }
 }
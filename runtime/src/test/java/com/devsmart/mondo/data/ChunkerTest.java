@@ -0,0 +1,131 @@
+package com.devsmart.mondo.data;
+
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkerTest {
+
+    private static List<Long> scanLengths(Chunker chunker, byte[] data, int bufferSize) {
+        List<Long> retval = new ArrayList<Long>();
+        Chunker.Scanner scanner = chunker.newScanner();
+        long last = 0;
+        for(int off=0;off<data.length;off+=bufferSize) {
+            final int end = Math.min(data.length, off + bufferSize);
+            int start = off;
+            int boundary;
+            while(start < end && (boundary = scanner.scan(data, start, end - start)) >= 0) {
+                retval.add(boundary - last);
+                last = boundary;
+                start = boundary;
+            }
+        }
+        if(last < data.length) {
+            retval.add(data.length - last);
+        }
+        return retval;
+    }
+
+    private static List<Long> segmentLengths(Chunker chunker, byte[] data) throws Exception {
+        List<Long> retval = new ArrayList<Long>();
+        for(SecureSegment segment : chunker.getSegments(new ByteArrayInputStream(data))) {
+            retval.add(segment.length);
+        }
+        return retval;
+    }
+
+    @Test
+    public void testScannerMatchesSegments() throws Exception {
+        byte[] data = new byte[2 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        List<Chunker> chunkers = Lists.<Chunker>newArrayList(
+                new DataStreamBreaker(Hashing.sha1(), 13),
+                new LogDataStreamBreaker(Hashing.sha1(), 13),
+                new FastCDC(Hashing.sha1(), 2048, 8192, 32768));
+
+        for(Chunker chunker : chunkers) {
+            List<Long> expected = segmentLengths(chunker, data);
+            assertTrue(chunker.getName(), expected.size() > 10);
+            assertEquals(chunker.getName(), expected, scanLengths(chunker, data, data.length));
+            assertEquals(chunker.getName(), expected, scanLengths(chunker, data, 1000));
+        }
+    }
+
+    @Test
+    public void testFastCDCSizeLimits() throws Exception {
+        Random r = new Random(1);
+        byte[] data = new byte[4 * 1024 * 1024];
+        r.nextBytes(data);
+
+        FastCDC chunker = new FastCDC(Hashing.sha1(), 4096, 16384, 65536);
+        List<Long> lengths = scanLengths(chunker, data, 4096);
+        for(int i=0;i<lengths.size() - 1;i++) {
+            assertTrue(lengths.get(i) >= 4096);
+            assertTrue(lengths.get(i) <= 65536);
+        }
+
+        //data without any boundary is cut at the max size
+        lengths = scanLengths(chunker, new byte[200000], 10000);
+        assertEquals(65536L, (long) lengths.get(0));
+        assertEquals(4, lengths.size());
+    }
+
+    @Test
+    public void testForName() {
+        List<Chunker> chunkers = Lists.<Chunker>newArrayList(
+                new DataStreamBreaker(Hashing.sha1(), 40, 20, 0),
+                new DataStreamBreaker(Hashing.sha1(), 50, 16, 4096),
+                new LogDataStreamBreaker(Hashing.sha1(), 20),
+                new FastCDC(Hashing.sha1(), 262144, 1048576, 4194304));
+
+        for(Chunker chunker : chunkers) {
+            assertEquals(chunker.getName(), Chunkers.forName(chunker.getName(), Hashing.sha1()).getName());
+        }
+    }
+
+    private static void printStats(String name, List<Long> lengths, long nanos, long totalBytes) {
+        double mean = (double) totalBytes / lengths.size();
+        double variance = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for(long length : lengths) {
+            variance += (length - mean) * (length - mean);
+            min = Math.min(min, length);
+            max = Math.max(max, length);
+        }
+        variance /= lengths.size();
+
+        System.out.println(String.format("%-32s %8.2f MB/s chunks: %4d mean: %9.0f stddev: %9.0f min: %8d max: %8d",
+                name, (totalBytes / (1024.0 * 1024.0)) / (nanos / 1e9),
+                lengths.size(), mean, Math.sqrt(variance), min, max));
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmark() {
+        byte[] data = new byte[128 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        List<Chunker> chunkers = Lists.<Chunker>newArrayList(
+                new DataStreamBreaker(Hashing.sha1(), 40, 20, 0),
+                new FastCDC(Hashing.sha1(), 256 * 1024, 1024 * 1024, 4 * 1024 * 1024));
+
+        for(int round=0;round<2;round++) {
+            for(Chunker chunker : chunkers) {
+                long start = System.nanoTime();
+                List<Long> lengths = scanLengths(chunker, data, 1024 * 1024);
+                printStats(chunker.getName(), lengths, System.nanoTime() - start, data.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.devsmart.mondo.data;
+
+import com.backblaze.erasure.ReedSolomon;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CodingKernelTest {
+
+    private static final int[][] LAYOUTS = {{10, 4}, {6, 3}};
+
+    private static byte[][] randomShards(int total, int data, int shardLength, Random r) {
+        byte[][] shards = new byte[total][shardLength];
+        for(int i=0;i<data;i++) {
+            r.nextBytes(shards[i]);
+        }
+        return shards;
+    }
+
+    private static ByteBuffer[] toBuffers(byte[][] shards, boolean direct) {
+        ByteBuffer[] retval = new ByteBuffer[shards.length];
+        for(int i=0;i<shards.length;i++) {
+            if(direct) {
+                retval[i] = ByteBuffer.allocateDirect(shards[i].length);
+            } else {
+                //a slice of a larger array, so indices are not array indices
+                ByteBuffer outer = ByteBuffer.allocate(shards[i].length + 7);
+                outer.position(7);
+                retval[i] = outer.slice();
+            }
+            retval[i].put(shards[i]);
+            retval[i].clear();
+        }
+        return retval;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] retval = new byte[buffer.capacity()];
+        buffer.duplicate().get(retval);
+        return retval;
+    }
+
+    @Test
+    public void testParityMatchesReedSolomon() {
+        Random r = new Random(1);
+        for(int[] layout : LAYOUTS) {
+            final int shardLength = 100 * 1024 + 3;
+            ErasureCoder coder = new ErasureCoder(layout[0], layout[1], null, new ShardPool(0));
+            byte[][] shards = randomShards(coder.getTotalShards(), layout[0], shardLength, r);
+            byte[][] expected = new byte[shards.length][];
+            for(int i=0;i<shards.length;i++) {
+                expected[i] = shards[i].clone();
+            }
+
+            coder.encode(shards, shardLength);
+            ReedSolomon.create(layout[0], layout[1]).encodeParity(expected, 0, shardLength);
+            for(int i=0;i<shards.length;i++) {
+                assertArrayEquals(expected[i], shards[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testBuffers() {
+        Random r = new Random(2);
+        for(boolean direct : new boolean[] {true, false}) {
+            for(int[] layout : LAYOUTS) {
+                final int shardLength = 300 * 1024 + 11;
+                ErasureCoder coder = new ErasureCoder(layout[0], layout[1], new java.util.concurrent.ForkJoinPool(4), new ShardPool(0));
+                byte[][] expected = randomShards(coder.getTotalShards(), layout[0], shardLength, r);
+                ByteBuffer[] buffers = toBuffers(expected, direct);
+                coder.encode(expected, shardLength);
+                coder.encode(buffers, shardLength);
+                for(int i=0;i<buffers.length;i++) {
+                    assertArrayEquals(expected[i], toArray(buffers[i]));
+                }
+
+                //lose a data shard and all but one parity shard
+                boolean[] present = new boolean[buffers.length];
+                Arrays.fill(present, true);
+                present[1] = false;
+                for(int i=layout[0];i<buffers.length - 1;i++) {
+                    present[i] = false;
+                }
+                for(int i=0;i<buffers.length;i++) {
+                    if(!present[i]) {
+                        buffers[i].put(0, (byte) (buffers[i].get(0) + 1));
+                        buffers[i].put(shardLength - 1, (byte) 0x55);
+                    }
+                }
+                coder.decode(buffers, present, shardLength);
+                for(int i=0;i<buffers.length;i++) {
+                    assertArrayEquals(expected[i], toArray(buffers[i]));
+                    assertEquals(0, buffers[i].position());
+                }
+            }
+        }
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmark() {
+        final int[] shardLengths = {4 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+        //data coded per measurement
+        final long totalBytes = 64L * 1024 * 1024;
+        Random r = new Random(3);
+
+        for(int[] layout : LAYOUTS) {
+            ReedSolomon library = ReedSolomon.create(layout[0], layout[1]);
+            ErasureCoder coder = new ErasureCoder(layout[0], layout[1], null, new ShardPool(0));
+            for(int shardLength : shardLengths) {
+                byte[][] shards = randomShards(coder.getTotalShards(), layout[0], shardLength, r);
+                ByteBuffer[] direct = toBuffers(shards, true);
+                final int iterations = (int) Math.max(1, totalBytes / ((long) shardLength * layout[0]));
+
+                for(int round=0;round<2;round++) {
+                    long start = System.nanoTime();
+                    for(int i=0;i<iterations;i++) {
+                        library.encodeParity(shards, 0, shardLength);
+                    }
+                    final long libraryNanos = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for(int i=0;i<iterations;i++) {
+                        coder.encode(shards, shardLength);
+                    }
+                    final long tableNanos = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for(int i=0;i<iterations;i++) {
+                        coder.encode(direct, shardLength);
+                    }
+                    final long directNanos = System.nanoTime() - start;
+
+                    final double mb = (double) iterations * shardLength * layout[0] / (1024 * 1024);
+                    System.out.println(String.format("(%2d,%d) %5d KB  library %8.2f MB/s  table %8.2f MB/s  direct %8.2f MB/s",
+                            layout[0], layout[1], shardLength / 1024,
+                            mb / (libraryNanos / 1e9), mb / (tableNanos / 1e9), mb / (directNanos / 1e9)));
+                }
+            }
+        }
+    }
+}
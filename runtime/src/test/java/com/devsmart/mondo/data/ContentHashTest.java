@@ -0,0 +1,117 @@
+package com.devsmart.mondo.data;
+
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ContentHashTest {
+
+    private static byte[] testInput(int len) {
+        byte[] retval = new byte[len];
+        for(int i=0;i<len;i++) {
+            retval[i] = (byte) (i % 251);
+        }
+        return retval;
+    }
+
+    /**
+     * from the test vectors of the BLAKE3 reference implementation
+     */
+    @Test
+    public void testBlake3Vectors() {
+        assertEquals("af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+                Blake3.SEQUENTIAL.hashBytes(testInput(0)).toString());
+        assertEquals("2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213",
+                Blake3.SEQUENTIAL.hashBytes(testInput(1)).toString());
+        assertEquals("42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7",
+                Blake3.SEQUENTIAL.hashBytes(testInput(1024)).toString());
+        assertEquals("d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444",
+                Blake3.SEQUENTIAL.hashBytes(testInput(1025)).toString());
+        assertEquals("bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085",
+                Blake3.SEQUENTIAL.hashBytes(testInput(102400)).toString());
+    }
+
+    @Test
+    public void testBlake3Streaming() {
+        byte[] data = new byte[3 * 1024 * 1024 + 517];
+        new Random(1).nextBytes(data);
+
+        final HashCode expected = Blake3.SEQUENTIAL.hashBytes(data);
+        assertEquals(expected, new Blake3(new ForkJoinPool(4)).hashBytes(data));
+
+        //however the input is split, the tree is the same
+        Random r = new Random(2);
+        for(int round=0;round<4;round++) {
+            Hasher hasher = new Blake3(new ForkJoinPool(4)).newHasher();
+            int off = 0;
+            while(off < data.length) {
+                final int len = Math.min(data.length - off, round == 0 ? 1 : r.nextInt(300000));
+                hasher.putBytes(data, off, len);
+                off += len;
+            }
+            assertEquals(expected, hasher.hash());
+        }
+    }
+
+    @Test
+    public void testIds() {
+        byte[] data = new byte[5000];
+        new Random(1).nextBytes(data);
+
+        for(ContentHash contentHash : ContentHash.values()) {
+            HashCode digest = contentHash.hashFunction().hashBytes(data);
+            HashCode id = contentHash.toId(digest);
+            assertEquals(contentHash.idLength(), id.bits() / 8);
+            assertSame(contentHash, ContentHash.of(id));
+            assertEquals(digest, contentHash.getDigest(id));
+            assertSame(contentHash, ContentHash.forName(contentHash.getName()));
+        }
+
+        //SHA-1 ids are unchanged from before ids were tagged
+        HashCode sha1 = Hashing.sha1().hashBytes(data);
+        assertEquals(sha1, ContentHash.SHA1.toId(sha1));
+        assertEquals(sha1.toString(), ContentHash.SHA1.getFileName(sha1));
+
+        HashCode blake3 = ContentHash.BLAKE3.toId(ContentHash.BLAKE3.hashFunction().hashBytes(data));
+        assertTrue(ContentHash.BLAKE3.getFileName(blake3).endsWith(".blake3"));
+
+        assertEquals(sha1, ContentHash.parseFileName(ContentHash.SHA1.getFileName(sha1)));
+        assertEquals(blake3, ContentHash.parseFileName(ContentHash.BLAKE3.getFileName(blake3)));
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void benchmark() {
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        final int iterations = 128;
+
+        HashFunction[] functions = new HashFunction[] {
+                Hashing.sha1(),
+                Hashing.sha256(),
+                Blake3.SEQUENTIAL,
+                ContentHash.BLAKE3.hashFunction()
+        };
+        String[] names = new String[] {"sha1", "sha256", "blake3", "blake3 parallel"};
+
+        for(int round=0;round<2;round++) {
+            for(int i=0;i<functions.length;i++) {
+                long start = System.nanoTime();
+                for(int j=0;j<iterations;j++) {
+                    functions[i].hashBytes(data);
+                }
+                final long nanos = System.nanoTime() - start;
+                System.out.println(String.format("%-16s %8.2f MB/s", names[i], iterations / (nanos / 1e9)));
+            }
+        }
+    }
+}
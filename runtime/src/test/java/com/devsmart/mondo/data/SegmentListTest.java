@@ -44,5 +44,10 @@ public class SegmentListTest {
         segments.truncate(5);
         assertEquals(1, segments.size());
         assertEquals(Iterables.get(segments, 0), new Segment(0, 5));
+
+        segments.merge(new Segment(10, 20));
+        segments.truncate(15);
+        assertEquals(2, segments.size());
+        assertEquals(Iterables.get(segments, 1), new Segment(10, 5));
     }
 }
@@ -0,0 +1,272 @@
+package com.devsmart.mondo.kademlia;
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FragmentTransferTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * A link with a fixed one way delay that drops packets, run on a virtual clock.
+     */
+    private static class Link {
+
+        interface Drop {
+            boolean fragment(int sequence);
+            boolean ack();
+        }
+
+        private static class Event implements Comparable<Event> {
+            final long time;
+            final long order;
+            final int sequence;
+            final byte[] payload;
+            final int cumulativeAck;
+            final long sack;
+
+            Event(long time, long order, int sequence, byte[] payload, int cumulativeAck, long sack) {
+                this.time = time;
+                this.order = order;
+                this.sequence = sequence;
+                this.payload = payload;
+                this.cumulativeAck = cumulativeAck;
+                this.sack = sack;
+            }
+
+            @Override
+            public int compareTo(Event o) {
+                return time != o.time ? Long.compare(time, o.time) : Long.compare(order, o.order);
+            }
+        }
+
+        final FragmentSender sender;
+        final FragmentReceiver receiver;
+        final Drop drop;
+        final long delay;
+        final PriorityQueue<Event> events = new PriorityQueue<Event>();
+        long now;
+        long order;
+        int fragmentsSent;
+
+        Link(byte[] data, int maxWindow, long delay, Drop drop) {
+            this.sender = new FragmentSender(data, new CongestionWindow(maxWindow));
+            this.receiver = new FragmentReceiver(data.length);
+            this.delay = delay;
+            this.drop = drop;
+        }
+
+        private final FragmentSender.Output mOutput = new FragmentSender.Output() {
+            @Override
+            public void sendFragment(int sequence, byte[] data, int offset, int length) {
+                fragmentsSent++;
+                if(!drop.fragment(sequence)) {
+                    events.add(new Event(now + delay, order++, sequence, Arrays.copyOfRange(data, offset, offset + length), 0, 0));
+                }
+            }
+        };
+
+        /**
+         * @return the virtual time it took
+         */
+        long run() {
+            sender.pump(now, mOutput);
+            while(!sender.isDone()) {
+                assertFalse("sender gave up", sender.isFailed());
+                assertTrue("transfer does not finish", now < TimeUnit.MINUTES.toNanos(10));
+
+                Event e = events.peek();
+                if(e == null || e.time > now + MILLIS) {
+                    //nothing arrives for a while: let the retransmit timer run
+                    now += MILLIS;
+                    if(sender.checkTimeout(now)) {
+                        sender.pump(now, mOutput);
+                    }
+                    continue;
+                }
+
+                events.poll();
+                now = e.time;
+                if(e.payload != null) {
+                    assertTrue(receiver.onFragment(e.sequence, e.payload, 0, e.payload.length));
+                    if(!drop.ack()) {
+                        events.add(new Event(now + delay, order++, -1, null, receiver.getCumulativeAck(), receiver.getSack()));
+                    }
+                } else {
+                    sender.onAck(e.cumulativeAck, e.sack, now);
+                    sender.pump(now, mOutput);
+                }
+            }
+            return now;
+        }
+    }
+
+    private static byte[] randomBytes(Random r, int len) {
+        byte[] retval = new byte[len];
+        r.nextBytes(retval);
+        return retval;
+    }
+
+    @Test
+    public void testLosslessTransfer() {
+        final byte[] data = randomBytes(new Random(1), 1024 * 1024 + 17);
+        Link link = new Link(data, 256, 10 * MILLIS, new Link.Drop() {
+            @Override
+            public boolean fragment(int sequence) {
+                return false;
+            }
+
+            @Override
+            public boolean ack() {
+                return false;
+            }
+        });
+        final long time = link.run();
+
+        assertTrue(link.receiver.isComplete());
+        assertArrayEquals(data, link.receiver.getData());
+        assertEquals(link.sender.getNumFragments(), link.fragmentsSent);
+        assertEquals(0, link.sender.getRetransmits());
+        //the window opens up instead of sending a fragment per round trip
+        assertTrue(time < 20 * 20 * MILLIS);
+    }
+
+    @Test
+    public void testOnlyMissingFragmentsAreResent() {
+        final byte[] data = randomBytes(new Random(2), 200 * 1200);
+        final boolean[] dropped = new boolean[200];
+        Link link = new Link(data, 64, 10 * MILLIS, new Link.Drop() {
+            @Override
+            public boolean fragment(int sequence) {
+                //the first copy of a few fragments in the middle
+                if((sequence == 50 || sequence == 51 || sequence == 120) && !dropped[sequence]) {
+                    dropped[sequence] = true;
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean ack() {
+                return false;
+            }
+        });
+        link.run();
+
+        assertArrayEquals(data, link.receiver.getData());
+        assertEquals(3, link.sender.getRetransmits());
+    }
+
+    @Test
+    public void testLossyLink() {
+        final Random r = new Random(3);
+        final byte[] data = randomBytes(r, 2 * 1024 * 1024);
+        Link link = new Link(data, 1024, 20 * MILLIS, new Link.Drop() {
+            @Override
+            public boolean fragment(int sequence) {
+                return r.nextDouble() < 0.1;
+            }
+
+            @Override
+            public boolean ack() {
+                return r.nextDouble() < 0.1;
+            }
+        });
+        link.run();
+
+        assertTrue(link.receiver.isComplete());
+        assertArrayEquals(data, link.receiver.getData());
+        //lost acks are covered by later ones, lost fragments are resent about once
+        assertTrue(link.sender.getRetransmits() < 0.25 * link.sender.getNumFragments());
+    }
+
+    @Test
+    public void testEmptyBlock() {
+        Link link = new Link(new byte[0], 16, MILLIS, new Link.Drop() {
+            @Override
+            public boolean fragment(int sequence) {
+                return false;
+            }
+
+            @Override
+            public boolean ack() {
+                return false;
+            }
+        });
+        link.run();
+        assertTrue(link.receiver.isComplete());
+        assertEquals(1, link.fragmentsSent);
+    }
+
+    @Test
+    public void testCongestionWindow() {
+        CongestionWindow window = new CongestionWindow(100);
+        assertEquals(CongestionWindow.INITIAL_WINDOW, window.getWindow());
+
+        //slow start doubles the window every round trip
+        window.onAck(4);
+        assertEquals(8, window.getWindow());
+        window.onAck(8);
+        assertEquals(16, window.getWindow());
+
+        //multiplicative decrease, then one more fragment per window
+        window.onLoss();
+        assertEquals(8, window.getWindow());
+        window.onAck(7);
+        assertEquals(8, window.getWindow());
+        window.onAck(2);
+        assertEquals(9, window.getWindow());
+
+        window.onAck(10000);
+        assertEquals(100, window.getWindow());
+
+        window.onTimeout();
+        assertEquals(1, window.getWindow());
+        assertEquals(2 * CongestionWindow.INITIAL_RTO, window.getRto());
+
+        window.onRttSample(100 * MILLIS);
+        assertEquals(300 * MILLIS, window.getRto());
+        for(int i=0;i<100;i++) {
+            window.onRttSample(10 * MILLIS);
+        }
+        assertEquals(CongestionWindow.MIN_RTO, window.getRto());
+    }
+
+    @Test
+    public void testSharedWindow() {
+        final CongestionWindow window = new CongestionWindow(100);
+        final int[] sent = new int[1];
+        final FragmentSender.Output output = new FragmentSender.Output() {
+            @Override
+            public void sendFragment(int sequence, byte[] data, int offset, int length) {
+                sent[0]++;
+            }
+        };
+        final Random r = new Random(1);
+        final FragmentSender first = new FragmentSender(randomBytes(r, 64 * 1024), window);
+        final FragmentSender second = new FragmentSender(randomBytes(r, 64 * 1024), window);
+
+        //two transfers to the same peer fill one window between them
+        first.pump(0, output);
+        second.pump(0, output);
+        assertEquals(CongestionWindow.INITIAL_WINDOW, sent[0]);
+        assertEquals(CongestionWindow.INITIAL_WINDOW, window.getInFlight());
+
+        //acks of the first make room the second can take
+        first.onAck(2, 0, 10 * MILLIS);
+        second.pump(10 * MILLIS, output);
+        assertEquals(window.getWindow(), window.getInFlight());
+
+        //a transfer given up on hands its fragments in flight back
+        second.close();
+        first.close();
+        assertEquals(0, window.getInFlight());
+    }
+}